@@ -0,0 +1,392 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.AlignmentSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * Measures the Effect hot paths -- existsInSelection(),
+ * valueInSelection(), applyToSpannable(), and the scan done
+ * on each selection change -- for every built-in effect,
+ * against synthetic documents from 1KB to 1MB at several span
+ * densities. This runs on a desktop JVM, using the framework
+ * text classes from Robolectric's android-all JAR, so it can
+ * run as part of a build, without a device.
+ *
+ * For each case, this reports operations per second and, where
+ * the JVM supports it, bytes allocated per operation.
+ *
+ * Arguments (all optional):
+ *
+ * --index: attach a SpanIndex to each document, to measure
+ * the indexed lookups instead of getSpans()
+ *
+ * anything else: only run the cases whose names contain it
+ * (e.g., "TYPEFACE" or "scan")
+ */
+public class EffectBenchmark {
+  private static final int[] SIZES={ 1024, 10 * 1024, 100 * 1024,
+      1024 * 1024 };
+  private static final int[] DENSITIES={ 1, 10, 40 }; // spans per KB
+  private static final long WARMUP_NANOS=100000000L;
+  private static final long MEASURE_NANOS=300000000L;
+  private static final int POSITIONS=1024;
+  private static final String[] NAMES={ "BOLD", "ITALIC", "UNDERLINE",
+      "STRIKETHROUGH", "LINE_ALIGNMENT", "TYPEFACE", "SUPERSCRIPT",
+      "SUBSCRIPT" };
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private final Object[] onValues={ true, true, true, true,
+      Layout.Alignment.ALIGN_CENTER, "serif", true, true };
+  private final Object[] offValues={ false, false, false, false, null,
+      null, false, false };
+  private final ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+  private final boolean useIndex;
+  private final String filter;
+  private Object sink;
+
+  public static void main(String[] args) {
+    boolean useIndex=false;
+    String filter=null;
+
+    for (String arg : args) {
+      if ("--index".equals(arg)) {
+        useIndex=true;
+      }
+      else {
+        filter=arg;
+      }
+    }
+
+    new EffectBenchmark(useIndex, filter).run();
+  }
+
+  EffectBenchmark(boolean useIndex, String filter) {
+    this.useIndex=useIndex;
+    this.filter=filter;
+
+    // same roster, in the same order, as RichEditText, which
+    // itself cannot be loaded outside of a device
+    effects.add(new StyleEffect(Typeface.BOLD));
+    effects.add(new StyleEffect(Typeface.ITALIC));
+    effects.add(new SimpleBooleanEffect<UnderlineSpan>(
+        UnderlineSpan.class,
+        new SimpleBooleanEffect.SpanFactory<UnderlineSpan>() {
+          @Override
+          public UnderlineSpan newSpan() {
+            return(new UnderlineSpan());
+          }
+        }));
+    effects.add(new SimpleBooleanEffect<StrikethroughSpan>(
+        StrikethroughSpan.class,
+        new SimpleBooleanEffect.SpanFactory<StrikethroughSpan>() {
+          @Override
+          public StrikethroughSpan newSpan() {
+            return(new StrikethroughSpan());
+          }
+        }));
+    effects.add(new LineAlignmentEffect());
+    effects.add(new TypefaceEffect());
+    effects.add(new SimpleBooleanEffect<SuperscriptSpan>(
+        SuperscriptSpan.class,
+        new SimpleBooleanEffect.SpanFactory<SuperscriptSpan>() {
+          @Override
+          public SuperscriptSpan newSpan() {
+            return(new SuperscriptSpan());
+          }
+        }));
+    effects.add(new SimpleBooleanEffect<SubscriptSpan>(
+        SubscriptSpan.class,
+        new SimpleBooleanEffect.SpanFactory<SubscriptSpan>() {
+          @Override
+          public SubscriptSpan newSpan() {
+            return(new SubscriptSpan());
+          }
+        }));
+
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      ((com.sun.management.ThreadMXBean)threads).setThreadAllocatedMemoryEnabled(true);
+    }
+  }
+
+  void run() {
+    System.out.println(String.format("%-24s %8s %6s %14s %12s", "case",
+                                     "size", "/KB", "ops/s", "bytes/op"));
+
+    for (int size : SIZES) {
+      for (int density : DENSITIES) {
+        for (int i=0; i < effects.size(); i++) {
+          runQueries(i, size, density);
+        }
+
+        runScan(size, density);
+
+        for (int i=0; i < effects.size(); i++) {
+          runApply(i, size, density);
+        }
+      }
+    }
+  }
+
+  private void runQueries(int effectIndex, int size, int density) {
+    final Effect<?> effect=effects.get(effectIndex);
+    String exists=NAMES[effectIndex] + ".exists";
+    String value=NAMES[effectIndex] + ".value";
+
+    if (!wanted(exists) && !wanted(value)) {
+      return;
+    }
+
+    final Spannable str=buildDocument(size, density);
+    final SpanIndex index=attachIndex(str);
+    final Selection[] selections=buildSelections(size, true);
+
+    if (wanted(exists)) {
+      measure(exists, size, density, new Op() {
+        @Override
+        public void run(int i) {
+          sink=effect.existsInSelection(str, selections[i % POSITIONS],
+                                        index);
+        }
+      });
+    }
+
+    if (wanted(value)) {
+      measure(value, size, density, new Op() {
+        @Override
+        public void run(int i) {
+          sink=effect.valueInSelection(str, selections[i % POSITIONS],
+                                       index);
+        }
+      });
+    }
+
+    detachIndex(index);
+  }
+
+  private void runScan(int size, int density) {
+    if (!wanted("scan")) {
+      return;
+    }
+
+    final Spannable str=buildDocument(size, density);
+    final SpanIndex index=attachIndex(str);
+    final Selection[] selections=buildSelections(size, true);
+    final EffectSnapshot snapshot=new EffectSnapshot(effects);
+    final EffectState state=new EffectState(effects);
+
+    // the work RichEditText does for each selection change
+    measure("scan", size, density, new Op() {
+      @Override
+      public void run(int i) {
+        snapshot.scan(str, selections[i % POSITIONS], index);
+        state.update(snapshot);
+        snapshot.clear();
+      }
+    });
+
+    detachIndex(index);
+  }
+
+  private void runApply(int effectIndex, int size, int density) {
+    String name=NAMES[effectIndex] + ".apply";
+
+    if (!wanted(name)) {
+      return;
+    }
+
+    @SuppressWarnings("unchecked")
+    final Effect<Object> effect=(Effect<Object>)effects.get(effectIndex);
+    final Object on=onValues[effectIndex];
+    final Object off=offValues[effectIndex];
+    final Spannable str=buildDocument(size, density);
+    final SpanIndex index=attachIndex(str);
+    // no cursors, as applying an effect to nothing is an
+    // error (logged by SpannableStringBuilder)
+    final Selection[] selections=buildSelections(size, false);
+
+    // alternate adding and removing the effect, so the
+    // document stays about the same size as we go
+    measure(name, size, density, new Op() {
+      @Override
+      public void run(int i) {
+        effect.applyToSpannable(str, selections[i % POSITIONS],
+                                (i & 1) == 0 ? on : off, index);
+      }
+    });
+
+    detachIndex(index);
+  }
+
+  private void measure(String name, int size, int density, Op op) {
+    loop(op, WARMUP_NANOS);
+
+    long allocated=allocatedBytes();
+    long begin=System.nanoTime();
+    long ops=loop(op, MEASURE_NANOS);
+    long elapsed=System.nanoTime() - begin;
+    String bytesPerOp="n/a";
+
+    if (allocated >= 0) {
+      bytesPerOp=
+          String.format("%.1f", (double)(allocatedBytes() - allocated)
+              / ops);
+    }
+
+    System.out.println(String.format("%-24s %8d %6d %14.0f %12s", name,
+                                     size, density, ops * 1e9 / elapsed,
+                                     bytesPerOp));
+  }
+
+  private long loop(Op op, long nanos) {
+    long deadline=System.nanoTime() + nanos;
+    long ops=0;
+
+    // check the clock every 64 ops, so reading it does not
+    // swamp the faster operations
+    do {
+      for (int i=0; i < 64; i++) {
+        op.run((int)ops++);
+      }
+    } while (System.nanoTime() < deadline);
+
+    return(ops);
+  }
+
+  private long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return(((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread()
+                                                                                      .getId()));
+    }
+
+    return(-1);
+  }
+
+  private boolean wanted(String name) {
+    return(filter == null || name.contains(filter));
+  }
+
+  /*
+   * Builds a document of size characters -- "words" with a
+   * newline every 80 characters or so -- with density spans
+   * per KB, spread over all of the effects, at random
+   * positions with random lengths. The Random is seeded, so
+   * each run sees the same documents.
+   */
+  private Spannable buildDocument(int size, int density) {
+    Random random=new Random(size + density);
+    char[] chars=new char[size];
+
+    for (int i=0; i < size; i++) {
+      if (i % 80 == 79) {
+        chars[i]='\n';
+      }
+      else if (random.nextInt(6) == 0) {
+        chars[i]=' ';
+      }
+      else {
+        chars[i]=(char)('a' + random.nextInt(26));
+      }
+    }
+
+    SpannableStringBuilder str=
+        new SpannableStringBuilder(new String(chars));
+    int spanCount=size / 1024 * density;
+
+    for (int i=0; i < spanCount; i++) {
+      int start=random.nextInt(size);
+      int end=Math.min(size, start + 1 + random.nextInt(40));
+
+      str.setSpan(newSpan(i % NAMES.length, random), start, end,
+                  Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    return(str);
+  }
+
+  private Object newSpan(int effectIndex, Random random) {
+    switch (effectIndex) {
+      case 0:
+        return(new StyleSpan(Typeface.BOLD));
+      case 1:
+        return(new StyleSpan(Typeface.ITALIC));
+      case 2:
+        return(new UnderlineSpan());
+      case 3:
+        return(new StrikethroughSpan());
+      case 4:
+        return(new AlignmentSpan.Standard(Layout.Alignment.ALIGN_CENTER));
+      case 5:
+        return(new TypefaceSpan(random.nextBoolean() ? "serif"
+            : "monospace"));
+      case 6:
+        return(new SuperscriptSpan());
+      default:
+        return(new SubscriptSpan());
+    }
+  }
+
+  /*
+   * Builds the selections to query and apply to, spread over
+   * the document: short ranges, mixed with cursors if
+   * requested.
+   */
+  private Selection[] buildSelections(int size, boolean cursors) {
+    Random random=new Random(size);
+    Selection[] result=new Selection[POSITIONS];
+
+    for (int i=0; i < POSITIONS; i++) {
+      int start=1 + random.nextInt(size - 20);
+
+      result[i]=new Selection(start, start + (cursors && i % 2 == 0 ? 0 : 16));
+    }
+
+    return(result);
+  }
+
+  private SpanIndex attachIndex(Spannable str) {
+    SpanIndex index=null;
+
+    if (useIndex) {
+      index=new SpanIndex(effects);
+      index.attach(str);
+    }
+
+    return(index);
+  }
+
+  private void detachIndex(SpanIndex index) {
+    if (index != null) {
+      index.detach();
+    }
+  }
+
+  private interface Op {
+    void run(int i);
+  }
+}
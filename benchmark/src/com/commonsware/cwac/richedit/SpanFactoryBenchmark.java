@@ -0,0 +1,79 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.UnderlineSpan;
+
+/*
+ * Compares applying a SimpleBooleanEffect whose spans are
+ * created via reflection with one whose spans are created via
+ * a SpanFactory. Like EffectBenchmark, this runs on a desktop
+ * JVM: ./gradlew :benchmark:runSpanFactoryBenchmark
+ */
+public class SpanFactoryBenchmark {
+  private static final int ITERATIONS=20000;
+
+  public static void main(String[] args) {
+    Effect<Boolean> reflective=
+        new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class);
+    SimpleBooleanEffect.SpanFactory<UnderlineSpan> underlines=
+        new SimpleBooleanEffect.SpanFactory<UnderlineSpan>() {
+          @Override
+          public UnderlineSpan newSpan() {
+            return(new UnderlineSpan());
+          }
+        };
+    Effect<Boolean> factory=
+        new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class,
+                                               underlines);
+
+    // warm up both paths
+    run(reflective);
+    run(factory);
+
+    long reflectiveNanos=run(reflective);
+    long factoryNanos=run(factory);
+
+    System.out.println(String.format("newInstance() %d ns/apply, SpanFactory %d ns/apply",
+                                     reflectiveNanos, factoryNanos));
+  }
+
+  /*
+   * Applies the effect over a selection, then removes it from
+   * the middle of the selection, which creates a span for the
+   * apply and two spans (prologue and epilogue) for the
+   * removal. Returns the average time per apply, in
+   * nanoseconds.
+   */
+  private static long run(Effect<Boolean> effect) {
+    Spannable str=new SpannableString("0123456789");
+    Selection all=new Selection(0, 10);
+    Selection middle=new Selection(4, 6);
+    long begin=System.nanoTime();
+
+    for (int i=0; i < ITERATIONS; i++) {
+      effect.applyToSpannable(str, all, true);
+      effect.applyToSpannable(str, middle, false);
+    }
+
+    if (str.getSpans(0, str.length(), UnderlineSpan.class).length != 2) {
+      throw new IllegalStateException("Effect did not leave two spans");
+    }
+
+    return((System.nanoTime() - begin) / (ITERATIONS * 2));
+  }
+}
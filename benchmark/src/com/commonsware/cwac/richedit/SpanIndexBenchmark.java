@@ -0,0 +1,119 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Compares looking up an effect's spans via getSpans() with
+ * looking them up via a SpanIndex, for documents with 1K,
+ * 10K, and 100K spans. Like EffectBenchmark, this runs on a
+ * desktop JVM: ./gradlew :benchmark:runSpanIndexBenchmark
+ */
+public class SpanIndexBenchmark {
+  private static final int QUERIES=1000;
+  private static final int SPAN_SPACING=10;
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private final Effect<?> underline;
+
+  public static void main(String[] args) {
+    SpanIndexBenchmark benchmark=new SpanIndexBenchmark();
+
+    for (int spanCount : new int[] { 1000, 10000, 100000 }) {
+      benchmark.run(spanCount);
+    }
+  }
+
+  SpanIndexBenchmark() {
+    underline=new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class);
+    effects.add(new StyleEffect(Typeface.BOLD));
+    effects.add(underline);
+  }
+
+  private void run(int spanCount) {
+    char[] chars=new char[spanCount * SPAN_SPACING];
+
+    Arrays.fill(chars, 'x');
+
+    SpannableStringBuilder str=new SpannableStringBuilder(new String(chars));
+    SpanIndex index=new SpanIndex(effects);
+
+    // attach first, so the index learns positions as spans are added
+    index.attach(str);
+
+    for (int i=0; i < spanCount; i++) {
+      Object span=
+          (i % 2 == 0 ? new UnderlineSpan()
+              : new StyleSpan(Typeface.BOLD));
+      int start=i * SPAN_SPACING;
+
+      str.setSpan(span, start,
+                  Math.min(str.length(), start + SPAN_SPACING * 3),
+                  Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    int found=0;
+
+    // warm up both paths, and make sure they agree
+    for (int i=0; i < QUERIES; i++) {
+      int start=queryStart(i, str.length());
+
+      if (underline.findSpans(str, start, start + 1, null).count
+          != index.query(underline, start, start + 1).count) {
+        throw new IllegalStateException("SpanIndex disagrees with getSpans() at "
+            + start);
+      }
+    }
+
+    long begin=System.nanoTime();
+
+    for (int i=0; i < QUERIES; i++) {
+      int start=queryStart(i, str.length());
+
+      found+=underline.findSpans(str, start, start + 1, null).count;
+    }
+
+    long getSpansNanos=(System.nanoTime() - begin) / QUERIES;
+
+    begin=System.nanoTime();
+
+    for (int i=0; i < QUERIES; i++) {
+      int start=queryStart(i, str.length());
+
+      found-=index.query(underline, start, start + 1).count;
+    }
+
+    long indexNanos=(System.nanoTime() - begin) / QUERIES;
+
+    if (found != 0) {
+      throw new IllegalStateException("SpanIndex disagrees with getSpans()");
+    }
+
+    System.out.println(String.format("%d spans: getSpans() %d ns/query, SpanIndex %d ns/query",
+                                     spanCount, getSpansNanos, indexNanos));
+
+    index.detach();
+  }
+
+  private int queryStart(int i, int length) {
+    return((int)((i * 7919L) % (length - 1)));
+  }
+}
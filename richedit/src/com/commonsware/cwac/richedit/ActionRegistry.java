@@ -0,0 +1,134 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.util.SparseArray;
+import android.view.KeyEvent;
+
+/*
+ * The keyboard shortcuts and menu items of a RichEditText,
+ * each bound to an Action. Keys are looked up by their key
+ * code plus the Ctrl, Shift, Alt, and Meta modifiers packed
+ * into one int, and menu items by their ID, so dispatching
+ * is a SparseArray lookup, with no allocations.
+ */
+class ActionRegistry {
+  private static final int CTRL=1;
+  private static final int SHIFT=2;
+  private static final int ALT=4;
+  private static final int META=8;
+  private final SparseArray<RichEditText.Action> keys=
+      new SparseArray<RichEditText.Action>();
+  private final SparseArray<RichEditText.Action> menuItems=
+      new SparseArray<RichEditText.Action>();
+
+  /*
+   * Binds the key, with the supplied KeyEvent meta state
+   * (e.g., KeyEvent.META_CTRL_ON), to the action, or unbinds
+   * it if the action is null.
+   */
+  void bindKey(int metaState, int keyCode, RichEditText.Action action) {
+    int key=toKey(metaState, keyCode);
+
+    if (action == null) {
+      keys.remove(key);
+    }
+    else {
+      keys.put(key, action);
+    }
+  }
+
+  RichEditText.Action getKeyAction(int metaState, int keyCode) {
+    return(keys.get(toKey(metaState, keyCode)));
+  }
+
+  void bindMenuItem(int itemId, RichEditText.Action action) {
+    if (action == null) {
+      menuItems.remove(itemId);
+    }
+    else {
+      menuItems.put(itemId, action);
+    }
+  }
+
+  RichEditText.Action getMenuItemAction(int itemId) {
+    return(menuItems.get(itemId));
+  }
+
+  /*
+   * Packs the modifiers and key code into one int. Only
+   * whether each modifier is down matters, not which side
+   * of the keyboard it is on.
+   */
+  private static int toKey(int metaState, int keyCode) {
+    int modifiers=0;
+
+    if ((metaState & KeyEvent.META_CTRL_MASK) != 0) {
+      modifiers|=CTRL;
+    }
+
+    if ((metaState & KeyEvent.META_SHIFT_MASK) != 0) {
+      modifiers|=SHIFT;
+    }
+
+    if ((metaState & KeyEvent.META_ALT_MASK) != 0) {
+      modifiers|=ALT;
+    }
+
+    if ((metaState & KeyEvent.META_META_MASK) != 0) {
+      modifiers|=META;
+    }
+
+    return((modifiers << 16) | keyCode);
+  }
+
+  /*
+   * Applies an effect, with a fixed value, to the selection.
+   */
+  static class ApplyAction<T> implements RichEditText.Action {
+    private final Effect<T> effect;
+    private final T value;
+
+    ApplyAction(Effect<T> effect, T value) {
+      this.effect=effect;
+      this.value=value;
+    }
+
+    @Override
+    public boolean perform(RichEditText editor) {
+      editor.applyEffect(effect, value);
+
+      return(true);
+    }
+  }
+
+  /*
+   * Toggles a Boolean effect on the selection.
+   */
+  static class ToggleAction implements RichEditText.Action {
+    private final Effect<Boolean> effect;
+
+    ToggleAction(Effect<Boolean> effect) {
+      this.effect=effect;
+    }
+
+    @Override
+    public boolean perform(RichEditText editor) {
+      editor.toggleEffect(effect);
+
+      return(true);
+    }
+  }
+}
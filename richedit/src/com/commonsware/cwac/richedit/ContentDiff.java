@@ -0,0 +1,435 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.Spanned;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The differences between two versions of some rich text,
+ * for turning the old version into the new one in place
+ * (see RichEditText.updateContent()).
+ *
+ * The text differences are a list of hunks, each replacing
+ * a stretch of the old text with a stretch of the new. After
+ * trimming the common prefix and suffix, the rest is
+ * compared a paragraph at a time, using Myers' diff
+ * algorithm, and each changed run of paragraphs is trimmed
+ * down to the chars that actually changed. If the versions
+ * differ in too many paragraphs for that to be worthwhile,
+ * everything between the common prefix and suffix is one
+ * hunk.
+ *
+ * Once the text matches, applySpans() brings the effect
+ * spans in line, leaving alone the spans that are already
+ * right.
+ */
+class ContentDiff {
+  static final int MAX_EDITS=256;
+  private final String to;
+  private int[] hunks=new int[16];
+  private int count=0;
+
+  ContentDiff(CharSequence from, CharSequence to) {
+    String a=from.toString();
+
+    this.to=to.toString();
+
+    int prefix=0;
+    int limit=Math.min(a.length(), this.to.length());
+
+    while (prefix < limit && a.charAt(prefix) == this.to.charAt(prefix)) {
+      prefix++;
+    }
+
+    int suffix=0;
+
+    limit-=prefix;
+
+    while (suffix < limit
+        && a.charAt(a.length() - suffix - 1) == this.to.charAt(this.to.length()
+            - suffix - 1)) {
+      suffix++;
+    }
+
+    int aEnd=a.length() - suffix;
+    int bEnd=this.to.length() - suffix;
+
+    if (prefix < aEnd || prefix < bEnd) {
+      int[] aBreaks=paragraphs(a, prefix, aEnd);
+      int[] bBreaks=paragraphs(this.to, prefix, bEnd);
+
+      if (!diffParagraphs(a, aBreaks, bBreaks)) {
+        count=0;
+        add(a, prefix, aEnd, prefix, bEnd);
+      }
+    }
+  }
+
+  /*
+   * Returns the number of hunks.
+   */
+  int size() {
+    return(count);
+  }
+
+  /*
+   * Returns the hunk's start in the old text; the end is at
+   * index 1, and the start and end of its replacement in the
+   * new text are at indexes 2 and 3.
+   */
+  int get(int hunk, int index) {
+    return(hunks[hunk * 4 + index]);
+  }
+
+  /*
+   * Makes the old text, which must be what this diff was
+   * created from, match the new text. Hunks are applied from
+   * the end back, so earlier ones stay where they were.
+   */
+  void applyText(Editable text) {
+    for (int i=count - 1; i >= 0; i--) {
+      text.replace(get(i, 0), get(i, 1), to, get(i, 2), get(i, 3));
+    }
+  }
+
+  /*
+   * Returns where an offset into the old text ends up in the
+   * new text. Offsets inside a changed stretch keep their
+   * distance from its start, as far as they can.
+   */
+  int mapOffset(int offset) {
+    int delta=0;
+
+    for (int i=0; i < count; i++) {
+      if (offset < get(i, 0)) {
+        break;
+      }
+
+      if (offset < get(i, 1)) {
+        return(get(i, 2) + Math.min(offset - get(i, 0), get(i, 3) - get(i, 2)));
+      }
+
+      delta=get(i, 3) - get(i, 1);
+    }
+
+    return(offset + delta);
+  }
+
+  /*
+   * Makes the effect spans of text, whose contents must match
+   * those of to, the same as those of to. Spans in both with
+   * the same effect, range, and value are left alone; others
+   * are removed from text, or set on it (the same span
+   * objects as in to, as setText() would do).
+   */
+  static void applySpans(Spannable text, Spanned to, List<Effect<?>> effects) {
+    Entry[] current=entries(text, effects);
+    Entry[] wanted=entries(to, effects);
+    int j=0;
+
+    for (int i=0; i < current.length; i++) {
+      while (j < wanted.length && wanted[j].compareTo(current[i]) < 0) {
+        j++;
+      }
+
+      for (int k=j; k < wanted.length && wanted[k].compareTo(current[i]) == 0; k++) {
+        if (!wanted[k].matched && equal(wanted[k].value, current[i].value)) {
+          wanted[k].matched=true;
+          current[i].matched=true;
+          break;
+        }
+      }
+    }
+
+    for (Entry entry : current) {
+      if (!entry.matched) {
+        text.removeSpan(entry.span);
+      }
+    }
+
+    for (Entry entry : wanted) {
+      if (!entry.matched) {
+        text.setSpan(entry.span, entry.start, entry.end,
+                     to.getSpanFlags(entry.span));
+      }
+    }
+  }
+
+  /*
+   * Returns the offsets where each paragraph between start
+   * and end begins, plus end itself.
+   */
+  private static int[] paragraphs(String str, int start, int end) {
+    int[] result=new int[16];
+    int n=0;
+
+    result[n++]=start;
+
+    for (int i=start; i < end; i++) {
+      if (str.charAt(i) == '\n' && i + 1 < end) {
+        if (n == result.length) {
+          result=grow(result);
+        }
+
+        result[n++]=i + 1;
+      }
+    }
+
+    if (n == result.length) {
+      result=grow(result);
+    }
+
+    result[n++]=end;
+
+    int[] trimmed=new int[n];
+
+    System.arraycopy(result, 0, trimmed, 0, n);
+
+    return(trimmed);
+  }
+
+  /*
+   * Runs Myers' algorithm over the paragraphs, adding a hunk
+   * for each changed run of them. Returns false, having
+   * perhaps added some hunks, if there are more than
+   * MAX_EDITS paragraphs to insert or delete.
+   */
+  private boolean diffParagraphs(String a, int[] aBreaks, int[] bBreaks) {
+    String[] x=split(a, aBreaks);
+    String[] y=split(to, bBreaks);
+    int n=x.length;
+    int m=y.length;
+    int limit=Math.min(n + m, MAX_EDITS);
+    int offset=limit + 1;
+    int[] v=new int[2 * limit + 3];
+    ArrayList<int[]> trace=new ArrayList<int[]>();
+    boolean done=false;
+
+    for (int d=0; d <= limit && !done; d++) {
+      int[] saved=new int[2 * d + 3];
+
+      System.arraycopy(v, offset - d - 1, saved, 0, saved.length);
+      trace.add(saved);
+
+      for (int k=-d; k <= d; k+=2) {
+        int i;
+
+        if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+          i=v[offset + k + 1];
+        }
+        else {
+          i=v[offset + k - 1] + 1;
+        }
+
+        int jj=i - k;
+
+        while (i < n && jj < m && x[i].equals(y[jj])) {
+          i++;
+          jj++;
+        }
+
+        v[offset + k]=i;
+
+        if (i >= n && jj >= m) {
+          done=true;
+          break;
+        }
+      }
+    }
+
+    if (!done) {
+      return(false);
+    }
+
+    boolean[] deleted=new boolean[n];
+    boolean[] inserted=new boolean[m];
+    int i=n;
+    int jj=m;
+
+    for (int d=trace.size() - 1; d > 0; d--) {
+      int[] saved=trace.get(d);
+      int k=i - jj;
+      int previous;
+
+      // saved[0] is diagonal -d-1 of the state before step d
+      if (k == -d
+          || (k != d && saved[k - 1 + d + 1] < saved[k + 1 + d + 1])) {
+        previous=k + 1;
+      }
+      else {
+        previous=k - 1;
+      }
+
+      int previousI=saved[previous + d + 1];
+      int previousJ=previousI - previous;
+
+      while (i > previousI && jj > previousJ) {
+        i--;
+        jj--;
+      }
+
+      if (i == previousI) {
+        inserted[previousJ]=true;
+      }
+      else {
+        deleted[previousI]=true;
+      }
+
+      i=previousI;
+      jj=previousJ;
+    }
+
+    i=0;
+    jj=0;
+
+    while (i < n || jj < m) {
+      if (i < n && jj < m && !deleted[i] && !inserted[jj]) {
+        i++;
+        jj++;
+      }
+      else {
+        int i2=i;
+        int j2=jj;
+
+        while (i2 < n && deleted[i2]) {
+          i2++;
+        }
+
+        while (j2 < m && inserted[j2]) {
+          j2++;
+        }
+
+        add(a, aBreaks[i], aBreaks[i2], bBreaks[jj], bBreaks[j2]);
+        i=i2;
+        jj=j2;
+      }
+    }
+
+    return(true);
+  }
+
+  /*
+   * Adds a hunk, first trimming the chars it starts and ends
+   * with that are the same in both versions.
+   */
+  private void add(String a, int aStart, int aEnd, int bStart, int bEnd) {
+    while (aStart < aEnd && bStart < bEnd
+        && a.charAt(aStart) == to.charAt(bStart)) {
+      aStart++;
+      bStart++;
+    }
+
+    while (aStart < aEnd && bStart < bEnd
+        && a.charAt(aEnd - 1) == to.charAt(bEnd - 1)) {
+      aEnd--;
+      bEnd--;
+    }
+
+    if (aStart < aEnd || bStart < bEnd) {
+      if (count * 4 == hunks.length) {
+        hunks=grow(hunks);
+      }
+
+      hunks[count * 4]=aStart;
+      hunks[count * 4 + 1]=aEnd;
+      hunks[count * 4 + 2]=bStart;
+      hunks[count * 4 + 3]=bEnd;
+      count++;
+    }
+  }
+
+  private static String[] split(String str, int[] breaks) {
+    String[] result=new String[breaks.length - 1];
+
+    for (int i=0; i < result.length; i++) {
+      result[i]=str.substring(breaks[i], breaks[i + 1]);
+    }
+
+    return(result);
+  }
+
+  private static int[] grow(int[] array) {
+    int[] result=new int[array.length * 2];
+
+    System.arraycopy(array, 0, result, 0, array.length);
+
+    return(result);
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return(a == null ? b == null : a.equals(b));
+  }
+
+  private static Entry[] entries(Spanned str, List<Effect<?>> effects) {
+    Object[] spans=str.getSpans(0, str.length(), Object.class);
+    Entry[] result=new Entry[spans.length];
+    int n=0;
+
+    for (Object span : spans) {
+      for (int i=0; i < effects.size(); i++) {
+        Effect<?> effect=effects.get(i);
+
+        if (effect.isEffectSpan(span)) {
+          result[n++]=
+              new Entry(span, str.getSpanStart(span), str.getSpanEnd(span),
+                        i, effect.getSpanValue(span));
+          break;
+        }
+      }
+    }
+
+    Entry[] trimmed=new Entry[n];
+
+    System.arraycopy(result, 0, trimmed, 0, n);
+    Arrays.sort(trimmed);
+
+    return(trimmed);
+  }
+
+  private static class Entry implements Comparable<Entry> {
+    final Object span;
+    final int start;
+    final int end;
+    final int effect;
+    final Object value;
+    boolean matched=false;
+
+    Entry(Object span, int start, int end, int effect, Object value) {
+      this.span=span;
+      this.start=start;
+      this.end=end;
+      this.effect=effect;
+      this.value=value;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      if (start != other.start) {
+        return(start < other.start ? -1 : 1);
+      }
+
+      if (end != other.end) {
+        return(end < other.end ? -1 : 1);
+      }
+
+      return(effect < other.effect ? -1 : (effect == other.effect ? 0 : 1));
+    }
+  }
+}
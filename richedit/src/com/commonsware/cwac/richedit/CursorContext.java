@@ -0,0 +1,218 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import java.util.List;
+
+/*
+ * Tracks the run of text around a collapsed cursor that has
+ * no effect span boundaries in it, so the effects found at
+ * the cursor can be reused as long as it stays in that run.
+ *
+ * Whether an effect is at a cursor only depends on the
+ * spans touching the characters on either side of it, so
+ * for any cursor at least two characters away from every
+ * span boundary, the answer is the same. After a real scan
+ * at a cursor, update() finds the nearest boundaries on
+ * each side (looking no further than REACH characters), and
+ * covers() then says whether a later cursor position is
+ * still in between them.
+ *
+ * Typing inside the run just moves the upper boundary, so
+ * that is tracked here as a TextWatcher; edits that touch
+ * the boundaries, or any effect span being added, removed,
+ * or moved, invalidate the run until the next update().
+ */
+class CursorContext implements SpanWatcher, TextWatcher, NoCopySpan {
+  static final int REACH=256;
+  private final List<Effect<?>> effects;
+  private Spannable text=null;
+  private boolean valid=false;
+  private int low;
+  private int high;
+  private int editStart=Integer.MAX_VALUE;
+  private int editEnd=Integer.MAX_VALUE;
+  private int editDelta=0;
+
+  CursorContext(List<Effect<?>> effects) {
+    this.effects=effects;
+  }
+
+  void attach(Spannable text) {
+    detach();
+    this.text=text;
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    invalidate();
+    forgetEdit();
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  void invalidate() {
+    valid=false;
+  }
+
+  /*
+   * Called before something other than an edit changes spans,
+   * so moves that happen to look like the ones from the last
+   * edit are not mistaken for them. The edit cannot just be
+   * forgotten in afterTextChanged(), as the moves it caused
+   * are reported after that.
+   */
+  void forgetEdit() {
+    editStart=Integer.MAX_VALUE;
+    editEnd=Integer.MAX_VALUE;
+    editDelta=0;
+  }
+
+  /*
+   * Returns true if the effects at the cursor are the same as
+   * those found at the time of the last update().
+   */
+  boolean covers(int cursor) {
+    return(valid && cursor >= low + 2 && cursor <= high - 2);
+  }
+
+  /*
+   * Finds the run around the cursor, after the effects there
+   * have been worked out. A cursor within two characters of a
+   * boundary has no run, as the effects found there need not
+   * hold anywhere else.
+   */
+  void update(int cursor) {
+    low=cursor - REACH;
+    high=cursor + REACH;
+
+    Object[] spans=text.getSpans(Math.max(0, low),
+                                 Math.min(text.length(), high),
+                                 Object.class);
+
+    Metrics.count(RichEditMetrics.COUNT_GET_SPANS);
+
+    for (Object span : spans) {
+      if (isEffectSpan(span)) {
+        narrow(cursor, text.getSpanStart(span));
+        narrow(cursor, text.getSpanEnd(span));
+      }
+    }
+
+    valid=(cursor >= low + 2 && cursor <= high - 2);
+  }
+
+  private void narrow(int cursor, int boundary) {
+    if (boundary <= cursor) {
+      low=Math.max(low, boundary);
+    }
+    else {
+      high=Math.min(high, boundary);
+    }
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    if (s != text) {
+      return;
+    }
+
+    editStart=start;
+    editEnd=start + count;
+    editDelta=after - count;
+
+    if (valid) {
+      if (start > low && start + count < high) {
+        high+=editDelta;
+      }
+      else {
+        valid=false;
+      }
+    }
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    // handled in beforeTextChanged()
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // handled in beforeTextChanged()
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    if (text == this.text && isEffectSpan(what)) {
+      valid=false;
+    }
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    if (text == this.text && isEffectSpan(what)) {
+      valid=false;
+    }
+  }
+
+  /*
+   * Newer versions of Android report spans moving because of
+   * an edit, after the edit, which is already accounted for
+   * in beforeTextChanged(), so only other moves count.
+   */
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    if (text == this.text && isEffectSpan(what)
+        && (shift(ostart) != nstart || shift(oend) != nend)) {
+      valid=false;
+    }
+  }
+
+  private int shift(int position) {
+    if (position >= editEnd) {
+      return(position + editDelta);
+    }
+
+    return(position);
+  }
+
+  private boolean isEffectSpan(Object span) {
+    for (Effect<?> effect : effects) {
+      if (effect.isEffectSpan(span)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+}
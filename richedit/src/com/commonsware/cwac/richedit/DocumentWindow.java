@@ -0,0 +1,312 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * The slice of a WindowedDocument loaded into a
+ * RichEditText: a few whole segments around the point of
+ * interest. As a TextWatcher and SpanWatcher on the loaded
+ * Editable, it knows whether the slice has been edited (or
+ * had effects applied), and if so, writeBack() replaces the
+ * slice's segments in the document with the Editable's
+ * current contents.
+ *
+ * The Editable, and what we know of it, belong to the main
+ * application thread. The document, and which of its
+ * segments make up the slice, may also be used from EXECUTOR,
+ * for moving the window in the background, so those are
+ * only touched while synchronized on this object. A
+ * snapshot() written back from EXECUTOR only lands if the
+ * slice has not been written back or replaced on the main
+ * application thread since the snapshot was taken, so a
+ * stale snapshot never overwrites newer changes or another
+ * slice's segments.
+ */
+class DocumentWindow implements SpanWatcher, TextWatcher, NoCopySpan {
+  static final int SEGMENTS=3;
+  static final ExecutorService EXECUTOR=
+      Executors.newSingleThreadExecutor();
+  private final WindowedDocument doc;
+  private final List<Effect<?>> effects;
+  private Editable text=null;
+  private int first=0;
+  private int last=0;
+  private int start=0;
+  private boolean hasBefore=false;
+  private boolean hasAfter=false;
+  private int changes=0;
+  private int written=0;
+  private int writes=0;
+
+  DocumentWindow(WindowedDocument doc, List<Effect<?>> effects) {
+    this.doc=doc;
+    this.effects=effects;
+  }
+
+  /*
+   * Writes back any changes, then flushes the document, so
+   * they are safely in its file.
+   */
+  void flush() throws IOException {
+    writeBack();
+
+    synchronized (this) {
+      doc.flush();
+    }
+  }
+
+  /*
+   * Returns the offset, in chars, within the document, of the
+   * start of the loaded Editable.
+   */
+  int getStart() {
+    return(start);
+  }
+
+  /*
+   * Writes back any changes to the current slice, then loads
+   * the slice around the supplied offset (in chars, within the
+   * document), returning the Editable holding it.
+   */
+  Editable load(int offset) throws IOException {
+    writeBack();
+
+    Slice slice=read(offset);
+
+    show(slice);
+
+    return(slice.text);
+  }
+
+  /*
+   * Reads the slice around the supplied offset (in chars,
+   * within the document), without showing it. Safe to call
+   * from any thread.
+   */
+  synchronized Slice read(int offset) throws IOException {
+    int count=doc.getSegmentCount();
+    int center=Math.min(doc.findSegment(offset), Math.max(count - 1, 0));
+    int newLast=Math.min(count, Math.max(0, center - (SEGMENTS / 2))
+        + SEGMENTS);
+    int newFirst=Math.max(0, newLast - SEGMENTS);
+
+    return(new Slice(newFirst, newLast, doc.getSegmentStart(newFirst),
+                     count, doc.read(newFirst, newLast)));
+  }
+
+  /*
+   * Makes the slice, from read(), the loaded one, dropping
+   * any unsaved changes to the current one.
+   */
+  synchronized void show(Slice slice) {
+    detach();
+    first=slice.first;
+    last=slice.last;
+    start=slice.start;
+    hasBefore=slice.first > 0;
+    hasAfter=slice.last < slice.count;
+    text=slice.text;
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    changes=0;
+    written=0;
+  }
+
+  /*
+   * Returns true if the supplied offset, within the loaded
+   * Editable, is close enough to either end of it that a
+   * different slice should be loaded, so there is text to
+   * either side of the offset.
+   */
+  boolean isNearEdge(int offset) {
+    if (text == null) {
+      return(false);
+    }
+
+    int margin=WindowedDocument.SEGMENT_CHARS / 2;
+
+    return((hasBefore && offset < margin)
+        || (hasAfter && text.length() - offset < margin));
+  }
+
+  /*
+   * Writes the loaded Editable back to the document, if it
+   * has changed since it was loaded or last written back.
+   */
+  void writeBack() throws IOException {
+    if (changes != written) {
+      synchronized (this) {
+        replace(text);
+        writes++;
+      }
+
+      written=changes;
+    }
+  }
+
+  /*
+   * Returns a copy of the loaded Editable, for writeBack() on
+   * another thread, or null if it has not changed since it
+   * was loaded or last written back.
+   */
+  Snapshot snapshot() {
+    return(changes == written ? null
+        : new Snapshot(new SpannableStringBuilder(text), writes));
+  }
+
+  /*
+   * Returns a count of the changes to the loaded Editable,
+   * which only ever goes up while it is loaded.
+   */
+  int getChangeCount() {
+    return(changes);
+  }
+
+  /*
+   * Notes that the loaded Editable, as of the supplied
+   * getChangeCount(), has been written back (e.g., via a
+   * snapshot()).
+   */
+  void setWritten(int changeCount) {
+    written=Math.max(written, changeCount);
+  }
+
+  /*
+   * Replaces the slice's segments in the document with the
+   * supplied snapshot() of the loaded Editable, returning
+   * true, unless the slice has been written back, replaced,
+   * or detached since the snapshot was taken, in which case
+   * the snapshot is stale and is skipped, returning false.
+   * Safe to call from any thread.
+   */
+  synchronized boolean writeBack(Snapshot snapshot) throws IOException {
+    if (snapshot.writes != writes) {
+      return(false);
+    }
+
+    replace(snapshot.content);
+
+    return(true);
+  }
+
+  private void replace(Spanned content) throws IOException {
+    last=first + doc.replace(first, last, content);
+  }
+
+  synchronized void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    writes++;
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    // handled in afterTextChanged()
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    // handled in afterTextChanged()
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    if (s == text) {
+      changes++;
+    }
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    onSpanChanged(text, what);
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    onSpanChanged(text, what);
+  }
+
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    onSpanChanged(text, what);
+  }
+
+  private void onSpanChanged(Spannable text, Object what) {
+    if (text == this.text) {
+      for (Effect<?> effect : effects) {
+        if (effect.isEffectSpan(what)) {
+          changes++;
+          break;
+        }
+      }
+    }
+  }
+
+  /*
+   * A copy of the loaded Editable, taken by snapshot(), along
+   * with which write of the slice it follows.
+   */
+  static class Snapshot {
+    final Spanned content;
+    final int writes;
+
+    Snapshot(Spanned content, int writes) {
+      this.content=content;
+      this.writes=writes;
+    }
+  }
+
+  /*
+   * A slice of the document, read but not yet shown.
+   */
+  static class Slice {
+    final int first;
+    final int last;
+    final int start;
+    final int count;
+    final Editable text;
+
+    Slice(int first, int last, int start, int count, Editable text) {
+      this.first=first;
+      this.last=last;
+      this.start=start;
+      this.count=count;
+      this.text=text;
+    }
+  }
+}
@@ -14,6 +14,10 @@
 
 package com.commonsware.cwac.richedit;
 
+import android.text.Spannable;
+import android.text.Spanned;
+import java.util.Arrays;
+
 /*
  * Base class for all effects. An "effect" is a particular
  * type of styling to apply to the selected text in a
@@ -22,9 +26,274 @@ package com.commonsware.cwac.richedit;
  * The generic type T is the sort of configuration information
  * that the effect needs -- many will be Effect<Boolean>,
  * meaning the effect is a toggle (on or off), such as boldface.
+ *
+ * Apps can write their own effects, such as a highlight
+ * color or a link URL, by implementing the protected hooks
+ * below and passing the effect to
+ * RichEditText.registerEffect(). A null (or, for an
+ * Effect<Boolean>, false) value means the effect is not
+ * applied.
  */
 abstract public class Effect<T> {
-  abstract boolean existsInSelection(RichEditText editor);
-  abstract T valueInSelection(RichEditText editor);
-  abstract void applyToSelection(RichEditText editor, T add);
+  /*
+   * Applies this effect, with the supplied value, to the
+   * range of the supplied Spannable given by the selection,
+   * so the whole range has that value (or, for null or
+   * false, none). Spans sticking out of the range should keep
+   * their outside parts. Look up the existing spans via
+   * findSpans(), passing along the SpanIndex, which may be
+   * null.
+   */
+  abstract protected void applyToSpannable(Spannable str,
+                                           Selection selection, T value,
+                                           SpanIndex index);
+
+  /*
+   * Returns the class of span used by this effect, for use
+   * with getSpans(). isEffectSpan() may narrow this further.
+   */
+  abstract protected Class<?> getSpanClass();
+
+  /*
+   * Returns true if the supplied span is one that this effect
+   * manages. Used to sort the results of a single getSpans()
+   * pass into per-effect buckets (see EffectSnapshot).
+   */
+  abstract protected boolean isEffectSpan(Object span);
+
+  /*
+   * Returns the value represented by the supplied span,
+   * which will have passed isEffectSpan() (e.g., the family
+   * of a TypefaceSpan). Spans with equal values are
+   * interchangeable.
+   */
+  abstract protected T getSpanValue(Object span);
+
+  /*
+   * Returns a new span representing the supplied value, which
+   * will not be null or false, or null if the span cannot be
+   * created.
+   */
+  abstract protected Object newSpan(T value);
+
+  /*
+   * Returns true if the effect applies to the selection,
+   * working off of spans that have already been retrieved
+   * for the selection's scan window: for a cursor, the chars
+   * on either side of it. Only the first count entries of
+   * spans are used, and all of them will have passed
+   * isEffectSpan().
+   */
+  abstract protected boolean existsInSpans(Spanned str,
+                                           Selection selection,
+                                           Object[] spans, int count);
+
+  /*
+   * Returns the effect's value in the selection, or null if
+   * the effect does not apply there, working off of spans
+   * that have already been retrieved, as with existsInSpans().
+   */
+  abstract protected T valueInSpans(Spanned str, Selection selection,
+                                    Object[] spans, int count);
+
+  void applyToSelection(RichEditText editor, T value) {
+    applyToSpannable(editor.getText(), new Selection(editor), value,
+                     editor.getSpanIndex());
+  }
+
+  void applyToSpannable(Spannable str, Selection selection, T value) {
+    applyToSpannable(str, selection, value, null);
+  }
+
+  /*
+   * Applies this effect, with the supplied value, to each of
+   * the supplied ranges of the Spannable. ranges holds
+   * start/end pairs (start0, end0, start1, end1, ...), in any
+   * order. The ranges are sorted, clamped to the text, and
+   * touching or overlapping ranges are merged, so each
+   * stretch of text is only processed once.
+   */
+  void applyToRanges(Spannable str, int[] ranges, T value, SpanIndex index) {
+    if (ranges.length % 2 != 0) {
+      throw new IllegalArgumentException("ranges must hold start/end pairs");
+    }
+
+    // pack each range into a long, start in the high bits,
+    // so a plain sort orders them by start
+    long[] order=new long[ranges.length / 2];
+    int length=str.length();
+
+    for (int i=0; i < order.length; i++) {
+      int start=Math.max(0, Math.min(length, ranges[i * 2]));
+      int end=Math.max(0, Math.min(length, ranges[i * 2 + 1]));
+
+      if (start > end) {
+        int temp=end;
+        end=start;
+        start=temp;
+      }
+
+      order[i]=((long)start << 32) | end;
+    }
+
+    Arrays.sort(order);
+
+    Selection selection=new Selection(0, 0);
+    int runStart=-1;
+    int runEnd=-1;
+
+    for (long packed : order) {
+      int start=(int)(packed >>> 32);
+      int end=(int)packed;
+
+      if (start <= runEnd) {
+        runEnd=Math.max(runEnd, end);
+      }
+      else {
+        if (runStart < runEnd) {
+          applyToSpannable(str, selection.set(runStart, runEnd), value, index);
+        }
+
+        runStart=start;
+        runEnd=end;
+      }
+    }
+
+    if (runStart < runEnd) {
+      applyToSpannable(str, selection.set(runStart, runEnd), value, index);
+    }
+  }
+
+  /*
+   * Makes the range of the Spannable have exactly the supplied
+   * value for this effect, with null or false meaning none.
+   * Unlike applyToSpannable(), spans sticking out of the range
+   * keep their outside parts, so the result depends only on
+   * the range and the value (see OpLog).
+   */
+  void assign(Spannable str, int start, int end, T value) {
+    SpanBuffer spans=findSpans(str, start, end, null);
+
+    for (int i=0; i < spans.count; i++) {
+      Object span=spans.spans[i];
+      int spanStart=str.getSpanStart(span);
+      int spanEnd=str.getSpanEnd(span);
+
+      str.removeSpan(span);
+
+      if (spanStart < start) {
+        setSpan(str, newSpan(getSpanValue(span)), spanStart, start);
+      }
+
+      if (spanEnd > end) {
+        setSpan(str, newSpan(getSpanValue(span)), end, spanEnd);
+      }
+    }
+
+    if (value != null && !Boolean.FALSE.equals(value) && start < end) {
+      setSpan(str, newSpan(value), start, end);
+    }
+  }
+
+  private static void setSpan(Spannable str, Object span, int start, int end) {
+    if (span != null) {
+      str.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+  }
+
+  boolean existsInSelection(RichEditText editor) {
+    return(existsInSelection(editor.getText(), new Selection(editor),
+                             editor.getSpanIndex()));
+  }
+
+  boolean existsInSelection(Spanned str, Selection selection,
+                            SpanIndex index) {
+    SpanBuffer spans=
+        findSpans(str, selection.scanStart(), selection.scanEnd(), index);
+
+    return(existsInSpans(str, selection, spans.spans, spans.count));
+  }
+
+  T valueInSelection(RichEditText editor) {
+    return(valueInSelection(editor.getText(), new Selection(editor),
+                            editor.getSpanIndex()));
+  }
+
+  T valueInSelection(Spanned str, Selection selection, SpanIndex index) {
+    SpanBuffer spans=
+        findSpans(str, selection.scanStart(), selection.scanEnd(), index);
+
+    return(valueInSpans(str, selection, spans.spans, spans.count));
+  }
+
+  /*
+   * Returns this effect's spans that getSpans(start, end, ...)
+   * would return. If there is a SpanIndex, it is used, and
+   * the returned buffer is only good until the next query of
+   * that index, so copy the spans out before changing any of
+   * them. Otherwise, we fall back to getSpans().
+   */
+  protected SpanBuffer findSpans(Spanned str, int start, int end,
+                                 SpanIndex index) {
+    SpanBuffer result=null;
+
+    if (index != null) {
+      result=index.query(this, start, end);
+    }
+
+    if (result == null) {
+      Object[] spans=str.getSpans(start, end, getSpanClass());
+      int count=0;
+
+      Metrics.count(RichEditMetrics.COUNT_GET_SPANS);
+
+      for (Object span : spans) {
+        if (isEffectSpan(span)) {
+          spans[count++]=span;
+        }
+      }
+
+      result=new SpanBuffer(spans, count);
+    }
+
+    return(result);
+  }
+
+  /*
+   * existsInSpans() logic shared by the on/off effects: for a
+   * real selection, any span will do; for a cursor, there has
+   * to be a span on both sides of it, so typing continues the
+   * effect.
+   */
+  protected static boolean spansCoverSelection(Spanned str,
+                                               Selection selection,
+                                               Object[] spans, int count) {
+    boolean before=!selection.isEmpty();
+    boolean after=false;
+
+    for (int i=0; i < count; i++) {
+      int spanStart=str.getSpanStart(spans[i]);
+      int spanEnd=str.getSpanEnd(spans[i]);
+
+      if (selection.isEmpty()) {
+        before=
+            before
+                || Selection.intersects(spanStart, spanEnd,
+                                        selection.start - 1,
+                                        selection.start);
+      }
+
+      after=
+          after
+              || Selection.intersects(spanStart, spanEnd,
+                                      selection.start,
+                                      selection.scanEnd());
+
+      if (before && after) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
 }
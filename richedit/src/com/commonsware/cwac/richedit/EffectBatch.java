@@ -0,0 +1,112 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Spanned;
+import java.util.ArrayList;
+
+/*
+ * A set of effects to apply to the current selection of a
+ * RichEditText all at once, obtained via
+ * RichEditText.batch(). Chain apply() calls to add effects,
+ * then call commit():
+ *
+ * editor.batch().apply(RichEditText.BOLD, true)
+ *   .apply(RichEditText.TYPEFACE, "serif").commit();
+ *
+ * The span changes needed for all of the effects are worked
+ * out before any of them are made, then made together in one
+ * batch edit, so the text is laid out once and the selection
+ * listeners are called once.
+ */
+public class EffectBatch {
+  private final RichEditText editor;
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private final ArrayList<Object> values=new ArrayList<Object>();
+
+  EffectBatch(RichEditText editor) {
+    this.editor=editor;
+  }
+
+  /*
+   * Adds an effect to the batch. Effects are applied in the
+   * order they are added, so if the same effect is added
+   * twice, the last value wins.
+   */
+  public <T> EffectBatch apply(Effect<T> effect, T value) {
+    effects.add(effect);
+    values.add(value);
+
+    return(this);
+  }
+
+  /*
+   * Applies the batched effects to the editor's current
+   * selection.
+   */
+  public void commit() {
+    editor.commitBatch(this);
+  }
+
+  /*
+   * Applies the batched effects to the editor's current
+   * selection, working out the span changes on a background
+   * thread, for large selections (e.g., all of a long
+   * document). The changes are made later, on the main
+   * application thread, to whatever that selected text
+   * has become by then, and the listener (if not null) is
+   * told when that happens. Commits of other batches this
+   * way are applied in order.
+   */
+  public void commitInBackground(RichEditText.OnEffectsAppliedListener listener) {
+    editor.commitBatchInBackground(this, listener);
+  }
+
+  /*
+   * Works out the span changes needed to apply the batched
+   * effects to the supplied selection of the supplied text,
+   * without changing the text.
+   */
+  SpanDiff buildDiff(Spanned str, Selection selection) {
+    SpanDiff diff=new SpanDiff(str);
+
+    for (int i=0; i < effects.size(); i++) {
+      applyToSpannable(effects.get(i), values.get(i), diff, selection);
+    }
+
+    return(diff);
+  }
+
+  /*
+   * Returns true if the span is one that the batched effects
+   * work with.
+   */
+  boolean isEffectSpan(Object span) {
+    for (Effect<?> effect : effects) {
+      if (effect.isEffectSpan(span)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void applyToSpannable(Effect<T> effect, Object value,
+                                           SpanDiff diff,
+                                           Selection selection) {
+    effect.applyToSpannable(diff, selection, (T)value);
+  }
+}
@@ -0,0 +1,255 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * An EffectBatch being applied to a range of text in the
+ * background. On the main application thread, capture()
+ * copies the paragraphs around the range and the effect
+ * spans touching them; compute() then
+ * rebuilds that copy and works out the SpanDiff for the
+ * batch against it, on a worker thread; and back on the
+ * main application thread, the diff gets applied to the
+ * real text, in one step.
+ *
+ * While attached, the job watches the text, so if it is
+ * edited or its effect spans change between capture() and
+ * the diff being applied, hasChanged() says so and the diff
+ * is stale. The range is held as a span, so it follows any
+ * edits, and capture() can be called again to redo the work
+ * against the current text.
+ */
+class EffectJob implements SpanWatcher, TextWatcher, NoCopySpan {
+  static final int MAX_ATTEMPTS=3;
+  static final ExecutorService EXECUTOR=
+      Executors.newSingleThreadExecutor();
+  private final EffectBatch batch;
+  private final RichEditText.OnEffectsAppliedListener listener;
+  private final Object range=new NoCopySpan.Concrete();
+  private Spannable text=null;
+  private boolean changed=false;
+  private int attempts=0;
+  private Selection selection=null;
+  private int offset=0;
+  private String chars=null;
+  private Object[] spans=null;
+  private int[] positions=null;
+  private SpanDiff diff=null;
+
+  EffectJob(EffectBatch batch,
+            RichEditText.OnEffectsAppliedListener listener) {
+    this.batch=batch;
+    this.listener=listener;
+  }
+
+  RichEditText.OnEffectsAppliedListener getListener() {
+    return(listener);
+  }
+
+  /*
+   * Starts watching the text, with the batch to be applied
+   * to the supplied range of it, which must not be empty.
+   */
+  void attach(Spannable text, int start, int end) {
+    detach();
+    this.text=text;
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    text.setSpan(range, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text.removeSpan(range);
+      text=null;
+    }
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  boolean hasChanged() {
+    return(changed);
+  }
+
+  int getAttempts() {
+    return(attempts);
+  }
+
+  /*
+   * Copies what compute() needs from the text. Returns false
+   * if there is nothing left to apply the batch to, as the
+   * range has been deleted.
+   *
+   * Effects only look at the spans touching the paragraphs
+   * around the range, so just those paragraphs are copied,
+   * widened to take in the whole of each of those spans,
+   * and then out to paragraph boundaries again, so paragraph
+   * spans are valid in the copy.
+   */
+  boolean capture() {
+    int start=text.getSpanStart(range);
+    int end=text.getSpanEnd(range);
+
+    if (start < 0 || start == end) {
+      return(false);
+    }
+
+    int first=paragraphStart(text, start);
+    int last=paragraphEnd(text, end - 1);
+    Object[] all=text.getSpans(first, last, Object.class);
+    int count=0;
+
+    for (Object span : all) {
+      if (batch.isEffectSpan(span)) {
+        all[count++]=span;
+      }
+    }
+
+    spans=new Object[count];
+    positions=new int[count * 3];
+
+    for (int i=0; i < count; i++) {
+      spans[i]=all[i];
+      positions[i * 3]=text.getSpanStart(all[i]);
+      positions[i * 3 + 1]=text.getSpanEnd(all[i]);
+      positions[i * 3 + 2]=text.getSpanFlags(all[i]);
+      first=Math.min(first, positions[i * 3]);
+      last=Math.max(last, positions[i * 3 + 1]);
+    }
+
+    first=paragraphStart(text, first);
+    last=paragraphEnd(text, Math.max(first, last - 1));
+
+    for (int i=0; i < count; i++) {
+      positions[i * 3]-=first;
+      positions[i * 3 + 1]-=first;
+    }
+
+    chars=TextUtils.substring(text, first, last);
+    offset=first;
+    selection=new Selection(start - first, end - first);
+    diff=null;
+    changed=false;
+    attempts++;
+
+    return(true);
+  }
+
+  /*
+   * Works out the span changes for the batch against the
+   * copy made by capture(). Safe to call on any thread.
+   */
+  void compute() {
+    SpannableStringBuilder copy=new SpannableStringBuilder(chars);
+
+    for (int i=0; i < spans.length; i++) {
+      copy.setSpan(spans[i], positions[i * 3], positions[i * 3 + 1],
+                   positions[i * 3 + 2]);
+    }
+
+    chars=null;
+    spans=null;
+    positions=null;
+    diff=batch.buildDiff(copy, selection);
+  }
+
+  /*
+   * Returns the result of compute(), or null if it has not
+   * been called since the last capture(), or failed. The
+   * diff is against the copy, which starts at getOffset() in
+   * the text.
+   */
+  SpanDiff getDiff() {
+    return(diff);
+  }
+
+  int getOffset() {
+    return(offset);
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    // handled in onTextChanged()
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    if (s == text) {
+      changed=true;
+    }
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // handled in onTextChanged()
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    onSpanChange(text, what);
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    onSpanChange(text, what);
+  }
+
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    onSpanChange(text, what);
+  }
+
+  private void onSpanChange(Spannable text, Object what) {
+    if (text == this.text && batch.isEffectSpan(what)) {
+      changed=true;
+    }
+  }
+
+  private static int paragraphStart(CharSequence str, int offset) {
+    while (offset > 0 && str.charAt(offset - 1) != '\n') {
+      offset--;
+    }
+
+    return(offset);
+  }
+
+  private static int paragraphEnd(CharSequence str, int offset) {
+    int length=str.length();
+
+    while (offset < length && str.charAt(offset) != '\n') {
+      offset++;
+    }
+
+    return(offset < length ? offset + 1 : length);
+  }
+}
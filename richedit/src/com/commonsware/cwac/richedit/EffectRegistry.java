@@ -0,0 +1,135 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * The roster of effects a RichEditText works with. Each
+ * effect's ID is its position in the roster, so IDs are
+ * dense (0 to size()-1) and can index arrays and bitsets,
+ * such as the flags of an EffectState. Unregistering an
+ * effect moves the ones after it down by one.
+ *
+ * The roster list is updated in place, so classes that just
+ * iterate over it see registrations as they happen; classes
+ * that size arrays by it need to be rebuilt.
+ *
+ * Effects can also be disabled, which leaves them in the
+ * roster (and so still handled when exporting, saving, and
+ * so on) but skips them when working out the effects in the
+ * selection.
+ */
+class EffectRegistry {
+  static final int MAX_EFFECTS=Long.SIZE;
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private final List<Effect<?>> readOnly=
+      Collections.unmodifiableList(effects);
+  private long enabled=0;
+
+  EffectRegistry(List<Effect<?>> initial) {
+    for (Effect<?> effect : initial) {
+      register(effect);
+    }
+  }
+
+  /*
+   * Returns the roster, which cannot be modified directly but
+   * reflects later registrations.
+   */
+  List<Effect<?>> getEffects() {
+    return(readOnly);
+  }
+
+  int size() {
+    return(effects.size());
+  }
+
+  /*
+   * Adds the effect to the end of the roster, enabled,
+   * returning false if it is already registered.
+   */
+  boolean register(Effect<?> effect) {
+    if (effects.contains(effect)) {
+      return(false);
+    }
+
+    if (effects.size() == MAX_EFFECTS) {
+      throw new IllegalStateException("Cannot register more than "
+          + MAX_EFFECTS + " effects");
+    }
+
+    enabled|=1L << effects.size();
+    effects.add(effect);
+
+    return(true);
+  }
+
+  /*
+   * Removes the effect from the roster, returning false if it
+   * was not registered.
+   */
+  boolean unregister(Effect<?> effect) {
+    int id=effects.indexOf(effect);
+
+    if (id < 0) {
+      return(false);
+    }
+
+    long below=enabled & ((1L << id) - 1);
+    long above=id == MAX_EFFECTS - 1 ? 0 : enabled >>> (id + 1);
+
+    enabled=below | (above << id);
+    effects.remove(id);
+
+    return(true);
+  }
+
+  /*
+   * Returns the effect's ID, or -1 if it is not registered.
+   */
+  int getId(Effect<?> effect) {
+    return(effects.indexOf(effect));
+  }
+
+  void setEnabled(Effect<?> effect, boolean enable) {
+    int id=effects.indexOf(effect);
+
+    if (id >= 0) {
+      if (enable) {
+        enabled|=1L << id;
+      }
+      else {
+        enabled&=~(1L << id);
+      }
+    }
+  }
+
+  boolean isEnabled(Effect<?> effect) {
+    int id=effects.indexOf(effect);
+
+    return(id >= 0 && (enabled & (1L << id)) != 0);
+  }
+
+  /*
+   * Returns the enabled effects as a bitset, with bit N
+   * being the effect with ID N.
+   */
+  long getEnabledMask() {
+    return(enabled);
+  }
+}
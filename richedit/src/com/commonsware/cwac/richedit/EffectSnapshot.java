@@ -0,0 +1,148 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Spanned;
+import java.util.List;
+
+/*
+ * Computes the state of a roster of effects for a selection
+ * in one pass: a single getSpans() call for the selection's
+ * scan window, with the results sorted into per-effect
+ * buckets, from which each effect works out whether it
+ * exists in the selection (and its value, if asked). If
+ * there is a SpanIndex, the buckets are filled from it
+ * instead.
+ *
+ * Buckets are retained between scans, so a snapshot should be
+ * reused rather than created for each selection change.
+ */
+class EffectSnapshot {
+  private final List<Effect<?>> effects;
+  private Spanned str=null;
+  private Selection selection=null;
+  private SpanBuffer[] buckets;
+  private boolean[] exists;
+
+  EffectSnapshot(List<Effect<?>> effects) {
+    this.effects=effects;
+    buckets=new SpanBuffer[effects.size()];
+    exists=new boolean[effects.size()];
+
+    for (int i=0; i < buckets.length; i++) {
+      buckets[i]=new SpanBuffer();
+    }
+  }
+
+  /*
+   * Scans the supplied text for the spans affecting the
+   * supplied selection, and determines which of the effects
+   * exist in that selection.
+   */
+  void scan(Spanned str, Selection selection) {
+    scan(str, selection, null);
+  }
+
+  /*
+   * As above, using the supplied SpanIndex, if there is
+   * one, to find the spans.
+   */
+  void scan(Spanned str, Selection selection, SpanIndex index) {
+    scan(str, selection, index, -1L);
+  }
+
+  /*
+   * As above, only considering the effects whose bits (by
+   * position in the roster) are set in the supplied mask;
+   * the rest are reported as not existing.
+   */
+  void scan(Spanned str, Selection selection, SpanIndex index,
+            long mask) {
+    this.str=str;
+    this.selection=selection;
+
+    for (SpanBuffer bucket : buckets) {
+      bucket.clear();
+    }
+
+    if (index == null) {
+      Object[] spans=
+          str.getSpans(selection.scanStart(), selection.scanEnd(),
+                       Object.class);
+
+      Metrics.count(RichEditMetrics.COUNT_GET_SPANS);
+
+      for (Object span : spans) {
+        for (int i=0; i < buckets.length; i++) {
+          if ((mask & (1L << i)) != 0 && effects.get(i).isEffectSpan(span)) {
+            buckets[i].add(span);
+          }
+        }
+      }
+    }
+    else {
+      for (int i=0; i < buckets.length; i++) {
+        if ((mask & (1L << i)) == 0) {
+          continue;
+        }
+
+        buckets[i].addAll(effects.get(i).findSpans(str,
+                                                   selection.scanStart(),
+                                                   selection.scanEnd(),
+                                                   index));
+      }
+    }
+
+    for (int i=0; i < exists.length; i++) {
+      exists[i]=
+          (mask & (1L << i)) != 0
+              && effects.get(i).existsInSpans(str, selection,
+                                              buckets[i].spans,
+                                              buckets[i].count);
+    }
+  }
+
+  /*
+   * Returns true if the effect at the given position in the
+   * roster exists in the last-scanned selection.
+   */
+  boolean exists(int position) {
+    return(exists[position]);
+  }
+
+  /*
+   * Returns the value of the effect at the given position in
+   * the roster for the last-scanned selection, per
+   * Effect.valueInSelection().
+   */
+  Object value(int position) {
+    return(effects.get(position).valueInSpans(str, selection,
+                                              buckets[position].spans,
+                                              buckets[position].count));
+  }
+
+  /*
+   * Drops references to the last-scanned text and spans, so
+   * the snapshot does not keep them from being collected.
+   */
+  void clear() {
+    for (SpanBuffer bucket : buckets) {
+      bucket.clear();
+    }
+
+    str=null;
+    selection=null;
+  }
+}
@@ -0,0 +1,132 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Layout;
+import java.util.List;
+
+/*
+ * The effects applied to a selection, as supplied to an
+ * OnEffectStateChangedListener. Each effect in the roster
+ * gets one bit in the flags, set if the effect exists in
+ * the selection, plus a slot for its value.
+ *
+ * A RichEditText reuses a single EffectState for every
+ * selection change, so do not hold onto it (or expect it to
+ * stay the same) after your listener returns -- copy out
+ * whatever you need.
+ */
+public class EffectState {
+  private final List<Effect<?>> effects;
+  private final Object[] values;
+  private long flags=0;
+
+  EffectState(List<Effect<?>> effects) {
+    if (effects.size() > Long.SIZE) {
+      throw new IllegalArgumentException("Cannot track more than "
+          + Long.SIZE + " effects");
+    }
+
+    this.effects=effects;
+    values=new Object[effects.size()];
+  }
+
+  /*
+   * Returns the bitmask of effects that exist in the
+   * selection. Use getFlag() to find the bit for a given
+   * effect.
+   */
+  public long getFlags() {
+    return(flags);
+  }
+
+  /*
+   * Returns the bit used in getFlags() for the supplied
+   * effect, or 0 if the effect is not one being tracked.
+   */
+  public long getFlag(Effect<?> effect) {
+    int position=effects.indexOf(effect);
+
+    return(position < 0 ? 0 : 1L << position);
+  }
+
+  /*
+   * Returns true if the supplied effect exists somewhere in
+   * the selection, per RichEditText.hasEffect().
+   */
+  public boolean hasEffect(Effect<?> effect) {
+    return((flags & getFlag(effect)) != 0);
+  }
+
+  /*
+   * Returns the value of the supplied effect for the
+   * selection, per RichEditText.getEffectValue(), or null if
+   * the effect does not exist in the selection.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T getEffectValue(Effect<T> effect) {
+    int position=effects.indexOf(effect);
+
+    return(position < 0 ? null : (T)values[position]);
+  }
+
+  /*
+   * Convenience method for the value of
+   * RichEditText.TYPEFACE.
+   */
+  public String getTypeface() {
+    return(getEffectValue(RichEditText.TYPEFACE));
+  }
+
+  /*
+   * Convenience method for the value of
+   * RichEditText.LINE_ALIGNMENT.
+   */
+  public Layout.Alignment getLineAlignment() {
+    return(getEffectValue(RichEditText.LINE_ALIGNMENT));
+  }
+
+  /*
+   * Returns the effects that exist in the selection, adding
+   * them to the supplied list.
+   */
+  public List<Effect<?>> getEffects(List<Effect<?>> result) {
+    for (int i=0; i < values.length; i++) {
+      if ((flags & (1L << i)) != 0) {
+        result.add(effects.get(i));
+      }
+    }
+
+    return(result);
+  }
+
+  /*
+   * Copies the results of the snapshot's latest scan into
+   * this state.
+   */
+  void update(EffectSnapshot snapshot) {
+    flags=0;
+
+    for (int i=0; i < values.length; i++) {
+      if (snapshot.exists(i)) {
+        flags|=1L << i;
+        values[i]=snapshot.value(i);
+      }
+      else {
+        values[i]=null;
+      }
+    }
+  }
+}
@@ -0,0 +1,521 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.AlignmentSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Converts the text it is attached to into HTML, caching the
+ * HTML for each paragraph (i.e., each line, ending in a
+ * newline). As a TextWatcher and SpanWatcher on that text, it
+ * learns which paragraphs are changed by edits and by effects
+ * being applied, so each writeTo() only converts those
+ * paragraphs again, re-using the cached HTML for the rest.
+ *
+ * Each paragraph becomes a <div>, with text-align CSS for line
+ * alignment, so HtmlImporter turns the HTML back into the
+ * same lines. Within a paragraph, the spans of the effects
+ * become <b>, <i>, <u>, <strike>, <sup>, <sub>, <font face>,
+ * and font-size CSS (for relative sizes).
+ *
+ * The text is reported as it stands at the time of the
+ * writeTo() call, so call it on the main application thread.
+ */
+class HtmlExporter implements SpanWatcher, TextWatcher, NoCopySpan {
+  private final List<Effect<?>> effects;
+  private final ArrayList<Paragraph> paragraphs=new ArrayList<Paragraph>();
+  private final StringBuilder scratch=new StringBuilder();
+  private final ArrayList<Object> runSpans=new ArrayList<Object>();
+  private Spannable text=null;
+  private int hintIndex=0;
+  private int hintStart=0;
+  private int editEnd=Integer.MAX_VALUE;
+  private int editDelta=0;
+  private int suppressed=0;
+
+  HtmlExporter(List<Effect<?>> effects) {
+    this.effects=effects;
+  }
+
+  void attach(Spannable text) {
+    detach();
+
+    // start with one dirty paragraph for the whole text,
+    // split up by the first writeTo()
+    paragraphs.add(new Paragraph(text.length()));
+    this.text=text;
+    text.setSpan(this, 0, text.length(),
+                 Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    paragraphs.clear();
+    hintIndex=0;
+    hintStart=0;
+    forgetEdit();
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  /*
+   * While suppressed, span changes do not mark paragraphs as
+   * changed, for spans that are only being set aside and put
+   * back (see RunTable). Calls nest, so each
+   * setSuppressed(true) needs a setSuppressed(false).
+   */
+  void setSuppressed(boolean suppress) {
+    suppressed+=suppress ? 1 : -1;
+  }
+
+  /*
+   * Called before something other than an edit changes spans,
+   * so moves that happen to look like the ones from the last
+   * edit are not mistaken for them.
+   */
+  void forgetEdit() {
+    editEnd=Integer.MAX_VALUE;
+    editDelta=0;
+  }
+
+  /*
+   * Returns the number of cached paragraphs that the next
+   * writeTo() needs to convert. One of those may have become
+   * several paragraphs, if newlines were typed.
+   */
+  int getDirtyCount() {
+    int result=0;
+
+    for (Paragraph paragraph : paragraphs) {
+      if (paragraph.html == null) {
+        result++;
+      }
+    }
+
+    return(result);
+  }
+
+  /*
+   * Writes the HTML for the attached text to the supplied
+   * Writer, converting only the paragraphs that changed since
+   * the last call.
+   */
+  void writeTo(Writer writer) throws IOException {
+    int start=0;
+
+    forgetEdit();
+
+    for (int i=0; i < paragraphs.size(); i++) {
+      if (paragraphs.get(i).html == null) {
+        refresh(i, start);
+      }
+
+      Paragraph paragraph=paragraphs.get(i);
+
+      writer.write(paragraph.html);
+      start+=paragraph.length;
+    }
+
+    hintIndex=0;
+    hintStart=0;
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    if (s == text) {
+      // replace the paragraphs touched by the change with one
+      // dirty paragraph, sized for the text after the change;
+      // positions reported to the SpanWatcher methods during
+      // the change will then line up with our paragraphs
+      int first=locate(start);
+      int firstStart=hintStart;
+      int last=locate(start + count);
+      int length=hintStart + paragraphs.get(last).length - firstStart;
+
+      for (int i=last; i > first; i--) {
+        paragraphs.remove(i);
+      }
+
+      Paragraph paragraph=paragraphs.get(first);
+
+      editEnd=start + count;
+      editDelta=after - count;
+      paragraph.length=length - count + after;
+      paragraph.html=null;
+      hintIndex=first;
+      hintStart=firstStart;
+    }
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    // handled in beforeTextChanged()
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // unused
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    if (text == this.text && suppressed == 0 && isEffectSpan(what)) {
+      markDirty(start, end);
+    }
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    if (text == this.text && suppressed == 0 && isEffectSpan(what)) {
+      markDirty(start, end);
+    }
+  }
+
+  /*
+   * Newer versions of Android report every span moving
+   * because of an edit, after the edit. Those spans are no
+   * different within their paragraphs, and the edited
+   * paragraph was marked dirty in beforeTextChanged(), so only
+   * other moves count.
+   */
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    if (text == this.text && suppressed == 0 && isEffectSpan(what)
+        && (shift(ostart) != nstart || shift(oend) != nend)) {
+      markDirty(ostart, oend);
+      markDirty(nstart, nend);
+    }
+  }
+
+  private boolean isEffectSpan(Object span) {
+    for (Effect<?> effect : effects) {
+      if (effect.isEffectSpan(span)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  private int shift(int position) {
+    if (position >= editEnd) {
+      return(position + editDelta);
+    }
+
+    return(position);
+  }
+
+  private void markDirty(int start, int end) {
+    int first=locate(start);
+    int last=locate(end);
+
+    for (int i=first; i <= last; i++) {
+      paragraphs.get(i).html=null;
+    }
+  }
+
+  /*
+   * Returns the index of the paragraph containing the supplied
+   * position, also leaving its start in hintStart. The end of
+   * the text is in the last paragraph. The search starts from
+   * the last paragraph found, as edits tend to be near one
+   * another, rather than at the start of the text.
+   */
+  private int locate(int position) {
+    int last=paragraphs.size() - 1;
+
+    if (position < 0) {
+      position=0;
+    }
+
+    while (hintIndex > 0 && position < hintStart) {
+      hintIndex--;
+      hintStart-=paragraphs.get(hintIndex).length;
+    }
+
+    while (hintIndex < last
+        && position >= hintStart + paragraphs.get(hintIndex).length) {
+      hintStart+=paragraphs.get(hintIndex).length;
+      hintIndex++;
+    }
+
+    return(hintIndex);
+  }
+
+  /*
+   * Converts the dirty paragraph at the supplied index (and
+   * starting at the supplied position), splitting it up if it
+   * now holds several lines, in which case the new paragraphs
+   * are inserted at the supplied index.
+   */
+  private void refresh(int index, int start) {
+    Paragraph paragraph=paragraphs.get(index);
+    int end=start + paragraph.length;
+    int lineEnd;
+
+    while ((lineEnd=indexOf(text, '\n', start, end)) >= 0
+        && lineEnd + 1 < end) {
+      Paragraph line=new Paragraph(lineEnd + 1 - start);
+
+      line.html=toHtml(start, lineEnd);
+      paragraphs.add(index++, line);
+      start=lineEnd + 1;
+    }
+
+    paragraph.length=end - start;
+
+    if (start == end) {
+      // the empty tail after a trailing newline, which is
+      // not a paragraph of its own
+      paragraph.html="";
+    }
+    else {
+      paragraph.html=toHtml(start, lineEnd < 0 ? end : lineEnd);
+    }
+  }
+
+  private static int indexOf(CharSequence text, char c, int start, int end) {
+    for (int i=start; i < end; i++) {
+      if (text.charAt(i) == c) {
+        return(i);
+      }
+    }
+
+    return(-1);
+  }
+
+  /*
+   * Converts the text from start to end (a paragraph, without
+   * its newline) into HTML.
+   */
+  private String toHtml(int start, int end) {
+    scratch.setLength(0);
+
+    Layout.Alignment alignment=null;
+
+    for (AlignmentSpan.Standard span : text.getSpans(start, end,
+                                                     AlignmentSpan.Standard.class)) {
+      if (isEffectSpan(span)) {
+        alignment=span.getAlignment();
+      }
+    }
+
+    if (alignment == Layout.Alignment.ALIGN_CENTER) {
+      scratch.append("<div style=\"text-align:center;\">");
+    }
+    else if (alignment == Layout.Alignment.ALIGN_OPPOSITE) {
+      scratch.append("<div style=\"text-align:right;\">");
+    }
+    else if (alignment == Layout.Alignment.ALIGN_NORMAL) {
+      scratch.append("<div style=\"text-align:left;\">");
+    }
+    else {
+      scratch.append("<div>");
+    }
+
+    if (start == end) {
+      scratch.append("<br>");
+    }
+
+    for (int i=start; i < end;) {
+      int next=text.nextSpanTransition(i, end, CharacterStyle.class);
+
+      runSpans.clear();
+
+      for (Object span : text.getSpans(i, next, CharacterStyle.class)) {
+        if (isEffectSpan(span)
+            && text.getSpanStart(span) < text.getSpanEnd(span)) {
+          runSpans.add(span);
+        }
+      }
+
+      for (Object span : runSpans) {
+        appendStart(span);
+      }
+
+      appendText(i, next);
+
+      for (int j=runSpans.size() - 1; j >= 0; j--) {
+        appendEnd(runSpans.get(j));
+      }
+
+      i=next;
+    }
+
+    scratch.append("</div>\n");
+
+    return(scratch.toString());
+  }
+
+  private void appendStart(Object span) {
+    if (span instanceof StyleSpan) {
+      int style=((StyleSpan)span).getStyle();
+
+      if ((style & Typeface.BOLD) != 0) {
+        scratch.append("<b>");
+      }
+
+      if ((style & Typeface.ITALIC) != 0) {
+        scratch.append("<i>");
+      }
+    }
+    else if (span instanceof UnderlineSpan) {
+      scratch.append("<u>");
+    }
+    else if (span instanceof StrikethroughSpan) {
+      scratch.append("<strike>");
+    }
+    else if (span instanceof SuperscriptSpan) {
+      scratch.append("<sup>");
+    }
+    else if (span instanceof SubscriptSpan) {
+      scratch.append("<sub>");
+    }
+    else if (span instanceof TypefaceSpan) {
+      scratch.append("<font face=\"");
+      appendEscaped(((TypefaceSpan)span).getFamily());
+      scratch.append("\">");
+    }
+    else if (span instanceof RelativeSizeSpan) {
+      scratch.append("<span style=\"font-size:")
+             .append(((RelativeSizeSpan)span).getSizeChange())
+             .append("em;\">");
+    }
+  }
+
+  private void appendEnd(Object span) {
+    if (span instanceof StyleSpan) {
+      int style=((StyleSpan)span).getStyle();
+
+      if ((style & Typeface.ITALIC) != 0) {
+        scratch.append("</i>");
+      }
+
+      if ((style & Typeface.BOLD) != 0) {
+        scratch.append("</b>");
+      }
+    }
+    else if (span instanceof UnderlineSpan) {
+      scratch.append("</u>");
+    }
+    else if (span instanceof StrikethroughSpan) {
+      scratch.append("</strike>");
+    }
+    else if (span instanceof SuperscriptSpan) {
+      scratch.append("</sup>");
+    }
+    else if (span instanceof SubscriptSpan) {
+      scratch.append("</sub>");
+    }
+    else if (span instanceof TypefaceSpan) {
+      scratch.append("</font>");
+    }
+    else if (span instanceof RelativeSizeSpan) {
+      scratch.append("</span>");
+    }
+  }
+
+  private void appendText(int start, int end) {
+    for (int i=start; i < end; i++) {
+      char c=text.charAt(i);
+
+      // keep runs of spaces, which HTML would collapse
+      if (c == ' ' && i + 1 < end && text.charAt(i + 1) == ' ') {
+        scratch.append("&nbsp;");
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(text.charAt(i + 1))) {
+        scratch.append("&#")
+               .append(Character.toCodePoint(c, text.charAt(++i)))
+               .append(';');
+      }
+      else {
+        appendEscaped(c);
+      }
+    }
+  }
+
+  private void appendEscaped(String value) {
+    for (int i=0; i < value.length(); i++) {
+      appendEscaped(value.charAt(i));
+    }
+  }
+
+  private void appendEscaped(char c) {
+    if (c == '<') {
+      scratch.append("&lt;");
+    }
+    else if (c == '>') {
+      scratch.append("&gt;");
+    }
+    else if (c == '&') {
+      scratch.append("&amp;");
+    }
+    else if (c == '"') {
+      scratch.append("&quot;");
+    }
+    else if (c > 0x7E || c < ' ') {
+      scratch.append("&#").append((int)c).append(';');
+    }
+    else {
+      scratch.append(c);
+    }
+  }
+
+  /*
+   * A cached paragraph: its length (including its newline, if
+   * any) and its HTML, or null if it needs to be converted
+   * again.
+   */
+  private static class Paragraph {
+    int length;
+    String html=null;
+
+    Paragraph(int length) {
+      this.length=length;
+    }
+  }
+}
@@ -0,0 +1,816 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.AlignmentSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/*
+ * Converts HTML into an Editable, reading the HTML a buffer at
+ * a time from a Reader, so the HTML itself never needs to be
+ * held in memory. Unlike Html.fromHtml(), the spans are the
+ * ones created by RichEditText's effects, so imported
+ * formatting can be found and changed via those effects:
+ *
+ * - <b>/<strong>, <i>/<em>, <u>, <s>/<strike>/<del>, <sup>,
+ * and <sub>, plus the corresponding CSS in style attributes
+ *
+ * - <font face>, <tt>/<code>, and font-family, as
+ * TypefaceSpans
+ *
+ * - align attributes and text-align on <p>, <div>, and
+ * headings, as AlignmentSpans
+ *
+ * - <big>, <small>, and headings, as RelativeSizeSpans (with
+ * headings also being bold), using the same sizes as
+ * Html.fromHtml(), plus font-size CSS in em units
+ *
+ * Whitespace is collapsed, as a browser would, and block
+ * elements (<p>, <div>, <br>, headings, and list items) become
+ * newlines. Other tags are ignored, keeping their text, except
+ * for <script>, <style>, and <title>, whose contents are
+ * skipped.
+ *
+ * This does all of its work on the calling thread, so for
+ * large documents, call it from a background thread, or use
+ * RichEditText.loadHtml(), which does that for you.
+ */
+public class HtmlImporter {
+  private static final float[] HEADING_SIZES={ 1.5f, 1.4f, 1.3f, 1.2f,
+      1.1f, 1f };
+  private static final float BIG_SIZE=1.25f;
+  private static final float SMALL_SIZE=0.8f;
+  private static final int EOF=-1;
+  private static final int MAX_ENTITY=10;
+  private static final HashMap<String, Integer> ENTITIES=
+      new HashMap<String, Integer>();
+
+  // the named entities of HTML 4, which are the ones seen in
+  // practice; unknown ones are left as text
+  static {
+    String[] latin1=
+        { "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar",
+            "sect", "uml", "copy", "ordf", "laquo", "not", "shy", "reg",
+            "macr", "deg", "plusmn", "sup2", "sup3", "acute", "micro",
+            "para", "middot", "cedil", "sup1", "ordm", "raquo", "frac14",
+            "frac12", "frac34", "iquest", "Agrave", "Aacute", "Acirc",
+            "Atilde", "Auml", "Aring", "AElig", "Ccedil", "Egrave",
+            "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml",
+            "ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml",
+            "times", "Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml",
+            "Yacute", "THORN", "szlig", "agrave", "aacute", "acirc",
+            "atilde", "auml", "aring", "aelig", "ccedil", "egrave",
+            "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml",
+            "eth", "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml",
+            "divide", "oslash", "ugrave", "uacute", "ucirc", "uuml",
+            "yacute", "thorn", "yuml" };
+    String[] greek=
+        { "Alpha", "Beta", "Gamma", "Delta", "Epsilon", "Zeta", "Eta",
+            "Theta", "Iota", "Kappa", "Lambda", "Mu", "Nu", "Xi",
+            "Omicron", "Pi", "Rho", null, "Sigma", "Tau", "Upsilon", "Phi",
+            "Chi", "Psi", "Omega" };
+    String others=
+        "quot 34 amp 38 apos 39 lt 60 gt 62 OElig 338 oelig 339 "
+            + "Scaron 352 scaron 353 Yuml 376 fnof 402 circ 710 "
+            + "tilde 732 sigmaf 962 thetasym 977 upsih 978 piv 982 "
+            + "ensp 8194 emsp 8195 thinsp 8201 zwnj 8204 zwj 8205 "
+            + "lrm 8206 rlm 8207 ndash 8211 mdash 8212 lsquo 8216 "
+            + "rsquo 8217 sbquo 8218 ldquo 8220 rdquo 8221 bdquo 8222 "
+            + "dagger 8224 Dagger 8225 bull 8226 hellip 8230 "
+            + "permil 8240 prime 8242 Prime 8243 lsaquo 8249 "
+            + "rsaquo 8250 oline 8254 frasl 8260 euro 8364 image 8465 "
+            + "weierp 8472 real 8476 trade 8482 alefsym 8501 "
+            + "larr 8592 uarr 8593 rarr 8594 darr 8595 harr 8596 "
+            + "crarr 8629 lArr 8656 uArr 8657 rArr 8658 dArr 8659 "
+            + "hArr 8660 forall 8704 part 8706 exist 8707 empty 8709 "
+            + "nabla 8711 isin 8712 notin 8713 ni 8715 prod 8719 "
+            + "sum 8721 minus 8722 lowast 8727 radic 8730 prop 8733 "
+            + "infin 8734 ang 8736 and 8743 or 8744 cap 8745 cup 8746 "
+            + "int 8747 there4 8756 sim 8764 cong 8773 asymp 8776 "
+            + "ne 8800 equiv 8801 le 8804 ge 8805 sub 8834 sup 8835 "
+            + "nsub 8836 sube 8838 supe 8839 oplus 8853 otimes 8855 "
+            + "perp 8869 sdot 8901 lceil 8968 rceil 8969 lfloor 8970 "
+            + "rfloor 8971 lang 9001 rang 9002 loz 9674 spades 9824 "
+            + "clubs 9827 hearts 9829 diams 9830";
+
+    for (int i=0; i < latin1.length; i++) {
+      ENTITIES.put(latin1[i], 160 + i);
+    }
+
+    for (int i=0; i < greek.length; i++) {
+      if (greek[i] != null) {
+        ENTITIES.put(greek[i], 913 + i);
+        ENTITIES.put(greek[i].toLowerCase(Locale.US), 945 + i);
+      }
+    }
+
+    String[] pairs=others.split(" ");
+
+    for (int i=0; i < pairs.length; i+=2) {
+      ENTITIES.put(pairs[i], Integer.valueOf(pairs[i + 1]));
+    }
+  }
+
+  private final Reader reader;
+  private final char[] buffer=new char[8192];
+  private int position=0;
+  private int limit=0;
+  private final StringBuilder text=new StringBuilder();
+  private final StringBuilder scratch=new StringBuilder();
+  private final ArrayList<Object> spans=new ArrayList<Object>();
+  private int[] spanBounds=new int[64];
+  private final ArrayList<Element> open=new ArrayList<Element>();
+  private boolean pendingSpace=false;
+  private int skipDepth=0;
+
+  /*
+   * Reads the HTML from the supplied Reader (which is not
+   * closed) and returns it as an Editable.
+   */
+  public static Editable importHtml(Reader reader) throws IOException {
+    return(new HtmlImporter(reader).run());
+  }
+
+  /*
+   * Reads the HTML from the supplied InputStream (which is not
+   * closed), in the supplied character set, and returns it as
+   * an Editable.
+   */
+  public static Editable importHtml(InputStream in, String charsetName)
+    throws IOException {
+    return(importHtml(new InputStreamReader(in, charsetName)));
+  }
+
+  private HtmlImporter(Reader reader) {
+    this.reader=reader;
+  }
+
+  private Editable run() throws IOException {
+    int c;
+
+    while ((c=read()) != EOF) {
+      if (c == '<') {
+        readTag();
+      }
+      else if (skipDepth > 0) {
+        continue;
+      }
+      else if (c == '&') {
+        // Character.toChars(), unlike highSurrogate() and
+        // lowSurrogate(), works on all API levels
+        char[] chars=Character.toChars(readEntity());
+
+        appendChar(chars[0]);
+
+        if (chars.length > 1) {
+          text.append(chars[1]);
+        }
+      }
+      else if (Character.isWhitespace(c)) {
+        pendingSpace=true;
+      }
+      else {
+        appendChar((char)c);
+      }
+    }
+
+    while (!open.isEmpty()) {
+      close(open.size() - 1);
+    }
+
+    // drop the newlines left behind by trailing block elements
+    int length=text.length();
+
+    while (length > 0 && text.charAt(length - 1) == '\n') {
+      length--;
+    }
+
+    text.setLength(length);
+
+    SpannableStringBuilder result=new SpannableStringBuilder(text);
+
+    for (int i=0; i < spans.size(); i++) {
+      int start=spanBounds[i * 2];
+      int end=Math.min(length, spanBounds[i * 2 + 1]);
+
+      if (start < end) {
+        result.setSpan(spans.get(i), start, end,
+                       Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
+    }
+
+    return(result);
+  }
+
+  private int read() throws IOException {
+    if (position == limit) {
+      limit=reader.read(buffer, 0, buffer.length);
+      position=0;
+
+      if (limit <= 0) {
+        limit=0;
+
+        return(EOF);
+      }
+    }
+
+    return(buffer[position++]);
+  }
+
+  /*
+   * Ensures that at least count characters are in the buffer,
+   * unless we run out of input, moving the unread characters
+   * to the front of the buffer if needed.
+   */
+  private void fill(int count) throws IOException {
+    if (limit - position < count) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit-=position;
+      position=0;
+
+      while (limit < count) {
+        int read=reader.read(buffer, limit, buffer.length - limit);
+
+        if (read <= 0) {
+          break;
+        }
+
+        limit+=read;
+      }
+    }
+  }
+
+  private void appendChar(char c) {
+    if (pendingSpace) {
+      appendSpace();
+    }
+
+    text.append(c);
+  }
+
+  /*
+   * Adds a pending (collapsed) space, unless we are at the
+   * start of a line, or right after another space.
+   */
+  private void appendSpace() {
+    int length=text.length();
+
+    if (length > 0) {
+      char last=text.charAt(length - 1);
+
+      if (last != '\n' && last != ' ') {
+        text.append(' ');
+      }
+    }
+
+    pendingSpace=false;
+  }
+
+  /*
+   * Ensures that the text ends in at least count newlines,
+   * unless there is no text yet.
+   */
+  private void ensureNewlines(int count) {
+    int length=text.length();
+    int found=0;
+
+    while (found < count && found < length
+        && text.charAt(length - 1 - found) == '\n') {
+      found++;
+    }
+
+    if (length > 0) {
+      for (int i=found; i < count; i++) {
+        text.append('\n');
+      }
+    }
+
+    pendingSpace=false;
+  }
+
+  /*
+   * Called after reading '<'. Reads the rest of the tag,
+   * comment, or declaration, through the closing '>'.
+   */
+  private void readTag() throws IOException {
+    int c=read();
+
+    if (c == '!') {
+      c=read();
+
+      if (c == '-' && read() == '-') {
+        skipComment();
+      }
+      else {
+        skipThrough('>', c);
+      }
+
+      return;
+    }
+
+    if (c == '?') {
+      skipThrough('>', c);
+
+      return;
+    }
+
+    boolean closing=(c == '/');
+
+    if (closing) {
+      c=read();
+    }
+
+    scratch.setLength(0);
+
+    // tag names start with a letter, so "I <3 you" is text
+    if (Character.isLetter(c)) {
+      while (c != EOF && Character.isLetterOrDigit(c)) {
+        scratch.append(Character.toLowerCase((char)c));
+        c=read();
+      }
+    }
+
+    String name=scratch.toString();
+
+    if (name.length() == 0) {
+      // not a tag after all (e.g., "a < b"), so treat it as
+      // text
+      if (skipDepth == 0) {
+        appendChar('<');
+
+        if (closing) {
+          appendChar('/');
+        }
+      }
+
+      if (c != EOF) {
+        position--;
+      }
+
+      return;
+    }
+
+    Element element=new Element(name);
+
+    c=readAttributes(element, c);
+
+    if (closing) {
+      endTag(name);
+    }
+    else {
+      startTag(element);
+
+      if (c == '/') {
+        endTag(name);
+      }
+    }
+  }
+
+  /*
+   * Reads the attributes of a tag, starting with the supplied
+   * character, through the closing '>'. Only the attributes
+   * we care about are retained. Returns '/' if the tag was
+   * self-closing, '>' otherwise.
+   */
+  private int readAttributes(Element element, int c) throws IOException {
+    int last=c;
+
+    while (c != EOF && c != '>') {
+      if (Character.isLetter(c)) {
+        scratch.setLength(0);
+
+        while (c != EOF && c != '=' && c != '>' && c != '/'
+            && !Character.isWhitespace(c)) {
+          scratch.append(Character.toLowerCase((char)c));
+          c=read();
+        }
+
+        String name=scratch.toString();
+
+        while (c != EOF && Character.isWhitespace(c)) {
+          c=read();
+        }
+
+        if (c == '=') {
+          c=read();
+
+          while (c != EOF && Character.isWhitespace(c)) {
+            c=read();
+          }
+
+          scratch.setLength(0);
+
+          if (c == '"' || c == '\'') {
+            int quote=c;
+
+            while ((c=read()) != EOF && c != quote) {
+              scratch.append((char)c);
+            }
+
+            c=read();
+          }
+          else {
+            while (c != EOF && c != '>' && !Character.isWhitespace(c)) {
+              scratch.append((char)c);
+              c=read();
+            }
+          }
+
+          element.setAttribute(name, scratch.toString());
+        }
+
+        last=' ';
+      }
+      else {
+        if (!Character.isWhitespace(c)) {
+          last=c;
+        }
+
+        c=read();
+      }
+    }
+
+    return(last == '/' ? '/' : '>');
+  }
+
+  private void skipComment() throws IOException {
+    int dashes=0;
+    int c;
+
+    while ((c=read()) != EOF) {
+      if (c == '>' && dashes >= 2) {
+        return;
+      }
+
+      dashes=(c == '-' ? dashes + 1 : 0);
+    }
+  }
+
+  private void skipThrough(int end, int c) throws IOException {
+    while (c != EOF && c != end) {
+      c=read();
+    }
+  }
+
+  /*
+   * Called after reading '&'. Returns the code point for the
+   * entity, or '&' if this does not look like an entity, in
+   * which case whatever followed the '&' is left to be read
+   * as text.
+   */
+  private int readEntity() throws IOException {
+    scratch.setLength(0);
+    fill(MAX_ENTITY + 1);
+
+    int mark=position;
+    int c;
+
+    // fill() ensures the entity is in the buffer, so we can
+    // back up if this is not an entity after all
+    while (position < limit && scratch.length() < MAX_ENTITY) {
+      c=buffer[position++];
+
+      if (c == ';') {
+        int result=decodeEntity(scratch.toString());
+
+        if (result != 0) {
+          return(result);
+        }
+
+        break;
+      }
+
+      if (!Character.isLetterOrDigit(c) && c != '#') {
+        break;
+      }
+
+      scratch.append((char)c);
+    }
+
+    position=mark;
+
+    return('&');
+  }
+
+  private static int decodeEntity(String entity) {
+    if (entity.startsWith("#")) {
+      try {
+        int result;
+
+        if (entity.startsWith("#x") || entity.startsWith("#X")) {
+          result=Integer.parseInt(entity.substring(2), 16);
+        }
+        else {
+          result=Integer.parseInt(entity.substring(1));
+        }
+
+        return(Character.isValidCodePoint(result) ? result : 0);
+      }
+      catch (NumberFormatException e) {
+        return(0);
+      }
+    }
+    else {
+      Integer result=ENTITIES.get(entity);
+
+      if (result != null) {
+        return(result);
+      }
+    }
+
+    return(0);
+  }
+
+  private void startTag(Element element) {
+    String name=element.name;
+
+    if ("br".equals(name)) {
+      if (skipDepth == 0) {
+        text.append('\n');
+        pendingSpace=false;
+      }
+
+      return;
+    }
+
+    if ("script".equals(name) || "style".equals(name)
+        || "title".equals(name)) {
+      skipDepth++;
+    }
+    else if (isParagraph(name)) {
+      // <p> is implicitly closed by the next paragraph, along
+      // with anything left open inside of it
+      endTag("p");
+
+      ensureNewlines(2);
+    }
+    else if (isBlock(name)) {
+      ensureNewlines(1);
+    }
+    else if (pendingSpace) {
+      // the space belongs before this element, not in it
+      appendSpace();
+    }
+
+    element.start=text.length();
+    open.add(element);
+  }
+
+  private void endTag(String name) {
+    for (int i=open.size() - 1; i >= 0; i--) {
+      if (open.get(i).name.equals(name)) {
+        // also closes anything left open inside of it
+        while (open.size() > i) {
+          close(open.size() - 1);
+        }
+
+        return;
+      }
+    }
+  }
+
+  private void close(int index) {
+    Element element=open.remove(index);
+    String name=element.name;
+
+    if ("script".equals(name) || "style".equals(name)
+        || "title".equals(name)) {
+      skipDepth--;
+
+      return;
+    }
+
+    int end=text.length();
+
+    if (name.length() == 2 && name.charAt(0) == 'h'
+        && name.charAt(1) >= '1' && name.charAt(1) <= '6') {
+      addSpan(new StyleSpan(Typeface.BOLD), element.start, end);
+
+      float size=HEADING_SIZES[name.charAt(1) - '1'];
+
+      if (size != 1f) {
+        addSpan(new RelativeSizeSpan(size), element.start, end);
+      }
+    }
+    else if ("b".equals(name) || "strong".equals(name)) {
+      addSpan(new StyleSpan(Typeface.BOLD), element.start, end);
+    }
+    else if ("i".equals(name) || "em".equals(name)
+        || "cite".equals(name) || "dfn".equals(name)) {
+      addSpan(new StyleSpan(Typeface.ITALIC), element.start, end);
+    }
+    else if ("u".equals(name) || "ins".equals(name)) {
+      addSpan(new UnderlineSpan(), element.start, end);
+    }
+    else if ("s".equals(name) || "strike".equals(name)
+        || "del".equals(name)) {
+      addSpan(new StrikethroughSpan(), element.start, end);
+    }
+    else if ("sup".equals(name)) {
+      addSpan(new SuperscriptSpan(), element.start, end);
+    }
+    else if ("sub".equals(name)) {
+      addSpan(new SubscriptSpan(), element.start, end);
+    }
+    else if ("tt".equals(name) || "code".equals(name)) {
+      addSpan(new TypefaceSpan("monospace"), element.start, end);
+    }
+    else if ("big".equals(name)) {
+      addSpan(new RelativeSizeSpan(BIG_SIZE), element.start, end);
+    }
+    else if ("small".equals(name)) {
+      addSpan(new RelativeSizeSpan(SMALL_SIZE), element.start, end);
+    }
+
+    if (element.bold) {
+      addSpan(new StyleSpan(Typeface.BOLD), element.start, end);
+    }
+
+    if (element.italic) {
+      addSpan(new StyleSpan(Typeface.ITALIC), element.start, end);
+    }
+
+    if (element.underline) {
+      addSpan(new UnderlineSpan(), element.start, end);
+    }
+
+    if (element.strikethrough) {
+      addSpan(new StrikethroughSpan(), element.start, end);
+    }
+
+    if (element.family != null) {
+      addSpan(new TypefaceSpan(element.family), element.start, end);
+    }
+
+    if (element.size > 0f) {
+      addSpan(new RelativeSizeSpan(element.size), element.start, end);
+    }
+
+    if (element.alignment != null
+        && (isParagraph(name) || isBlock(name))) {
+      addSpan(new AlignmentSpan.Standard(element.alignment),
+              element.start, end);
+    }
+
+    if (isParagraph(name)) {
+      ensureNewlines(2);
+    }
+    else if (isBlock(name)) {
+      ensureNewlines(1);
+    }
+  }
+
+  private void addSpan(Object span, int start, int end) {
+    int count=spans.size();
+
+    if (spanBounds.length < (count + 1) * 2) {
+      int[] grown=new int[spanBounds.length * 2];
+
+      System.arraycopy(spanBounds, 0, grown, 0, spanBounds.length);
+      spanBounds=grown;
+    }
+
+    spans.add(span);
+    spanBounds[count * 2]=start;
+    spanBounds[count * 2 + 1]=end;
+  }
+
+  private static boolean isParagraph(String name) {
+    return("p".equals(name) || "blockquote".equals(name)
+        || (name.length() == 2 && name.charAt(0) == 'h'
+            && name.charAt(1) >= '1' && name.charAt(1) <= '6'));
+  }
+
+  private static boolean isBlock(String name) {
+    return("div".equals(name) || "li".equals(name)
+        || "ul".equals(name) || "ol".equals(name));
+  }
+
+  /*
+   * An open element, with the formatting we gleaned from its
+   * attributes.
+   */
+  private static class Element {
+    final String name;
+    int start;
+    boolean bold=false;
+    boolean italic=false;
+    boolean underline=false;
+    boolean strikethrough=false;
+    String family=null;
+    float size=0f;
+    Layout.Alignment alignment=null;
+
+    Element(String name) {
+      this.name=name;
+    }
+
+    void setAttribute(String name, String value) {
+      if ("face".equals(name) && "font".equals(this.name)) {
+        family=value.trim();
+      }
+      else if ("align".equals(name)) {
+        alignment=toAlignment(value);
+      }
+      else if ("style".equals(name)) {
+        for (String declaration : value.split(";")) {
+          int colon=declaration.indexOf(':');
+
+          if (colon > 0) {
+            setStyle(declaration.substring(0, colon).trim()
+                                .toLowerCase(Locale.US),
+                     declaration.substring(colon + 1).trim()
+                                .toLowerCase(Locale.US));
+          }
+        }
+      }
+    }
+
+    private void setStyle(String property, String value) {
+      if ("font-weight".equals(property)) {
+        if (value.length() > 0 && Character.isDigit(value.charAt(0))) {
+          try {
+            bold=Integer.parseInt(value) >= 600;
+          }
+          catch (NumberFormatException e) {
+            bold=false;
+          }
+        }
+        else {
+          bold="bold".equals(value) || "bolder".equals(value);
+        }
+      }
+      else if ("font-style".equals(property)) {
+        italic="italic".equals(value) || "oblique".equals(value);
+      }
+      else if ("text-decoration".equals(property)) {
+        underline=value.contains("underline");
+        strikethrough=value.contains("line-through");
+      }
+      else if ("font-family".equals(property)) {
+        // use the first family, without quotes
+        int comma=value.indexOf(',');
+
+        family=(comma < 0 ? value : value.substring(0, comma)).trim();
+        family=family.replace("\"", "").replace("'", "");
+      }
+      else if ("text-align".equals(property)) {
+        alignment=toAlignment(value);
+      }
+      else if ("font-size".equals(property) && value.endsWith("em")) {
+        try {
+          size=Float.parseFloat(value.substring(0, value.length() - 2));
+        }
+        catch (NumberFormatException e) {
+          size=0f;
+        }
+      }
+    }
+
+    private static Layout.Alignment toAlignment(String value) {
+      value=value.trim().toLowerCase(Locale.US);
+
+      if ("center".equals(value)) {
+        return(Layout.Alignment.ALIGN_CENTER);
+      }
+      else if ("right".equals(value) || "end".equals(value)) {
+        return(Layout.Alignment.ALIGN_OPPOSITE);
+      }
+      else if ("left".equals(value) || "start".equals(value)) {
+        return(Layout.Alignment.ALIGN_NORMAL);
+      }
+
+      return(null);
+    }
+  }
+}
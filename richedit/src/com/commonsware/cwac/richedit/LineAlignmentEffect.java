@@ -16,45 +16,215 @@ package com.commonsware.cwac.richedit;
 
 import android.text.Layout;
 import android.text.Spannable;
+import android.text.Spanned;
 import android.text.style.AlignmentSpan;
+import java.util.Arrays;
 
 public class LineAlignmentEffect extends Effect<Layout.Alignment> {
   @Override
-  boolean existsInSelection(RichEditText editor) {
-    return(valueInSelection(editor)!=null);
+  protected Class<?> getSpanClass() {
+    return(AlignmentSpan.Standard.class);
   }
 
   @Override
-  Layout.Alignment valueInSelection(RichEditText editor) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
-    AlignmentSpan.Standard[] spans=getAlignmentSpans(str, selection);
+  protected boolean isEffectSpan(Object span) {
+    return(span instanceof AlignmentSpan.Standard);
+  }
+
+  @Override
+  protected Layout.Alignment getSpanValue(Object span) {
+    return(((AlignmentSpan.Standard)span).getAlignment());
+  }
+
+  @Override
+  protected Object newSpan(Layout.Alignment value) {
+    return(new AlignmentSpan.Standard(value));
+  }
 
-    if (spans.length>0) {
-      return(spans[0].getAlignment());
+  @Override
+  protected boolean existsInSpans(Spanned str, Selection selection,
+                                  Object[] spans, int count) {
+    return(valueInSpans(str, selection, spans, count)!=null);
+  }
+
+  @Override
+  protected Layout.Alignment valueInSpans(Spanned str, Selection selection,
+                                          Object[] spans, int count) {
+    for (int i=0; i<count; i++) {
+      if (Selection.intersects(str.getSpanStart(spans[i]),
+                               str.getSpanEnd(spans[i]), selection.start,
+                               selection.end)) {
+        return(((AlignmentSpan.Standard)spans[i]).getAlignment());
+      }
     }
-    
+
     return(null);
   }
 
   @Override
   void applyToSelection(RichEditText editor, Layout.Alignment alignment) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
+    applyToParagraphs(editor.getText(), new Selection(editor), alignment,
+                      editor.getSpanIndex(), editor.getParagraphIndex());
+  }
 
-    for (AlignmentSpan.Standard span : getAlignmentSpans(str, selection)) {
-      str.removeSpan(span);
+  @Override
+  protected void applyToSpannable(Spannable str, Selection selection,
+                                  Layout.Alignment alignment, SpanIndex index) {
+    applyToParagraphs(str, selection, alignment, index, null);
+  }
+
+  /*
+   * Like applyToSpannable(), every paragraph the range
+   * touches gets exactly one SPAN_PARAGRAPH span, or none, so
+   * a replayed op (see OpLog) or a normalized paste (see
+   * PasteNormalizer) leaves the same spans behind as applying
+   * the alignment in the editor would. An empty range
+   * changes nothing.
+   */
+  @Override
+  void assign(Spannable str, int start, int end, Layout.Alignment alignment) {
+    if (start<end) {
+      applyToParagraphs(str, new Selection(start, end), alignment, null,
+                        null);
+    }
+  }
+
+  /*
+   * Gives each paragraph touched by the selection exactly one
+   * alignment span, covering the whole paragraph, or none if
+   * the alignment is null. Paragraphs that already have just
+   * that span are left alone, so they are not laid out again.
+   * Spans sticking out past the selected paragraphs (e.g.,
+   * from older versions, which did not snap to paragraphs)
+   * are trimmed back rather than removed. Paragraph
+   * boundaries come from the ParagraphIndex, if supplied.
+   */
+  void applyToParagraphs(Spannable str, Selection selection,
+                         Layout.Alignment alignment, SpanIndex index,
+                         ParagraphIndex paragraphs) {
+    int first=paragraphStart(str, selection.start, paragraphs);
+    int last=paragraphEnd(str, Math.max(selection.start, selection.end-1),
+                          paragraphs);
+    SpanBuffer found=findSpans(str, first, last, index);
+    Object[] spans=new Object[found.count];
+    long[] kept=new long[found.count];
+    int keptCount=0;
+
+    // the buffer may be reused by the index as we change spans
+    System.arraycopy(found.spans, 0, spans, 0, found.count);
+
+    for (int i=0; i<spans.length; i++) {
+      int spanStart=str.getSpanStart(spans[i]);
+      int spanEnd=str.getSpanEnd(spans[i]);
+
+      if (spanStart>=first && spanEnd<=last && spanStart<spanEnd
+          && alignment==getSpanValue(spans[i])
+          && paragraphStart(str, spanStart, paragraphs)==spanStart
+          && paragraphEnd(str, spanStart, paragraphs)==spanEnd) {
+        // sorts by start, then by position in spans
+        kept[keptCount++]=((long)spanStart<<32) | i;
+      }
+    }
+
+    Arrays.sort(kept, 0, keptCount);
+
+    int previous=-1;
+
+    for (int i=0; i<keptCount; i++) {
+      int start=(int)(kept[i]>>>32);
+
+      if (start==previous) {
+        kept[i]=-1;
+      }
+      else {
+        spans[(int)kept[i]]=null;
+        previous=start;
+      }
+    }
+
+    for (Object span : spans) {
+      if (span!=null) {
+        trim(str, span, first, last);
+      }
     }
 
     if (alignment!=null) {
-      str.setSpan(new AlignmentSpan.Standard(alignment), selection.start, selection.end,
-                  Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+      int next=0;
+
+      for (int start=first; start<last; ) {
+        int end=paragraphEnd(str, start, paragraphs);
+
+        while (next<keptCount
+            && (kept[next]==-1 || (int)(kept[next]>>>32)<start)) {
+          next++;
+        }
+
+        if (next==keptCount || (int)(kept[next]>>>32)!=start) {
+          str.setSpan(new AlignmentSpan.Standard(alignment), start, end,
+                      Spanned.SPAN_PARAGRAPH);
+        }
+
+        start=end;
+      }
+    }
+  }
+
+  /*
+   * Takes the span off of the text between first and last,
+   * keeping any part of it outside of that. Spans that just
+   * touch that text are left alone.
+   */
+  private void trim(Spannable str, Object span, int first, int last) {
+    int spanStart=str.getSpanStart(span);
+    int spanEnd=str.getSpanEnd(span);
+    int flags=str.getSpanFlags(span);
+
+    if (spanStart==spanEnd ? spanStart<first || spanStart>=last
+        : spanStart>=last || spanEnd<=first) {
+      return;
+    }
+
+    if (spanStart<first) {
+      str.setSpan(span, spanStart, first, flags);
+
+      if (spanEnd>last) {
+        str.setSpan(new AlignmentSpan.Standard(getSpanValue(span)), last,
+                    spanEnd, flags);
+      }
     }
+    else if (spanEnd>last) {
+      str.setSpan(span, last, spanEnd, flags);
+    }
+    else {
+      str.removeSpan(span);
+    }
+  }
+
+  private static int paragraphStart(CharSequence str, int offset,
+                                    ParagraphIndex paragraphs) {
+    if (paragraphs!=null) {
+      return(paragraphs.paragraphStart(offset));
+    }
+
+    while (offset>0 && str.charAt(offset-1)!='\n') {
+      offset--;
+    }
+
+    return(offset);
   }
 
-  private AlignmentSpan.Standard[] getAlignmentSpans(Spannable str,
-                                                     Selection selection) {
-    return(str.getSpans(selection.start, selection.end,
-                        AlignmentSpan.Standard.class));
+  private static int paragraphEnd(CharSequence str, int offset,
+                                  ParagraphIndex paragraphs) {
+    if (paragraphs!=null) {
+      return(paragraphs.paragraphEnd(offset));
+    }
+
+    int length=str.length();
+
+    while (offset<length && str.charAt(offset)!='\n') {
+      offset++;
+    }
+
+    return(offset<length ? offset+1 : length);
   }
 }
@@ -0,0 +1,92 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+/*
+ * Timing of RichEditText work for its RichEditMetrics, plus a
+ * way for code that has no RichEditText at hand (e.g., an
+ * Effect looking up spans) to bump its counters.
+ *
+ * Each RichEditText with a sink has its own Metrics. begin()
+ * makes it current until the matching end(), for the calling
+ * thread only, so work on other threads (e.g., an EffectJob)
+ * does not get counted by mistake. Nested begin()/end()
+ * pairs for the same editor count against the outermost one;
+ * those for another editor (e.g., from a listener) count
+ * against that editor until they end. With no sink, begin()
+ * and end() are each a null check.
+ */
+class Metrics {
+  private static final ThreadLocal<Metrics> CURRENT=
+      new ThreadLocal<Metrics>();
+  private final RichEditMetrics sink;
+  private Metrics outer=null;
+  private int depth=0;
+
+  Metrics(RichEditMetrics sink) {
+    this.sink=sink;
+  }
+
+  /*
+   * Starts timing something for the editor, returning the
+   * start time to pass to end(). Does nothing if metrics is
+   * null.
+   */
+  static long begin(Metrics metrics) {
+    if (metrics == null) {
+      return(0);
+    }
+
+    if (metrics.depth++ == 0) {
+      metrics.outer=CURRENT.get();
+      CURRENT.set(metrics);
+    }
+
+    return(System.nanoTime());
+  }
+
+  /*
+   * Reports the time since begin() to the sink. metrics needs
+   * to be the same one passed to begin().
+   */
+  static void end(Metrics metrics, int event, Effect<?> effect,
+                  long started) {
+    if (metrics != null) {
+      metrics.sink.recordLatency(event, effect, System.nanoTime() - started);
+
+      if (--metrics.depth == 0) {
+        if (metrics.outer == null) {
+          CURRENT.remove();
+        }
+        else {
+          CURRENT.set(metrics.outer);
+          metrics.outer=null;
+        }
+      }
+    }
+  }
+
+  /*
+   * Bumps a counter of the current sink, if there is one
+   * for this thread.
+   */
+  static void count(int counter) {
+    Metrics metrics=CURRENT.get();
+
+    if (metrics != null) {
+      metrics.sink.recordCount(counter, 1);
+    }
+  }
+}
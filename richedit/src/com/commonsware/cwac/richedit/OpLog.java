@@ -0,0 +1,614 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Records the changes made to the text it is attached to as
+ * RichEditOps, for RichEditText.setOnOpsListener().
+ *
+ * Text changes become INSERT and DELETE ops as they happen,
+ * trimmed to the chars that actually changed. Effect changes
+ * are not recorded span by span, as how an effect treats the
+ * spans around the ones it changes is its own business, and
+ * replaying that elsewhere could come out differently.
+ * Instead, the ranges where effect spans were added, removed,
+ * or moved are remembered, per effect, and moved along with
+ * later edits. When the ops are drained, each range becomes
+ * EFFECT ops saying what the effect's value is across it, so
+ * replaying them with apply() gives the same formatting,
+ * whatever spans it took to get there.
+ *
+ * Inserted text can pick up effects from spans around it (as
+ * set by their flags), which a replay might not do, so the
+ * inserted range counts as changed for every effect with a
+ * span touching the edit.
+ *
+ * Consecutive ops are coalesced as they are recorded:
+ * typing, backspacing, and deleting forward become single
+ * INSERT and DELETE ops, deleting text that was just inserted
+ * shortens the INSERT, and EFFECT ops for the same effect
+ * merge when they touch and have the same value.
+ */
+class OpLog implements SpanWatcher, TextWatcher, NoCopySpan {
+  private final List<Effect<?>> effects;
+  private final Runnable onChange;
+  private final ArrayList<RichEditOp> ops=new ArrayList<RichEditOp>();
+  private Spannable text=null;
+  private RunTable runTable=null;
+  private int[] touched=new int[24];
+  private int touchedCount=0;
+  private int[] deferred=new int[12];
+  private int deferredCount=0;
+  private int suppressed=0;
+  private boolean inEdit=false;
+  private String replaced=null;
+  private long edgeEffects=0;
+  private int editStart=Integer.MAX_VALUE;
+  private int editEnd=Integer.MAX_VALUE;
+  private int editDelta=0;
+
+  /*
+   * onChange, if not null, is run each time something is
+   * recorded, so ops can be delivered once things settle.
+   */
+  OpLog(List<Effect<?>> effects, Runnable onChange) {
+    this.effects=effects;
+    this.onChange=onChange;
+  }
+
+  /*
+   * Attaches to the text. If this was attached to other text
+   * before, the switch is recorded as replacing all of the
+   * old text with the new, effects included.
+   */
+  void attach(Spannable text) {
+    int oldLength=-1;
+
+    if (this.text != null) {
+      oldLength=this.text.length();
+      this.text.removeSpan(this);
+    }
+
+    this.text=text;
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    touchedCount=0;
+    deferredCount=0;
+    inEdit=false;
+    forgetEdit();
+
+    if (oldLength >= 0) {
+      if (oldLength > 0) {
+        add(RichEditOp.delete(0, oldLength));
+      }
+
+      if (text.length() > 0) {
+        add(RichEditOp.insert(0, text.toString()));
+
+        for (int i=0; i < effects.size(); i++) {
+          touch(i, 0, text.length());
+        }
+      }
+
+      changed();
+    }
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  /*
+   * While suppressed, nothing is recorded. Calls nest, so
+   * each setSuppressed(true) needs a setSuppressed(false).
+   */
+  void setSuppressed(boolean suppress) {
+    suppressed+=suppress ? 1 : -1;
+  }
+
+  /*
+   * Called before something other than an edit changes spans,
+   * so moves that happen to look like the ones from the last
+   * edit are not mistaken for them.
+   */
+  void forgetEdit() {
+    editStart=Integer.MAX_VALUE;
+    editEnd=Integer.MAX_VALUE;
+    editDelta=0;
+  }
+
+  /*
+   * Sets the RunTable holding spans taken off of the text, if
+   * any, so they can be put back when working out the values
+   * of effects.
+   */
+  void setRunTable(RunTable runTable) {
+    this.runTable=runTable;
+  }
+
+  boolean hasOps() {
+    return(!ops.isEmpty() || touchedCount > 0);
+  }
+
+  /*
+   * Returns everything recorded since the last drain(), and
+   * starts over.
+   */
+  List<RichEditOp> drain() {
+    if (touchedCount > 0 && text != null) {
+      for (int id=0; id < effects.size(); id++) {
+        drainEffect(id);
+      }
+    }
+
+    touchedCount=0;
+
+    ArrayList<RichEditOp> result=new ArrayList<RichEditOp>(ops);
+
+    ops.clear();
+
+    return(result);
+  }
+
+  /*
+   * Applies the ops, in order, to the text, with the effects
+   * listed by ID. runTable, if not null, holds spans taken off
+   * of the text, which are put back where effects change.
+   */
+  static void apply(Editable text, List<Effect<?>> effects,
+                    List<RichEditOp> ops, RunTable runTable) {
+    for (RichEditOp op : ops) {
+      switch (op.getType()) {
+        case RichEditOp.INSERT:
+          text.insert(op.getStart(), op.getText());
+          break;
+
+        case RichEditOp.DELETE:
+          text.delete(op.getStart(), op.getEnd());
+          break;
+
+        default:
+          if (op.getEffectId() < 0 || op.getEffectId() >= effects.size()) {
+            throw new IllegalArgumentException("Unknown effect ID: "
+                + op.getEffectId());
+          }
+
+          if (runTable != null) {
+            runTable.materialize(op.getStart(), op.getEnd());
+          }
+
+          assign(effects.get(op.getEffectId()), text, op.getStart(),
+                 op.getEnd(), op.getValue());
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void assign(Effect<T> effect, Spannable text,
+                                 int start, int end, Object value) {
+    effect.assign(text, start, end, (T)value);
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    if (s != text || suppressed > 0) {
+      return;
+    }
+
+    inEdit=true;
+    deferredCount=0;
+    replaced=s.subSequence(start, start + count).toString();
+    edgeEffects=0;
+
+    if (after > 0) {
+      Object[] spans=
+          text.getSpans(Math.max(0, start - 1),
+                        Math.min(text.length(), start + count + 1),
+                        Object.class);
+
+      for (Object span : spans) {
+        int id=effectId(span);
+
+        if (id >= 0) {
+          edgeEffects|=1L << id;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    if (s != text || !inEdit) {
+      return;
+    }
+
+    inEdit=false;
+    editStart=start;
+    editEnd=start + before;
+    editDelta=count - before;
+
+    for (int i=0; i < touchedCount; i++) {
+      touched[i * 3 + 1]=mapStart(touched[i * 3 + 1]);
+      touched[i * 3 + 2]=mapEnd(touched[i * 3 + 2]);
+    }
+
+    String inserted=s.subSequence(start, start + count).toString();
+    int prefix=0;
+    int limit=Math.min(before, count);
+
+    while (prefix < limit
+        && replaced.charAt(prefix) == inserted.charAt(prefix)) {
+      prefix++;
+    }
+
+    int suffix=0;
+
+    limit-=prefix;
+
+    while (suffix < limit
+        && replaced.charAt(before - suffix - 1) == inserted.charAt(count
+            - suffix - 1)) {
+      suffix++;
+    }
+
+    if (prefix + suffix < before) {
+      add(RichEditOp.delete(start + prefix, start + before - suffix));
+    }
+
+    if (prefix + suffix < count) {
+      add(RichEditOp.insert(start + prefix,
+                            inserted.substring(prefix, count - suffix)));
+    }
+
+    for (int id=0; id < effects.size(); id++) {
+      if ((edgeEffects & (1L << id)) != 0) {
+        touch(id, start, start + count);
+      }
+    }
+
+    for (int i=0; i < deferredCount; i++) {
+      touch(deferred[i * 3], deferred[i * 3 + 1],
+            deferred[i * 3 + 2]);
+    }
+
+    deferredCount=0;
+    replaced=null;
+    changed();
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // handled in onTextChanged()
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start, int end) {
+    record(text, what, start, end);
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    record(text, what, start, end);
+  }
+
+  /*
+   * Newer versions of Android report spans moving because of
+   * an edit, after the edit, which is already accounted for
+   * in onTextChanged(), so only other moves count.
+   */
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    if (inEdit || mapStart(ostart) != nstart || mapEnd(oend) != nend) {
+      record(text, what, Math.min(ostart, nstart), Math.max(oend, nend));
+    }
+  }
+
+  /*
+   * Notes that the effect of the span changed across the
+   * range. During an edit, the positions may not match either
+   * the old or the new text, so they are held until the edit
+   * is recorded.
+   */
+  private void record(Spannable text, Object what, int start, int end) {
+    if (text != this.text || suppressed > 0) {
+      return;
+    }
+
+    int id=effectId(what);
+
+    if (id >= 0) {
+      if (inEdit) {
+        deferred=grow(deferred, deferredCount);
+        deferred[deferredCount * 3]=id;
+        deferred[deferredCount * 3 + 1]=start;
+        deferred[deferredCount * 3 + 2]=end;
+        deferredCount++;
+      }
+      else {
+        touch(id, start, end);
+        changed();
+      }
+    }
+  }
+
+  private void touch(int id, int start, int end) {
+    start=Math.max(0, start);
+    end=Math.min(text.length(), end);
+
+    if (start < end) {
+      int last=(touchedCount - 1) * 3;
+
+      if (touchedCount > 0 && touched[last] == id
+          && start <= touched[last + 2] && end >= touched[last + 1]) {
+        touched[last + 1]=Math.min(touched[last + 1], start);
+        touched[last + 2]=Math.max(touched[last + 2], end);
+      }
+      else {
+        touched=grow(touched, touchedCount);
+        touched[touchedCount * 3]=id;
+        touched[touchedCount * 3 + 1]=start;
+        touched[touchedCount * 3 + 2]=end;
+        touchedCount++;
+      }
+    }
+  }
+
+  /*
+   * Emits EFFECT ops giving the effect's value across each of
+   * its changed ranges, merging the ranges first.
+   */
+  private void drainEffect(int id) {
+    long[] order=new long[touchedCount];
+    int n=0;
+
+    for (int i=0; i < touchedCount; i++) {
+      if (touched[i * 3] == id) {
+        order[n++]=((long)touched[i * 3 + 1] << 32) | touched[i * 3 + 2];
+      }
+    }
+
+    Arrays.sort(order, 0, n);
+
+    int runStart=-1;
+    int runEnd=-1;
+
+    for (int i=0; i < n; i++) {
+      int start=(int)(order[i] >>> 32);
+      int end=(int)order[i];
+
+      if (start <= runEnd) {
+        runEnd=Math.max(runEnd, end);
+      }
+      else {
+        if (runStart < runEnd) {
+          emitValues(id, runStart, runEnd);
+        }
+
+        runStart=start;
+        runEnd=end;
+      }
+    }
+
+    if (runStart < runEnd) {
+      emitValues(id, runStart, runEnd);
+    }
+  }
+
+  private void emitValues(int id, int start, int end) {
+    Effect<?> effect=effects.get(id);
+
+    if (runTable != null) {
+      runTable.materialize(start, end);
+    }
+
+    SpanBuffer found=effect.findSpans(text, start, end, null);
+    Object[] spans=new Object[found.count];
+    int[] starts=new int[found.count];
+
+    System.arraycopy(found.spans, 0, spans, 0, found.count);
+
+    for (int i=0; i < spans.length; i++) {
+      starts[i]=text.getSpanStart(spans[i]);
+    }
+
+    // insertion sort by start, as there are rarely many
+    for (int i=1; i < spans.length; i++) {
+      for (int j=i; j > 0 && starts[j - 1] > starts[j]; j--) {
+        int temp=starts[j];
+        Object span=spans[j];
+
+        starts[j]=starts[j - 1];
+        spans[j]=spans[j - 1];
+        starts[j - 1]=temp;
+        spans[j - 1]=span;
+      }
+    }
+
+    int position=start;
+
+    for (int i=0; i < spans.length; i++) {
+      int spanStart=Math.max(start, starts[i]);
+      int spanEnd=Math.min(end, text.getSpanEnd(spans[i]));
+
+      if (spanStart > position) {
+        add(RichEditOp.effect(id, position, spanStart, null));
+        position=spanStart;
+      }
+
+      if (spanEnd > position) {
+        add(RichEditOp.effect(id, position, spanEnd,
+                              effect.getSpanValue(spans[i])));
+        position=spanEnd;
+      }
+    }
+
+    if (position < end) {
+      add(RichEditOp.effect(id, position, end, null));
+    }
+  }
+
+  /*
+   * Adds the op, coalescing it with the one before, if they
+   * can be expressed as one.
+   */
+  private void add(RichEditOp op) {
+    int lastIndex=ops.size() - 1;
+    RichEditOp last=lastIndex < 0 ? null : ops.get(lastIndex);
+
+    if (last == null || last.getType() != op.getType()
+        && !(last.getType() == RichEditOp.INSERT
+            && op.getType() == RichEditOp.DELETE)) {
+      ops.add(op);
+    }
+    else if (op.getType() == RichEditOp.INSERT) {
+      if (op.getStart() >= last.getStart() && op.getStart() <= last.getEnd()) {
+        int split=op.getStart() - last.getStart();
+        String merged=
+            last.getText().substring(0, split) + op.getText()
+                + last.getText().substring(split);
+
+        ops.set(lastIndex, RichEditOp.insert(last.getStart(), merged));
+      }
+      else {
+        ops.add(op);
+      }
+    }
+    else if (op.getType() == RichEditOp.DELETE
+        && last.getType() == RichEditOp.INSERT) {
+      if (op.getStart() >= last.getStart() && op.getEnd() <= last.getEnd()) {
+        String remaining=
+            last.getText().substring(0, op.getStart() - last.getStart())
+                + last.getText().substring(op.getEnd() - last.getStart());
+
+        if (remaining.length() == 0) {
+          ops.remove(lastIndex);
+        }
+        else {
+          ops.set(lastIndex, RichEditOp.insert(last.getStart(), remaining));
+        }
+      }
+      else {
+        ops.add(op);
+      }
+    }
+    else if (op.getType() == RichEditOp.DELETE) {
+      if (op.getEnd() == last.getStart()) {
+        ops.set(lastIndex, RichEditOp.delete(op.getStart(), last.getEnd()));
+      }
+      else if (op.getStart() == last.getStart()) {
+        ops.set(lastIndex,
+                RichEditOp.delete(last.getStart(),
+                                  last.getEnd() + op.getEnd() - op.getStart()));
+      }
+      else {
+        ops.add(op);
+      }
+    }
+    else if (op.getEffectId() == last.getEffectId()
+        && equal(op.getValue(), last.getValue())
+        && op.getStart() <= last.getEnd() && op.getEnd() >= last.getStart()) {
+      ops.set(lastIndex,
+              RichEditOp.effect(op.getEffectId(),
+                                Math.min(op.getStart(), last.getStart()),
+                                Math.max(op.getEnd(), last.getEnd()),
+                                op.getValue()));
+    }
+    else if (op.getEffectId() == last.getEffectId()
+        && op.getStart() <= last.getStart() && op.getEnd() >= last.getEnd()) {
+      ops.set(lastIndex, op);
+    }
+    else {
+      ops.add(op);
+    }
+  }
+
+  private void changed() {
+    if (onChange != null) {
+      onChange.run();
+    }
+  }
+
+  /*
+   * Where a position ends up after the last edit, as the
+   * start of a range. Positions in replaced text go to the
+   * start of the replacement.
+   */
+  private int mapStart(int position) {
+    if (position <= editStart) {
+      return(position);
+    }
+
+    return(position >= editEnd ? position + editDelta : editStart);
+  }
+
+  /*
+   * Same as mapStart(), for the end of a range. Positions in
+   * replaced text go to the end of the replacement.
+   */
+  private int mapEnd(int position) {
+    if (position <= editStart) {
+      return(position);
+    }
+
+    return(position >= editEnd ? position + editDelta
+        : editEnd + editDelta);
+  }
+
+  private int effectId(Object span) {
+    for (int i=0; i < effects.size(); i++) {
+      if (effects.get(i).isEffectSpan(span)) {
+        return(i);
+      }
+    }
+
+    return(-1);
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return(a == null ? b == null : a.equals(b));
+  }
+
+  private static int[] grow(int[] triples, int count) {
+    if ((count + 1) * 3 <= triples.length) {
+      return(triples);
+    }
+
+    int[] result=new int[triples.length * 2];
+
+    System.arraycopy(triples, 0, result, 0, triples.length);
+
+    return(result);
+  }
+}
@@ -0,0 +1,198 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+/*
+ * The offsets of the newlines in the text it is attached
+ * to, kept up to date as the text changes, so the paragraph
+ * around any offset can be found with a binary search rather
+ * than by scanning the text.
+ *
+ * The offsets are kept in a gap buffer: those before the gap
+ * are stored as-is, and those after it as their distance
+ * back from the end of the text, so an edit only has to
+ * move the gap to where the edit is, and the offsets after
+ * it shift by themselves. Edits near one another, as when
+ * typing, are cheap.
+ */
+class ParagraphIndex implements TextWatcher, NoCopySpan {
+  private Spannable text=null;
+  private int[] offsets=new int[16];
+  private int gapStart=0;
+  private int gapEnd=offsets.length;
+  private int length=0;
+  private int removeFirst=-1;
+  private int removeLast=-1;
+
+  void attach(Spannable text) {
+    detach();
+    this.text=text;
+    length=text.length();
+
+    for (int i=0; i < length; i++) {
+      if (text.charAt(i) == '\n') {
+        insert(i);
+      }
+    }
+
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    gapStart=0;
+    gapEnd=offsets.length;
+    length=0;
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  /*
+   * Returns the number of newlines.
+   */
+  int size() {
+    return(offsets.length - (gapEnd - gapStart));
+  }
+
+  /*
+   * Returns the offset of the i'th newline.
+   */
+  int get(int i) {
+    if (i < gapStart) {
+      return(offsets[i]);
+    }
+
+    return(offsets[i + gapEnd - gapStart] + length);
+  }
+
+  /*
+   * Returns the start of the paragraph holding the offset: 0,
+   * or just past the last newline before the offset.
+   */
+  int paragraphStart(int offset) {
+    int i=indexOf(offset) - 1;
+
+    return(i < 0 ? 0 : get(i) + 1);
+  }
+
+  /*
+   * Returns the end of the paragraph holding the offset: just
+   * past the first newline at or after the offset, or the
+   * end of the text.
+   */
+  int paragraphEnd(int offset) {
+    int i=indexOf(offset);
+
+    return(i == size() ? length : get(i) + 1);
+  }
+
+  /*
+   * Returns the index of the first newline at or after the
+   * offset, or size() if there is none.
+   */
+  private int indexOf(int offset) {
+    int low=0;
+    int high=size();
+
+    while (low < high) {
+      int mid=(low + high) >>> 1;
+
+      if (get(mid) < offset) {
+        low=mid + 1;
+      }
+      else {
+        high=mid;
+      }
+    }
+
+    return(low);
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    if (s == text) {
+      removeFirst=indexOf(start);
+      removeLast=indexOf(start + count);
+    }
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    if (s == text && removeFirst >= 0) {
+      moveGap(removeFirst);
+      gapEnd+=removeLast - removeFirst;
+      length+=count - before;
+      removeFirst=-1;
+
+      for (int i=start; i < start + count; i++) {
+        if (s.charAt(i) == '\n') {
+          insert(i);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // handled in onTextChanged()
+  }
+
+  /*
+   * Adds a newline offset at the gap, which must be where it
+   * belongs in the order.
+   */
+  private void insert(int offset) {
+    if (gapStart == gapEnd) {
+      int[] grown=new int[offsets.length * 2];
+      int tail=offsets.length - gapEnd;
+
+      System.arraycopy(offsets, 0, grown, 0, gapStart);
+      System.arraycopy(offsets, gapEnd, grown, grown.length - tail, tail);
+      gapEnd=grown.length - tail;
+      offsets=grown;
+    }
+
+    offsets[gapStart++]=offset;
+  }
+
+  /*
+   * Moves the gap so it starts at the i'th newline,
+   * converting the offsets it passes over between absolute
+   * and end-relative.
+   */
+  private void moveGap(int i) {
+    while (gapStart > i) {
+      offsets[--gapEnd]=offsets[--gapStart] - length;
+    }
+
+    while (gapStart < i) {
+      offsets[gapStart++]=offsets[gapEnd++] + length;
+    }
+  }
+}
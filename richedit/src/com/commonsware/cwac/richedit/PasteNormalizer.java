@@ -0,0 +1,221 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TextAppearanceSpan;
+import android.text.style.TypefaceSpan;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Cleans up pasted text (see RichEditText.setPasteNormalizer()).
+ * Text copied from browsers and other apps comes with all
+ * sorts of spans that the effects know nothing about, which
+ * cost layout time and slow down every later getSpans() call
+ * while doing little the user can see or change.
+ *
+ * Spans that have an equivalent in the registered effects
+ * become that effect's spans:
+ *
+ * - StyleSpans, split into bold and italic
+ *
+ * - TypefaceSpans, RelativeSizeSpans, AlignmentSpans, and the
+ * spans of the simple effects (underline, etc.), as-is
+ *
+ * - AbsoluteSizeSpans, as a RelativeSizeSpan, relative to the
+ * editor's text size
+ *
+ * - TextAppearanceSpans, for their style, family, and size
+ *
+ * Spans of classes passed to keep() are kept as they are, and
+ * everything else is dropped. Nested and overlapping spans are
+ * resolved so each char has one value per effect, and touching
+ * runs with the same value are merged. Nested RelativeSizeSpans
+ * multiply, as they do when drawn; otherwise, later spans win,
+ * including sizes converted from AbsoluteSizeSpans and
+ * TextAppearanceSpans.
+ */
+public class PasteNormalizer {
+  /*
+   * Clips at least this long are normalized on a background
+   * thread.
+   */
+  static final int BACKGROUND_THRESHOLD=8192;
+  private final ArrayList<Class<?>> kept=new ArrayList<Class<?>>();
+
+  /*
+   * Keeps spans of the supplied class (or its subclasses),
+   * such as URLSpan, rather than dropping them.
+   */
+  public PasteNormalizer keep(Class<?> spanClass) {
+    kept.add(spanClass);
+
+    return(this);
+  }
+
+  /*
+   * Returns a copy of the clip with only the spans of the
+   * effects and the kept classes. textSize is the editor's
+   * text size in pixels, and density its display density,
+   * for converting AbsoluteSizeSpans.
+   */
+  Spannable normalize(Spanned clip, List<Effect<?>> effects, float textSize,
+                      float density) {
+    SpannableStringBuilder result=
+        new SpannableStringBuilder(clip.toString());
+    Object[] spans=clip.getSpans(0, clip.length(), Object.class);
+    ArrayList<Object> probes=new ArrayList<Object>();
+
+    for (Object span : spans) {
+      int start=clip.getSpanStart(span);
+      int end=clip.getSpanEnd(span);
+
+      if (start >= end) {
+        continue;
+      }
+
+      if (isKept(span)) {
+        result.setSpan(span, start, end, clip.getSpanFlags(span));
+        continue;
+      }
+
+      probes.clear();
+      addProbes(span, probes, textSize, density);
+
+      for (Object probe : probes) {
+        for (Effect<?> effect : effects) {
+          if (!effect.isEffectSpan(probe)) {
+            continue;
+          }
+
+          if (probe == span && effect instanceof RelativeSizeEffect) {
+            multiply((RelativeSizeEffect)effect, result, start, end,
+                     ((RelativeSizeSpan)span).getSizeChange());
+          }
+          else {
+            assign(effect, result, start, end, probe);
+          }
+        }
+      }
+    }
+
+    SpanCompactor.compact(result, effects);
+
+    return(result);
+  }
+
+  private boolean isKept(Object span) {
+    for (Class<?> clazz : kept) {
+      if (clazz.isInstance(span)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  /*
+   * Adds spans equivalent to the supplied one, for the
+   * effects to recognize. These are never attached to any
+   * text.
+   */
+  private static void addProbes(Object span, List<Object> probes,
+                                float textSize, float density) {
+    if (span instanceof StyleSpan) {
+      addStyle(((StyleSpan)span).getStyle(), probes);
+    }
+    else if (span instanceof AbsoluteSizeSpan) {
+      AbsoluteSizeSpan size=(AbsoluteSizeSpan)span;
+
+      addSize(size.getDip() ? size.getSize() * density : size.getSize(),
+              textSize, probes);
+    }
+    else if (span instanceof TextAppearanceSpan) {
+      TextAppearanceSpan appearance=(TextAppearanceSpan)span;
+
+      addStyle(appearance.getTextStyle(), probes);
+
+      if (appearance.getFamily() != null) {
+        probes.add(new TypefaceSpan(appearance.getFamily()));
+      }
+
+      if (appearance.getTextSize() > 0) {
+        addSize(appearance.getTextSize(), textSize, probes);
+      }
+    }
+    else {
+      probes.add(span);
+    }
+  }
+
+  private static void addStyle(int style, List<Object> probes) {
+    if ((style & Typeface.BOLD) != 0) {
+      probes.add(new StyleSpan(Typeface.BOLD));
+    }
+
+    if ((style & Typeface.ITALIC) != 0) {
+      probes.add(new StyleSpan(Typeface.ITALIC));
+    }
+  }
+
+  private static void addSize(float size, float textSize,
+                              List<Object> probes) {
+    if (textSize > 0) {
+      float relative=size / textSize;
+
+      // near enough to the normal size to not be worth a span
+      if (Math.abs(relative - 1f) >= 0.05f) {
+        probes.add(new RelativeSizeSpan(relative));
+      }
+    }
+  }
+
+  private static <T> void assign(Effect<T> effect, Spannable str, int start,
+                                 int end, Object probe) {
+    effect.assign(str, start, end, effect.getSpanValue(probe));
+  }
+
+  /*
+   * Scales the relative size of each part of the range by
+   * the proportion, as nested RelativeSizeSpans are drawn.
+   */
+  private static void multiply(RelativeSizeEffect effect, Spannable str,
+                               int start, int end, float proportion) {
+    int position=start;
+
+    while (position < end) {
+      int next=str.nextSpanTransition(position, end, RelativeSizeSpan.class);
+      float current=1f;
+
+      for (RelativeSizeSpan span : str.getSpans(position, next,
+                                                RelativeSizeSpan.class)) {
+        if (str.getSpanStart(span) <= position
+            && str.getSpanEnd(span) >= next) {
+          current=span.getSizeChange();
+        }
+      }
+
+      effect.assign(str, position, next, current * proportion);
+      position=next;
+    }
+  }
+}
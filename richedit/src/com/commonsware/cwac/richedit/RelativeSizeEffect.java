@@ -15,42 +15,85 @@
 package com.commonsware.cwac.richedit;
 
 import android.text.Spannable;
+import android.text.Spanned;
 import android.text.style.RelativeSizeSpan;
 
 public class RelativeSizeEffect extends Effect<Float> {
   @Override
-  boolean existsInSelection(RichEditText editor) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
+  protected Class<?> getSpanClass() {
+    return(RelativeSizeSpan.class);
+  }
+
+  @Override
+  protected boolean isEffectSpan(Object span) {
+    return(span instanceof RelativeSizeSpan);
+  }
 
-    return(getRelativeSizeSpans(str, selection).length > 0);
+  @Override
+  protected Float getSpanValue(Object span) {
+    return(((RelativeSizeSpan)span).getSizeChange());
+  }
+
+  @Override
+  protected Object newSpan(Float value) {
+    return(new RelativeSizeSpan(value));
+  }
+
+  @Override
+  protected boolean existsInSpans(Spanned str, Selection selection,
+                                  Object[] spans, int count) {
+    return(valueInSpans(str, selection, spans, count) != null);
   }
 
   @Override
-  Float valueInSelection(RichEditText editor) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
+  protected Float valueInSpans(Spanned str, Selection selection, Object[] spans,
+                               int count) {
     float max=0.0f;
-    RelativeSizeSpan[] spans=getRelativeSizeSpans(str, selection);
+    boolean found=false;
 
-    if (spans.length > 0) {
-      for (RelativeSizeSpan span : spans) {
-        max=(max < span.getSizeChange() ? span.getSizeChange() : max);
-      }
+    for (int i=0; i < count; i++) {
+      if (Selection.intersects(str.getSpanStart(spans[i]),
+                               str.getSpanEnd(spans[i]), selection.start,
+                               selection.end)) {
+        float sizeChange=((RelativeSizeSpan)spans[i]).getSizeChange();
 
-      return(max);
+        max=(max < sizeChange ? sizeChange : max);
+        found=true;
+      }
     }
 
-    return(null);
+    return(found ? max : null);
   }
 
+  /*
+   * Spans sticking out of the selection keep their outside
+   * parts, each with its own proportion.
+   */
   @Override
-  void applyToSelection(RichEditText editor, Float proportion) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
+  protected void applyToSpannable(Spannable str, Selection selection,
+                                  Float proportion, SpanIndex index) {
+    SpanBuffer found=findSpans(str, selection.start, selection.end, index);
+    Object[] spans=new Object[found.count];
+
+    // the buffer may be reused by the index as we change spans
+    System.arraycopy(found.spans, 0, spans, 0, found.count);
+
+    for (Object span : spans) {
+      int spanStart=str.getSpanStart(span);
+      int spanEnd=str.getSpanEnd(span);
+      float sizeChange=((RelativeSizeSpan)span).getSizeChange();
 
-    for (RelativeSizeSpan span : getRelativeSizeSpans(str, selection)) {
       str.removeSpan(span);
+
+      if (spanStart < selection.start) {
+        str.setSpan(new RelativeSizeSpan(sizeChange), spanStart,
+                    selection.start, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
+
+      if (spanEnd > selection.end) {
+        str.setSpan(new RelativeSizeSpan(sizeChange), selection.end,
+                    spanEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
     }
 
     if (proportion != null) {
@@ -58,10 +101,4 @@ public class RelativeSizeEffect extends Effect<Float> {
                   selection.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
     }
   }
-
-  private RelativeSizeSpan[] getRelativeSizeSpans(Spannable str,
-                                                  Selection selection) {
-    return(str.getSpans(selection.start, selection.end,
-                        RelativeSizeSpan.class));
-  }
 }
@@ -0,0 +1,66 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+/*
+ * Sink for performance metrics from a RichEditText, supplied
+ * via setMetrics(). RichEditMetricsRecorder is an in-memory
+ * implementation, or roll your own to feed your analytics.
+ *
+ * Methods are called on the main application thread, in the
+ * middle of the editor's work, so they need to be quick.
+ */
+public interface RichEditMetrics {
+  /*
+   * Latency events
+   */
+
+  /* Working out the effects in a new selection for the listeners */
+  int SELECTION_SCAN=0;
+
+  /* Applying an effect, via applyEffect() */
+  int APPLY_EFFECT=1;
+
+  /* Checking an effect, via hasEffect() or getEffectValue() */
+  int CHECK_EFFECT=2;
+
+  /* Handling a keyboard shortcut */
+  int KEY_SHORTCUT=3;
+
+  /*
+   * Counters
+   */
+
+  /* getSpans() calls made while working out or applying effects */
+  int COUNT_GET_SPANS=0;
+
+  /* Effect spans added to the text, from any source */
+  int COUNT_SPANS_ADDED=1;
+
+  /* Effect spans removed from the text, from any source */
+  int COUNT_SPANS_REMOVED=2;
+
+  /*
+   * Called when one of the latency events above completes,
+   * with the effect involved (null for SELECTION_SCAN and
+   * KEY_SHORTCUT), and how long it took.
+   */
+  void recordLatency(int event, Effect<?> effect, long nanos);
+
+  /*
+   * Called to bump one of the counters above.
+   */
+  void recordCount(int counter, int delta);
+}
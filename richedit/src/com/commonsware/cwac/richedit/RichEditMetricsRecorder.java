@@ -0,0 +1,186 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A RichEditMetrics that keeps everything in memory: a
+ * latency histogram per event and effect, plus the counters,
+ * for reading back (e.g., from tests) or dumping as text
+ * (e.g., into a bug report). Safe to read from any thread.
+ *
+ * Histogram buckets are powers of two of nanoseconds, so
+ * percentiles are upper bounds, good to within a factor of
+ * two.
+ */
+public class RichEditMetricsRecorder implements RichEditMetrics {
+  private static final String[] EVENT_NAMES= { "selection-scan",
+      "apply-effect", "check-effect", "key-shortcut" };
+  private static final String[] COUNTER_NAMES= { "get-spans",
+      "spans-added", "spans-removed" };
+  private static final Object NO_EFFECT=new Object();
+  private final List<Map<Object, Histogram>> histograms=
+      new ArrayList<Map<Object, Histogram>>(EVENT_NAMES.length);
+  private final long[] counters=new long[COUNTER_NAMES.length];
+
+  public RichEditMetricsRecorder() {
+    for (int i=0; i < EVENT_NAMES.length; i++) {
+      histograms.add(new IdentityHashMap<Object, Histogram>());
+    }
+  }
+
+  @Override
+  public synchronized void recordLatency(int event, Effect<?> effect,
+                                         long nanos) {
+    Object key=effect == null ? NO_EFFECT : effect;
+    Histogram histogram=histograms.get(event).get(key);
+
+    if (histogram == null) {
+      histogram=new Histogram();
+      histograms.get(event).put(key, histogram);
+    }
+
+    histogram.add(nanos);
+  }
+
+  @Override
+  public synchronized void recordCount(int counter, int delta) {
+    counters[counter]+=delta;
+  }
+
+  /*
+   * Returns how many times the event happened, for the
+   * effect (or null for events without one).
+   */
+  public synchronized long getCount(int event, Effect<?> effect) {
+    Histogram histogram=find(event, effect);
+
+    return(histogram == null ? 0 : histogram.count);
+  }
+
+  public synchronized long getTotalNanos(int event, Effect<?> effect) {
+    Histogram histogram=find(event, effect);
+
+    return(histogram == null ? 0 : histogram.total);
+  }
+
+  public synchronized long getMaxNanos(int event, Effect<?> effect) {
+    Histogram histogram=find(event, effect);
+
+    return(histogram == null ? 0 : histogram.max);
+  }
+
+  /*
+   * Returns an upper bound on the time taken by the given
+   * percentage (0 to 100) of the occurrences of the event,
+   * for the effect (or null).
+   */
+  public synchronized long getPercentileNanos(int event, Effect<?> effect,
+                                              double percent) {
+    Histogram histogram=find(event, effect);
+
+    return(histogram == null ? 0 : histogram.percentile(percent));
+  }
+
+  public synchronized long getCounter(int counter) {
+    return(counters[counter]);
+  }
+
+  public synchronized void reset() {
+    for (Map<Object, Histogram> map : histograms) {
+      map.clear();
+    }
+
+    for (int i=0; i < counters.length; i++) {
+      counters[i]=0;
+    }
+  }
+
+  /*
+   * Returns everything recorded so far, as text, one line per
+   * event and effect, and one line per counter.
+   */
+  public synchronized String dump() {
+    StringBuilder result=new StringBuilder();
+
+    for (int i=0; i < histograms.size(); i++) {
+      for (Map.Entry<Object, Histogram> entry : histograms.get(i).entrySet()) {
+        Histogram histogram=entry.getValue();
+
+        result.append(EVENT_NAMES[i]);
+
+        if (entry.getKey() != NO_EFFECT) {
+          Object effect=entry.getKey();
+
+          result.append(' ').append(effect.getClass().getSimpleName())
+                .append('@')
+                .append(Integer.toHexString(System.identityHashCode(effect)));
+        }
+
+        result.append(": count=").append(histogram.count)
+              .append(" mean=").append(histogram.total / histogram.count)
+              .append("ns p50<=").append(histogram.percentile(50))
+              .append("ns p90<=").append(histogram.percentile(90))
+              .append("ns p99<=").append(histogram.percentile(99))
+              .append("ns max=").append(histogram.max).append("ns\n");
+      }
+    }
+
+    for (int i=0; i < counters.length; i++) {
+      result.append(COUNTER_NAMES[i]).append(": ").append(counters[i])
+            .append('\n');
+    }
+
+    return(result.toString());
+  }
+
+  private Histogram find(int event, Effect<?> effect) {
+    return(histograms.get(event).get(effect == null ? NO_EFFECT : effect));
+  }
+
+  private static class Histogram {
+    final long[] buckets=new long[Long.SIZE];
+    long count=0;
+    long total=0;
+    long max=0;
+
+    void add(long nanos) {
+      nanos=Math.max(0, nanos);
+      buckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)]++;
+      count++;
+      total+=nanos;
+      max=Math.max(max, nanos);
+    }
+
+    long percentile(double percent) {
+      long wanted=(long)Math.ceil(count * percent / 100.0);
+      long seen=0;
+
+      for (int i=0; i < buckets.length; i++) {
+        seen+=buckets[i];
+
+        if (seen >= wanted && seen > 0) {
+          return(Math.min(max, i == 0 ? 0 : (1L << i) - 1));
+        }
+      }
+
+      return(max);
+    }
+  }
+}
@@ -0,0 +1,405 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Layout;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * One change to the content of a RichEditText, as reported
+ * to an OnOpsListener and replayed by applyOps():
+ *
+ * - INSERT: getText() was inserted at getStart()
+ *
+ * - DELETE: the text from getStart() to getEnd() was deleted
+ *
+ * - EFFECT: the text from getStart() to getEnd() now has
+ * getValue() for the effect with ID getEffectId() (see
+ * RichEditText.getEffectId()), with null meaning that the
+ * effect is not there at all
+ *
+ * Positions are those of the content as it was just before
+ * the op, so a list of ops has to be applied in order.
+ *
+ * encode() and decode() convert a list of ops to and from a
+ * compact binary form, for sending to another editor. Each
+ * op is its type, then its fields as varints (the end as a
+ * length), with text as UTF-8, and the value of an EFFECT op
+ * as a tag byte followed by the value: nothing for null,
+ * a byte for a Boolean, a length and UTF-8 for a String,
+ * 4 bytes for a Float, or an ordinal for a Layout.Alignment.
+ * Both editors need to have the same effects registered.
+ */
+public class RichEditOp {
+  public static final int INSERT=0;
+  public static final int DELETE=1;
+  public static final int EFFECT=2;
+  private static final int VALUE_NULL=0;
+  private static final int VALUE_BOOLEAN=1;
+  private static final int VALUE_STRING=2;
+  private static final int VALUE_FLOAT=3;
+  private static final int VALUE_ALIGNMENT=4;
+  private static final Layout.Alignment[] ALIGNMENTS=
+      Layout.Alignment.values();
+  private final int type;
+  private final int start;
+  private final int end;
+  private final String text;
+  private final int effectId;
+  private final Object value;
+
+  private RichEditOp(int type, int start, int end, String text,
+                     int effectId, Object value) {
+    this.type=type;
+    this.start=start;
+    this.end=end;
+    this.text=text;
+    this.effectId=effectId;
+    this.value=value;
+  }
+
+  static RichEditOp insert(int start, String text) {
+    return(new RichEditOp(INSERT, start, start + text.length(), text, -1,
+                          null));
+  }
+
+  static RichEditOp delete(int start, int end) {
+    return(new RichEditOp(DELETE, start, end, null, -1, null));
+  }
+
+  static RichEditOp effect(int effectId, int start, int end, Object value) {
+    if (Boolean.FALSE.equals(value)) {
+      value=null;
+    }
+
+    return(new RichEditOp(EFFECT, start, end, null, effectId, value));
+  }
+
+  public int getType() {
+    return(type);
+  }
+
+  public int getStart() {
+    return(start);
+  }
+
+  /*
+   * Returns the end of the range, which for an INSERT op is
+   * where the inserted text ends.
+   */
+  public int getEnd() {
+    return(end);
+  }
+
+  /*
+   * Returns the inserted text of an INSERT op, or null.
+   */
+  public String getText() {
+    return(text);
+  }
+
+  /*
+   * Returns the effect ID of an EFFECT op, or -1.
+   */
+  public int getEffectId() {
+    return(effectId);
+  }
+
+  /*
+   * Returns the value of an EFFECT op (e.g., Boolean.TRUE,
+   * or a typeface family), or null if the effect was removed.
+   */
+  public Object getValue() {
+    return(value);
+  }
+
+  @Override
+  public String toString() {
+    switch (type) {
+      case INSERT:
+        return("insert " + start + " \"" + text + "\"");
+
+      case DELETE:
+        return("delete " + start + "-" + end);
+
+      default:
+        return("effect " + effectId + " " + start + "-" + end + " " + value);
+    }
+  }
+
+  /*
+   * Encodes the ops into a new ByteBuffer, ready to be read
+   * (i.e., already flipped).
+   */
+  public static ByteBuffer encode(List<RichEditOp> ops) {
+    ByteBuffer out=ByteBuffer.allocate(size(ops));
+
+    for (RichEditOp op : ops) {
+      out.put((byte)op.type);
+      writeVarint(out, op.start);
+
+      if (op.type == INSERT) {
+        writeString(out, op.text);
+      }
+      else {
+        writeVarint(out, op.end - op.start);
+      }
+
+      if (op.type == EFFECT) {
+        writeVarint(out, op.effectId);
+        writeValue(out, op.value);
+      }
+    }
+
+    out.flip();
+
+    return(out);
+  }
+
+  /*
+   * Decodes ops written by encode(), from the buffer's
+   * position to its limit. Throws IllegalArgumentException
+   * if the bytes are not a valid list of ops.
+   */
+  public static List<RichEditOp> decode(ByteBuffer in) {
+    ArrayList<RichEditOp> result=new ArrayList<RichEditOp>();
+
+    try {
+      while (in.hasRemaining()) {
+        int type=in.get();
+        int start=readCount(in);
+
+        if (type == INSERT) {
+          result.add(insert(start, readString(in)));
+        }
+        else if (type == DELETE) {
+          result.add(delete(start, readEnd(in, start)));
+        }
+        else if (type == EFFECT) {
+          int end=readEnd(in, start);
+          int effectId=readCount(in);
+
+          result.add(effect(effectId, start, end, readValue(in)));
+        }
+        else {
+          throw new IllegalArgumentException("Unknown op type: " + type);
+        }
+      }
+    }
+    catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated ops", e);
+    }
+
+    return(result);
+  }
+
+  private static int size(List<RichEditOp> ops) {
+    int result=0;
+
+    for (RichEditOp op : ops) {
+      result+=1 + varintSize(op.start);
+
+      if (op.type == INSERT) {
+        result+=stringSize(op.text);
+      }
+      else {
+        result+=varintSize(op.end - op.start);
+      }
+
+      if (op.type == EFFECT) {
+        result+=varintSize(op.effectId) + 1;
+
+        if (op.value instanceof Boolean) {
+          result+=1;
+        }
+        else if (op.value instanceof String) {
+          result+=stringSize((String)op.value);
+        }
+        else if (op.value instanceof Float) {
+          result+=4;
+        }
+        else if (op.value instanceof Layout.Alignment) {
+          result+=varintSize(((Layout.Alignment)op.value).ordinal());
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  private static void writeValue(ByteBuffer out, Object value) {
+    if (value instanceof Boolean) {
+      out.put((byte)VALUE_BOOLEAN);
+      out.put((byte)(((Boolean)value) ? 1 : 0));
+    }
+    else if (value instanceof String) {
+      out.put((byte)VALUE_STRING);
+      writeString(out, (String)value);
+    }
+    else if (value instanceof Float) {
+      out.put((byte)VALUE_FLOAT);
+      out.putFloat((Float)value);
+    }
+    else if (value instanceof Layout.Alignment) {
+      out.put((byte)VALUE_ALIGNMENT);
+      writeVarint(out, ((Layout.Alignment)value).ordinal());
+    }
+    else if (value == null) {
+      out.put((byte)VALUE_NULL);
+    }
+    else {
+      throw new IllegalArgumentException("Cannot encode value: " + value);
+    }
+  }
+
+  private static Object readValue(ByteBuffer in) {
+    int tag=in.get();
+
+    switch (tag) {
+      case VALUE_NULL:
+        return(null);
+
+      case VALUE_BOOLEAN:
+        return(in.get() != 0);
+
+      case VALUE_STRING:
+        return(readString(in));
+
+      case VALUE_FLOAT:
+        return(in.getFloat());
+
+      case VALUE_ALIGNMENT:
+        int ordinal=readVarint(in);
+
+        if (ordinal >= ALIGNMENTS.length) {
+          throw new IllegalArgumentException("Unknown alignment: " + ordinal);
+        }
+
+        return(ALIGNMENTS[ordinal]);
+
+      default:
+        throw new IllegalArgumentException("Unknown value tag: " + tag);
+    }
+  }
+
+  private static int stringSize(String str) {
+    int bytes=utf8(str).length;
+
+    return(varintSize(bytes) + bytes);
+  }
+
+  private static void writeString(ByteBuffer out, String str) {
+    byte[] bytes=utf8(str);
+
+    writeVarint(out, bytes.length);
+    out.put(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length=readCount(in);
+
+    if (length > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+
+    byte[] bytes=new byte[length];
+
+    in.get(bytes);
+
+    try {
+      return(new String(bytes, "UTF-8"));
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] utf8(String str) {
+    try {
+      return(str.getBytes("UTF-8"));
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int varintSize(int value) {
+    int result=1;
+
+    while ((value & ~0x7F) != 0) {
+      value>>>=7;
+      result++;
+    }
+
+    return(result);
+  }
+
+  private static void writeVarint(ByteBuffer out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.put((byte)((value & 0x7F) | 0x80));
+      value>>>=7;
+    }
+
+    out.put((byte)value);
+  }
+
+  /*
+   * Reads a length, and returns the end of a range of that
+   * length starting at start.
+   */
+  private static int readEnd(ByteBuffer in, int start) {
+    int end=start + readCount(in);
+
+    if (end < start) {
+      throw new IllegalArgumentException("Range too long");
+    }
+
+    return(end);
+  }
+
+  /*
+   * Reads a position, length, or ID, none of which can be
+   * negative.
+   */
+  private static int readCount(ByteBuffer in) {
+    int result=readVarint(in);
+
+    if (result < 0) {
+      throw new IllegalArgumentException("Negative value: " + result);
+    }
+
+    return(result);
+  }
+
+  private static int readVarint(ByteBuffer in) {
+    int result=0;
+
+    for (int shift=0; shift < 35; shift+=7) {
+      byte b=in.get();
+
+      result|=(b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return(result);
+      }
+    }
+
+    throw new IllegalArgumentException("Malformed varint");
+  }
+}
@@ -15,17 +15,34 @@
 package com.commonsware.cwac.richedit;
 
 import android.app.Activity;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
 import android.graphics.Typeface;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.Editable;
 import android.text.Layout;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.style.StrikethroughSpan;
 import android.text.style.SubscriptSpan;
 import android.text.style.SuperscriptSpan;
 import android.text.style.UnderlineSpan;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.AbsSavedState;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.widget.EditText;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -54,19 +71,164 @@ public class RichEditText extends EditText implements
   public static final Effect<Boolean> SUPERSCRIPT=
       new SuperscriptEffect();
   public static final Effect<Boolean> SUBSCRIPT=new SubscriptEffect();
+  public static final Effect<Float> RELATIVE_SIZE=new RelativeSizeEffect();
+
+  /*
+   * Policies for when selection changes are delivered to
+   * listeners, for use with setSelectionDispatchPolicy().
+   */
+  public static final int DISPATCH_IMMEDIATE=0;
+  public static final int DISPATCH_NEXT_FRAME=1;
+  public static final int DISPATCH_DEBOUNCED=2;
 
   private static final ArrayList<Effect<?>> EFFECTS=
       new ArrayList<Effect<?>>();
+  private static final Action UNDO_ACTION=new Action() {
+    @Override
+    public boolean perform(RichEditText editor) {
+      editor.undo();
+
+      return(true);
+    }
+  };
+
+  private static final Action REDO_ACTION=new Action() {
+    @Override
+    public boolean perform(RichEditText editor) {
+      editor.redo();
+
+      return(true);
+    }
+  };
+
   private boolean isSelectionChanging=false;
-  private OnSelectionChangedListener selectionListener=null;
+  private OnEffectStateChangedListener selectionListener=null;
+  private OnEffectStateChangedListener effectStateListener=null;
   private boolean actionModeIsShowing=false;
   private EditorActionModeCallback.Native mainMode=null;
   private boolean forceActionMode=false;
   private boolean keyboardShortcuts=true;
+  private final EffectRegistry registry=new EffectRegistry(EFFECTS);
+  private EffectSnapshot snapshot=
+      new EffectSnapshot(registry.getEffects());
+  private EffectState effectState=new EffectState(registry.getEffects());
+  private final Selection scanSelection=new Selection(0, 0);
+  private final CursorContext cursorContext=
+      new CursorContext(registry.getEffects());
+  private int dispatchPolicy=DISPATCH_IMMEDIATE;
+  private long dispatchDelay=0;
+  private boolean dispatchPending=false;
+  private int pendingStart=0;
+  private int pendingEnd=0;
+  private Choreographer.FrameCallback frameDispatcher=null;
+  private SpanIndex spanIndex=null;
+  private ParagraphIndex paragraphIndex=null;
+  private Metrics metrics=null;
+  private SpanCounter spanCounter=null;
+  private OpLog opLog=null;
+  private OnOpsListener opsListener=null;
+  private long opsDelay=0;
+  private PasteNormalizer pasteNormalizer=null;
+  private RunTable runTable=null;
+  private boolean lazySpansPending=false;
+  private boolean lazySpansStale=false;
+  private int lazyStart=0;
+  private int lazyEnd=-1;
+  private int pasteGeneration=0;
+  private boolean autoCompact=false;
+  private boolean compactPending=false;
+  private int loadGeneration=0;
+  private HtmlExporter htmlExporter=null;
+  private boolean saveStateToFile=false;
+  private String stateKey=null;
+  private ContentState pendingRestore=null;
+  private DocumentWindow documentWindow=null;
+  private boolean windowMovePending=false;
+  private int windowGeneration=0;
+  private UndoHistory undoHistory=null;
+  private int undoLimit=UndoHistory.DEFAULT_LIMIT;
+  private final ActionRegistry actions=new ActionRegistry();
+  private final ArrayList<EffectJob> effectJobs=new ArrayList<EffectJob>();
+  private final AdoptingEditableFactory editableFactory=
+      new AdoptingEditableFactory();
+
+  private final Runnable dispatcher=new Runnable() {
+    public void run() {
+      dispatchPending=false;
+      dispatchSelectionChanged(pendingStart, pendingEnd);
+    }
+  };
+
+  private final Runnable opsDeliverer=new Runnable() {
+    public void run() {
+      flushOps();
+    }
+  };
+
+  private final Runnable opsScheduler=new Runnable() {
+    public void run() {
+      removeCallbacks(opsDeliverer);
+      postDelayed(opsDeliverer, opsDelay);
+    }
+  };
+
+  private final Runnable lazySpansUpdater=new Runnable() {
+    public void run() {
+      lazySpansPending=false;
+      updateLazySpans();
+    }
+  };
+
+  private final RunTable.Listener spanMover=new RunTable.Listener() {
+    public void onMovingSpans(boolean moving) {
+      if (undoHistory != null) {
+        undoHistory.setPaused(moving);
+      }
+
+      if (opLog != null) {
+        opLog.setSuppressed(moving);
+      }
+
+      if (htmlExporter != null) {
+        htmlExporter.setSuppressed(moving);
+      }
+    }
+  };
+
+  private final MessageQueue.IdleHandler compactor=
+      new MessageQueue.IdleHandler() {
+        public boolean queueIdle() {
+          compactPending=false;
+          compactSpans();
+
+          return(false);
+        }
+      };
+
+  private final Runnable windowMover=new Runnable() {
+    @Override
+    public void run() {
+      if (documentWindow != null && documentWindow.isAttachedTo(getText())) {
+        moveWindowInBackground(documentWindow.getStart()
+            + getSelectionStart());
+      }
+      else {
+        windowMovePending=false;
+      }
+    }
+  };
+
+  private final Runnable actionModeStarter=new Runnable() {
+    public void run() {
+      if (!actionModeIsShowing && mainMode != null) {
+        startActionMode(mainMode);
+      }
+    }
+  };
 
   /*
-   * EFFECTS is a roster of all defined effects, for simpler
-   * iteration over all the possibilities.
+   * EFFECTS is the roster of built-in effects, that each
+   * RichEditText's effect registry starts with.
    */
   static {
     /*
@@ -84,44 +246,48 @@ public class RichEditText extends EditText implements
      */
     EFFECTS.add(LINE_ALIGNMENT);
     EFFECTS.add(TYPEFACE);
+    EFFECTS.add(RELATIVE_SIZE);
   }
 
   /*
-   * Standard one-parameter widget constructor, simply
-   * chaining to superclass.
+   * Standard one-parameter widget constructor, chaining to
+   * superclass.
    */
   public RichEditText(Context context) {
     super(context);
+    setEditableFactory(editableFactory);
+    bindDefaultActions();
   }
 
   /*
-   * Standard two-parameter widget constructor, simply
-   * chaining to superclass.
+   * Standard two-parameter widget constructor, chaining to
+   * superclass.
    */
   public RichEditText(Context context, AttributeSet attrs) {
     super(context, attrs);
+    setEditableFactory(editableFactory);
+    bindDefaultActions();
   }
 
   /*
-   * Standard three-parameter widget constructor, simply
-   * chaining to superclass.
+   * Standard three-parameter widget constructor, chaining to
+   * superclass.
    */
   public RichEditText(Context context, AttributeSet attrs, int defStyle) {
     super(context, attrs, defStyle);
+    setEditableFactory(editableFactory);
+    bindDefaultActions();
   }
 
   /*
-   * If there is a registered OnSelectionChangedListener,
-   * checks to see if there are any effects applied to the
-   * current selection, and supplies that information to the
-   * registrant.
+   * If there is a registered OnEffectStateChangedListener
+   * or OnSelectionChangedListener, arranges to tell them
+   * about the new selection, per the dispatch policy (see
+   * setSelectionDispatchPolicy()).
    * 
-   * Uses isSelectionChanging to avoid updating anything
-   * while this callback is in progress (e.g., registrant
-   * updates a ToggleButton, causing its
-   * OnCheckedChangeListener to fire, causing it to try to
-   * update the RichEditText as if the user had clicked upon
-   * it.
+   * Also, if we are forcing the action mode, (re)schedules
+   * starting it, so a flurry of selection changes results in
+   * just one attempt.
    * 
    * @see android.widget.TextView#onSelectionChanged(int,
    * int)
@@ -129,52 +295,71 @@ public class RichEditText extends EditText implements
   @Override
   public void onSelectionChanged(int start, int end) {
     super.onSelectionChanged(start, end);
+    requestSelectionDispatch(start, end);
+    scheduleWindowMove(start);
 
-    if (selectionListener != null) {
-      ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
-
-      for (Effect<?> effect : EFFECTS) {
-        if (effect.existsInSelection(this)) {
-          effects.add(effect);
-        }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      if (forceActionMode && mainMode != null && start != end) {
+        removeCallbacks(actionModeStarter);
+        postDelayed(actionModeStarter, 500);
       }
+    }
+  }
 
-      isSelectionChanging=true;
-      selectionListener.onSelectionChanged(start, end, effects);
-      isSelectionChanging=false;
+  @Override
+  protected void onScrollChanged(int horiz, int vert, int oldHoriz,
+                                 int oldVert) {
+    super.onScrollChanged(horiz, vert, oldHoriz, oldVert);
+
+    if (runTable != null) {
+      scheduleLazySpans(false);
     }
+  }
 
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-      if (forceActionMode && mainMode != null && start != end) {
-        postDelayed(new Runnable() {
-          public void run() {
-            if (!actionModeIsShowing) {
-              startActionMode(mainMode);
-            }
-          }
-        }, 500);
-      }
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+
+    if (runTable != null) {
+      scheduleLazySpans(false);
     }
   }
 
+  @Override
+  protected void onDetachedFromWindow() {
+    cancelDispatch();
+    removeCallbacks(actionModeStarter);
+    cancelWindowMove();
+    removeCallbacks(lazySpansUpdater);
+    lazySpansPending=false;
+    cancelCompaction();
+
+    super.onDetachedFromWindow();
+  }
+
+  /*
+   * Performs the Action bound to the key, if any, with the
+   * modifiers that are down.
+   */
   @Override
   public boolean onKeyUp(int keyCode, KeyEvent event) {
     if (keyboardShortcuts
         && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-      if (event.isCtrlPressed()) {
-        if (keyCode == KeyEvent.KEYCODE_B) {
-          toggleEffect(RichEditText.BOLD);
+      Action action=actions.getKeyAction(event.getMetaState(), keyCode);
 
-          return(true);
-        }
-        else if (keyCode == KeyEvent.KEYCODE_I) {
-          toggleEffect(RichEditText.ITALIC);
+      if (action != null) {
+        Metrics sink=metrics;
+        long started=Metrics.begin(sink);
+        boolean handled;
 
-          return(true);
+        try {
+          handled=action.perform(this);
+        }
+        finally {
+          Metrics.end(sink, RichEditMetrics.KEY_SHORTCUT, null, started);
         }
-        else if (keyCode == KeyEvent.KEYCODE_U) {
-          toggleEffect(RichEditText.UNDERLINE);
 
+        if (handled) {
           return(true);
         }
       }
@@ -183,6 +368,79 @@ public class RichEditText extends EditText implements
     return(super.onKeyUp(keyCode, event));
   }
 
+  /*
+   * Consumes shortcuts that have an Action bound to them, so
+   * the framework does not also act on them (e.g., its own
+   * undo for Ctrl-Z, on newer devices); onKeyUp() performs
+   * the Action.
+   */
+  @Override
+  public boolean onKeyShortcut(int keyCode, KeyEvent event) {
+    if (keyboardShortcuts
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+        && actions.getKeyAction(event.getMetaState(), keyCode) != null) {
+      return(true);
+    }
+
+    return(super.onKeyShortcut(keyCode, event));
+  }
+
+  /*
+   * Pastes styled text through the PasteNormalizer, if there
+   * is one. Cut and copy take the spans of the selection
+   * with them, so any set aside are put back first.
+   */
+  @Override
+  public boolean onTextContextMenuItem(int id) {
+    if (id == android.R.id.cut || id == android.R.id.copy) {
+      materializeSpans(Math.min(getSelectionStart(), getSelectionEnd()),
+                       Math.max(getSelectionStart(), getSelectionEnd()));
+    }
+    else if (id == android.R.id.paste && pasteNormalizer != null
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      Spanned clip=getClipText();
+
+      if (clip != null) {
+        pasteNormalized(clip);
+
+        return(true);
+      }
+    }
+
+    return(super.onTextContextMenuItem(id));
+  }
+
+  /*
+   * Attaches the undo history, if enabled, to replacement
+   * text, starting it over.
+   */
+  @Override
+  public void setText(CharSequence text, BufferType type) {
+    // the new text may be a copy of the current text, which
+    // should have all of its spans
+    materializeAllSpans();
+    super.setText(text, type);
+
+    if (runTable != null) {
+      runTable.attach(getText());
+      scheduleLazySpans(true);
+    }
+
+    if (undoHistory != null) {
+      undoHistory.attach(getText());
+      undoHistory.setSpanIndex(getSpanIndex());
+    }
+
+    if (spanCounter != null) {
+      spanCounter.attach(getText());
+    }
+
+    if (opLog != null) {
+      opLog.attach(getText());
+    }
+  }
+
+
   /*
    * Call this to provide a listener object to be notified
    * when the selection changes and what the applied effects
@@ -191,221 +449,2144 @@ public class RichEditText extends EditText implements
    * (e.g., check/uncheck a ToggleButton).
    */
   public void setOnSelectionChangedListener(OnSelectionChangedListener selectionListener) {
-    this.selectionListener=selectionListener;
+    if (selectionListener == null) {
+      this.selectionListener=null;
+    }
+    else {
+      this.selectionListener=
+          new SelectionChangedAdapter(selectionListener);
+    }
   }
 
   /*
-   * Call this to enable or disable handling of keyboard
-   * shortcuts (e.g., Ctrl-B for bold). Enabled by default.
+   * Call this to provide a listener object to be notified
+   * when the selection changes and what the applied effects
+   * are for the current selection, in the form of an
+   * EffectState. Unlike setOnSelectionChangedListener(), no
+   * objects are allocated per selection change to deliver
+   * the results, so this is better suited for use while the
+   * user is typing.
    */
-  public void setKeyboardShortcutsEnabled(boolean keyboardShortcuts) {
-    this.keyboardShortcuts=keyboardShortcuts;
+  public void setOnEffectStateChangedListener(OnEffectStateChangedListener effectStateListener) {
+    this.effectStateListener=effectStateListener;
   }
 
   /*
-   * Call this to have an effect applied to the current
-   * selection. You get the Effect object via the static
-   * data members (e.g., RichEditText.BOLD). The value for
-   * most effects is a Boolean, indicating whether to add or
-   * remove the effect.
+   * Call this to control when selection changes are
+   * delivered to listeners. DISPATCH_IMMEDIATE (the default)
+   * checks the effects and calls the listeners on every
+   * selection change. DISPATCH_NEXT_FRAME waits for the next
+   * frame (on API Level 16+; the next pass of the message
+   * loop otherwise), and DISPATCH_DEBOUNCED waits until the
+   * selection has stopped changing for delayMs milliseconds.
+   * Either way, the listeners only hear about the latest
+   * selection, so a burst of selection changes (e.g., from
+   * an input method) results in a single check of the
+   * effects.
    */
-  public <T> void applyEffect(Effect<T> effect, T value) {
-    if (!isSelectionChanging) {
-      effect.applyToSelection(this, value);
+  public void setSelectionDispatchPolicy(int policy, long delayMs) {
+    if (policy != DISPATCH_IMMEDIATE && policy != DISPATCH_NEXT_FRAME
+        && policy != DISPATCH_DEBOUNCED) {
+      throw new IllegalArgumentException("Unrecognized dispatch policy: "
+          + policy);
     }
+
+    cancelDispatch();
+    dispatchPolicy=policy;
+    dispatchDelay=delayMs;
   }
 
   /*
-   * Returns true if a given effect is applied somewhere in
-   * the current selection. This includes the effect being
-   * applied in a subset of the current selection.
+   * Call this to control when selection changes are
+   * delivered to listeners, for policies that do not need a
+   * delay.
    */
-  public boolean hasEffect(Effect<?> effect) {
-    return(effect.existsInSelection(this));
+  public void setSelectionDispatchPolicy(int policy) {
+    setSelectionDispatchPolicy(policy, 0);
   }
 
   /*
-   * Returns the value of the effect applied to the current
-   * selection. For Effect<Boolean> (e.g.,
-   * RichEditText.BOLD), returns the same value as
-   * hasEffect(). Otherwise, returns the highest possible
-   * value, if multiple occurrences of this effect are
-   * applied to the current selection. Returns null if there
-   * is no such effect applied.
+   * Call this to enable or disable the span index. When
+   * enabled, the effects look up their spans via an
+   * interval tree maintained alongside the text, rather than
+   * via getSpans(). This costs some memory and some work on
+   * each edit, in exchange for much cheaper lookups, and so
+   * is worthwhile for large documents with lots of
+   * formatting. Disabled by default.
    */
-  public <T> T getEffectValue(Effect<T> effect) {
-    return(effect.valueInSelection(this));
+  public void setSpanIndexEnabled(boolean enabled) {
+    if (enabled) {
+      if (spanIndex == null) {
+        spanIndex=new SpanIndex(registry.getEffects());
+      }
+    }
+    else if (spanIndex != null) {
+      spanIndex.detach();
+      spanIndex=null;
+    }
+
+    if (undoHistory != null) {
+      undoHistory.setSpanIndex(getSpanIndex());
+    }
   }
 
   /*
-   * If the effect is presently applied to the current
-   * selection, removes it; if the effect is not presently
-   * applied to the current selection, adds it.
+   * Returns the span index, if enabled, attached to our
+   * current text (which may have been replaced since the
+   * index was last used, such as via setText()).
    */
-  public void toggleEffect(Effect<Boolean> effect) {
-    if (!isSelectionChanging) {
-      effect.applyToSelection(this, !effect.valueInSelection(this));
+  SpanIndex getSpanIndex() {
+    if (spanIndex != null && !spanIndex.isAttachedTo(getText())) {
+      spanIndex.attach(getText());
     }
+
+    return(spanIndex);
   }
 
-  @Override
-  public boolean doAction(int itemId) {
-    if (itemId == R.id.cwac_richedittext_underline) {
-      toggleEffect(RichEditText.UNDERLINE);
+  /*
+   * Call this to have performance metrics reported to the
+   * supplied RichEditMetrics (e.g., a
+   * RichEditMetricsRecorder), or with null to stop. Metrics
+   * are off by default, and cost next to nothing while off.
+   */
+  public void setMetrics(RichEditMetrics metrics) {
+    this.metrics=(metrics == null ? null : new Metrics(metrics));
 
-      return(true);
+    if (spanCounter != null) {
+      spanCounter.detach();
+      spanCounter=null;
     }
-    else if (itemId == R.id.cwac_richedittext_strike) {
-      toggleEffect(RichEditText.STRIKETHROUGH);
 
-      return(true);
+    if (metrics != null) {
+      spanCounter=new SpanCounter(registry.getEffects(), metrics);
+      spanCounter.attach(getText());
     }
-    else if (itemId == R.id.cwac_richedittext_superscript) {
-      toggleEffect(RichEditText.SUPERSCRIPT);
+  }
 
-      return(true);
+  /*
+   * Call this with true to have effect spans kept on the text
+   * only for the lines near those on screen, for long
+   * documents. The rest are set aside in a compact table, and
+   * put back as they scroll into view, or when effects,
+   * exporting, saving, undo, and so on need them. Disabled by
+   * default.
+   *
+   * While enabled, getText() only has the spans near the
+   * screen, so use exportHtml() or RichTextCodec.encode() on
+   * this editor's behalf (e.g., via saved state), rather than
+   * reading spans from getText() directly. Spans that are put
+   * back are new ones, unless the undo history is enabled.
+   */
+  public void setLazySpansEnabled(boolean enabled) {
+    if (enabled && runTable == null) {
+      runTable=new RunTable(registry.getEffects(), spanMover);
+      runTable.setKeepingSpans(undoHistory != null);
+      runTable.attach(getText());
+      lazyEnd=-1;
+
+      if (opLog != null) {
+        opLog.setRunTable(runTable);
+      }
+
+      scheduleLazySpans(true);
     }
-    else if (itemId == R.id.cwac_richedittext_subscript) {
-      toggleEffect(RichEditText.SUBSCRIPT);
+    else if (!enabled && runTable != null) {
+      materializeAllSpans();
+      runTable.detach();
+      runTable=null;
+      removeCallbacks(lazySpansUpdater);
+      lazySpansPending=false;
 
-      return(true);
+      if (opLog != null) {
+        opLog.setRunTable(null);
+      }
     }
-    else if (itemId == R.id.cwac_richedittext_serif) {
-      applyEffect(RichEditText.TYPEFACE, "serif");
+  }
 
-      return(true);
+  /*
+   * Returns the paragraph index, attached to our current
+   * text, creating it the first time it is needed.
+   */
+  ParagraphIndex getParagraphIndex() {
+    if (paragraphIndex == null) {
+      paragraphIndex=new ParagraphIndex();
     }
-    else if (itemId == R.id.cwac_richedittext_sans) {
-      applyEffect(RichEditText.TYPEFACE, "sans");
 
-      return(true);
+    if (!paragraphIndex.isAttachedTo(getText())) {
+      paragraphIndex.attach(getText());
     }
-    else if (itemId == R.id.cwac_richedittext_mono) {
-      applyEffect(RichEditText.TYPEFACE, "monospace");
 
-      return(true);
+    return(paragraphIndex);
+  }
+
+  /*
+   * Merges touching or overlapping spans that have the same
+   * effect value (e.g., a run of abutting bold spans left
+   * behind by toggling bold on and off) into single spans.
+   * Returns the number of spans removed.
+   */
+  public int compactSpans() {
+    int removed;
+
+    beginBatchEdit();
+    beginUndoableChange(true);
+
+    // merging spans changes nothing worth sending
+    if (opLog != null) {
+      opLog.setSuppressed(true);
     }
-    else if (itemId == R.id.cwac_richedittext_normal) {
-      applyEffect(RichEditText.LINE_ALIGNMENT,
-                  Layout.Alignment.ALIGN_NORMAL);
 
-      return(true);
+    try {
+      removed=SpanCompactor.compact(getText(), registry.getEffects());
     }
-    else if (itemId == R.id.cwac_richedittext_center) {
-      applyEffect(RichEditText.LINE_ALIGNMENT,
-                  Layout.Alignment.ALIGN_CENTER);
+    finally {
+      if (opLog != null) {
+        opLog.setSuppressed(false);
+      }
 
-      return(true);
+      endUndoableChange();
+      endBatchEdit();
     }
-    else if (itemId == R.id.cwac_richedittext_opposite) {
-      applyEffect(RichEditText.LINE_ALIGNMENT,
-                  Layout.Alignment.ALIGN_OPPOSITE);
 
-      return(true);
+    return(removed);
+  }
+
+  /*
+   * Call this to have compactSpans() called automatically,
+   * when the main application thread is idle, after effects
+   * are applied. Disabled by default.
+   */
+  public void setAutoCompactEnabled(boolean autoCompact) {
+    this.autoCompact=autoCompact;
+
+    if (!autoCompact) {
+      cancelCompaction();
     }
-    else if (itemId == R.id.cwac_richedittext_bold) {
-      toggleEffect(RichEditText.BOLD);
+  }
 
-      return(true);
+  /*
+   * Call this to have the contents of this editor saved to
+   * an app-private file, instead of into the saved instance
+   * state, which parcels every span and can fail with
+   * TransactionTooLargeException for large documents. The
+   * content is encoded (via RichTextCodec) when the state is
+   * saved, and written to the file on a background thread;
+   * only a key for the file and the selection go in the
+   * parcel. On restore, the content is read back on a
+   * background thread and put in place on the main
+   * application thread, with the editor empty until then.
+   *
+   * Other TextView state (e.g., any error) is not saved in
+   * this mode. Disabled by default.
+   */
+  public void setSaveStateToFileEnabled(boolean enabled) {
+    saveStateToFile=enabled;
+  }
+
+  /*
+   * When saving state to a file, TextView's own
+   * onSaveInstanceState() would copy the whole text, with
+   * every span, just for us to throw it away, so it is
+   * skipped, putting our state in place of what it would
+   * have returned.
+   */
+  @Override
+  protected void dispatchSaveInstanceState(SparseArray<Parcelable> container) {
+    if (saveStateToFile && getId() != NO_ID && isSaveEnabled()) {
+      container.put(getId(), saveContentState());
     }
-    else if (itemId == R.id.cwac_richedittext_italic) {
-      toggleEffect(RichEditText.ITALIC);
+    else {
+      super.dispatchSaveInstanceState(container);
+    }
+  }
 
-      return(true);
+  @Override
+  public Parcelable onSaveInstanceState() {
+    if (saveStateToFile) {
+      // skip the superclass, which would copy all of the text
+      // just for us to throw it away
+      return(saveContentState());
     }
-//    else if (itemId == android.R.id.selectAll
-//        || itemId == android.R.id.cut || itemId == android.R.id.copy
-//        || itemId == android.R.id.paste) {
-//      onTextContextMenuItem(itemId);
-//    }
 
-    return(false);
+    // the superclass saves a copy of the text, which needs
+    // all of the spans
+    materializeAllSpans();
+
+    return(super.onSaveInstanceState());
   }
 
-  @Override
-  public void setIsShowing(boolean isShowing) {
-    actionModeIsShowing=isShowing;
+  /*
+   * Saves our text to a file, returning the state that
+   * refers to it.
+   */
+  private Parcelable saveContentState() {
+    if (pendingRestore != null) {
+      // our text is not restored yet, so hang onto the old state
+      return(pendingRestore);
+    }
+
+    if (stateKey == null) {
+      stateKey=StateStore.newKey();
+    }
+
+    materializeAllSpans();
+    StateStore.save(getContext(), stateKey,
+                    RichTextCodec.encode(getText()));
+
+    return(new ContentState(AbsSavedState.EMPTY_STATE, stateKey,
+                            getSelectionStart(), getSelectionEnd()));
   }
 
-  public void enableActionModes(boolean forceActionMode) {
-    this.forceActionMode=forceActionMode;
+  @Override
+  public void onRestoreInstanceState(Parcelable state) {
+    if (!(state instanceof ContentState)) {
+      super.onRestoreInstanceState(state);
 
-    EditorActionModeCallback.Native effectsMode=
-        new EditorActionModeCallback.Native(
-                                            (Activity)getContext(),
-                                            R.menu.cwac_richedittext_effects,
-                                            this, this);
+      return;
+    }
 
-    EditorActionModeCallback.Native fontsMode=
-        new EditorActionModeCallback.Native(
-                                            (Activity)getContext(),
-                                            R.menu.cwac_richedittext_fonts,
-                                            this, this);
+    final ContentState restored=(ContentState)state;
+    final int generation=++loadGeneration;
 
-    mainMode=
-        new EditorActionModeCallback.Native(
-                                            (Activity)getContext(),
-                                            R.menu.cwac_richedittext_main,
-                                            this, this);
+    super.onRestoreInstanceState(restored.getSuperState());
+    stateKey=restored.key;
+    pendingRestore=restored;
 
-    mainMode.addChain(R.id.cwac_richedittext_effects, effectsMode);
-    mainMode.addChain(R.id.cwac_richedittext_fonts, fontsMode);
+    StateStore.restore(getContext(), restored.key,
+                       new StateStore.Callback() {
+      @Override
+      public void onRestored(final Editable content) {
+        post(new Runnable() {
+          public void run() {
+            if (generation == loadGeneration) {
+              pendingRestore=null;
 
-    EditorActionModeCallback.Native entryMode=
-        new EditorActionModeCallback.Native(
-                                            (Activity)getContext(),
-                                            R.menu.cwac_richedittext_entry,
-                                            this, this);
+              if (content != null) {
+                setEditable(content);
 
-    entryMode.addChain(R.id.cwac_richedittext_format, mainMode);
+                if (restored.selectionStart >= 0) {
+                  int length=content.length();
 
-    setCustomSelectionActionModeCallback(entryMode);
+                  setSelection(Math.min(restored.selectionStart, length),
+                               Math.min(restored.selectionEnd, length));
+                }
+              }
+            }
+          }
+        });
+      }
+    });
   }
 
-  public void disableActionModes() {
-    setCustomSelectionActionModeCallback(null);
-    mainMode=null;
+  /*
+   * Adds an effect to the ones this editor works with (e.g.,
+   * reporting it to listeners, compacting its spans, and
+   * tracking it in the undo history), returning false if it
+   * was already registered. The built-in effects (BOLD,
+   * etc.) are registered to start with. The effect gets the
+   * next ID (see getEffectId()). At most 64 effects can be
+   * registered.
+   */
+  public boolean registerEffect(Effect<?> effect) {
+    if (registry.register(effect)) {
+      onEffectsChanged();
+
+      return(true);
+    }
+
+    return(false);
   }
 
   /*
-   * Interface for listener object to be registered by
-   * setOnSelectionChangedListener().
+   * Removes an effect from the ones this editor works with,
+   * returning false if it was not registered. The IDs of the
+   * effects registered after it go down by one.
    */
-  public interface OnSelectionChangedListener {
-    /*
-     * Provides details of the new selection, including the
-     * start and ending character positions, and a roster of
-     * all effects presently applied (so you can bulk-update
-     * a toolbar when the selection changes).
+  public boolean unregisterEffect(Effect<?> effect) {
+    if (registry.unregister(effect)) {
+      onEffectsChanged();
+
+      return(true);
+    }
+
+    return(false);
+  }
+
+  /*
+   * Returns the ID of a registered effect, which is also its
+   * bit in EffectState.getFlags(), or -1 if it is not
+   * registered. IDs run from 0 to one less than the number
+   * of registered effects.
+   */
+  public int getEffectId(Effect<?> effect) {
+    return(registry.getId(effect));
+  }
+
+  /*
+   * Returns the registered effects, in ID order.
+   */
+  public List<Effect<?>> getRegisteredEffects() {
+    return(registry.getEffects());
+  }
+
+  /*
+   * Call this with false to skip a registered effect when
+   * working out the effects in the selection for listeners,
+   * saving that work if you have no UI for the effect. The
+   * effect is still registered for everything else. All
+   * registered effects are enabled to start with.
+   */
+  public void setEffectEnabled(Effect<?> effect, boolean enabled) {
+    registry.setEnabled(effect, enabled);
+    cursorContext.invalidate();
+  }
+
+  /*
+   * Call this to enable or disable the undo history, for
+   * undo() and redo() (and Ctrl-Z, Ctrl-Shift-Z, and Ctrl-Y,
+   * if keyboard shortcuts are enabled). The history records
+   * just what changed with each edit and each effect being
+   * applied, with consecutive keystrokes coalesced. Disabling
+   * it discards the history. Disabled by default.
+   */
+  public void setUndoEnabled(boolean enabled) {
+    if (enabled) {
+      if (undoHistory == null) {
+        undoHistory=new UndoHistory(registry.getEffects());
+        undoHistory.setLimit(undoLimit);
+        undoHistory.attach(getText());
+        undoHistory.setSpanIndex(getSpanIndex());
+
+        if (runTable != null) {
+          runTable.setKeepingSpans(true);
+        }
+
+        bindDefaultUndoKey(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_Z,
+                           UNDO_ACTION);
+        bindDefaultUndoKey(KeyEvent.META_CTRL_ON | KeyEvent.META_SHIFT_ON,
+                           KeyEvent.KEYCODE_Z, REDO_ACTION);
+        bindDefaultUndoKey(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_Y,
+                           REDO_ACTION);
+      }
+    }
+    else if (undoHistory != null) {
+      undoHistory.detach();
+      undoHistory=null;
+
+      if (runTable != null) {
+        runTable.setKeepingSpans(false);
+      }
+
+      unbindDefaultUndoKey(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_Z,
+                           UNDO_ACTION);
+      unbindDefaultUndoKey(KeyEvent.META_CTRL_ON | KeyEvent.META_SHIFT_ON,
+                           KeyEvent.KEYCODE_Z, REDO_ACTION);
+      unbindDefaultUndoKey(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_Y,
+                           REDO_ACTION);
+    }
+  }
+
+  /*
+   * Sets the limit on the estimated memory used by the undo
+   * history, in bytes; the oldest entries are discarded to
+   * stay under it. Defaults to 256KB.
+   */
+  public void setUndoHistoryLimit(int bytes) {
+    undoLimit=bytes;
+
+    if (undoHistory != null) {
+      undoHistory.setLimit(bytes);
+    }
+  }
+
+  /*
+   * Returns true if there is something for undo() to undo.
+   */
+  public boolean canUndo() {
+    UndoHistory history=getUndoHistory();
+
+    return(history != null && history.canUndo());
+  }
+
+  /*
+   * Returns true if there is something for redo() to redo.
+   */
+  public boolean canRedo() {
+    UndoHistory history=getUndoHistory();
+
+    return(history != null && history.canRedo());
+  }
+
+  /*
+   * Reverts the most recent edit or effect, returning false
+   * if there was nothing to undo (or the undo history is
+   * disabled).
+   */
+  public boolean undo() {
+    if (!canUndo()) {
+      return(false);
+    }
+
+    int cursor;
+
+    materializeAllSpans();
+    beginBatchEdit();
+
+    try {
+      cursor=undoHistory.undo();
+    }
+    finally {
+      endBatchEdit();
+    }
+
+    finishUndoOrRedo(cursor);
+
+    return(true);
+  }
+
+  /*
+   * Re-applies the most recently undone edit or effect,
+   * returning false if there was nothing to redo.
+   */
+  public boolean redo() {
+    if (!canRedo()) {
+      return(false);
+    }
+
+    int cursor;
+
+    materializeAllSpans();
+    beginBatchEdit();
+
+    try {
+      cursor=undoHistory.redo();
+    }
+    finally {
+      endBatchEdit();
+    }
+
+    finishUndoOrRedo(cursor);
+
+    return(true);
+  }
+
+  /*
+   * Discards the undo history, if enabled.
+   */
+  public void clearUndoHistory() {
+    if (undoHistory != null) {
+      undoHistory.clear();
+    }
+  }
+
+  /*
+   * Binds a keyboard shortcut to an Action, replacing any
+   * existing binding, or removes the binding if the Action is
+   * null. The modifiers are KeyEvent meta state flags (e.g.,
+   * KeyEvent.META_CTRL_ON | KeyEvent.META_SHIFT_ON); only
+   * Ctrl, Shift, Alt, and Meta are considered. The Action is
+   * performed when the key is released.
+   */
+  public void bindKey(int modifiers, int keyCode, Action action) {
+    actions.bindKey(modifiers, keyCode, action);
+  }
+
+  /*
+   * Binds a keyboard shortcut to applying an effect, with the
+   * supplied value, to the selection.
+   */
+  public <T> void bindKey(int modifiers, int keyCode, Effect<T> effect,
+                          T value) {
+    bindKey(modifiers, keyCode, new ActionRegistry.ApplyAction<T>(effect,
+                                                                   value));
+  }
+
+  /*
+   * Binds a keyboard shortcut to toggling an effect on the
+   * selection.
+   */
+  public void bindKeyToToggle(int modifiers, int keyCode,
+                              Effect<Boolean> effect) {
+    bindKey(modifiers, keyCode, new ActionRegistry.ToggleAction(effect));
+  }
+
+  /*
+   * Binds a menu item ID, for the action modes (see
+   * enableActionModes()), to an Action, replacing any
+   * existing binding, or removes the binding if the Action is
+   * null.
+   */
+  public void bindMenuItem(int itemId, Action action) {
+    actions.bindMenuItem(itemId, action);
+  }
+
+  /*
+   * Binds a menu item ID to applying an effect, with the
+   * supplied value, to the selection.
+   */
+  public <T> void bindMenuItem(int itemId, Effect<T> effect, T value) {
+    bindMenuItem(itemId, new ActionRegistry.ApplyAction<T>(effect, value));
+  }
+
+  /*
+   * Binds a menu item ID to toggling an effect on the
+   * selection.
+   */
+  public void bindMenuItemToToggle(int itemId, Effect<Boolean> effect) {
+    bindMenuItem(itemId, new ActionRegistry.ToggleAction(effect));
+  }
+
+  /*
+   * Call this to enable or disable handling of keyboard
+   * shortcuts (e.g., Ctrl-B for bold). Enabled by default.
+   */
+  public void setKeyboardShortcutsEnabled(boolean keyboardShortcuts) {
+    this.keyboardShortcuts=keyboardShortcuts;
+  }
+
+  /*
+   * Call this to have an effect applied to the current
+   * selection. You get the Effect object via the static
+   * data members (e.g., RichEditText.BOLD). The value for
+   * most effects is a Boolean, indicating whether to add or
+   * remove the effect.
+   */
+  public <T> void applyEffect(Effect<T> effect, T value) {
+    if (!isSelectionChanging) {
+      Metrics sink=metrics;
+      long started=Metrics.begin(sink);
+
+      materializeParagraphs(getSelectionStart(), getSelectionEnd());
+      beginUndoableChange(false);
+
+      try {
+        effect.applyToSelection(this, value);
+      }
+      finally {
+        endUndoableChange();
+        Metrics.end(sink, RichEditMetrics.APPLY_EFFECT, effect, started);
+      }
+
+      scheduleCompaction();
+    }
+  }
+
+  /*
+   * Call this to have an effect applied to several ranges of
+   * the text at once, without changing the selection (e.g.,
+   * to highlight all matches of a search). ranges holds
+   * start/end pairs: { start0, end0, start1, end1, ... }.
+   * The ranges may be in any order and may overlap.
+   */
+  public <T> void applyEffect(Effect<T> effect, T value, int[] ranges) {
+    if (!isSelectionChanging) {
+      Metrics sink=metrics;
+      long started=Metrics.begin(sink);
+
+      materializeRanges(ranges);
+      beginBatchEdit();
+      beginUndoableChange(false);
+
+      try {
+        effect.applyToRanges(getText(), ranges, value, getSpanIndex());
+      }
+      finally {
+        endUndoableChange();
+        endBatchEdit();
+        Metrics.end(sink, RichEditMetrics.APPLY_EFFECT, effect, started);
+      }
+
+      scheduleCompaction();
+      requestSelectionDispatch(getSelectionStart(), getSelectionEnd());
+    }
+  }
+
+  /*
+   * Call this to have an effect applied to the current
+   * selection, with the span changes being worked out on a
+   * background thread, for large selections (e.g., changing
+   * the typeface of all of a long document). See
+   * EffectBatch.commitInBackground() for details.
+   */
+  public <T> void applyEffectInBackground(Effect<T> effect, T value,
+                                          OnEffectsAppliedListener listener) {
+    batch().apply(effect, value).commitInBackground(listener);
+  }
+
+  /*
+   * Returns true if a given effect is applied somewhere in
+   * the current selection. This includes the effect being
+   * applied in a subset of the current selection.
+   */
+  public boolean hasEffect(Effect<?> effect) {
+    Metrics sink=metrics;
+    long started=Metrics.begin(sink);
+
+    try {
+      if (isCursorStateCached(effect)) {
+        return(effectState.hasEffect(effect));
+      }
+
+      materializeSelection();
+
+      return(effect.existsInSelection(this));
+    }
+    finally {
+      Metrics.end(sink, RichEditMetrics.CHECK_EFFECT, effect, started);
+    }
+  }
+
+  /*
+   * Returns the value of the effect applied to the current
+   * selection. For Effect<Boolean> (e.g.,
+   * RichEditText.BOLD), returns the same value as
+   * hasEffect(). Otherwise, returns the highest possible
+   * value, if multiple occurrences of this effect are
+   * applied to the current selection. Returns null if there
+   * is no such effect applied.
+   */
+  public <T> T getEffectValue(Effect<T> effect) {
+    Metrics sink=metrics;
+    long started=Metrics.begin(sink);
+
+    try {
+      if (isCursorStateCached(effect)) {
+        return(effectState.getEffectValue(effect));
+      }
+
+      materializeSelection();
+
+      return(effect.valueInSelection(this));
+    }
+    finally {
+      Metrics.end(sink, RichEditMetrics.CHECK_EFFECT, effect, started);
+    }
+  }
+
+  /*
+   * Returns true if the cursor is collapsed and still in the
+   * run of text where effectState was last worked out, so
+   * what it says about this effect is current.
+   */
+  private boolean isCursorStateCached(Effect<?> effect) {
+    int start=getSelectionStart();
+
+    return(start == getSelectionEnd()
+        && cursorContext.isAttachedTo(getText())
+        && cursorContext.covers(start) && registry.isEnabled(effect));
+  }
+
+  /*
+   * Replaces the contents of this editor with the supplied
+   * Editable, which is used as-is, rather than being copied
+   * as setText() would do. Do not use the Editable elsewhere
+   * after calling this.
+   */
+  public void setEditable(Editable content) {
+    editableFactory.adopt=content;
+
+    try {
+      setText(content, BufferType.EDITABLE);
+    }
+    finally {
+      editableFactory.adopt=null;
+    }
+  }
+
+  /*
+   * Replaces the contents of this editor with the supplied
+   * content (e.g., a newer version of the document from a
+   * server), changing only what differs: the changed
+   * stretches of text are replaced, and effect spans are
+   * added and removed, in one batch edit, with the rest of
+   * the text, its spans, and its layout left alone. The
+   * selection stays with the text around it. As with
+   * setText(), the undo history is cleared.
+   *
+   * Only the spans of registered effects are carried over
+   * from the content.
+   */
+  public void updateContent(Spanned content) {
+    materializeAllSpans();
+
+    Editable text=getText();
+    ContentDiff diff=new ContentDiff(text, content);
+    int start=diff.mapOffset(getSelectionStart());
+    int end=diff.mapOffset(getSelectionEnd());
+
+    beginBatchEdit();
+
+    try {
+      diff.applyText(text);
+      ContentDiff.applySpans(text, content, registry.getEffects());
+      setSelection(Math.max(0, Math.min(start, text.length())),
+                   Math.max(0, Math.min(end, text.length())));
+    }
+    finally {
+      endBatchEdit();
+    }
+
+    if (undoHistory != null) {
+      undoHistory.clear();
+    }
+  }
+
+  /*
+   * Call this to have the changes made to the contents of
+   * this editor, from here on, reported to the listener as
+   * RichEditOps (e.g., to send to other copies of the
+   * document), or with null to stop. Edits and effect changes
+   * are collected, coalesced, and delivered once nothing has
+   * changed for delayMs milliseconds (0 delivers on the next
+   * pass of the main thread's message loop). Call flushOps()
+   * to deliver them sooner.
+   */
+  public void setOnOpsListener(OnOpsListener listener, long delayMs) {
+    removeCallbacks(opsDeliverer);
+
+    if (opLog != null) {
+      opLog.detach();
+      opLog=null;
+    }
+
+    opsListener=listener;
+    opsDelay=delayMs;
+
+    if (listener != null) {
+      opLog=new OpLog(registry.getEffects(), opsScheduler);
+      opLog.setRunTable(runTable);
+      opLog.attach(getText());
+    }
+  }
+
+  /*
+   * Delivers any pending ops to the OnOpsListener now.
+   */
+  public void flushOps() {
+    removeCallbacks(opsDeliverer);
+
+    if (opLog != null && opLog.hasOps()) {
+      List<RichEditOp> ops=opLog.drain();
+
+      if (!ops.isEmpty()) {
+        opsListener.onOps(this, ops);
+      }
+    }
+  }
+
+  /*
+   * Replays ops from another copy of the document (e.g., as
+   * reported to its OnOpsListener) onto this one, in order,
+   * in one batch edit. The ops have to have been made against
+   * the same contents as this editor has, with the same
+   * effects registered; merging concurrent changes is up to
+   * the caller. Pending ops of this editor are delivered
+   * first, and the replayed ops are not reported. As with
+   * setText(), the undo history is cleared.
+   */
+  public void applyOps(List<RichEditOp> ops) {
+    flushOps();
+
+    if (opLog != null) {
+      opLog.setSuppressed(true);
+    }
+
+    beginBatchEdit();
+
+    try {
+      OpLog.apply(getText(), registry.getEffects(), ops, runTable);
+    }
+    finally {
+      endBatchEdit();
+
+      if (opLog != null) {
+        opLog.setSuppressed(false);
+      }
+    }
+
+    if (undoHistory != null) {
+      undoHistory.clear();
+    }
+  }
+
+  /*
+   * Call this to have text pasted via the context menu
+   * cleaned up by the supplied PasteNormalizer, or with null
+   * (the default) to paste it as EditText would. Formatting
+   * from the clip is turned into that of the registered
+   * effects, where there is an equivalent, and the other spans
+   * are dropped, unless the normalizer keeps them. Large clips
+   * are normalized on a background thread and pasted over
+   * the selection once that is done, unless the contents of
+   * this editor have been replaced or another paste has been
+   * started in the meantime.
+   */
+  public void setPasteNormalizer(PasteNormalizer normalizer) {
+    pasteNormalizer=normalizer;
+    pasteGeneration++;
+  }
+
+  /*
+   * Loads HTML from the supplied Reader on a background
+   * thread, via HtmlImporter, then replaces the contents of
+   * this editor with the result on the main application
+   * thread, in one step. The Reader is closed once the HTML
+   * has been read. If loadHtml() is called again before an
+   * earlier load finishes, the earlier load's result is
+   * discarded. The listener, if not null, is told when the
+   * content is in place, or if the load failed.
+   */
+  public void loadHtml(final Reader reader,
+                       final OnContentLoadedListener listener) {
+    final int generation=++loadGeneration;
+
+    pendingRestore=null;
+
+    new Thread() {
+      @Override
+      public void run() {
+        Editable content=null;
+        IOException error=null;
+
+        try {
+          content=HtmlImporter.importHtml(reader);
+        }
+        catch (IOException e) {
+          error=e;
+        }
+        catch (RuntimeException e) {
+          // malformed input that got past the importer, which
+          // must not take down the app from this thread
+          error=new IOException(e);
+        }
+        finally {
+          try {
+            reader.close();
+          }
+          catch (IOException e) {
+            // we got what we needed from it, so ignore
+          }
+        }
+
+        final Editable result=content;
+        final IOException failure=error;
+
+        post(new Runnable() {
+          public void run() {
+            if (generation == loadGeneration) {
+              if (failure == null) {
+                setEditable(result);
+
+                if (listener != null) {
+                  listener.onContentLoaded(RichEditText.this);
+                }
+              }
+              else if (listener != null) {
+                listener.onContentLoadFailed(RichEditText.this, failure);
+              }
+            }
+          }
+        });
+      }
+    }.start();
+  }
+
+  /*
+   * Shows the supplied WindowedDocument in this editor, or
+   * stops showing one if passed null (leaving the current
+   * contents in place). Only a window of the document, a few
+   * tens of thousands of chars around the selection, is
+   * loaded into the editor at a time, and the window moves
+   * when the selection gets near either end of it. Edits and
+   * effects applied to the window are written back to the
+   * document when the window moves, or on
+   * flushWindowedDocument().
+   *
+   * The window moves on a background thread: the changes
+   * are written back and the next window is read there, and
+   * the editor's contents are then replaced on the main
+   * application thread. This method, moveWindowTo(), and
+   * flushWindowedDocument() do their file I/O on the calling
+   * thread, as the app asked for it.
+   *
+   * Unlike in normal mode, everything in the editor is
+   * relative to the window, not the document: offsets
+   * passed to or returned by the editor (e.g.,
+   * getSelectionStart(), applyEffect() ranges, the ranges
+   * given to OnSelectionChangedListener and
+   * OnEffectStateChangedListener, and RichEditOps), plus
+   * getText(), exportHtml(), undo and redo, and
+   * hasEffect()/getEffectValue(), only cover the window
+   * being shown. Add getWindowStart() to an offset to get the
+   * offset within the document. Moving the window replaces
+   * the editor's contents, which clears the undo history.
+   * Do not call setText() or setEditable() while a document
+   * is shown, or use the WindowedDocument directly.
+   */
+  public void setWindowedDocument(WindowedDocument doc) throws IOException {
+    cancelWindowMove();
+
+    if (documentWindow != null) {
+      materializeAllSpans();
+      documentWindow.writeBack();
+      documentWindow.detach();
+      documentWindow=null;
+    }
+
+    if (doc != null) {
+      documentWindow=new DocumentWindow(doc, registry.getEffects());
+      setEditable(documentWindow.load(0));
+    }
+  }
+
+  /*
+   * Returns the offset, within the WindowedDocument being
+   * shown, of the start of the editor's contents, or 0 if no
+   * WindowedDocument is being shown.
+   */
+  public int getWindowStart() {
+    return(documentWindow == null ? 0 : documentWindow.getStart());
+  }
+
+  /*
+   * Moves the window on the WindowedDocument being shown so
+   * that it covers the supplied offset within the document,
+   * keeping the selection where it is in the document if it
+   * is still in the window, or else putting the cursor at
+   * the offset.
+   */
+  public void moveWindowTo(int offset) throws IOException {
+    if (documentWindow == null) {
+      throw new IllegalStateException("No WindowedDocument is being shown");
+    }
+
+    cancelWindowMove();
+    materializeAllSpans();
+    documentWindow.writeBack();
+    showWindow(documentWindow.read(offset), offset);
+  }
+
+  /*
+   * Shows the slice, keeping the selection where it is in
+   * the document if it is in the slice, or else putting the
+   * cursor at the offset.
+   */
+  private void showWindow(DocumentWindow.Slice slice, int offset) {
+    int oldStart=documentWindow.getStart();
+    int selStart=oldStart + getSelectionStart();
+    int selEnd=oldStart + getSelectionEnd();
+    Editable content=slice.text;
+
+    documentWindow.show(slice);
+
+    int newStart=documentWindow.getStart();
+
+    setEditable(content);
+
+    if (selStart >= newStart && selEnd <= newStart + content.length()) {
+      setSelection(selStart - newStart, selEnd - newStart);
+    }
+    else {
+      setSelection(Math.max(0, Math.min(offset - newStart,
+                                         content.length())));
+    }
+  }
+
+  /*
+   * Writes any changes to the window on the WindowedDocument
+   * being shown back to the document, then flushes the
+   * document, so the changes are safely in its file.
+   */
+  public void flushWindowedDocument() throws IOException {
+    if (documentWindow != null) {
+      materializeAllSpans();
+      documentWindow.flush();
+    }
+  }
+
+  /*
+   * If the supplied selection start is near either end of
+   * the window on the WindowedDocument being shown, arranges
+   * to move the window, unless that is already in progress.
+   */
+  private void scheduleWindowMove(int start) {
+    if (documentWindow != null && !windowMovePending
+        && documentWindow.isAttachedTo(getText())
+        && documentWindow.isNearEdge(start)) {
+      windowMovePending=true;
+      post(windowMover);
+    }
+  }
+
+  /*
+   * Stops any window move in progress, so its results are
+   * ignored.
+   */
+  private void cancelWindowMove() {
+    removeCallbacks(windowMover);
+    windowMovePending=false;
+    windowGeneration++;
+  }
+
+  /*
+   * Writes back a copy of the window, if changed, and reads
+   * the one around the offset, on DocumentWindow.EXECUTOR,
+   * then shows the new window. If the window is edited in
+   * the meantime, the new one is not shown, and we try again.
+   * If the window is written back or moved on this thread
+   * first, the copy is stale, and DocumentWindow skips it.
+   */
+  private void moveWindowInBackground(final int offset) {
+    final DocumentWindow window=documentWindow;
+    final int generation=++windowGeneration;
+
+    materializeAllSpans();
+
+    final DocumentWindow.Snapshot snapshot=window.snapshot();
+    final int changes=window.getChangeCount();
+
+    DocumentWindow.EXECUTOR.execute(new Runnable() {
+      public void run() {
+        boolean wroteBack=false;
+        DocumentWindow.Slice slice=null;
+
+        try {
+          if (snapshot != null) {
+            wroteBack=window.writeBack(snapshot);
+          }
+
+          slice=window.read(offset);
+        }
+        catch (IOException e) {
+          Log.e("RichEditText", "Exception moving document window", e);
+        }
+        catch (RuntimeException e) {
+          Log.e("RichEditText", "Exception moving document window", e);
+        }
+
+        final boolean written=wroteBack;
+        final DocumentWindow.Slice result=slice;
+
+        post(new Runnable() {
+          public void run() {
+            if (generation != windowGeneration) {
+              return;
+            }
+
+            windowMovePending=false;
+
+            if (written) {
+              window.setWritten(changes);
+            }
+
+            if (result != null && window == documentWindow
+                && window.isAttachedTo(getText())) {
+              if (window.getChangeCount() == changes) {
+                showWindow(result, offset);
+              }
+              else {
+                scheduleWindowMove(getSelectionStart());
+              }
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /*
+   * Writes the contents of this editor, as HTML, to the
+   * supplied Writer. The first call converts all of the
+   * text; after that, only paragraphs that have been edited
+   * (or had effects applied) since the previous call are
+   * converted, with the rest coming from a cache. Call this
+   * on the main application thread.
+   */
+  public void exportHtml(Writer writer) throws IOException {
+    if (htmlExporter == null) {
+      htmlExporter=new HtmlExporter(registry.getEffects());
+    }
+
+    if (!htmlExporter.isAttachedTo(getText())) {
+      htmlExporter.attach(getText());
+    }
+
+    materializeAllSpans();
+    htmlExporter.writeTo(writer);
+  }
+
+  /*
+   * Call this to get an EffectBatch, to apply several
+   * effects to the current selection at once. Call apply()
+   * on the batch for each effect, then commit().
+   */
+  public EffectBatch batch() {
+    return(new EffectBatch(this));
+  }
+
+  /*
+   * If the effect is presently applied to the current
+   * selection, removes it; if the effect is not presently
+   * applied to the current selection, adds it.
+   */
+  public void toggleEffect(Effect<Boolean> effect) {
+    if (!isSelectionChanging) {
+      applyEffect(effect, !Boolean.TRUE.equals(getEffectValue(effect)));
+    }
+  }
+
+  @Override
+  public boolean doAction(int itemId) {
+    Action action=actions.getMenuItemAction(itemId);
+
+    return(action != null && action.perform(this));
+  }
+
+
+  @Override
+  public void setIsShowing(boolean isShowing) {
+    actionModeIsShowing=isShowing;
+  }
+
+  public void enableActionModes(boolean forceActionMode) {
+    this.forceActionMode=forceActionMode;
+
+    EditorActionModeCallback.Native effectsMode=
+        new EditorActionModeCallback.Native(
+                                            (Activity)getContext(),
+                                            R.menu.cwac_richedittext_effects,
+                                            this, this);
+
+    EditorActionModeCallback.Native fontsMode=
+        new EditorActionModeCallback.Native(
+                                            (Activity)getContext(),
+                                            R.menu.cwac_richedittext_fonts,
+                                            this, this);
+
+    mainMode=
+        new EditorActionModeCallback.Native(
+                                            (Activity)getContext(),
+                                            R.menu.cwac_richedittext_main,
+                                            this, this);
+
+    mainMode.addChain(R.id.cwac_richedittext_effects, effectsMode);
+    mainMode.addChain(R.id.cwac_richedittext_fonts, fontsMode);
+
+    EditorActionModeCallback.Native entryMode=
+        new EditorActionModeCallback.Native(
+                                            (Activity)getContext(),
+                                            R.menu.cwac_richedittext_entry,
+                                            this, this);
+
+    entryMode.addChain(R.id.cwac_richedittext_format, mainMode);
+
+    setCustomSelectionActionModeCallback(entryMode);
+  }
+
+  public void disableActionModes() {
+    setCustomSelectionActionModeCallback(null);
+    removeCallbacks(actionModeStarter);
+    mainMode=null;
+  }
+
+  /*
+   * Applies the effects in the batch to the current
+   * selection, making all of the span changes within one
+   * batch edit, then lets the listeners know about the
+   * resulting effect state.
+   */
+  void commitBatch(EffectBatch batch) {
+    if (!isSelectionChanging) {
+      materializeParagraphs(getSelectionStart(), getSelectionEnd());
+
+      Editable text=getText();
+      SpanDiff diff=batch.buildDiff(text, new Selection(this));
+
+      if (diff.hasChanges()) {
+        beginBatchEdit();
+        beginUndoableChange(false);
+
+        try {
+          diff.applyTo(text);
+        }
+        finally {
+          endUndoableChange();
+          endBatchEdit();
+        }
+
+        scheduleCompaction();
+      }
+
+      requestSelectionDispatch(getSelectionStart(), getSelectionEnd());
+    }
+  }
+
+  /*
+   * Applies the batch to the current selection in the
+   * background, via an EffectJob, once any earlier jobs are
+   * done. An empty selection is cheap to handle, so that is
+   * done right away.
+   */
+  void commitBatchInBackground(EffectBatch batch,
+                               OnEffectsAppliedListener listener) {
+    if (!isSelectionChanging) {
+      int start=getSelectionStart();
+      int end=getSelectionEnd();
+
+      if (start == end) {
+        commitBatch(batch);
+
+        if (listener != null) {
+          listener.onEffectsApplied(this);
+        }
+      }
+      else {
+        EffectJob job=new EffectJob(batch, listener);
+
+        // spans stay put until the job is done (see
+        // updateLazySpans())
+        materializeParagraphs(start, end);
+        job.attach(getText(), Math.min(start, end), Math.max(start, end));
+        effectJobs.add(job);
+
+        if (effectJobs.size() == 1) {
+          startEffectJob(job);
+        }
+      }
+    }
+  }
+
+  private void startEffectJob(final EffectJob job) {
+    if (!job.isAttachedTo(getText()) || !job.capture()) {
+      finishEffectJob(job, false);
+    }
+    else {
+      EffectJob.EXECUTOR.execute(new Runnable() {
+        public void run() {
+          try {
+            job.compute();
+          }
+          catch (RuntimeException e) {
+            Log.e(RichEditText.class.getSimpleName(),
+                  "Exception applying effects", e);
+          }
+
+          post(new Runnable() {
+            public void run() {
+              onEffectJobComputed(job);
+            }
+          });
+        }
+      });
+    }
+  }
+
+  /*
+   * Applies the job's diff if the text is as it was when the
+   * job captured it. Otherwise, the job is redone against
+   * the current text, up to EffectJob.MAX_ATTEMPTS times.
+   */
+  private void onEffectJobComputed(EffectJob job) {
+    Editable text=getText();
+    SpanDiff diff=job.getDiff();
+
+    if (diff == null || !job.isAttachedTo(text)) {
+      finishEffectJob(job, false);
+    }
+    else if (job.hasChanged()) {
+      if (job.getAttempts() < EffectJob.MAX_ATTEMPTS) {
+        startEffectJob(job);
+      }
+      else {
+        finishEffectJob(job, false);
+      }
+    }
+    else {
+      job.detach();
+
+      if (diff.hasChanges()) {
+        beginBatchEdit();
+        beginUndoableChange(false);
+
+        try {
+          diff.applyTo(text, job.getOffset());
+        }
+        finally {
+          endUndoableChange();
+          endBatchEdit();
+        }
+
+        scheduleCompaction();
+        requestSelectionDispatch(getSelectionStart(), getSelectionEnd());
+      }
+
+      finishEffectJob(job, true);
+    }
+  }
+
+  private void finishEffectJob(EffectJob job, boolean applied) {
+    OnEffectsAppliedListener listener=job.getListener();
+
+    job.detach();
+    effectJobs.remove(job);
+
+    if (listener != null) {
+      if (applied) {
+        listener.onEffectsApplied(this);
+      }
+      else {
+        listener.onEffectsDiscarded(this);
+      }
+    }
+
+    if (!effectJobs.isEmpty()) {
+      startEffectJob(effectJobs.get(0));
+    }
+    else if (runTable != null) {
+      scheduleLazySpans(true);
+    }
+  }
+
+  /*
+   * Returns the clipboard's text, with its formatting, or
+   * null if there is none. Multiple items are separated by
+   * newlines, as EditText does.
+   */
+  private Spanned getClipText() {
+    ClipboardManager clipboard=
+        (ClipboardManager)getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+    ClipData clip=clipboard.getPrimaryClip();
+
+    if (clip == null) {
+      return(null);
+    }
+
+    SpannableStringBuilder result=new SpannableStringBuilder();
+
+    for (int i=0; i < clip.getItemCount(); i++) {
+      ClipData.Item item=clip.getItemAt(i);
+      CharSequence text;
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+        text=item.coerceToStyledText(getContext());
+      }
+      else {
+        text=item.coerceToText(getContext());
+      }
+
+      if (text != null && text.length() > 0) {
+        if (result.length() > 0) {
+          result.append('\n');
+        }
+
+        result.append(text);
+      }
+    }
+
+    return(result.length() == 0 ? null : result);
+  }
+
+  private void pasteNormalized(final Spanned clip) {
+    final PasteNormalizer normalizer=pasteNormalizer;
+    final List<Effect<?>> effects=
+        new ArrayList<Effect<?>>(registry.getEffects());
+    final float textSize=getTextSize();
+    final float density=getResources().getDisplayMetrics().density;
+    final int generation=++pasteGeneration;
+
+    if (clip.length() < PasteNormalizer.BACKGROUND_THRESHOLD) {
+      replaceSelection(normalizer.normalize(clip, effects, textSize,
+                                            density));
+    }
+    else {
+      final Editable target=getText();
+
+      new Thread() {
+        @Override
+        public void run() {
+          Spannable normalized;
+
+          try {
+            normalized=normalizer.normalize(clip, effects, textSize, density);
+          }
+          catch (RuntimeException e) {
+            // still paste the text, just without its formatting
+            Log.e(RichEditText.class.getSimpleName(),
+                  "Exception normalizing pasted text", e);
+            normalized=new SpannableStringBuilder(clip.toString());
+          }
+
+          final Spannable result=normalized;
+
+          post(new Runnable() {
+            public void run() {
+              if (generation == pasteGeneration && getText() == target) {
+                replaceSelection(result);
+              }
+            }
+          });
+        }
+      }.start();
+    }
+  }
+
+  /*
+   * Replaces the selection with the content, as one undoable
+   * change, leaving the cursor after it.
+   */
+  private void replaceSelection(Spanned content) {
+    Editable text=getText();
+    int start=Math.max(0, Math.min(getSelectionStart(), getSelectionEnd()));
+    int end=Math.max(0, Math.max(getSelectionStart(), getSelectionEnd()));
+
+    beginBatchEdit();
+    beginUndoableChange(false);
+
+    try {
+      text.replace(start, end, content);
+      setSelection(start + content.length());
+    }
+    finally {
+      endUndoableChange();
+      endBatchEdit();
+    }
+
+    scheduleCompaction();
+  }
+
+  /*
+   * Arranges to tell any registered listeners about the
+   * supplied selection, per the dispatch policy (see
+   * setSelectionDispatchPolicy()).
+   */
+  private void requestSelectionDispatch(int start, int end) {
+    if (selectionListener != null || effectStateListener != null) {
+      if (dispatchPolicy == DISPATCH_IMMEDIATE) {
+        dispatchSelectionChanged(start, end);
+      }
+      else {
+        pendingStart=start;
+        pendingEnd=end;
+        scheduleDispatch();
+      }
+    }
+  }
+
+  /*
+   * Checks to see if there are any effects applied to the
+   * supplied selection, and supplies that information to the
+   * registered listeners. All effects are checked in a single
+   * pass over the selection's spans, courtesy of the
+   * EffectSnapshot, and the results go into a reused
+   * EffectState.
+   * 
+   * Uses isSelectionChanging to avoid updating anything
+   * while this callback is in progress (e.g., registrant
+   * updates a ToggleButton, causing its
+   * OnCheckedChangeListener to fire, causing it to try to
+   * update the RichEditText as if the user had clicked upon
+   * it.
+   */
+  private void dispatchSelectionChanged(int start, int end) {
+    if (selectionListener != null || effectStateListener != null) {
+      Editable text=getText();
+
+      if (!cursorContext.isAttachedTo(text)) {
+        cursorContext.attach(text);
+      }
+
+      // typing inside a run of formatting leaves the effects
+      // at the cursor as they were, so skip the scan
+      if (start != end || !cursorContext.covers(start)) {
+        Metrics sink=metrics;
+        long started=Metrics.begin(sink);
+
+        materializeSpans(Math.min(start, end) - CursorContext.REACH,
+                         Math.max(start, end) + CursorContext.REACH);
+
+        snapshot.scan(text, scanSelection.set(start, end),
+                      getSpanIndex(), registry.getEnabledMask());
+        effectState.update(snapshot);
+        snapshot.clear();
+
+        if (start == end) {
+          cursorContext.update(start);
+        }
+        else {
+          cursorContext.invalidate();
+        }
+
+        Metrics.end(sink, RichEditMetrics.SELECTION_SCAN, null, started);
+      }
+
+      isSelectionChanging=true;
+
+      if (effectStateListener != null) {
+        effectStateListener.onEffectStateChanged(start, end, effectState);
+      }
+
+      if (selectionListener != null) {
+        selectionListener.onEffectStateChanged(start, end, effectState);
+      }
+
+      isSelectionChanging=false;
+    }
+  }
+
+  /*
+   * Arranges for dispatcher to run, per the dispatch policy,
+   * unless it is already scheduled to run.
+   */
+  private void scheduleDispatch() {
+    if (dispatchPolicy == DISPATCH_DEBOUNCED) {
+      removeCallbacks(dispatcher);
+      postDelayed(dispatcher, dispatchDelay);
+      dispatchPending=true;
+    }
+    else if (!dispatchPending) {
+      dispatchPending=true;
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+        if (frameDispatcher == null) {
+          frameDispatcher=new FrameDispatcher(dispatcher);
+        }
+
+        Choreographer.getInstance().postFrameCallback(frameDispatcher);
+      }
+      else {
+        post(dispatcher);
+      }
+    }
+  }
+
+  /*
+   * Cancels any scheduled-but-not-yet-run dispatch.
+   */
+  private void cancelDispatch() {
+    if (dispatchPending) {
+      removeCallbacks(dispatcher);
+
+      if (frameDispatcher != null) {
+        Choreographer.getInstance().removeFrameCallback(frameDispatcher);
+      }
+
+      dispatchPending=false;
+    }
+  }
+
+  /*
+   * Interface for listener object to be registered by
+   * setOnSelectionChangedListener().
+   */
+  public interface OnSelectionChangedListener {
+    /*
+     * Provides details of the new selection, including the
+     * start and ending character positions, and a roster of
+     * all effects presently applied (so you can bulk-update
+     * a toolbar when the selection changes).
      */
     void onSelectionChanged(int start, int end, List<Effect<?>> effects);
   }
 
+  /*
+   * Interface for listener object to be registered by
+   * setOnEffectStateChangedListener().
+   */
+  public interface OnEffectStateChangedListener {
+    /*
+     * Provides details of the new selection, including the
+     * start and ending character positions, and the effects
+     * presently applied. The EffectState is reused across
+     * calls, so only use it within this method.
+     */
+    void onEffectStateChanged(int start, int end, EffectState state);
+  }
+
+  /*
+   * Something to do when a keyboard shortcut or menu item is
+   * used; see bindKey() and bindMenuItem().
+   */
+  public interface Action {
+    /*
+     * Called on the main application thread. Return true if
+     * the key or menu item was handled, false to let it be
+     * handled as if there were no binding.
+     */
+    boolean perform(RichEditText editor);
+  }
+
+  /*
+   * Interface for listener object to be supplied to
+   * applyEffectInBackground() or
+   * EffectBatch.commitInBackground().
+   */
+  public interface OnEffectsAppliedListener {
+    /*
+     * Called on the main application thread once the effects
+     * have been applied.
+     */
+    void onEffectsApplied(RichEditText editor);
+
+    /*
+     * Called on the main application thread if the effects
+     * were not applied, as the text they were to be applied
+     * to was deleted or replaced, or kept changing while the
+     * work was being done. The editor's contents are
+     * unchanged.
+     */
+    void onEffectsDiscarded(RichEditText editor);
+  }
+
+  /*
+   * Interface for listener object to be supplied to
+   * setOnOpsListener().
+   */
+  public interface OnOpsListener {
+    /*
+     * Called on the main application thread with the ops,
+     * in order, made since the last call. The list is the
+     * listener's to keep.
+     */
+    void onOps(RichEditText editor, List<RichEditOp> ops);
+  }
+
+  /*
+   * Interface for listener object to be supplied to
+   * loadHtml().
+   */
+  public interface OnContentLoadedListener {
+    /*
+     * Called on the main application thread once the loaded
+     * content is in the editor.
+     */
+    void onContentLoaded(RichEditText editor);
+
+    /*
+     * Called on the main application thread if the content
+     * could not be read, or could not be parsed (in which case
+     * the exception's cause is what was thrown). The editor's
+     * contents are unchanged.
+     */
+    void onContentLoadFailed(RichEditText editor, IOException e);
+  }
+
+  /*
+   * Saved instance state for setSaveStateToFileEnabled(): a
+   * StateStore key for the content, plus the selection.
+   */
+  static class ContentState extends BaseSavedState {
+    final String key;
+    final int selectionStart;
+    final int selectionEnd;
+
+    ContentState(Parcelable superState, String key, int selectionStart,
+                 int selectionEnd) {
+      super(superState);
+      this.key=key;
+      this.selectionStart=selectionStart;
+      this.selectionEnd=selectionEnd;
+    }
+
+    private ContentState(Parcel in) {
+      super(in);
+      key=in.readString();
+      selectionStart=in.readInt();
+      selectionEnd=in.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+      super.writeToParcel(out, flags);
+      out.writeString(key);
+      out.writeInt(selectionStart);
+      out.writeInt(selectionEnd);
+    }
+
+    public static final Parcelable.Creator<ContentState> CREATOR=
+        new Parcelable.Creator<ContentState>() {
+          public ContentState createFromParcel(Parcel in) {
+            return(new ContentState(in));
+          }
+
+          public ContentState[] newArray(int size) {
+            return(new ContentState[size]);
+          }
+        };
+  }
+
+  /*
+   * Delivers effect state changes to an
+   * OnSelectionChangedListener, converting the EffectState
+   * into the roster of effects that it expects.
+   */
+  private static class SelectionChangedAdapter implements
+      OnEffectStateChangedListener {
+    private final OnSelectionChangedListener listener;
+
+    SelectionChangedAdapter(OnSelectionChangedListener listener) {
+      this.listener=listener;
+    }
+
+    @Override
+    public void onEffectStateChanged(int start, int end,
+                                     EffectState state) {
+      listener.onSelectionChanged(start, end,
+                                  state.getEffects(new ArrayList<Effect<?>>()));
+    }
+  }
+
+  /*
+   * Rebuilds what depends on the positions of the effects in
+   * the registry, after it changes.
+   */
+  private void onEffectsChanged() {
+    snapshot=new EffectSnapshot(registry.getEffects());
+    effectState=new EffectState(registry.getEffects());
+    cursorContext.invalidate();
+
+    if (spanIndex != null) {
+      spanIndex.detach();
+      spanIndex=new SpanIndex(registry.getEffects());
+    }
+
+    if (undoHistory != null) {
+      undoHistory.setSpanIndex(getSpanIndex());
+    }
+
+    if (htmlExporter != null) {
+      htmlExporter.detach();
+      htmlExporter=null;
+    }
+  }
+
+  /*
+   * Sets up the standard keyboard shortcuts and the menu
+   * items for the action modes.
+   */
+  private void bindDefaultActions() {
+    int ctrlShift=KeyEvent.META_CTRL_ON | KeyEvent.META_SHIFT_ON;
+
+    bindKeyToToggle(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_B, BOLD);
+    bindKeyToToggle(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_I, ITALIC);
+    bindKeyToToggle(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_U, UNDERLINE);
+    bindKeyToToggle(ctrlShift, KeyEvent.KEYCODE_X, STRIKETHROUGH);
+    bindKeyToToggle(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_PERIOD,
+                    SUPERSCRIPT);
+    bindKeyToToggle(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_COMMA,
+                    SUBSCRIPT);
+    bindKey(ctrlShift, KeyEvent.KEYCODE_L, LINE_ALIGNMENT,
+            Layout.Alignment.ALIGN_NORMAL);
+    bindKey(ctrlShift, KeyEvent.KEYCODE_E, LINE_ALIGNMENT,
+            Layout.Alignment.ALIGN_CENTER);
+    bindKey(ctrlShift, KeyEvent.KEYCODE_R, LINE_ALIGNMENT,
+            Layout.Alignment.ALIGN_OPPOSITE);
+
+    bindMenuItemToToggle(R.id.cwac_richedittext_underline, UNDERLINE);
+    bindMenuItemToToggle(R.id.cwac_richedittext_strike, STRIKETHROUGH);
+    bindMenuItemToToggle(R.id.cwac_richedittext_superscript, SUPERSCRIPT);
+    bindMenuItemToToggle(R.id.cwac_richedittext_subscript, SUBSCRIPT);
+    bindMenuItem(R.id.cwac_richedittext_serif, TYPEFACE, "serif");
+    bindMenuItem(R.id.cwac_richedittext_sans, TYPEFACE, "sans");
+    bindMenuItem(R.id.cwac_richedittext_mono, TYPEFACE, "monospace");
+    bindMenuItem(R.id.cwac_richedittext_normal, LINE_ALIGNMENT,
+                 Layout.Alignment.ALIGN_NORMAL);
+    bindMenuItem(R.id.cwac_richedittext_center, LINE_ALIGNMENT,
+                 Layout.Alignment.ALIGN_CENTER);
+    bindMenuItem(R.id.cwac_richedittext_opposite, LINE_ALIGNMENT,
+                 Layout.Alignment.ALIGN_OPPOSITE);
+    bindMenuItemToToggle(R.id.cwac_richedittext_bold, BOLD);
+    bindMenuItemToToggle(R.id.cwac_richedittext_italic, ITALIC);
+  }
+
+  /*
+   * Binds an undo/redo shortcut, unless the app has already
+   * bound something else to that key.
+   */
+  private void bindDefaultUndoKey(int modifiers, int keyCode, Action action) {
+    if (actions.getKeyAction(modifiers, keyCode) == null) {
+      bindKey(modifiers, keyCode, action);
+    }
+  }
+
+  /*
+   * Unbinds an undo/redo shortcut, if it is still bound to
+   * the supplied Action.
+   */
+  private void unbindDefaultUndoKey(int modifiers, int keyCode,
+                                    Action action) {
+    if (actions.getKeyAction(modifiers, keyCode) == action) {
+      bindKey(modifiers, keyCode, null);
+    }
+  }
+
+  /*
+   * Returns the undo history, if enabled, attached to our
+   * current text.
+   */
+  private UndoHistory getUndoHistory() {
+    if (undoHistory != null && !undoHistory.isAttachedTo(getText())) {
+      undoHistory.attach(getText());
+      undoHistory.setSpanIndex(getSpanIndex());
+    }
+
+    return(undoHistory);
+  }
+
+  /*
+   * Brackets span changes made by effects, so the undo
+   * history, if enabled, records them. If amend is true, the
+   * changes are folded into the most recent undo entry.
+   */
+  private void beginUndoableChange(boolean amend) {
+    UndoHistory history=getUndoHistory();
+
+    if (opLog != null) {
+      opLog.forgetEdit();
+    }
+
+    if (htmlExporter != null) {
+      htmlExporter.forgetEdit();
+    }
+
+    cursorContext.forgetEdit();
+
+    if (history != null) {
+      history.beginChange(amend);
+    }
+  }
+
+  private void endUndoableChange() {
+    if (undoHistory != null) {
+      undoHistory.endChange();
+    }
+  }
+
+  private void finishUndoOrRedo(int cursor) {
+    if (cursor >= 0) {
+      setSelection(Math.min(cursor, length()));
+    }
+
+    requestSelectionDispatch(getSelectionStart(), getSelectionEnd());
+  }
+
+  /*
+   * Arranges for updateLazySpans() to be called, if it is not
+   * already scheduled. If stale is true, it does its work
+   * even if the screen is still within the spans it kept
+   * last time (e.g., as more have been put back since).
+   */
+  private void scheduleLazySpans(boolean stale) {
+    lazySpansStale|=stale;
+
+    if (!lazySpansPending) {
+      lazySpansPending=true;
+      post(lazySpansUpdater);
+    }
+  }
+
+  /*
+   * Keeps the effect spans for the lines on screen, plus a
+   * screen's worth above and below, on the text, setting the
+   * rest aside. That only happens once the screen is no
+   * longer within what was kept last time, so scrolling a bit
+   * does not cost anything. Setting aside spans can change the
+   * height of the text above the screen (e.g., for relative
+   * sizes), so the text at the top of the screen is kept
+   * there.
+   */
+  private void updateLazySpans() {
+    Layout layout=getLayout();
+    int height=getHeight();
+
+    if (runTable == null || layout == null || height == 0
+        || !runTable.isAttachedTo(getText())) {
+      return;
+    }
+
+    if (!effectJobs.isEmpty()) {
+      // finishEffectJob() will call us again
+      lazySpansStale=true;
+
+      return;
+    }
+
+    int top=getScrollY();
+    int topLine=layout.getLineForVertical(top);
+    int first=layout.getLineStart(topLine);
+    int last=layout.getLineEnd(layout.getLineForVertical(top + height));
+
+    if (!lazySpansStale && first >= lazyStart && last <= lazyEnd) {
+      return;
+    }
+
+    int offset=top - layout.getLineTop(topLine);
+
+    lazyStart=
+        layout.getLineStart(layout.getLineForVertical(Math.max(0, top
+            - height)));
+    lazyEnd=layout.getLineEnd(layout.getLineForVertical(top + 2 * height));
+    lazySpansStale=false;
+    runTable.retain(lazyStart, lazyEnd);
+
+    layout=getLayout();
+
+    int newTop=layout.getLineTop(layout.getLineForOffset(first)) + offset;
+
+    if (newTop != top) {
+      scrollTo(getScrollX(), newTop);
+    }
+  }
+
+  /*
+   * Puts back any spans set aside for the range, so effects
+   * see all of them.
+   */
+  private void materializeSpans(int start, int end) {
+    if (runTable != null && runTable.isAttachedTo(getText())
+        && runTable.materialize(Math.max(0, start), end) > 0) {
+      scheduleLazySpans(true);
+    }
+  }
+
+  /*
+   * Same as materializeSpans(), widened to whole paragraphs,
+   * for effects (e.g., line alignment) that work on them.
+   */
+  private void materializeParagraphs(int start, int end) {
+    if (runTable != null && runTable.size() > 0) {
+      ParagraphIndex paragraphs=getParagraphIndex();
+
+      materializeSpans(paragraphs.paragraphStart(Math.min(start, end)),
+                       paragraphs.paragraphEnd(Math.max(start, end)));
+    }
+  }
+
+  private void materializeRanges(int[] ranges) {
+    if (runTable != null && runTable.size() > 0 && ranges.length > 0) {
+      int start=Integer.MAX_VALUE;
+      int end=0;
+
+      for (int i=0; i < ranges.length; i++) {
+        start=Math.min(start, ranges[i]);
+        end=Math.max(end, ranges[i]);
+      }
+
+      materializeParagraphs(Math.max(0, start), Math.min(length(), end));
+    }
+  }
+
+  private void materializeSelection() {
+    materializeSpans(Math.min(getSelectionStart(), getSelectionEnd()) - 1,
+                     Math.max(getSelectionStart(), getSelectionEnd()) + 1);
+  }
+
+  private void materializeAllSpans() {
+    if (runTable != null && runTable.isAttachedTo(getText())
+        && runTable.materializeAll() > 0) {
+      scheduleLazySpans(true);
+    }
+  }
+
+  /*
+   * Arranges for compactSpans() to be called the next time
+   * the main application thread is idle, if automatic
+   * compaction is enabled and is not already scheduled.
+   */
+  private void scheduleCompaction() {
+    if (autoCompact && !compactPending) {
+      compactPending=true;
+      Looper.myQueue().addIdleHandler(compactor);
+    }
+  }
+
+  private void cancelCompaction() {
+    if (compactPending) {
+      Looper.myQueue().removeIdleHandler(compactor);
+      compactPending=false;
+    }
+  }
+
+  /*
+   * Editable.Factory that hands back the Editable being
+   * adopted by setEditable() as-is, instead of copying it.
+   * Everything else gets copied as usual.
+   */
+  private static class AdoptingEditableFactory extends Editable.Factory {
+    Editable adopt=null;
+
+    @Override
+    public Editable newEditable(CharSequence source) {
+      if (source != null && source == adopt) {
+        return(adopt);
+      }
+
+      return(super.newEditable(source));
+    }
+  }
+
+  /*
+   * Runs a Runnable on the next frame, for
+   * DISPATCH_NEXT_FRAME. Only used on API Level 16+.
+   */
+  private static class FrameDispatcher implements
+      Choreographer.FrameCallback {
+    private final Runnable task;
+
+    FrameDispatcher(Runnable task) {
+      this.task=task;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      task.run();
+    }
+  }
+
   private static class UnderlineEffect extends
       SimpleBooleanEffect<UnderlineSpan> {
     UnderlineEffect() {
-      super(UnderlineSpan.class);
+      super(UnderlineSpan.class, new SpanFactory<UnderlineSpan>() {
+        @Override
+        public UnderlineSpan newSpan() {
+          return(new UnderlineSpan());
+        }
+      });
     }
   }
 
   private static class StrikethroughEffect extends
       SimpleBooleanEffect<StrikethroughSpan> {
     StrikethroughEffect() {
-      super(StrikethroughSpan.class);
+      super(StrikethroughSpan.class, new SpanFactory<StrikethroughSpan>() {
+        @Override
+        public StrikethroughSpan newSpan() {
+          return(new StrikethroughSpan());
+        }
+      });
     }
   }
 
   private static class SuperscriptEffect extends
       SimpleBooleanEffect<SuperscriptSpan> {
     SuperscriptEffect() {
-      super(SuperscriptSpan.class);
+      super(SuperscriptSpan.class, new SpanFactory<SuperscriptSpan>() {
+        @Override
+        public SuperscriptSpan newSpan() {
+          return(new SuperscriptSpan());
+        }
+      });
     }
   }
 
   private static class SubscriptEffect extends
       SimpleBooleanEffect<SubscriptSpan> {
     SubscriptEffect() {
-      super(SubscriptSpan.class);
+      super(SubscriptSpan.class, new SpanFactory<SubscriptSpan>() {
+        @Override
+        public SubscriptSpan newSpan() {
+          return(new SubscriptSpan());
+        }
+      });
     }
   }
 }
@@ -0,0 +1,573 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Saves and restores RichEditText content in a compact binary
+ * format, far faster than going through HTML, and without
+ * losing anything the built-in effects can express (e.g.,
+ * typeface families and relative sizes).
+ *
+ * The format is:
+ *
+ * - the magic number "CWRE" and a format version (varint)
+ *
+ * - the text: its length in chars and in bytes (varints),
+ * then the text itself, as UTF-8
+ *
+ * - a string table, for typeface families: a count (varint),
+ * then each string as its length in chars (varint) and UTF-8
+ *
+ * - the spans, sorted by start: a count (varint), then for
+ * each, the effect ID and the span's point/mark flags (as
+ * the ID times 16, plus the start and end point/mark types
+ * in the upper and lower two bits), the start (as a delta
+ * from the previous start), and the length, as varints,
+ * followed by
+ * the value for effects that have one: an alignment ordinal
+ * (varint), string table index (varint), or relative size
+ * (4-byte float)
+ *
+ * Only the spans of the built-in effects are saved. Effect
+ * IDs are part of the format, so never renumber them.
+ * Version 1 of the format had no flags, with every span
+ * being SPAN_EXCLUSIVE_EXCLUSIVE, and can still be decoded.
+ */
+public class RichTextCodec {
+  private static final int MAGIC=0x43575245; // "CWRE"
+  private static final int VERSION=2;
+  private static final int BOLD=0;
+  private static final int ITALIC=1;
+  private static final int UNDERLINE=2;
+  private static final int STRIKETHROUGH=3;
+  private static final int SUPERSCRIPT=4;
+  private static final int SUBSCRIPT=5;
+  private static final int LINE_ALIGNMENT=6;
+  private static final int TYPEFACE=7;
+  private static final int RELATIVE_SIZE=8;
+  private static final Layout.Alignment[] ALIGNMENTS=
+      Layout.Alignment.values();
+
+  /*
+   * Encodes the text and its effects into a new ByteBuffer,
+   * ready to be read (i.e., already flipped).
+   */
+  public static ByteBuffer encode(Spanned text) {
+    Encoder encoder=new Encoder(text);
+    ByteBuffer result=ByteBuffer.allocate(encoder.size());
+
+    encoder.writeTo(result);
+    result.flip();
+
+    return(result);
+  }
+
+  /*
+   * Encodes the text and its effects into the supplied
+   * ByteBuffer, starting at its current position. Throws
+   * BufferOverflowException if it does not fit, in which case
+   * the buffer's contents are undefined.
+   */
+  public static void encode(Spanned text, ByteBuffer out) {
+    new Encoder(text).writeTo(out);
+  }
+
+  /*
+   * Encodes the text and its effects, writing the result to
+   * the supplied channel (e.g., a FileChannel).
+   */
+  public static void write(Spanned text, WritableByteChannel channel)
+    throws IOException {
+    ByteBuffer buffer=encode(text);
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /*
+   * Decodes content previously written by write(), from the
+   * channel's current position to the end of the file. The
+   * file is memory-mapped, so the bytes are decoded straight
+   * from the page cache, rather than being read into a buffer
+   * first.
+   */
+  public static Editable read(FileChannel channel) throws IOException {
+    long position=channel.position();
+    ByteBuffer buffer=
+        channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    channel.size() - position);
+    Editable result=decode(buffer);
+
+    channel.position(position + buffer.position());
+
+    return(result);
+  }
+
+  /*
+   * Decodes content previously encoded by encode(), starting
+   * at the buffer's current position, and leaving the
+   * position just past the encoded content.
+   */
+  public static Editable decode(ByteBuffer in) throws IOException {
+    try {
+      if (in.getInt() != MAGIC) {
+        throw new IOException("Not RichEditText content");
+      }
+
+      int version=readVarint(in);
+
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported RichEditText content version: "
+            + version);
+      }
+
+      char[] chars=new char[readLength(in)];
+
+      readVarint(in); // byte count, only needed to skip the text
+      readUtf8(in, chars);
+
+      String[] strings=new String[readLength(in)];
+
+      for (int i=0; i < strings.length; i++) {
+        char[] string=new char[readLength(in)];
+
+        readUtf8(in, string);
+        strings[i]=new String(string);
+      }
+
+      SpannableStringBuilder result=
+          new SpannableStringBuilder(new String(chars));
+      int count=readVarint(in);
+      int start=0;
+
+      for (int i=0; i < count; i++) {
+        int id=readVarint(in);
+        int flags=Spannable.SPAN_EXCLUSIVE_EXCLUSIVE;
+
+        if (version > 1) {
+          flags=((id & 0x0C) << 2) | (id & 0x03);
+          id>>>=4;
+        }
+
+        start+=readVarint(in);
+
+        int end=start + readVarint(in);
+        Object span=readSpan(in, id, strings);
+
+        if (start < 0 || end < start || end > chars.length) {
+          throw new IOException("Span outside of text");
+        }
+
+        // setSpan() throws a RuntimeException for these
+        if ((flags & Spanned.SPAN_PARAGRAPH) == Spanned.SPAN_PARAGRAPH
+            && (!isParagraphBoundary(chars, start)
+                || !isParagraphBoundary(chars, end))) {
+          throw new IOException("Paragraph span not on paragraph boundaries");
+        }
+
+        result.setSpan(span, start, end, flags);
+      }
+
+      return(result);
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Truncated RichEditText content");
+    }
+    catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt RichEditText content");
+    }
+  }
+
+  private static boolean isParagraphBoundary(char[] chars, int position) {
+    return(position == 0 || position == chars.length
+        || chars[position - 1] == '\n');
+  }
+
+  private static Object readSpan(ByteBuffer in, int id, String[] strings)
+    throws IOException {
+    switch (id) {
+      case BOLD:
+        return(new StyleSpan(Typeface.BOLD));
+      case ITALIC:
+        return(new StyleSpan(Typeface.ITALIC));
+      case UNDERLINE:
+        return(new UnderlineSpan());
+      case STRIKETHROUGH:
+        return(new StrikethroughSpan());
+      case SUPERSCRIPT:
+        return(new SuperscriptSpan());
+      case SUBSCRIPT:
+        return(new SubscriptSpan());
+      case LINE_ALIGNMENT:
+        return(new AlignmentSpan.Standard(ALIGNMENTS[readVarint(in)]));
+      case TYPEFACE:
+        return(new TypefaceSpan(strings[readVarint(in)]));
+      case RELATIVE_SIZE:
+        return(new RelativeSizeSpan(in.getFloat()));
+      default:
+        throw new IOException("Unknown effect ID: " + id);
+    }
+  }
+
+  /*
+   * Decodes UTF-8 from the buffer, filling the supplied array
+   * of chars.
+   */
+  private static void readUtf8(ByteBuffer in, char[] chars)
+    throws IOException {
+    int i=0;
+
+    while (i < chars.length) {
+      int b=in.get() & 0xFF;
+
+      if (b < 0x80) {
+        chars[i++]=(char)b;
+      }
+      else if ((b & 0xE0) == 0xC0) {
+        chars[i++]=(char)(((b & 0x1F) << 6) | (in.get() & 0x3F));
+      }
+      else if ((b & 0xF0) == 0xE0) {
+        chars[i++]=
+            (char)(((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+      }
+      else if ((b & 0xF8) == 0xF0 && i + 1 < chars.length) {
+        int codePoint=
+            ((b & 0x07) << 18) | ((in.get() & 0x3F) << 12)
+                | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F);
+
+        if (codePoint > Character.MAX_CODE_POINT) {
+          throw new IOException("Invalid UTF-8 in RichEditText content");
+        }
+
+        i+=Character.toChars(codePoint, chars, i);
+      }
+      else {
+        throw new IOException("Invalid UTF-8 in RichEditText content");
+      }
+    }
+  }
+
+  /*
+   * Reads a count of chars or strings, each of which takes
+   * at least a byte, so a count that is negative or bigger
+   * than what is left of the buffer means corrupt content,
+   * rather than something to allocate an array for.
+   */
+  private static int readLength(ByteBuffer in) throws IOException {
+    int length=readVarint(in);
+
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("Corrupt RichEditText content");
+    }
+
+    return(length);
+  }
+
+  private static int readVarint(ByteBuffer in) throws IOException {
+    int result=0;
+
+    for (int shift=0; shift < 35; shift+=7) {
+      int b=in.get();
+
+      result|=(b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return(result);
+      }
+    }
+
+    throw new IOException("Invalid varint in RichEditText content");
+  }
+
+  /*
+   * Works out what needs to be written for the supplied text,
+   * so we know how big the result will be before writing it.
+   */
+  private static class Encoder {
+    private final Spanned text;
+    private final int textBytes;
+    private final ArrayList<String> strings=new ArrayList<String>();
+    private int[] records=new int[80];
+    private int count=0;
+    private long[] order;
+    private int size;
+
+    Encoder(Spanned text) {
+      this.text=text;
+
+      for (Object span : text.getSpans(0, text.length(), Object.class)) {
+        int start=text.getSpanStart(span);
+        int end=text.getSpanEnd(span);
+
+        if (start == end) {
+          continue;
+        }
+
+        int flags=text.getSpanFlags(span);
+
+        if (span instanceof StyleSpan) {
+          int style=((StyleSpan)span).getStyle();
+
+          // StyleEffect never creates BOLD_ITALIC spans, but
+          // other code might
+          if ((style & Typeface.BOLD) != 0) {
+            add(BOLD, start, end, flags, 0);
+          }
+
+          if ((style & Typeface.ITALIC) != 0) {
+            add(ITALIC, start, end, flags, 0);
+          }
+        }
+        else if (span instanceof UnderlineSpan) {
+          add(UNDERLINE, start, end, flags, 0);
+        }
+        else if (span instanceof StrikethroughSpan) {
+          add(STRIKETHROUGH, start, end, flags, 0);
+        }
+        else if (span instanceof SuperscriptSpan) {
+          add(SUPERSCRIPT, start, end, flags, 0);
+        }
+        else if (span instanceof SubscriptSpan) {
+          add(SUBSCRIPT, start, end, flags, 0);
+        }
+        else if (span instanceof AlignmentSpan.Standard) {
+          add(LINE_ALIGNMENT, start, end, flags,
+              ((AlignmentSpan.Standard)span).getAlignment().ordinal());
+        }
+        else if (span instanceof TypefaceSpan) {
+          String family=((TypefaceSpan)span).getFamily();
+          int index=strings.indexOf(family);
+
+          if (index < 0) {
+            index=strings.size();
+            strings.add(family);
+          }
+
+          add(TYPEFACE, start, end, flags, index);
+        }
+        else if (span instanceof RelativeSizeSpan) {
+          add(RELATIVE_SIZE, start, end, flags,
+              Float.floatToIntBits(((RelativeSizeSpan)span).getSizeChange()));
+        }
+      }
+
+      // sort by start, packing the start and the record's
+      // position into a long, so starts can be deltas
+      order=new long[count];
+
+      for (int i=0; i < count; i++) {
+        order[i]=((long)records[i * 5 + 1] << 32) | i;
+      }
+
+      Arrays.sort(order);
+
+      textBytes=utf8Length(text);
+      size=4 + varintSize(VERSION) + varintSize(text.length())
+          + varintSize(textBytes) + textBytes + varintSize(strings.size());
+
+      for (String string : strings) {
+        int bytes=utf8Length(string);
+
+        size+=varintSize(string.length()) + bytes;
+      }
+
+      size+=varintSize(count);
+
+      int previousStart=0;
+
+      for (long packed : order) {
+        int i=(int)packed;
+        int id=records[i * 5];
+        int start=records[i * 5 + 1];
+
+        size+=
+            varintSize(records[i * 5 + 4]) + varintSize(start - previousStart)
+                + varintSize(records[i * 5 + 2] - start);
+
+        if (id == LINE_ALIGNMENT || id == TYPEFACE) {
+          size+=varintSize(records[i * 5 + 3]);
+        }
+        else if (id == RELATIVE_SIZE) {
+          size+=4;
+        }
+
+        previousStart=start;
+      }
+    }
+
+    int size() {
+      return(size);
+    }
+
+    void writeTo(ByteBuffer out) {
+      out.putInt(MAGIC);
+      writeVarint(out, VERSION);
+      writeVarint(out, text.length());
+      writeVarint(out, textBytes);
+      writeUtf8(out, text);
+      writeVarint(out, strings.size());
+
+      for (String string : strings) {
+        writeVarint(out, string.length());
+        writeUtf8(out, string);
+      }
+
+      writeVarint(out, order.length);
+
+      int previousStart=0;
+
+      for (long packed : order) {
+        int i=(int)packed;
+        int id=records[i * 5];
+        int start=records[i * 5 + 1];
+
+        writeVarint(out, records[i * 5 + 4]);
+        writeVarint(out, start - previousStart);
+        writeVarint(out, records[i * 5 + 2] - start);
+
+        if (id == LINE_ALIGNMENT || id == TYPEFACE) {
+          writeVarint(out, records[i * 5 + 3]);
+        }
+        else if (id == RELATIVE_SIZE) {
+          out.putInt(records[i * 5 + 3]);
+        }
+
+        previousStart=start;
+      }
+    }
+
+    /*
+     * Records a span, with its point/mark flags packed in with
+     * its ID, as written.
+     */
+    private void add(int id, int start, int end, int flags, int value) {
+      if (records.length < (count + 1) * 5) {
+        int[] grown=new int[records.length * 2];
+
+        System.arraycopy(records, 0, grown, 0, records.length);
+        records=grown;
+      }
+
+      records[count * 5]=id;
+      records[count * 5 + 1]=start;
+      records[count * 5 + 2]=end;
+      records[count * 5 + 3]=value;
+      records[count * 5 + 4]=
+          (id << 4) | ((flags >> 2) & 0x0C) | (flags & 0x03);
+      count++;
+    }
+
+    private static int utf8Length(CharSequence chars) {
+      int result=0;
+      int length=chars.length();
+
+      for (int i=0; i < length; i++) {
+        char c=chars.charAt(i);
+
+        if (c < 0x80) {
+          result++;
+        }
+        else if (c < 0x800) {
+          result+=2;
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(chars.charAt(i + 1))) {
+          result+=4;
+          i++;
+        }
+        else {
+          result+=3;
+        }
+      }
+
+      return(result);
+    }
+
+    private static void writeUtf8(ByteBuffer out, CharSequence chars) {
+      int length=chars.length();
+
+      for (int i=0; i < length; i++) {
+        char c=chars.charAt(i);
+
+        if (c < 0x80) {
+          out.put((byte)c);
+        }
+        else if (c < 0x800) {
+          out.put((byte)(0xC0 | (c >> 6)));
+          out.put((byte)(0x80 | (c & 0x3F)));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(chars.charAt(i + 1))) {
+          int codePoint=Character.toCodePoint(c, chars.charAt(++i));
+
+          out.put((byte)(0xF0 | (codePoint >> 18)));
+          out.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+          out.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+          out.put((byte)(0x80 | (codePoint & 0x3F)));
+        }
+        else {
+          // includes unpaired surrogates, written as-is so the
+          // char count still lines up when decoding
+          out.put((byte)(0xE0 | (c >> 12)));
+          out.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+          out.put((byte)(0x80 | (c & 0x3F)));
+        }
+      }
+    }
+
+    private static int varintSize(int value) {
+      int result=1;
+
+      while ((value & ~0x7F) != 0) {
+        value>>>=7;
+        result++;
+      }
+
+      return(result);
+    }
+
+    private static void writeVarint(ByteBuffer out, int value) {
+      while ((value & ~0x7F) != 0) {
+        out.put((byte)((value & 0x7F) | 0x80));
+        value>>>=7;
+      }
+
+      out.put((byte)value);
+    }
+  }
+}
@@ -0,0 +1,502 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Holds effect spans that have been taken off of the text
+ * they belong to, for RichEditText.setLazySpansEnabled().
+ * Spans of the text far from what is on screen still cost
+ * heap, layout work, and every getSpans() call, so retain()
+ * takes them off, and puts back the ones near the screen.
+ * materialize() puts back the ones in a range, for effects
+ * to work on.
+ *
+ * Each span set aside becomes a run: its start, end, and
+ * flags, plus the ID of its style (an effect and a value,
+ * shared by every run with that effect and value), in
+ * parallel primitive arrays sorted by start. What goes back
+ * is a new span, made by the effect. The span object itself
+ * is only held onto if something may still refer to it (see
+ * setKeepingSpans()), or if the effect would not make the
+ * same class of span.
+ *
+ * Edits move the runs after them along, as the text would
+ * have moved the spans. Runs touching an edit are put back
+ * before it happens, so the text can adjust them as their
+ * flags say, so this needs to be the first TextWatcher told
+ * of edits (see attach()).
+ *
+ * As a SpanWatcher, this also keeps track of the stretch of
+ * text that all of the effect spans on the text touch, so
+ * retain() only has to look at what is leaving the range it
+ * keeps, rather than at the whole text.
+ */
+class RunTable implements SpanWatcher, TextWatcher, NoCopySpan {
+  private final List<Effect<?>> effects;
+  private final Listener listener;
+  private final ArrayList<Style> styles=new ArrayList<Style>();
+  private final HashMap<Style, Integer> styleIds=
+      new HashMap<Style, Integer>();
+  private Spannable text=null;
+  private boolean keepingSpans=false;
+  private int[] starts=new int[16];
+  private int[] ends=new int[16];
+  private int[] flags=new int[16];
+  private int[] ids=new int[16];
+  private Object[] kept=null;
+  private int count=0;
+  private int longest=0;
+  private int liveStart=0;
+  private int liveEnd=0;
+
+  RunTable(List<Effect<?>> effects, Listener listener) {
+    this.effects=effects;
+    this.listener=listener;
+  }
+
+  /*
+   * Attaches to the text, with top priority, so we hear about
+   * edits before other TextWatchers. Any runs held for other
+   * text are dropped, so put them back first.
+   */
+  void attach(Spannable text) {
+    detach();
+    this.text=text;
+    liveStart=0;
+    liveEnd=text.length();
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE
+        | Spanned.SPAN_PRIORITY);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    clear();
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  /*
+   * Call with true while something (e.g., the undo history)
+   * may hold onto effect spans, so spans set aside from then
+   * on are put back as themselves, rather than as new spans.
+   */
+  void setKeepingSpans(boolean keep) {
+    keepingSpans=keep;
+  }
+
+  /*
+   * Returns the number of spans held off of the text.
+   */
+  int size() {
+    return(count);
+  }
+
+  /*
+   * Takes the effect spans that are entirely outside the
+   * range off of the text, and puts back the ones held for
+   * the range. Only the parts of the text outside the range
+   * that effect spans may touch are searched.
+   */
+  void retain(int start, int end) {
+    materialize(start, end);
+
+    Object[] before=
+        liveStart < start ? text.getSpans(liveStart,
+                                          Math.min(start, liveEnd),
+                                          Object.class) : null;
+    Object[] after=
+        liveEnd > end ? text.getSpans(Math.max(end, liveStart), liveEnd,
+                                      Object.class) : null;
+    int total=(before == null ? 0 : before.length)
+        + (after == null ? 0 : after.length);
+
+    liveStart=start;
+    liveEnd=end;
+
+    if (total > 0) {
+      Object[] found=new Object[total];
+      long[] order=new long[total];
+      int n=0;
+
+      // everything before the range starts before everything
+      // after it, so sorting both together sorts each
+      if (before != null) {
+        System.arraycopy(before, 0, found, 0, before.length);
+      }
+
+      if (after != null) {
+        System.arraycopy(after, 0, found, total - after.length,
+                         after.length);
+      }
+
+      // pack each start with the span's index into a long,
+      // start in the high bits, so a plain sort orders them by
+      // start
+      for (int i=0; i < found.length; i++) {
+        int spanStart=text.getSpanStart(found[i]);
+        int spanEnd=text.getSpanEnd(found[i]);
+
+        if (spanStart < spanEnd && (spanEnd <= start || spanStart >= end)
+            && isEffectSpan(found[i])) {
+          order[n++]=((long)spanStart << 32) | i;
+        }
+      }
+
+      if (n > 0) {
+        Arrays.sort(order, 0, n);
+        insert(found, order, n);
+      }
+    }
+  }
+
+  /*
+   * Puts back the spans held for anything touching the
+   * range, returning the number put back.
+   */
+  int materialize(int start, int end) {
+    int low=firstAfter(start - longest - 1);
+    int high=firstAfter(end);
+    int next=low;
+    int restored=0;
+
+    try {
+      for (int i=low; i < high; i++) {
+        if (ends[i] >= start) {
+          if (restored++ == 0) {
+            listener.onMovingSpans(true);
+          }
+
+          Object span=(kept == null ? null : kept[i]);
+
+          if (span == null) {
+            span=styles.get(ids[i]).newSpan();
+          }
+
+          text.setSpan(span, starts[i], ends[i], flags[i]);
+        }
+        else {
+          move(i, next++);
+        }
+      }
+
+      if (restored > 0) {
+        for (int i=high; i < count; i++) {
+          move(i, next++);
+        }
+
+        if (kept != null) {
+          Arrays.fill(kept, next, count, null);
+        }
+
+        count=next;
+
+        if (count == 0) {
+          clear();
+        }
+      }
+    }
+    finally {
+      if (restored > 0) {
+        listener.onMovingSpans(false);
+      }
+    }
+
+    return(restored);
+  }
+
+  int materializeAll() {
+    return(materialize(0, Integer.MAX_VALUE - 1));
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    if (s == text) {
+      materialize(start, start + count);
+    }
+  }
+
+  /*
+   * Nothing touching the edit is held anymore, so the runs
+   * after it just move by the change in length.
+   */
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    if (s == text) {
+      int delta=count - before;
+
+      if (delta != 0) {
+        for (int i=firstAfter(start + before); i < this.count; i++) {
+          starts[i]+=delta;
+          ends[i]+=delta;
+        }
+      }
+
+      liveStart=(liveStart >= start + before ? liveStart + delta
+          : Math.min(liveStart, start));
+      liveEnd=(liveEnd >= start + before ? liveEnd + delta
+          : Math.min(liveEnd, start));
+      live(start, start + count);
+    }
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // handled in onTextChanged()
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    if (text == this.text && (end < liveStart || start > liveEnd)
+        && isEffectSpan(what)) {
+      live(start, end);
+    }
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    // nothing to do: what is left still touches the live range
+  }
+
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    onSpanAdded(text, what, nstart, nend);
+  }
+
+  /*
+   * Widens the stretch of text that effect spans on the text
+   * touch to take in the range.
+   */
+  private void live(int start, int end) {
+    liveStart=Math.min(liveStart, start);
+    liveEnd=Math.max(liveEnd, end);
+  }
+
+  /*
+   * Returns the index of the first run starting after the
+   * position.
+   */
+  private int firstAfter(int position) {
+    int low=0;
+    int high=count;
+
+    while (low < high) {
+      int mid=(low + high) >>> 1;
+
+      if (starts[mid] <= position) {
+        low=mid + 1;
+      }
+      else {
+        high=mid;
+      }
+    }
+
+    return(low);
+  }
+
+  /*
+   * Takes n of the spans off of the text, and merges them
+   * into the runs, working back from the end so the arrays
+   * are only replaced when they need to grow. order holds
+   * the starts and indexes into found of the spans to take,
+   * packed as in retain(), sorted.
+   */
+  private void insert(Object[] found, long[] order, int n) {
+    int total=count + n;
+
+    if (total > starts.length) {
+      grow(Math.max(total, starts.length * 2));
+    }
+
+    int i=count - 1;
+    int j=n - 1;
+
+    listener.onMovingSpans(true);
+
+    try {
+      for (int k=total - 1; k >= 0; k--) {
+        int spanStart=(j >= 0 ? (int)(order[j] >>> 32) : 0);
+
+        if (j < 0 || (i >= 0 && starts[i] > spanStart)) {
+          move(i--, k);
+        }
+        else {
+          Object span=found[(int)order[j]];
+          Effect<?> effect=effectFor(span);
+
+          starts[k]=spanStart;
+          ends[k]=text.getSpanEnd(span);
+          flags[k]=text.getSpanFlags(span);
+          ids[k]=styleId(effect, span);
+          keep(k, keepingSpans || span.getClass() != effect.getSpanClass()
+              ? span : null);
+          longest=Math.max(longest, ends[k] - starts[k]);
+          text.removeSpan(span);
+          j--;
+        }
+      }
+    }
+    finally {
+      listener.onMovingSpans(false);
+    }
+
+    count=total;
+  }
+
+  private void grow(int capacity) {
+    starts=Arrays.copyOf(starts, capacity);
+    ends=Arrays.copyOf(ends, capacity);
+    flags=Arrays.copyOf(flags, capacity);
+    ids=Arrays.copyOf(ids, capacity);
+
+    if (kept != null) {
+      kept=Arrays.copyOf(kept, capacity);
+    }
+  }
+
+  private void keep(int index, Object span) {
+    if (kept == null && span != null) {
+      kept=new Object[starts.length];
+    }
+
+    if (kept != null) {
+      kept[index]=span;
+    }
+  }
+
+  private void move(int from, int to) {
+    if (from != to) {
+      starts[to]=starts[from];
+      ends[to]=ends[from];
+      flags[to]=flags[from];
+      ids[to]=ids[from];
+
+      if (kept != null) {
+        kept[to]=kept[from];
+      }
+    }
+  }
+
+  private void clear() {
+    count=0;
+    longest=0;
+    kept=null;
+    styles.clear();
+    styleIds.clear();
+  }
+
+  /*
+   * Returns the ID of the style of the span, adding the
+   * style if it is new.
+   */
+  private int styleId(Effect<?> effect, Object span) {
+    Style style=new Style(effect, effect.getSpanValue(span));
+    Integer id=styleIds.get(style);
+
+    if (id == null) {
+      id=styles.size();
+      styles.add(style);
+      styleIds.put(style, id);
+    }
+
+    return(id);
+  }
+
+  private Effect<?> effectFor(Object span) {
+    for (Effect<?> effect : effects) {
+      if (effect.isEffectSpan(span)) {
+        return(effect);
+      }
+    }
+
+    return(null);
+  }
+
+  private boolean isEffectSpan(Object span) {
+    return(effectFor(span) != null);
+  }
+
+  /*
+   * Told when spans are about to be moved on or off of the
+   * text (true), and when that is done (false), so other
+   * watchers can ignore it.
+   */
+  interface Listener {
+    void onMovingSpans(boolean moving);
+  }
+
+  /*
+   * An effect and its value, which every run with that
+   * effect and value shares.
+   */
+  private static class Style {
+    final Effect<?> effect;
+    final Object value;
+
+    Style(Effect<?> effect, Object value) {
+      this.effect=effect;
+      this.value=value;
+    }
+
+    Object newSpan() {
+      return(newSpan(effect, value));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Style)) {
+        return(false);
+      }
+
+      Style style=(Style)other;
+
+      return(effect == style.effect
+          && (value == null ? style.value == null : value.equals(style.value)));
+    }
+
+    @Override
+    public int hashCode() {
+      return(System.identityHashCode(effect) * 31
+          + (value == null ? 0 : value.hashCode()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Object newSpan(Effect<T> effect, Object value) {
+      return(effect.newSpan((T)value));
+    }
+  }
+}
@@ -16,11 +16,28 @@ package com.commonsware.cwac.richedit;
 
 import android.widget.EditText;
 
-class Selection {
+/*
+ * A range of text that an effect is looked up in or applied
+ * to: the editor's selection, or a cursor if start and end
+ * are the same. start is never after end.
+ */
+public class Selection {
   int start;
   int end;
 
   Selection(int _start, int _end) {
+    set(_start, _end);
+  }
+
+  Selection(EditText editor) {
+    this(editor.getSelectionStart(), editor.getSelectionEnd());
+  }
+
+  /*
+   * Repositions this selection, so a long-lived Selection can
+   * be reused instead of allocating a new one.
+   */
+  Selection set(int _start, int _end) {
     start=_start;
     end=_end;
 
@@ -29,17 +46,61 @@ class Selection {
       end=start;
       start=temp;
     }
+
+    return(this);
   }
 
-  Selection(EditText editor) {
-    this(editor.getSelectionStart(), editor.getSelectionEnd());
+  public int getStart() {
+    return(start);
+  }
+
+  public int getEnd() {
+    return(end);
   }
 
-  boolean isEmpty() {
+  public boolean isEmpty() {
     return(start == end);
   }
 
   void apply(EditText editor) {
     editor.setSelection(start, end);
   }
+
+  /*
+   * Start of the range to pass to getSpans() to find all
+   * spans that might affect this selection. A collapsed
+   * selection (i.e., a cursor) needs to look at the character
+   * on either side of it.
+   */
+  int scanStart() {
+    return(isEmpty() ? start - 1 : start);
+  }
+
+  /*
+   * End of the range to pass to getSpans(), per scanStart().
+   */
+  int scanEnd() {
+    return(isEmpty() ? end + 1 : end);
+  }
+
+  /*
+   * Returns true if a span running from spanStart to spanEnd
+   * would be returned by getSpans(queryStart, queryEnd, ...),
+   * so we can filter spans retrieved for a wider range
+   * without another getSpans() call.
+   */
+  public static boolean intersects(int spanStart, int spanEnd,
+                                   int queryStart, int queryEnd) {
+    if (spanStart > queryEnd || spanEnd < queryStart) {
+      return(false);
+    }
+
+    if (spanStart != spanEnd && queryStart != queryEnd) {
+      if (spanStart == queryEnd || spanEnd == queryStart) {
+        return(false);
+      }
+    }
+
+    return(true);
+  }
 }
\ No newline at end of file
@@ -15,54 +15,72 @@
 package com.commonsware.cwac.richedit;
 
 import android.text.Spannable;
+import android.text.Spanned;
 import android.util.Log;
 
 public class SimpleBooleanEffect<T> extends Effect<Boolean> {
   private Class<T> clazz;
+  private SpanFactory<T> factory;
 
+  /*
+   * Creates spans of the supplied class via its no-argument
+   * constructor, using reflection. Prefer the other
+   * constructor, supplying a SpanFactory.
+   */
   SimpleBooleanEffect(Class<T> clazz) {
+    this(clazz, new ReflectiveSpanFactory<T>(clazz));
+  }
+
+  /*
+   * Creates spans of the supplied class via the supplied
+   * SpanFactory.
+   */
+  public SimpleBooleanEffect(Class<T> clazz, SpanFactory<T> factory) {
     this.clazz=clazz;
+    this.factory=factory;
   }
 
   @Override
-  boolean existsInSelection(RichEditText editor) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
-    boolean result=false;
-
-    if (selection.start != selection.end) {
-      T[] spans=str.getSpans(selection.start, selection.end, clazz);
+  protected Class<?> getSpanClass() {
+    return(clazz);
+  }
 
-      result=(spans.length > 0);
-    }
-    else {
-      T[] spansBefore=
-          str.getSpans(selection.start - 1, selection.end, clazz);
-      T[] spansAfter=
-          str.getSpans(selection.start, selection.end + 1, clazz);
+  @Override
+  protected boolean isEffectSpan(Object span) {
+    return(clazz.isInstance(span));
+  }
 
-      result=(spansBefore.length > 0 && spansAfter.length > 0);
-    }
+  @Override
+  protected Boolean getSpanValue(Object span) {
+    return(true);
+  }
 
-    return(result);
+  @Override
+  protected Object newSpan(Boolean value) {
+    return(factory.newSpan());
   }
 
   @Override
-  Boolean valueInSelection(RichEditText editor) {
-    return(existsInSelection(editor));
+  protected boolean existsInSpans(Spanned str, Selection selection,
+                                  Object[] spans, int count) {
+    return(spansCoverSelection(str, selection, spans, count));
   }
 
   @Override
-  void applyToSelection(RichEditText editor, Boolean add) {
-    applyToSpannable(editor.getText(), new Selection(editor), add);
+  protected Boolean valueInSpans(Spanned str, Selection selection,
+                                 Object[] spans, int count) {
+    return(existsInSpans(str, selection, spans, count));
   }
 
-  void applyToSpannable(Spannable str, Selection selection, Boolean add) {
-    T[] spans=str.getSpans(selection.start, selection.end, clazz);
+  @Override
+  protected void applyToSpannable(Spannable str, Selection selection,
+                                  Boolean add, SpanIndex index) {
+    SpanBuffer spans=findSpans(str, selection.start, selection.end, index);
     int prologueStart=Integer.MAX_VALUE;
     int epilogueEnd=-1;
 
-    for (T span : spans) {
+    for (int i=0; i < spans.count; i++) {
+      Object span=spans.spans[i];
       int spanStart=str.getSpanStart(span);
 
       if (spanStart < selection.start) {
@@ -78,31 +96,65 @@ public class SimpleBooleanEffect<T> extends Effect<Boolean> {
       str.removeSpan(span);
     }
 
-    try {
-      if (add) {
-        str.setSpan(clazz.newInstance(), selection.start,
-                    selection.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    if (add) {
+      setSpan(str, selection.start, selection.end);
+    }
+    else {
+      if (prologueStart < Integer.MAX_VALUE) {
+        setSpan(str, prologueStart, selection.start);
       }
-      else {
-        if (prologueStart < Integer.MAX_VALUE) {
-          str.setSpan(clazz.newInstance(), prologueStart,
-                      selection.start,
-                      Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-
-        if (epilogueEnd > -1) {
-          str.setSpan(clazz.newInstance(), selection.end,
-                      epilogueEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
+
+      if (epilogueEnd > -1) {
+        setSpan(str, selection.end, epilogueEnd);
       }
     }
-    catch (IllegalAccessException e) {
-      Log.e("RichEditText",
-            "Exception instantiating " + clazz.toString(), e);
+  }
+
+  private void setSpan(Spannable str, int start, int end) {
+    T span=factory.newSpan();
+
+    if (span != null) {
+      str.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+  }
+
+  /*
+   * Creates the spans for a SimpleBooleanEffect. Each call to
+   * newSpan() needs to return a new span, as a span object
+   * can only be attached to a Spannable once.
+   */
+  public interface SpanFactory<T> {
+    T newSpan();
+  }
+
+  /*
+   * SpanFactory that creates spans via their no-argument
+   * constructor, for when there is only a span class to go
+   * on. Returns null (and logs why) if that fails.
+   */
+  private static class ReflectiveSpanFactory<T> implements
+      SpanFactory<T> {
+    private final Class<T> clazz;
+
+    ReflectiveSpanFactory(Class<T> clazz) {
+      this.clazz=clazz;
     }
-    catch (InstantiationException e) {
-      Log.e("RichEditText",
-            "Exception instantiating " + clazz.toString(), e);
+
+    @Override
+    public T newSpan() {
+      try {
+        return(clazz.newInstance());
+      }
+      catch (IllegalAccessException e) {
+        Log.e("RichEditText",
+              "Exception instantiating " + clazz.toString(), e);
+      }
+      catch (InstantiationException e) {
+        Log.e("RichEditText",
+              "Exception instantiating " + clazz.toString(), e);
+      }
+
+      return(null);
     }
   }
 }
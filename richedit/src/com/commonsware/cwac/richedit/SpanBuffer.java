@@ -0,0 +1,71 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+/*
+ * A growable array of spans, used to hand span lookup
+ * results around without allocating a new array each time.
+ * Only the first count entries of spans are meaningful.
+ */
+public class SpanBuffer {
+  Object[] spans;
+  int count;
+
+  SpanBuffer() {
+    this(new Object[16], 0);
+  }
+
+  SpanBuffer(Object[] spans, int count) {
+    this.spans=spans;
+    this.count=count;
+  }
+
+  public int getCount() {
+    return(count);
+  }
+
+  public Object getSpan(int position) {
+    return(spans[position]);
+  }
+
+  void add(Object span) {
+    if (count == spans.length) {
+      Object[] bigger=new Object[Math.max(16, count * 2)];
+
+      System.arraycopy(spans, 0, bigger, 0, count);
+      spans=bigger;
+    }
+
+    spans[count++]=span;
+  }
+
+  void addAll(SpanBuffer other) {
+    for (int i=0; i < other.count; i++) {
+      add(other.spans[i]);
+    }
+  }
+
+  /*
+   * Empties the buffer, dropping the references to the spans
+   * so they can be collected.
+   */
+  void clear() {
+    for (int i=0; i < count; i++) {
+      spans[i]=null;
+    }
+
+    count=0;
+  }
+}
@@ -0,0 +1,116 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Spannable;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Merges spans that touch or overlap and have the same
+ * effect value (e.g., two abutting bold spans, or two
+ * overlapping "serif" typeface spans) into one span.
+ * Toggling effects on and off over the course of an editing
+ * session tends to leave lots of these fragments behind,
+ * slowing down layout and span lookups.
+ *
+ * Only spans with the same flags are merged, so the merged
+ * span behaves the same as the fragments did as text is
+ * entered at its edges.
+ */
+class SpanCompactor {
+  /*
+   * Compacts the spans of all of the supplied effects,
+   * returning the number of spans removed.
+   */
+  static int compact(Spannable str, List<Effect<?>> effects) {
+    int removed=0;
+
+    for (Effect<?> effect : effects) {
+      removed+=compact(str, effect);
+    }
+
+    return(removed);
+  }
+
+  /*
+   * Compacts the spans of the supplied effect, returning the
+   * number of spans removed.
+   */
+  static int compact(Spannable str, Effect<?> effect) {
+    SpanBuffer spans=effect.findSpans(str, 0, str.length(), null);
+
+    if (spans.count < 2) {
+      return(0);
+    }
+
+    // sort by start, packing the start and the span's
+    // position into a long, to avoid repeated getSpanStart()
+    // calls (which can be expensive) while sorting
+    long[] order=new long[spans.count];
+
+    for (int i=0; i < spans.count; i++) {
+      order[i]=((long)str.getSpanStart(spans.spans[i]) << 32) | i;
+    }
+
+    Arrays.sort(order);
+
+    int removed=0;
+    Object run=null;
+    Object runValue=null;
+    int runStart=-1;
+    int runEnd=-1;
+    int runFlags=0;
+    boolean runGrew=false;
+
+    for (long packed : order) {
+      Object span=spans.spans[(int)packed];
+      int spanStart=(int)(packed >>> 32);
+      int spanEnd=str.getSpanEnd(span);
+      int spanFlags=str.getSpanFlags(span);
+      Object spanValue=effect.getSpanValue(span);
+
+      if (run != null && spanStart <= runEnd && spanFlags == runFlags
+          && (spanValue == null ? runValue == null
+              : spanValue.equals(runValue))) {
+        str.removeSpan(span);
+        removed++;
+
+        if (spanEnd > runEnd) {
+          runEnd=spanEnd;
+          runGrew=true;
+        }
+      }
+      else {
+        if (runGrew) {
+          str.setSpan(run, runStart, runEnd, runFlags);
+        }
+
+        run=span;
+        runValue=spanValue;
+        runStart=spanStart;
+        runEnd=spanEnd;
+        runFlags=spanFlags;
+        runGrew=false;
+      }
+    }
+
+    if (runGrew) {
+      str.setSpan(run, runStart, runEnd, runFlags);
+    }
+
+    return(removed);
+  }
+}
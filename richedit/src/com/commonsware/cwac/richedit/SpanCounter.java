@@ -0,0 +1,87 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import java.util.List;
+
+/*
+ * Counts effect spans being added to and removed from the
+ * text it is attached to, for a RichEditMetrics, whatever
+ * is doing the adding and removing (effects, edits, undo,
+ * and so on).
+ */
+class SpanCounter implements SpanWatcher, NoCopySpan {
+  private final List<Effect<?>> effects;
+  private final RichEditMetrics metrics;
+  private Spannable text=null;
+
+  SpanCounter(List<Effect<?>> effects, RichEditMetrics metrics) {
+    this.effects=effects;
+    this.metrics=metrics;
+  }
+
+  void attach(Spannable text) {
+    detach();
+    this.text=text;
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    if (text == this.text && isEffectSpan(what)) {
+      metrics.recordCount(RichEditMetrics.COUNT_SPANS_ADDED, 1);
+    }
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    if (text == this.text && isEffectSpan(what)) {
+      metrics.recordCount(RichEditMetrics.COUNT_SPANS_REMOVED, 1);
+    }
+  }
+
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    // only additions and removals are counted
+  }
+
+  private boolean isEffectSpan(Object span) {
+    for (Effect<?> effect : effects) {
+      if (effect.isEffectSpan(span)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+}
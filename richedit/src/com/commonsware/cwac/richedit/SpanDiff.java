@@ -0,0 +1,211 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/*
+ * A Spannable that layers span changes over a base Spanned
+ * without changing the base. Reads see the base plus the
+ * changes, so effects can be applied to a SpanDiff as if it
+ * were the real text, building up the net set of span
+ * mutations. A span that is set and later removed never
+ * touches the base at all, and a base span that is removed
+ * and set again is just moved.
+ *
+ * applyTo() then makes those mutations on a real Spannable:
+ * all removals, followed by all sets, in the order they were
+ * made.
+ */
+class SpanDiff implements Spannable {
+  private final Spanned base;
+  private final IdentityHashMap<Object, int[]> setSpans=
+      new IdentityHashMap<Object, int[]>();
+  private final ArrayList<Object> setOrder=new ArrayList<Object>();
+  private final IdentityHashMap<Object, Boolean> removedSpans=
+      new IdentityHashMap<Object, Boolean>();
+
+  SpanDiff(Spanned base) {
+    this.base=base;
+  }
+
+  /*
+   * Returns true if there are span mutations to apply.
+   */
+  boolean hasChanges() {
+    return(!setSpans.isEmpty() || !removedSpans.isEmpty());
+  }
+
+  /*
+   * Returns the number of span mutations to apply.
+   */
+  int size() {
+    return(setSpans.size() + removedSpans.size());
+  }
+
+  /*
+   * Makes the span mutations on the supplied Spannable,
+   * normally the base.
+   */
+  void applyTo(Spannable str) {
+    applyTo(str, 0);
+  }
+
+  /*
+   * Makes the span mutations on the supplied Spannable, with
+   * the positions of the sets moved by the offset, for a base
+   * that is a copy of part of that Spannable starting there.
+   */
+  void applyTo(Spannable str, int offset) {
+    for (Object span : removedSpans.keySet()) {
+      str.removeSpan(span);
+    }
+
+    for (Object span : setOrder) {
+      int[] position=setSpans.get(span);
+
+      str.setSpan(span, position[0] + offset, position[1] + offset,
+                  position[2]);
+    }
+  }
+
+  @Override
+  public void setSpan(Object what, int start, int end, int flags) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("setSpan (" + start + " ... "
+          + end + ") is invalid for length " + length());
+    }
+
+    if (setSpans.put(what, new int[] { start, end, flags }) == null) {
+      setOrder.add(what);
+    }
+
+    removedSpans.remove(what);
+  }
+
+  @Override
+  public void removeSpan(Object what) {
+    if (setSpans.remove(what) != null) {
+      setOrder.remove(what);
+    }
+
+    if (base.getSpanStart(what) >= 0) {
+      removedSpans.put(what, Boolean.TRUE);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> T[] getSpans(int start, int end, Class<T> type) {
+    T[] baseSpans=base.getSpans(start, end, type);
+    ArrayList<T> result=new ArrayList<T>(baseSpans.length);
+
+    for (T span : baseSpans) {
+      if (!removedSpans.containsKey(span) && !setSpans.containsKey(span)) {
+        result.add(span);
+      }
+    }
+
+    for (Object span : setOrder) {
+      int[] position=setSpans.get(span);
+
+      if (type.isInstance(span)
+          && Selection.intersects(position[0], position[1], start, end)) {
+        result.add((T)span);
+      }
+    }
+
+    return(result.toArray((T[])Array.newInstance(type, result.size())));
+  }
+
+  @Override
+  public int getSpanStart(Object tag) {
+    int[] position=setSpans.get(tag);
+
+    if (position != null) {
+      return(position[0]);
+    }
+
+    return(removedSpans.containsKey(tag) ? -1 : base.getSpanStart(tag));
+  }
+
+  @Override
+  public int getSpanEnd(Object tag) {
+    int[] position=setSpans.get(tag);
+
+    if (position != null) {
+      return(position[1]);
+    }
+
+    return(removedSpans.containsKey(tag) ? -1 : base.getSpanEnd(tag));
+  }
+
+  @Override
+  public int getSpanFlags(Object tag) {
+    int[] position=setSpans.get(tag);
+
+    if (position != null) {
+      return(position[2]);
+    }
+
+    return(removedSpans.containsKey(tag) ? 0 : base.getSpanFlags(tag));
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public int nextSpanTransition(int start, int limit, Class type) {
+    Class<?> kind=(type == null ? Object.class : type);
+    Object[] spans=getSpans(start, limit, kind);
+
+    for (Object span : spans) {
+      int spanStart=getSpanStart(span);
+      int spanEnd=getSpanEnd(span);
+
+      if (spanStart > start && spanStart < limit) {
+        limit=spanStart;
+      }
+
+      if (spanEnd > start && spanEnd < limit) {
+        limit=spanEnd;
+      }
+    }
+
+    return(limit);
+  }
+
+  @Override
+  public int length() {
+    return(base.length());
+  }
+
+  @Override
+  public char charAt(int index) {
+    return(base.charAt(index));
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return(base.subSequence(start, end));
+  }
+
+  @Override
+  public String toString() {
+    return(base.toString());
+  }
+}
@@ -0,0 +1,535 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import java.util.List;
+
+/*
+ * An index of the spans in a Spannable, holding one
+ * augmented interval tree per effect, so looking up an
+ * effect's spans for a range is O(log n + k) and does not
+ * allocate, unlike getSpans().
+ *
+ * The index attaches itself to the Spannable as a
+ * SpanWatcher (to hear about spans being added, removed, or
+ * moved) and as a TextWatcher (to shift span positions as
+ * text is inserted and deleted). Results are returned in
+ * order of span start, rather than the order in which spans
+ * were added.
+ *
+ * Effects written outside of this package only ever pass
+ * a SpanIndex along, to Effect.findSpans().
+ */
+public class SpanIndex implements SpanWatcher, TextWatcher, NoCopySpan {
+  private final List<Effect<?>> effects;
+  private final Tree[] trees;
+  private final SpanBuffer results=new SpanBuffer();
+  private Spannable text=null;
+  private int edits=0;
+
+  SpanIndex(List<Effect<?>> effects) {
+    this.effects=effects;
+    trees=new Tree[effects.size()];
+
+    for (int i=0; i < trees.length; i++) {
+      trees[i]=new Tree();
+    }
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  /*
+   * Indexes the spans presently in the supplied text, then
+   * watches it to stay in sync. Detaches from any text that
+   * was previously being watched.
+   */
+  void attach(Spannable text) {
+    detach();
+
+    Object[] spans=text.getSpans(0, text.length(), Object.class);
+
+    for (Object span : spans) {
+      add(span, text.getSpanStart(span), text.getSpanEnd(span),
+          text.getSpanFlags(span));
+    }
+
+    this.text=text;
+    text.setSpan(this, 0, text.length(),
+                 Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    for (Tree tree : trees) {
+      tree.clear();
+    }
+  }
+
+  /*
+   * Returns the supplied effect's spans that
+   * getSpans(start, end, ...) would return, or null if this
+   * index does not track the effect. The buffer is reused by
+   * the next query.
+   */
+  SpanBuffer query(Effect<?> effect, int start, int end) {
+    int position=effects.indexOf(effect);
+
+    if (position < 0) {
+      return(null);
+    }
+
+    results.clear();
+    trees[position].query(start, end, results);
+
+    return(results);
+  }
+
+  /*
+   * Returns the number of edits of the text applied to the
+   * index so far, so other watchers, called in the middle of
+   * an edit, can tell whether the index has caught up.
+   */
+  int getEditCount() {
+    return(edits);
+  }
+
+  /*
+   * Returns the number of spans indexed for the supplied
+   * effect, or -1 if this index does not track the effect.
+   */
+  int size(Effect<?> effect) {
+    int position=effects.indexOf(effect);
+
+    return(position < 0 ? -1 : trees[position].size());
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    if (text == this.text) {
+      add(what, start, end, text.getSpanFlags(what));
+    }
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    if (text == this.text) {
+      for (int i=0; i < trees.length; i++) {
+        if (effects.get(i).isEffectSpan(what)) {
+          trees[i].remove(what, start);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    if (text == this.text) {
+      for (int i=0; i < trees.length; i++) {
+        if (effects.get(i).isEffectSpan(what)) {
+          trees[i].change(what, ostart, nstart, nend,
+                          text.getSpanFlags(what));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    // unused
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    if (s == text) {
+      for (Tree tree : trees) {
+        tree.shift(start, before, count);
+      }
+
+      edits++;
+    }
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // unused
+  }
+
+  private void add(Object span, int start, int end, int flags) {
+    for (int i=0; i < trees.length; i++) {
+      if (effects.get(i).isEffectSpan(span)) {
+        trees[i].add(span, start, end, flags);
+      }
+    }
+  }
+
+  /*
+   * An augmented interval tree, stored as parallel arrays.
+   * Entries [0, sorted) are sorted by start and form an
+   * implicit balanced tree (each subrange's midpoint is the
+   * root of that subrange), with maxEnds holding the largest
+   * end in each subtree. Entries [sorted, count) were added
+   * since the last rebuild and are scanned linearly. Removed
+   * entries are nulled out in place. Once there are enough
+   * added or removed entries, the tree is rebuilt, so the
+   * cost of rebuilding is spread across the changes.
+   */
+  static class Tree {
+    private static final int MIN_SLACK=64;
+    private static final int MARK=Spanned.SPAN_MARK_MARK & 3;
+    private Object[] spans=new Object[16];
+    private int[] starts=new int[16];
+    private int[] ends=new int[16];
+    private int[] flags=new int[16];
+    private int[] maxEnds=new int[16];
+    private int[] order=new int[16];
+    private int[] scratch=new int[16];
+    private int count=0;
+    private int sorted=0;
+    private int removed=0;
+
+    int size() {
+      return(count - removed);
+    }
+
+    void clear() {
+      for (int i=0; i < count; i++) {
+        spans[i]=null;
+      }
+
+      count=0;
+      sorted=0;
+      removed=0;
+    }
+
+    void add(Object span, int start, int end, int spanFlags) {
+      if (count == spans.length) {
+        grow();
+      }
+
+      spans[count]=span;
+      starts[count]=start;
+      ends[count]=end;
+      flags[count]=spanFlags;
+      count++;
+    }
+
+    void remove(Object span, int start) {
+      int i=find(span, start, start);
+
+      if (i >= 0) {
+        spans[i]=null;
+        removed++;
+      }
+    }
+
+    void change(Object span, int oldStart, int start, int end,
+                int spanFlags) {
+      int i=find(span, start, oldStart);
+
+      if (i >= 0) {
+        if (starts[i] == start && ends[i] == end) {
+          return;
+        }
+
+        spans[i]=null;
+        removed++;
+      }
+
+      add(span, start, end, spanFlags);
+    }
+
+    /*
+     * Adds the spans intersecting start and end, per the
+     * rules of getSpans(), to the buffer.
+     */
+    void query(int start, int end, SpanBuffer into) {
+      if (count - sorted > MIN_SLACK + sorted / 16
+          || removed > MIN_SLACK + count / 4) {
+        rebuild();
+      }
+
+      search(0, sorted, start, end, into);
+
+      for (int i=sorted; i < count; i++) {
+        if (spans[i] != null
+            && Selection.intersects(starts[i], ends[i], start, end)) {
+          into.add(spans[i]);
+        }
+      }
+    }
+
+    /*
+     * Adjusts span positions for the replacement of the text
+     * from start to start+before with after characters. This
+     * follows the SpannableStringBuilder rules: positions on
+     * the edges of replaced text stay on the edges of the new
+     * text, while positions at an insertion point or inside
+     * deleted text go to the end of the new text if they are
+     * a "point" and stay at the start if they are a "mark".
+     * The platform may also report the moves via
+     * onSpanChanged(), which is then ignored, or corrects us
+     * where we differ.
+     */
+    void shift(int start, int before, int after) {
+      int end=start + before;
+      boolean inOrder=true;
+
+      for (int i=0; i < count; i++) {
+        boolean startIsPoint=((flags[i] >>> 4) & 3) != MARK;
+        boolean endIsPoint=(flags[i] & 3) != MARK;
+
+        starts[i]=shiftPosition(starts[i], start, end, after, startIsPoint);
+        ends[i]=shiftPosition(ends[i], start, end, after, endIsPoint);
+
+        if (ends[i] < starts[i]) {
+          ends[i]=starts[i];
+        }
+
+        if (i < sorted) {
+          // treating maxEnds as points keeps them upper bounds
+          maxEnds[i]=shiftPosition(maxEnds[i], start, end, after, true);
+
+          if (i > 0 && starts[i] < starts[i - 1]) {
+            inOrder=false;
+          }
+        }
+      }
+
+      if (!inOrder) {
+        sorted=0;
+      }
+    }
+
+    private static int shiftPosition(int position, int start, int end,
+                                     int after, boolean isPoint) {
+      if (position < start) {
+        return(position);
+      }
+
+      if (position > end) {
+        return(position + after - (end - start));
+      }
+
+      if (start < end) {
+        if (position == start) {
+          return(start);
+        }
+
+        if (position == end) {
+          return(start + after);
+        }
+      }
+
+      return(isPoint ? start + after : start);
+    }
+
+    private void search(int lo, int hi, int start, int end,
+                        SpanBuffer into) {
+      while (lo < hi) {
+        int mid=(lo + hi) >>> 1;
+
+        if (maxEnds[mid] < start) {
+          return;
+        }
+
+        search(lo, mid, start, end, into);
+
+        if (starts[mid] > end) {
+          return;
+        }
+
+        if (spans[mid] != null
+            && Selection.intersects(starts[mid], ends[mid], start, end)) {
+          into.add(spans[mid]);
+        }
+
+        lo=mid + 1;
+      }
+    }
+
+    /*
+     * Returns the position of the span, trying the sorted
+     * entries with the likely starts first, then falling back
+     * to a linear scan.
+     */
+    private int find(Object span, int start, int altStart) {
+      int result=findSorted(span, start);
+
+      if (result < 0 && altStart != start) {
+        result=findSorted(span, altStart);
+      }
+
+      for (int i=count - 1; result < 0 && i >= 0; i--) {
+        if (spans[i] == span) {
+          result=i;
+        }
+      }
+
+      return(result);
+    }
+
+    private int findSorted(Object span, int start) {
+      int lo=0;
+      int hi=sorted;
+
+      while (lo < hi) {
+        int mid=(lo + hi) >>> 1;
+
+        if (starts[mid] < start) {
+          lo=mid + 1;
+        }
+        else {
+          hi=mid;
+        }
+      }
+
+      for (int i=lo; i < sorted && starts[i] == start; i++) {
+        if (spans[i] == span) {
+          return(i);
+        }
+      }
+
+      return(-1);
+    }
+
+    /*
+     * Drops removed entries, sorts everything by start, and
+     * recomputes maxEnds.
+     */
+    private void rebuild() {
+      int live=0;
+
+      for (int i=0; i < count; i++) {
+        if (spans[i] != null) {
+          order[live++]=i;
+        }
+      }
+
+      mergeSort(0, live);
+
+      Object[] newSpans=new Object[spans.length];
+      int[] newStarts=maxEnds;
+      int[] newEnds=scratch;
+      int[] newFlags=new int[flags.length];
+
+      for (int i=0; i < live; i++) {
+        int j=order[i];
+
+        newSpans[i]=spans[j];
+        newStarts[i]=starts[j];
+        newEnds[i]=ends[j];
+        newFlags[i]=flags[j];
+      }
+
+      scratch=starts;
+      maxEnds=ends;
+      spans=newSpans;
+      starts=newStarts;
+      ends=newEnds;
+      flags=newFlags;
+      count=live;
+      sorted=live;
+      removed=0;
+      augment(0, live);
+    }
+
+    private int augment(int lo, int hi) {
+      if (lo >= hi) {
+        return(Integer.MIN_VALUE);
+      }
+
+      int mid=(lo + hi) >>> 1;
+      int max=
+          Math.max(ends[mid],
+                   Math.max(augment(lo, mid), augment(mid + 1, hi)));
+
+      maxEnds[mid]=max;
+
+      return(max);
+    }
+
+    /*
+     * Stable sort of order[lo, hi) by start, using scratch.
+     */
+    private void mergeSort(int lo, int hi) {
+      if (hi - lo < 2) {
+        return;
+      }
+
+      int mid=(lo + hi) >>> 1;
+
+      mergeSort(lo, mid);
+      mergeSort(mid, hi);
+
+      if (starts[order[mid - 1]] <= starts[order[mid]]) {
+        return;
+      }
+
+      System.arraycopy(order, lo, scratch, lo, hi - lo);
+
+      int i=lo;
+      int j=mid;
+
+      for (int k=lo; k < hi; k++) {
+        if (j >= hi
+            || (i < mid && starts[scratch[i]] <= starts[scratch[j]])) {
+          order[k]=scratch[i++];
+        }
+        else {
+          order[k]=scratch[j++];
+        }
+      }
+    }
+
+    private void grow() {
+      int size=spans.length * 2;
+      Object[] newSpans=new Object[size];
+
+      System.arraycopy(spans, 0, newSpans, 0, count);
+      spans=newSpans;
+      starts=growInts(starts, size);
+      ends=growInts(ends, size);
+      flags=growInts(flags, size);
+      maxEnds=growInts(maxEnds, size);
+      order=new int[size];
+      scratch=new int[size];
+    }
+
+    private int[] growInts(int[] array, int size) {
+      int[] result=new int[size];
+
+      System.arraycopy(array, 0, result, 0, count);
+
+      return(result);
+    }
+  }
+}
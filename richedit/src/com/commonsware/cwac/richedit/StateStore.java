@@ -0,0 +1,152 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.content.Context;
+import android.text.Editable;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Holds RichEditText content for saved instance state in
+ * app-private files, so only a key needs to go in the
+ * parcel. All file I/O happens on one background thread, in
+ * the order requested, so a restore always sees the save
+ * that preceded it.
+ *
+ * Files are not deleted when they are read, as the restored
+ * editor may need them again (e.g., if it is rotated before
+ * the restore completes). Instead, each editor keeps
+ * overwriting the same file, and files that have not been
+ * written in a week are removed when state is next saved.
+ */
+class StateStore {
+  private static final String DIR="cwac-richedit-state";
+  private static final String SUFFIX=".cwre";
+  private static final long STALE_MS=7L*24*60*60*1000;
+  private static final ExecutorService EXECUTOR=
+      Executors.newSingleThreadExecutor();
+
+  static String newKey() {
+    return(UUID.randomUUID().toString());
+  }
+
+  /*
+   * Writes the encoded content to the file for the key, via
+   * a temporary file, so a half-written file never replaces
+   * a good one.
+   */
+  static void save(Context ctxt, final String key, final ByteBuffer content) {
+    final Context app=ctxt.getApplicationContext();
+
+    EXECUTOR.execute(new Runnable() {
+      public void run() {
+        File dir=app.getDir(DIR, Context.MODE_PRIVATE);
+        File tmp=new File(dir, key + ".tmp");
+
+        try {
+          FileOutputStream fos=new FileOutputStream(tmp);
+
+          try {
+            FileChannel channel=fos.getChannel();
+
+            while (content.hasRemaining()) {
+              channel.write(content);
+            }
+          }
+          finally {
+            fos.close();
+          }
+
+          if (!tmp.renameTo(new File(dir, key + SUFFIX))) {
+            throw new IOException("Could not rename " + tmp);
+          }
+        }
+        catch (IOException e) {
+          Log.e("RichEditText", "Exception saving state", e);
+          tmp.delete();
+        }
+
+        removeStale(dir);
+      }
+    });
+  }
+
+  /*
+   * Reads the content for the key, calling the callback on
+   * the background thread with the result, or with null if
+   * there is no such content or it could not be read.
+   */
+  static void restore(Context ctxt, final String key,
+                      final Callback callback) {
+    final Context app=ctxt.getApplicationContext();
+
+    EXECUTOR.execute(new Runnable() {
+      public void run() {
+        File file=new File(app.getDir(DIR, Context.MODE_PRIVATE),
+                           key + SUFFIX);
+        Editable content=null;
+
+        if (file.exists()) {
+          try {
+            RandomAccessFile raf=new RandomAccessFile(file, "r");
+
+            try {
+              content=RichTextCodec.read(raf.getChannel());
+            }
+            finally {
+              raf.close();
+            }
+          }
+          catch (IOException e) {
+            Log.e("RichEditText", "Exception restoring state", e);
+          }
+        }
+
+        callback.onRestored(content);
+      }
+    });
+  }
+
+  private static void removeStale(File dir) {
+    File[] files=dir.listFiles();
+
+    if (files != null) {
+      long cutoff=System.currentTimeMillis() - STALE_MS;
+
+      for (File file : files) {
+        if (file.lastModified() < cutoff) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  interface Callback {
+    /*
+     * Called on the background thread with the restored
+     * content, or null if it could not be restored.
+     */
+    void onRestored(Editable content);
+  }
+}
@@ -15,6 +15,7 @@
 package com.commonsware.cwac.richedit;
 
 import android.text.Spannable;
+import android.text.Spanned;
 import android.text.style.StyleSpan;
 
 public class StyleEffect extends Effect<Boolean> {
@@ -25,79 +26,59 @@ public class StyleEffect extends Effect<Boolean> {
   }
 
   @Override
-  boolean existsInSelection(RichEditText editor) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
-    boolean result=false;
-
-    if (selection.start != selection.end) {
-      for (StyleSpan span : getStyleSpans(str, selection)) {
-        if (span.getStyle() == style) {
-          result=true;
-          break;
-        }
-      }
-    }
-    else {
-      StyleSpan[] spansBefore=
-          str.getSpans(selection.start - 1, selection.end,
-                       StyleSpan.class);
-      StyleSpan[] spansAfter=
-          str.getSpans(selection.start, selection.end + 1,
-                       StyleSpan.class);
-
-      for (StyleSpan span : spansBefore) {
-        if (span.getStyle() == style) {
-          result=true;
-          break;
-        }
-      }
+  protected Class<?> getSpanClass() {
+    return(StyleSpan.class);
+  }
 
-      if (result) {
-        result=false;
+  @Override
+  protected boolean isEffectSpan(Object span) {
+    return(span instanceof StyleSpan && ((StyleSpan)span).getStyle() == style);
+  }
 
-        for (StyleSpan span : spansAfter) {
-          if (span.getStyle() == style) {
-            result=true;
-            break;
-          }
-        }
-      }
-    }
+  @Override
+  protected Boolean getSpanValue(Object span) {
+    return(true);
+  }
 
-    return(result);
+  @Override
+  protected Object newSpan(Boolean value) {
+    return(new StyleSpan(style));
   }
 
   @Override
-  Boolean valueInSelection(RichEditText editor) {
-    return(existsInSelection(editor));
+  protected boolean existsInSpans(Spanned str, Selection selection,
+                                  Object[] spans, int count) {
+    return(spansCoverSelection(str, selection, spans, count));
   }
 
   @Override
-  void applyToSelection(RichEditText editor, Boolean add) {
-    applyToSpannable(editor.getText(), new Selection(editor), add);
+  protected Boolean valueInSpans(Spanned str, Selection selection,
+                                 Object[] spans, int count) {
+    return(existsInSpans(str, selection, spans, count));
   }
 
-  void applyToSpannable(Spannable str, Selection selection, Boolean add) {
+  @Override
+  protected void applyToSpannable(Spannable str, Selection selection,
+                                  Boolean add, SpanIndex index) {
+    SpanBuffer spans=findSpans(str, selection.start, selection.end, index);
     int prologueStart=Integer.MAX_VALUE;
     int epilogueEnd=-1;
 
-    for (StyleSpan span : getStyleSpans(str, selection)) {
-      if (span.getStyle() == style) {
-        int spanStart=str.getSpanStart(span);
-
-        if (spanStart < selection.start) {
-          prologueStart=Math.min(prologueStart, spanStart);
-        }
+    for (int i=0; i < spans.count; i++) {
+      Object span=spans.spans[i];
+      int spanStart=str.getSpanStart(span);
 
-        int spanEnd=str.getSpanEnd(span);
+      if (spanStart < selection.start) {
+        prologueStart=Math.min(prologueStart, spanStart);
+      }
 
-        if (spanEnd > selection.end) {
-          epilogueEnd=Math.max(epilogueEnd, spanEnd);
-        }
+      int spanEnd=str.getSpanEnd(span);
 
-        str.removeSpan(span);
+      if (spanEnd > selection.end) {
+        epilogueEnd=Math.max(epilogueEnd, spanEnd);
       }
+
+      str.removeSpan(span);
     }
 
     if (add) {
@@ -116,8 +97,4 @@ public class StyleEffect extends Effect<Boolean> {
       }
     }
   }
-
-  private StyleSpan[] getStyleSpans(Spannable str, Selection selection) {
-    return(str.getSpans(selection.start, selection.end, StyleSpan.class));
-  }
 }
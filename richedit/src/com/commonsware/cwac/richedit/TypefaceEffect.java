@@ -15,39 +15,60 @@
 package com.commonsware.cwac.richedit;
 
 import android.text.Spannable;
+import android.text.Spanned;
 import android.text.style.TypefaceSpan;
 
 public class TypefaceEffect extends Effect<String> {
   @Override
-  boolean existsInSelection(RichEditText editor) {
-    return(valueInSelection(editor) != null);
+  protected Class<?> getSpanClass() {
+    return(TypefaceSpan.class);
   }
 
   @Override
-  String valueInSelection(RichEditText editor) {
-    Selection selection=new Selection(editor);
-    Spannable str=editor.getText();
-    TypefaceSpan[] spans=getTypefaceSpans(str, selection);
+  protected boolean isEffectSpan(Object span) {
+    return(span instanceof TypefaceSpan);
+  }
 
-    if (spans.length > 0) {
-      return(spans[0].getFamily());
-    }
+  @Override
+  protected String getSpanValue(Object span) {
+    return(((TypefaceSpan)span).getFamily());
+  }
 
-    return(null);
+  @Override
+  protected Object newSpan(String value) {
+    return(new TypefaceSpan(value));
+  }
+
+  @Override
+  protected boolean existsInSpans(Spanned str, Selection selection,
+                                  Object[] spans, int count) {
+    return(valueInSpans(str, selection, spans, count) != null);
   }
 
   @Override
-  void applyToSelection(RichEditText editor, String family) {
-    applyToSpannable(editor.getText(), new Selection(editor), family);
+  protected String valueInSpans(Spanned str, Selection selection,
+                                Object[] spans, int count) {
+    for (int i=0; i < count; i++) {
+      if (Selection.intersects(str.getSpanStart(spans[i]),
+                               str.getSpanEnd(spans[i]), selection.start,
+                               selection.end)) {
+        return(((TypefaceSpan)spans[i]).getFamily());
+      }
+    }
+
+    return(null);
   }
 
-  void applyToSpannable(Spannable str, Selection selection,
-                        String family) {
+  @Override
+  protected void applyToSpannable(Spannable str, Selection selection,
+                                  String family, SpanIndex index) {
+    SpanBuffer spans=findSpans(str, selection.start, selection.end, index);
     int prologueStart=Integer.MAX_VALUE;
     int epilogueEnd=-1;
     String oldFamily=null;
 
-    for (TypefaceSpan span : getTypefaceSpans(str, selection)) {
+    for (int i=0; i < spans.count; i++) {
+      TypefaceSpan span=(TypefaceSpan)spans.spans[i];
       int spanStart=str.getSpanStart(span);
 
       if (spanStart < selection.start) {
@@ -80,10 +101,4 @@ public class TypefaceEffect extends Effect<String> {
                   epilogueEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
     }
   }
-
-  private TypefaceSpan[] getTypefaceSpans(Spannable str,
-                                          Selection selection) {
-    return(str.getSpans(selection.start, selection.end,
-                        TypefaceSpan.class));
-  }
 }
@@ -0,0 +1,623 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/*
+ * Undo/redo history for the text it is attached to. Rather
+ * than snapshots of the text, each entry holds the changes
+ * that were made:
+ *
+ * - for edits, as a TextWatcher, the replaced and replacement
+ * text, plus the positions of the effect spans touching them,
+ * so spans trimmed or removed by the edit can be put back
+ *
+ * - for effects, as a SpanWatcher, the effect spans added,
+ * removed, and moved, but only between beginChange() and
+ * endChange(), so the span shuffling that goes along with
+ * edits is not recorded twice
+ *
+ * Consecutive edits at the cursor (typing, backspacing, and
+ * IME composing) are coalesced into one entry, until a
+ * newline is typed. Entries are evicted, oldest first, to keep
+ * the estimated size of the history under its limit.
+ */
+class UndoHistory implements SpanWatcher, TextWatcher, NoCopySpan {
+  static final int DEFAULT_LIMIT=256 * 1024;
+  private static final int OP_COST=32;
+  private static final int SPAN_COST=16;
+  private final List<Effect<?>> effects;
+  private final ArrayList<Entry> undoStack=new ArrayList<Entry>();
+  private final ArrayList<Entry> redoStack=new ArrayList<Entry>();
+  private final IdentityHashMap<Object, Integer> otherFlags=
+      new IdentityHashMap<Object, Integer>();
+  private Editable text=null;
+  private SpanIndex spanIndex=null;
+  private int indexEdits=-1;
+  private int limit=DEFAULT_LIMIT;
+  private int cost=0;
+  private boolean replaying=false;
+  private int paused=0;
+  private int changeDepth=0;
+  private boolean amending=false;
+  private Entry changeEntry=null;
+  private Entry typingEntry=null;
+  private int typingEnd=-1;
+  private String pendingText=null;
+  private SpanSet pendingSpans=null;
+
+  UndoHistory(List<Effect<?>> effects) {
+    this.effects=effects;
+  }
+
+  void attach(Editable text) {
+    detach();
+
+    for (Object span : text.getSpans(0, text.length(), Object.class)) {
+      if (isEffectSpan(span)) {
+        rememberFlags(span, text.getSpanFlags(span));
+      }
+    }
+
+    this.text=text;
+    text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+  }
+
+  void detach() {
+    if (text != null) {
+      text.removeSpan(this);
+      text=null;
+    }
+
+    otherFlags.clear();
+    clear();
+  }
+
+  /*
+   * Supplies the span index, if any, used to find the effect
+   * spans touched by each edit, instead of getSpans().
+   */
+  void setSpanIndex(SpanIndex spanIndex) {
+    this.spanIndex=spanIndex;
+  }
+
+  boolean isAttachedTo(Spannable text) {
+    return(this.text == text);
+  }
+
+  void clear() {
+    undoStack.clear();
+    redoStack.clear();
+    cost=0;
+    typingEntry=null;
+  }
+
+  /*
+   * Sets the limit on the estimated size of the history, in
+   * bytes, evicting old entries if needed.
+   */
+  void setLimit(int limit) {
+    this.limit=limit;
+    trim();
+  }
+
+  boolean canUndo() {
+    return(!undoStack.isEmpty());
+  }
+
+  boolean canRedo() {
+    return(!redoStack.isEmpty());
+  }
+
+  /*
+   * Starts recording effect span changes, which continues
+   * until the matching endChange(). Calls can be nested. If
+   * amend is true, the changes are added to the most recent
+   * entry, if any, rather than getting their own, for
+   * housekeeping changes (e.g., merging spans) that the user
+   * should not have to undo separately.
+   */
+  void beginChange(boolean amend) {
+    if (changeDepth++ == 0) {
+      amending=amend;
+      changeEntry=null;
+      typingEntry=null;
+    }
+  }
+
+  void endChange() {
+    if (--changeDepth == 0) {
+      changeEntry=null;
+    }
+  }
+
+  /*
+   * While paused, effect spans coming and going are not
+   * recorded, even within a change, for spans that are only
+   * being set aside and put back (see RunTable). Calls nest,
+   * so each setPaused(true) needs a setPaused(false).
+   */
+  void setPaused(boolean pause) {
+    paused+=pause ? 1 : -1;
+  }
+
+  /*
+   * Reverts the most recent entry, returning where the
+   * cursor should go, or -1 if the entry did not change the
+   * text.
+   */
+  int undo() {
+    Entry entry=undoStack.remove(undoStack.size() - 1);
+    int cursor=-1;
+
+    typingEntry=null;
+    replaying=true;
+
+    try {
+      for (int i=entry.ops.size() - 1; i >= 0; i--) {
+        int result=entry.ops.get(i).undo(text);
+
+        if (result >= 0) {
+          cursor=result;
+        }
+      }
+    }
+    finally {
+      replaying=false;
+    }
+
+    redoStack.add(entry);
+
+    return(cursor);
+  }
+
+  /*
+   * Re-applies the most recently undone entry, returning
+   * where the cursor should go, or -1 if the entry did not
+   * change the text.
+   */
+  int redo() {
+    Entry entry=redoStack.remove(redoStack.size() - 1);
+    int cursor=-1;
+
+    typingEntry=null;
+    replaying=true;
+
+    try {
+      for (Op op : entry.ops) {
+        int result=op.redo(text);
+
+        if (result >= 0) {
+          cursor=result;
+        }
+      }
+    }
+    finally {
+      replaying=false;
+    }
+
+    undoStack.add(entry);
+
+    return(cursor);
+  }
+
+  @Override
+  public void beforeTextChanged(CharSequence s, int start, int count,
+                                int after) {
+    if (s == text && !replaying) {
+      indexEdits=spanIndex == null ? -1 : spanIndex.getEditCount();
+      pendingText=s.subSequence(start, start + count).toString();
+      pendingSpans=capture(text, start, start + count, indexEdits);
+    }
+  }
+
+  @Override
+  public void onTextChanged(CharSequence s, int start, int before,
+                            int count) {
+    if (s == text && !replaying && pendingText != null) {
+      String newText=s.subSequence(start, start + count).toString();
+      TextOp op=
+          new TextOp(start, pendingText, pendingSpans, newText,
+                     capture(text, start, start + count, indexEdits + 1));
+      boolean coalesce=
+          typingEntry != null && typingEntry == top()
+              && start + before == typingEnd;
+
+      pendingText=null;
+      pendingSpans=null;
+      record(op, coalesce ? typingEntry : null);
+
+      if (newText.indexOf('\n') >= 0) {
+        typingEntry=null;
+      }
+      else {
+        typingEntry=top();
+        typingEnd=start + count;
+      }
+    }
+  }
+
+  @Override
+  public void afterTextChanged(Editable s) {
+    // handled in onTextChanged()
+  }
+
+  @Override
+  public void onSpanAdded(Spannable text, Object what, int start,
+                          int end) {
+    if (text == this.text && isEffectSpan(what)) {
+      int flags=text.getSpanFlags(what);
+
+      rememberFlags(what, flags);
+
+      if (isRecording()) {
+        recordChange(new SpanOp(what, -1, -1, start, end, flags));
+      }
+    }
+  }
+
+  @Override
+  public void onSpanRemoved(Spannable text, Object what, int start,
+                            int end) {
+    if (text == this.text && isEffectSpan(what)) {
+      // the flags are gone by now, so we use the ones we
+      // remembered
+      Integer flags=otherFlags.remove(what);
+
+      if (isRecording()) {
+        recordChange(new SpanOp(what, start, end, -1, -1,
+                                flags == null ? Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+                                    : flags.intValue()));
+      }
+    }
+  }
+
+  @Override
+  public void onSpanChanged(Spannable text, Object what, int ostart,
+                            int oend, int nstart, int nend) {
+    // only effects change flags, and they do so within a
+    // change, so the flags are not looked up for the many
+    // moves that go along with each edit
+    if (text == this.text && isRecording() && isEffectSpan(what)) {
+      int flags=text.getSpanFlags(what);
+
+      rememberFlags(what, flags);
+      recordChange(new SpanOp(what, ostart, oend, nstart, nend, flags));
+    }
+  }
+
+  private boolean isRecording() {
+    return(changeDepth > 0 && !replaying && paused == 0);
+  }
+
+  /*
+   * Keeps track of the effect spans with flags other than
+   * SPAN_EXCLUSIVE_EXCLUSIVE (e.g., paragraph alignment), so
+   * removed spans can be put back the way they were. Few
+   * spans need this, so the map stays small.
+   */
+  private void rememberFlags(Object span, int flags) {
+    if (flags == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) {
+      otherFlags.remove(span);
+    }
+    else {
+      otherFlags.put(span, flags);
+    }
+  }
+
+  private boolean isEffectSpan(Object span) {
+    for (Effect<?> effect : effects) {
+      if (effect.isEffectSpan(span)) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  private void recordChange(SpanOp op) {
+    if (changeEntry == null) {
+      if (amending) {
+        changeEntry=top();
+
+        if (changeEntry == null) {
+          // nothing left that could depend on the old spans
+          return;
+        }
+      }
+    }
+
+    changeEntry=record(op, changeEntry);
+  }
+
+  /*
+   * Adds the op to the supplied entry, or to a new one if
+   * that is null, clearing the redo history and evicting old
+   * entries as needed. Returns the entry.
+   */
+  private Entry record(Op op, Entry entry) {
+    for (Entry redo : redoStack) {
+      cost-=redo.cost;
+    }
+
+    redoStack.clear();
+
+    if (entry == null) {
+      entry=new Entry();
+      undoStack.add(entry);
+    }
+
+    entry.ops.add(op);
+    entry.cost+=op.cost();
+    cost+=op.cost();
+    trim();
+
+    return(entry);
+  }
+
+  private void trim() {
+    while (cost > limit && !undoStack.isEmpty()) {
+      Entry evicted=undoStack.remove(0);
+
+      cost-=evicted.cost;
+
+      if (evicted == typingEntry) {
+        typingEntry=null;
+      }
+
+      if (evicted == changeEntry) {
+        changeEntry=null;
+      }
+    }
+  }
+
+  private Entry top() {
+    return(undoStack.isEmpty() ? null : undoStack.get(undoStack.size() - 1));
+  }
+
+  /*
+   * Finds the effect spans touching the range, other than
+   * those that extend past it on both sides, which an edit of
+   * the range just shrinks or grows.
+   */
+  private SpanSet capture(Spanned str, int start, int end, int edits) {
+    SpanBuffer found=find(str, start, end, edits);
+    Object[] all=found.spans;
+    int count=0;
+
+    for (int i=0; i < found.count; i++) {
+      Object span=all[i];
+
+      if ((str.getSpanStart(span) >= start || str.getSpanEnd(span) <= end)
+          && isEffectSpan(span)) {
+        all[count++]=span;
+      }
+    }
+
+    SpanSet result=new SpanSet(count);
+
+    for (int i=0; i < count; i++) {
+      result.add(all[i], str.getSpanStart(all[i]), str.getSpanEnd(all[i]),
+                 str.getSpanFlags(all[i]));
+    }
+
+    return(result);
+  }
+
+  /*
+   * Returns the spans in the range, via the span index if it has seen the supplied
+   * number of edits (it watches the text too, and may not
+   * have heard about the current edit yet), or via
+   * getSpans() otherwise.
+   */
+  private SpanBuffer find(Spanned str, int start, int end, int edits) {
+    if (spanIndex != null && spanIndex.isAttachedTo(text)
+        && spanIndex.getEditCount() == edits) {
+      SpanBuffer found=new SpanBuffer();
+
+      for (Effect<?> effect : effects) {
+        SpanBuffer spans=spanIndex.query(effect, start, end);
+
+        if (spans == null) {
+          found=null;
+          break;
+        }
+
+        found.addAll(spans);
+      }
+
+      if (found != null) {
+        return(found);
+      }
+    }
+
+    Object[] spans=str.getSpans(start, end, Object.class);
+
+    return(new SpanBuffer(spans, spans.length));
+  }
+
+  private static class Entry {
+    final ArrayList<Op> ops=new ArrayList<Op>();
+    int cost=0;
+  }
+
+  private abstract static class Op {
+    /*
+     * Reverts the op, returning where the cursor should go,
+     * or -1 to leave it alone.
+     */
+    abstract int undo(Editable text);
+
+    abstract int redo(Editable text);
+
+    abstract int cost();
+  }
+
+  /*
+   * Replacement of oldText by newText at start, along with the
+   * effect spans touching each.
+   */
+  private static class TextOp extends Op {
+    final int start;
+    final String oldText;
+    final SpanSet oldSpans;
+    final String newText;
+    final SpanSet newSpans;
+
+    TextOp(int start, String oldText, SpanSet oldSpans, String newText,
+           SpanSet newSpans) {
+      this.start=start;
+      this.oldText=oldText;
+      this.oldSpans=oldSpans;
+      this.newText=newText;
+      this.newSpans=newSpans;
+    }
+
+    @Override
+    int undo(Editable text) {
+      return(swap(text, newText, newSpans, oldText, oldSpans));
+    }
+
+    @Override
+    int redo(Editable text) {
+      return(swap(text, oldText, oldSpans, newText, newSpans));
+    }
+
+    @Override
+    int cost() {
+      return(OP_COST + (2 * (oldText.length() + newText.length()))
+          + (SPAN_COST * (oldSpans.size + newSpans.size)));
+    }
+
+    private int swap(Editable text, String from, SpanSet fromSpans,
+                     String to, SpanSet toSpans) {
+      int end=start + from.length();
+
+      text.replace(start, end, to);
+
+      // spans that only existed within the replaced text go
+      // away with it
+      for (int i=0; i < fromSpans.size; i++) {
+        if (fromSpans.starts[i] >= start && fromSpans.ends[i] <= end
+            && !toSpans.contains(fromSpans.spans[i])) {
+          text.removeSpan(fromSpans.spans[i]);
+        }
+      }
+
+      for (int i=0; i < toSpans.size; i++) {
+        text.setSpan(toSpans.spans[i], toSpans.starts[i], toSpans.ends[i],
+                     toSpans.flags[i]);
+      }
+
+      return(start + to.length());
+    }
+  }
+
+  /*
+   * A span added (oldStart is -1), removed (newStart is -1),
+   * or moved.
+   */
+  private static class SpanOp extends Op {
+    final Object span;
+    final int oldStart;
+    final int oldEnd;
+    final int newStart;
+    final int newEnd;
+    final int flags;
+
+    SpanOp(Object span, int oldStart, int oldEnd, int newStart, int newEnd,
+           int flags) {
+      this.span=span;
+      this.oldStart=oldStart;
+      this.oldEnd=oldEnd;
+      this.newStart=newStart;
+      this.newEnd=newEnd;
+      this.flags=flags;
+    }
+
+    @Override
+    int undo(Editable text) {
+      move(text, oldStart, oldEnd);
+
+      return(-1);
+    }
+
+    @Override
+    int redo(Editable text) {
+      move(text, newStart, newEnd);
+
+      return(-1);
+    }
+
+    @Override
+    int cost() {
+      return(OP_COST);
+    }
+
+    private void move(Editable text, int start, int end) {
+      if (start < 0) {
+        text.removeSpan(span);
+      }
+      else {
+        text.setSpan(span, start, end, flags);
+      }
+    }
+  }
+
+  /*
+   * Spans and where they were, in parallel arrays.
+   */
+  private static class SpanSet {
+    final Object[] spans;
+    final int[] starts;
+    final int[] ends;
+    final int[] flags;
+    int size=0;
+
+    SpanSet(int capacity) {
+      spans=new Object[capacity];
+      starts=new int[capacity];
+      ends=new int[capacity];
+      flags=new int[capacity];
+    }
+
+    void add(Object span, int start, int end, int flag) {
+      spans[size]=span;
+      starts[size]=start;
+      ends[size]=end;
+      flags[size]=flag;
+      size++;
+    }
+
+    boolean contains(Object span) {
+      for (int i=0; i < size; i++) {
+        if (spans[i] == span) {
+          return(true);
+        }
+      }
+
+      return(false);
+    }
+  }
+}
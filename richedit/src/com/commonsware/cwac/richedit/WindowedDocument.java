@@ -0,0 +1,438 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A document too big to hold in memory at once, kept in a
+ * file as a series of segments (each up to SEGMENT_CHARS
+ * chars, split at newlines where possible), each encoded by
+ * RichTextCodec. Segments are decoded straight from a
+ * memory-mapped view of the file, so only the ones being
+ * shown (see RichEditText.setWindowedDocument()) are ever in
+ * the heap.
+ *
+ * The file is:
+ *
+ * - a header: the magic number "CWRW", a format version, and
+ * the offset of the current index (8 bytes)
+ *
+ * - the segments, in no particular order
+ *
+ * - the index: a segment count, then for each segment, in
+ * document order, its offset (8 bytes), size in bytes, and
+ * length in chars
+ *
+ * Changed segments are appended to the file, rather than
+ * written over the old ones, and a new index is appended by
+ * flush(), followed by updating the header to point to it.
+ * So, if the app crashes before flush(), the file still holds
+ * the document as of the previous flush(). The space used by
+ * replaced segments is reclaimed by compact().
+ */
+public class WindowedDocument {
+  static final int SEGMENT_CHARS=32 * 1024;
+  private static final int MAGIC=0x43575257; // "CWRW"
+  private static final int VERSION=1;
+  private static final int HEADER_SIZE=16;
+  private static final int INDEX_ENTRY_SIZE=16;
+  private final File file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private long[] offsets=new long[16];
+  private int[] sizes=new int[16];
+  private int[] lengths=new int[16];
+  private int count=0;
+  private int length=0;
+  private boolean indexDirty=false;
+
+  /*
+   * Opens the document in the supplied file, creating an
+   * empty document if the file does not exist or is empty.
+   * Throws IOException if the file is not a document written
+   * by this class.
+   */
+  public static WindowedDocument open(File file) throws IOException {
+    return(new WindowedDocument(file));
+  }
+
+  private WindowedDocument(File file) throws IOException {
+    this.file=file;
+    openFile();
+
+    if (channel.size() == 0) {
+      writeFully(channel, newHeader(), 0);
+      writeIndex(channel, offsets, HEADER_SIZE);
+    }
+    else {
+      try {
+        readIndex();
+      }
+      catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+  }
+
+  /*
+   * Returns the length of the document, in chars.
+   */
+  public int length() {
+    return(length);
+  }
+
+  /*
+   * Adds the supplied text, and the built-in effects' spans
+   * on it, to the end of the document. Use this to build up a
+   * document a piece at a time, without holding all of it in
+   * memory. Call flush() when done.
+   */
+  public void append(Spanned text) throws IOException {
+    replace(count, count, text);
+  }
+
+  /*
+   * Makes all changes so far permanent, by writing a new
+   * index and pointing the file's header to it.
+   */
+  public void flush() throws IOException {
+    if (indexDirty) {
+      writeIndex(channel, offsets, channel.size());
+      indexDirty=false;
+    }
+  }
+
+  /*
+   * Rewrites the file with just the current segments,
+   * reclaiming the space used by segments that have since
+   * been replaced. This also flushes.
+   */
+  public void compact() throws IOException {
+    File tmp=new File(file.getPath() + ".tmp");
+    RandomAccessFile out=new RandomAccessFile(tmp, "rw");
+    long[] newOffsets=new long[offsets.length];
+
+    try {
+      FileChannel outChannel=out.getChannel();
+      long position=HEADER_SIZE;
+
+      outChannel.truncate(0);
+      writeFully(outChannel, newHeader(), 0);
+
+      for (int i=0; i < count; i++) {
+        long done=0;
+
+        outChannel.position(position);
+
+        while (done < sizes[i]) {
+          done+=
+              channel.transferTo(offsets[i] + done, sizes[i] - done,
+                                 outChannel);
+        }
+
+        newOffsets[i]=position;
+        position+=sizes[i];
+      }
+
+      writeIndex(outChannel, newOffsets, position);
+    }
+    catch (IOException e) {
+      out.close();
+      tmp.delete();
+      throw e;
+    }
+
+    out.close();
+    raf.close();
+
+    boolean renamed=tmp.renameTo(file);
+
+    openFile();
+
+    if (!renamed) {
+      tmp.delete();
+      throw new IOException("Could not replace " + file);
+    }
+
+    offsets=newOffsets;
+    indexDirty=false;
+  }
+
+  /*
+   * Flushes and closes the file. The document cannot be used
+   * after this.
+   */
+  public void close() throws IOException {
+    try {
+      flush();
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  int getSegmentCount() {
+    return(count);
+  }
+
+  /*
+   * Returns the offset, in chars, of the start of the
+   * segment, where index can be getSegmentCount() for the end
+   * of the document.
+   */
+  int getSegmentStart(int index) {
+    int result=0;
+
+    for (int i=0; i < index; i++) {
+      result+=lengths[i];
+    }
+
+    return(result);
+  }
+
+  /*
+   * Returns the index of the segment containing the supplied
+   * offset, in chars, or getSegmentCount() if the offset is at
+   * or past the end of the document.
+   */
+  int findSegment(int offset) {
+    int start=0;
+
+    for (int i=0; i < count; i++) {
+      start+=lengths[i];
+
+      if (offset < start) {
+        return(i);
+      }
+    }
+
+    return(count);
+  }
+
+  /*
+   * Decodes the segments from first (inclusive) to last
+   * (exclusive) into one Editable.
+   */
+  Editable read(int first, int last) throws IOException {
+    SpannableStringBuilder result=new SpannableStringBuilder();
+
+    for (int i=first; i < last; i++) {
+      ByteBuffer buffer=
+          channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], sizes[i]);
+
+      result.append(RichTextCodec.decode(buffer));
+    }
+
+    return(result);
+  }
+
+  /*
+   * Replaces the segments from first (inclusive) to last
+   * (exclusive) with the supplied text, split into new
+   * segments. Returns the number of new segments.
+   */
+  int replace(int first, int last, Spanned text) throws IOException {
+    int[] ends=split(text);
+    int added=ends.length;
+    int newCount=count - (last - first) + added;
+
+    for (int i=first; i < last; i++) {
+      length-=lengths[i];
+    }
+
+    ensureCapacity(newCount);
+    System.arraycopy(offsets, last, offsets, first + added, count - last);
+    System.arraycopy(sizes, last, sizes, first + added, count - last);
+    System.arraycopy(lengths, last, lengths, first + added, count - last);
+
+    int start=0;
+
+    for (int i=0; i < added; i++) {
+      Spanned segment=new SpannableStringBuilder(text, start, ends[i]);
+      ByteBuffer encoded=RichTextCodec.encode(segment);
+      long offset=channel.size();
+
+      offsets[first + i]=offset;
+      sizes[first + i]=encoded.remaining();
+      lengths[first + i]=ends[i] - start;
+      writeFully(channel, encoded, offset);
+      start=ends[i];
+    }
+
+    count=newCount;
+    length+=text.length();
+    indexDirty=true;
+
+    return(added);
+  }
+
+  /*
+   * Works out where to end each segment of the supplied text,
+   * preferring to end them just after a newline.
+   */
+  static int[] split(CharSequence text) {
+    int[] ends=new int[(text.length() / (SEGMENT_CHARS / 2)) + 1];
+    int n=0;
+    int start=0;
+
+    while (start < text.length()) {
+      int end=Math.min(start + SEGMENT_CHARS, text.length());
+
+      if (end < text.length()) {
+        for (int i=end - 1; i > start + (SEGMENT_CHARS / 2); i--) {
+          if (text.charAt(i) == '\n') {
+            end=i + 1;
+            break;
+          }
+        }
+
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+          end--;
+        }
+      }
+
+      ends[n++]=end;
+      start=end;
+    }
+
+    int[] result=new int[n];
+
+    System.arraycopy(ends, 0, result, 0, n);
+
+    return(result);
+  }
+
+  private void openFile() throws IOException {
+    raf=new RandomAccessFile(file, "rw");
+    channel=raf.getChannel();
+  }
+
+  private void readIndex() throws IOException {
+    try {
+      ByteBuffer header=
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a windowed document: " + file);
+      }
+
+      if (header.getInt() != VERSION) {
+        throw new IOException("Unsupported windowed document version");
+      }
+
+      long indexOffset=header.getLong();
+
+      if (indexOffset < HEADER_SIZE || indexOffset + 4 > channel.size()) {
+        throw new IOException("Corrupt windowed document: " + file);
+      }
+
+      ByteBuffer index=
+          channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                      channel.size() - indexOffset);
+      int n=index.getInt();
+
+      if (n < 0 || n > index.remaining() / INDEX_ENTRY_SIZE) {
+        throw new IOException("Corrupt windowed document: " + file);
+      }
+
+      ensureCapacity(n);
+
+      for (int i=0; i < n; i++) {
+        offsets[i]=index.getLong();
+        sizes[i]=index.getInt();
+        lengths[i]=index.getInt();
+
+        if (offsets[i] < HEADER_SIZE || sizes[i] < 0 || lengths[i] < 0
+            || offsets[i] + sizes[i] > indexOffset) {
+          throw new IOException("Corrupt windowed document: " + file);
+        }
+
+        length+=lengths[i];
+      }
+
+      count=n;
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Truncated windowed document: " + file);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > offsets.length) {
+      int size=Math.max(capacity, offsets.length * 2);
+      long[] newOffsets=new long[size];
+      int[] newSizes=new int[size];
+      int[] newLengths=new int[size];
+
+      System.arraycopy(offsets, 0, newOffsets, 0, count);
+      System.arraycopy(sizes, 0, newSizes, 0, count);
+      System.arraycopy(lengths, 0, newLengths, 0, count);
+      offsets=newOffsets;
+      sizes=newSizes;
+      lengths=newLengths;
+    }
+  }
+
+  /*
+   * Writes the index at the supplied position, then points
+   * the header to it, making sure the index is on disk before
+   * the header refers to it.
+   */
+  private void writeIndex(FileChannel out, long[] offsets, long position)
+    throws IOException {
+    ByteBuffer index=ByteBuffer.allocate(4 + (count * INDEX_ENTRY_SIZE));
+
+    index.putInt(count);
+
+    for (int i=0; i < count; i++) {
+      index.putLong(offsets[i]).putInt(sizes[i]).putInt(lengths[i]);
+    }
+
+    index.flip();
+    writeFully(out, index, position);
+    out.force(false);
+
+    ByteBuffer pointer=ByteBuffer.allocate(8);
+
+    pointer.putLong(position).flip();
+    writeFully(out, pointer, 8);
+    out.force(false);
+  }
+
+  private static ByteBuffer newHeader() {
+    ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+
+    header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+
+    return(header);
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer,
+                                 long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position+=out.write(buffer, position);
+    }
+  }
+}
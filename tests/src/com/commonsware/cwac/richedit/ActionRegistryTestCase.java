@@ -0,0 +1,82 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.view.KeyEvent;
+import junit.framework.TestCase;
+
+public class ActionRegistryTestCase extends TestCase {
+  private final RichEditText.Action first=new TestAction();
+  private final RichEditText.Action second=new TestAction();
+  private ActionRegistry registry;
+
+  public void setUp() {
+    registry=new ActionRegistry();
+  }
+
+  public void testKeys() {
+    registry.bindKey(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_B, first);
+    registry.bindKey(KeyEvent.META_CTRL_ON | KeyEvent.META_SHIFT_ON,
+                     KeyEvent.KEYCODE_B, second);
+
+    assertSame(first,
+               registry.getKeyAction(KeyEvent.META_CTRL_ON,
+                                     KeyEvent.KEYCODE_B));
+    assertSame(second,
+               registry.getKeyAction(KeyEvent.META_CTRL_ON
+                   | KeyEvent.META_SHIFT_ON, KeyEvent.KEYCODE_B));
+    assertNull(registry.getKeyAction(0, KeyEvent.KEYCODE_B));
+    assertNull(registry.getKeyAction(KeyEvent.META_CTRL_ON,
+                                     KeyEvent.KEYCODE_I));
+
+    registry.bindKey(KeyEvent.META_CTRL_ON, KeyEvent.KEYCODE_B, null);
+    assertNull(registry.getKeyAction(KeyEvent.META_CTRL_ON,
+                                     KeyEvent.KEYCODE_B));
+  }
+
+  public void testModifierSidesAndLocks() {
+    registry.bindKey(KeyEvent.META_CTRL_ON | KeyEvent.META_SHIFT_ON,
+                     KeyEvent.KEYCODE_X, first);
+
+    // meta state from a real event has the side-specific bits,
+    // and may have lock states that do not matter
+    assertSame(first,
+               registry.getKeyAction(KeyEvent.META_CTRL_ON
+                   | KeyEvent.META_CTRL_RIGHT_ON | KeyEvent.META_SHIFT_ON
+                   | KeyEvent.META_SHIFT_LEFT_ON | KeyEvent.META_NUM_LOCK_ON,
+                                     KeyEvent.KEYCODE_X));
+    assertNull(registry.getKeyAction(KeyEvent.META_CTRL_ON
+        | KeyEvent.META_SHIFT_ON | KeyEvent.META_ALT_ON, KeyEvent.KEYCODE_X));
+  }
+
+  public void testMenuItems() {
+    registry.bindMenuItem(42, first);
+    registry.bindMenuItem(1337, second);
+
+    assertSame(first, registry.getMenuItemAction(42));
+    assertSame(second, registry.getMenuItemAction(1337));
+    assertNull(registry.getMenuItemAction(7));
+
+    registry.bindMenuItem(42, null);
+    assertNull(registry.getMenuItemAction(42));
+  }
+
+  private static class TestAction implements RichEditText.Action {
+    @Override
+    public boolean perform(RichEditText editor) {
+      return(true);
+    }
+  }
+}
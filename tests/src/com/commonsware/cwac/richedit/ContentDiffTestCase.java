@@ -0,0 +1,147 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class ContentDiffTestCase extends TestCase {
+  private static final String TEXT=
+      "The first paragraph.\nThe second one.\nA third.\nAnd a fourth.";
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final TypefaceEffect typeface=new TypefaceEffect();
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+
+  public void setUp() {
+    effects.add(bold);
+    effects.add(typeface);
+  }
+
+  public void testOnlyChangesAreReplaced() {
+    String changed=
+        "The first paragraph.\nThe 2nd one.\nA third.\nAnd a fifth.";
+    ContentDiff diff=new ContentDiff(TEXT, changed);
+
+    assertEquals(2, diff.size());
+    // "seco" to "2", "our" to "if"
+    assertHunk(diff, 0, 25, 29, 25, 26);
+    assertHunk(diff, 1, 53, 56, 50, 52);
+
+    SpannableStringBuilder str=new SpannableStringBuilder(TEXT);
+
+    diff.applyText(str);
+    assertEquals(changed, str.toString());
+
+    // offsets move with the text around them
+    assertEquals(5, diff.mapOffset(5));
+    assertEquals(26, diff.mapOffset(27));
+    assertEquals(28, diff.mapOffset(31));
+    assertEquals(38, diff.mapOffset(41));
+    assertEquals(changed.length(), diff.mapOffset(TEXT.length()));
+  }
+
+  public void testRandomEdits() {
+    Random random=new Random(1337);
+
+    for (int round=0; round < 200; round++) {
+      String from=randomText(random);
+      StringBuilder to=new StringBuilder(from);
+
+      for (int i=random.nextInt(5); i >= 0; i--) {
+        int start=random.nextInt(to.length() + 1);
+        int end=Math.min(to.length(), start + random.nextInt(8));
+
+        to.replace(start, end, randomText(random).substring(0, 3));
+      }
+
+      SpannableStringBuilder str=new SpannableStringBuilder(from);
+
+      new ContentDiff(from, to).applyText(str);
+      assertEquals(to.toString(), str.toString());
+    }
+  }
+
+  public void testSpansThatMatchAreLeftAlone() {
+    SpannableStringBuilder str=new SpannableStringBuilder(TEXT);
+    SpannableStringBuilder update=new SpannableStringBuilder(TEXT);
+
+    bold.applyToSpannable(str, new Selection(4, 9), true);
+    bold.applyToSpannable(str, new Selection(25, 31), true);
+    typeface.applyToSpannable(str, new Selection(40, 45), "serif");
+    bold.applyToSpannable(update, new Selection(4, 9), true);
+    bold.applyToSpannable(update, new Selection(30, 36), true);
+    typeface.applyToSpannable(update, new Selection(40, 45), "sans");
+
+    ChangeCounter counter=new ChangeCounter();
+
+    str.setSpan(counter, 0, str.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    ContentDiff.applySpans(str, update, effects);
+
+    // the first bold span stays; the others are replaced
+    assertEquals(4, counter.changes);
+    assertTrue(bold.existsInSelection(str, new Selection(4, 9), null));
+    assertTrue(bold.existsInSelection(str, new Selection(30, 36), null));
+    assertFalse(bold.existsInSelection(str, new Selection(25, 29), null));
+    assertEquals("sans",
+                 typeface.valueInSelection(str, new Selection(40, 45), null));
+    assertEquals(2, str.getSpans(0, str.length(), StyleSpan.class).length);
+  }
+
+  private void assertHunk(ContentDiff diff, int hunk, int... expected) {
+    for (int i=0; i < 4; i++) {
+      assertEquals(expected[i], diff.get(hunk, i));
+    }
+  }
+
+  private String randomText(Random random) {
+    StringBuilder result=new StringBuilder();
+
+    for (int i=3 + random.nextInt(60); i > 0; i--) {
+      result.append("ab\n".charAt(random.nextInt(3)));
+    }
+
+    return(result.toString());
+  }
+
+  private static class ChangeCounter implements SpanWatcher {
+    int changes=0;
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+      if (what != this) {
+        changes++;
+      }
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start,
+                              int end) {
+      changes++;
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart,
+                              int oend, int nstart, int nend) {
+      changes++;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class CursorContextTestCase extends TestCase {
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private SpannableStringBuilder str;
+  private CursorContext context;
+
+  public void setUp() {
+    effects.add(bold);
+    str=new SpannableStringBuilder("0123456789abcdefghij");
+    bold.applyToSpannable(str, new Selection(5, 15), true);
+    context=new CursorContext(effects);
+    context.attach(str);
+  }
+
+  public void testRunBetweenBoundaries() {
+    context.update(10);
+
+    assertTrue(context.covers(10));
+    assertTrue(context.covers(7));
+    assertTrue(context.covers(13));
+
+    // next to a boundary, the other side of it matters
+    assertFalse(context.covers(6));
+    assertFalse(context.covers(14));
+
+    // a cursor on a boundary has no run
+    context.update(5);
+    assertFalse(context.covers(5));
+  }
+
+  public void testNoRunNearBoundaries() {
+    // the effects found next to a boundary do not hold for
+    // the rest of the run, so moving into it needs a scan
+    context.update(5);
+    assertFalse(context.covers(7));
+    assertFalse(context.covers(10));
+
+    context.update(6);
+    assertFalse(context.covers(10));
+
+    context.update(14);
+    assertFalse(context.covers(10));
+
+    context.update(7);
+    assertTrue(context.covers(10));
+  }
+
+  public void testForgottenEditsInvalidate() {
+    context.update(10);
+    str.insert(10, "x");
+    assertTrue(context.covers(11));
+
+    // a later move that looks like the edit's is still a move
+    StyleSpan span=str.getSpans(0, str.length(), StyleSpan.class)[0];
+
+    context.forgetEdit();
+    str.setSpan(span, 5, 17, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    assertFalse(context.covers(11));
+  }
+
+  public void testTypingInsideTheRun() {
+    context.update(10);
+
+    for (int i=0; i < 5; i++) {
+      str.insert(10 + i, "x");
+      assertTrue(context.covers(11 + i));
+    }
+
+    // the bold span, and so the run, grew by five
+    assertTrue(context.covers(18));
+    assertFalse(context.covers(19));
+
+    str.delete(14, 15);
+    assertTrue(context.covers(14));
+    assertTrue(context.covers(17));
+    assertFalse(context.covers(18));
+  }
+
+  public void testEditsAtBoundariesInvalidate() {
+    context.update(10);
+    str.insert(15, "x");
+    assertFalse(context.covers(10));
+
+    context.update(10);
+    str.delete(4, 6);
+    assertFalse(context.covers(9));
+  }
+
+  public void testSpanChangesInvalidate() {
+    context.update(10);
+
+    // other spans do not matter
+    str.setSpan(new ForegroundColorSpan(0), 8, 12, 0);
+    assertTrue(context.covers(10));
+
+    bold.applyToSpannable(str, new Selection(9, 11), false);
+    assertFalse(context.covers(10));
+  }
+}
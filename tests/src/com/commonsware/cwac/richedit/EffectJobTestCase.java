@@ -0,0 +1,113 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import junit.framework.TestCase;
+
+public class EffectJobTestCase extends TestCase {
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final TypefaceEffect typeface=new TypefaceEffect();
+  private SpannableStringBuilder str;
+  private EffectJob job;
+
+  public void setUp() {
+    str=new SpannableStringBuilder("0123456789abcdefghij");
+    bold.applyToSpannable(str, new Selection(2, 6), true);
+    job=
+        new EffectJob(new EffectBatch(null).apply(typeface, "serif")
+                                           .apply(bold, true), null);
+  }
+
+  public void testComputedDiffMatchesDirectApply() {
+    job.attach(str, 4, 12);
+    assertTrue(job.capture());
+    job.compute();
+    assertFalse(job.hasChanged());
+
+    job.detach();
+    job.getDiff().applyTo(str, job.getOffset());
+
+    assertEquals(1, str.getSpans(0, str.length(), StyleSpan.class).length);
+    assertEquals("serif",
+                 typeface.valueInSelection(str, new Selection(4, 12), null));
+    assertTrue(bold.existsInSelection(str, new Selection(4, 12), null));
+    assertFalse(typeface.existsInSelection(str, new Selection(1, 3), null));
+  }
+
+  public void testOnlyTheParagraphsAroundTheRangeAreCopied() {
+    str=new SpannableStringBuilder("first\n0123456789\nthird\nfourth");
+    bold.applyToSpannable(str, new Selection(8, 20), true);
+    bold.applyToSpannable(str, new Selection(25, 28), true);
+
+    job.attach(str, 10, 14);
+    assertTrue(job.capture());
+
+    // the second paragraph, widened to the end of the bold
+    // span and then to the end of the third paragraph
+    assertEquals(6, job.getOffset());
+
+    job.compute();
+    job.detach();
+    job.getDiff().applyTo(str, job.getOffset());
+
+    assertEquals("serif",
+                 typeface.valueInSelection(str, new Selection(10, 14), null));
+    assertFalse(typeface.existsInSelection(str, new Selection(14, 15), null));
+    assertFalse(typeface.existsInSelection(str, new Selection(9, 10), null));
+    assertEquals(2, str.getSpans(0, str.length(), StyleSpan.class).length);
+    assertTrue(bold.existsInSelection(str, new Selection(8, 20), null));
+    assertTrue(bold.existsInSelection(str, new Selection(25, 28), null));
+  }
+
+  public void testChangesAreNoticed() {
+    job.attach(str, 4, 12);
+
+    assertTrue(job.capture());
+    str.setSpan(new StyleSpan(Typeface.ITALIC), 0, 1, 0);
+    assertFalse(job.hasChanged());
+    str.setSpan(new TypefaceSpan("monospace"), 0, 1, 0);
+    assertTrue(job.hasChanged());
+
+    assertTrue(job.capture());
+    str.insert(0, "x");
+    assertTrue(job.hasChanged());
+  }
+
+  public void testRangeFollowsEdits() {
+    job.attach(str, 4, 12);
+    str.insert(0, "xyz");
+    str.delete(10, 12);
+
+    assertTrue(job.capture());
+    job.compute();
+    job.detach();
+    job.getDiff().applyTo(str, job.getOffset());
+
+    assertEquals("serif",
+                 typeface.valueInSelection(str, new Selection(7, 13), null));
+    assertFalse(typeface.existsInSelection(str, new Selection(13, 14),
+                                           null));
+    assertFalse(typeface.existsInSelection(str, new Selection(6, 7), null));
+
+    // nothing to apply to once the range is gone
+    job.attach(str, 4, 12);
+    str.delete(2, 14);
+    assertFalse(job.capture());
+  }
+}
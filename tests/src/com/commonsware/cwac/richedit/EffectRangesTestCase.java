@@ -0,0 +1,92 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+import junit.framework.TestCase;
+
+public class EffectRangesTestCase extends TestCase {
+  Spannable str;
+
+  public void setUp() {
+    str=new SpannableString("0123456789012345678901234567890123456789");
+  }
+
+  public void testMergedRanges() {
+    StyleEffect effect=new StyleEffect(Typeface.BOLD);
+
+    effect.applyToRanges(str, new int[] { 20, 25, 2, 6, 4, 8, 8, 10, 30, 30 },
+                         true, null);
+
+    StyleSpan[] spans=str.getSpans(0, str.length(), StyleSpan.class);
+
+    assertEquals(2, spans.length);
+    assertRange(spans, 2, 10);
+    assertRange(spans, 20, 25);
+  }
+
+  public void testClampedRanges() {
+    Effect<Boolean> effect=
+        new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class);
+
+    effect.applyToRanges(str, new int[] { 38, 100, 5, -3 }, true, null);
+
+    UnderlineSpan[] spans=str.getSpans(0, str.length(), UnderlineSpan.class);
+
+    assertEquals(2, spans.length);
+    assertRange(spans, 0, 5);
+    assertRange(spans, 38, 40);
+  }
+
+  public void testRemoval() {
+    TypefaceEffect effect=new TypefaceEffect();
+
+    effect.applyToSpannable(str, new Selection(0, 40), "serif");
+    effect.applyToRanges(str, new int[] { 10, 20, 30, 35 }, null, null);
+
+    TypefaceSpan[] spans=str.getSpans(0, str.length(), TypefaceSpan.class);
+
+    assertEquals(3, spans.length);
+    assertRange(spans, 0, 10);
+    assertRange(spans, 20, 30);
+    assertRange(spans, 35, 40);
+  }
+
+  public void testOddRanges() {
+    try {
+      new TypefaceEffect().applyToRanges(str, new int[] { 1, 2, 3 }, "serif",
+                                         null);
+      fail("odd-length ranges should be rejected");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private void assertRange(Object[] spans, int start, int end) {
+    for (Object span : spans) {
+      if (str.getSpanStart(span) == start && str.getSpanEnd(span) == end) {
+        return;
+      }
+    }
+
+    fail("no span from " + start + " to " + end);
+  }
+}
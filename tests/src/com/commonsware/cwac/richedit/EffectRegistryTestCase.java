@@ -0,0 +1,96 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.UnderlineSpan;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class EffectRegistryTestCase extends TestCase {
+  private final Effect<Boolean> bold=new StyleEffect(Typeface.BOLD);
+  private final Effect<Boolean> underline=
+      new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class);
+  private final Effect<String> typeface=new TypefaceEffect();
+  private EffectRegistry registry;
+
+  public void setUp() {
+    ArrayList<Effect<?>> initial=new ArrayList<Effect<?>>();
+
+    initial.add(bold);
+    initial.add(underline);
+    initial.add(typeface);
+    registry=new EffectRegistry(initial);
+  }
+
+  public void testRegister() {
+    Effect<Boolean> highlight=
+        new SimpleBooleanEffect<BackgroundColorSpan>(BackgroundColorSpan.class,
+            new SimpleBooleanEffect.SpanFactory<BackgroundColorSpan>() {
+              @Override
+              public BackgroundColorSpan newSpan() {
+                return(new BackgroundColorSpan(0xFFFFFF00));
+              }
+            });
+
+    assertEquals(3, registry.size());
+    assertEquals(0x7L, registry.getEnabledMask());
+    assertFalse(registry.register(bold));
+
+    assertTrue(registry.register(highlight));
+    assertEquals(3, registry.getId(highlight));
+    assertSame(highlight, registry.getEffects().get(3));
+    assertTrue(registry.isEnabled(highlight));
+    assertEquals(0xFL, registry.getEnabledMask());
+  }
+
+  public void testUnregisterKeepsIdsDense() {
+    registry.setEnabled(typeface, false);
+    assertEquals(0x3L, registry.getEnabledMask());
+
+    assertTrue(registry.unregister(bold));
+    assertFalse(registry.unregister(bold));
+    assertEquals(-1, registry.getId(bold));
+    assertEquals(0, registry.getId(underline));
+    assertEquals(1, registry.getId(typeface));
+
+    // the enabled bits move down with the effects
+    assertTrue(registry.isEnabled(underline));
+    assertFalse(registry.isEnabled(typeface));
+    assertEquals(0x1L, registry.getEnabledMask());
+  }
+
+  public void testLimit() {
+    for (int i=registry.size(); i < EffectRegistry.MAX_EFFECTS; i++) {
+      assertTrue(registry.register(new TypefaceEffect()));
+    }
+
+    assertEquals(-1L, registry.getEnabledMask());
+
+    try {
+      registry.register(new TypefaceEffect());
+      fail("registering past the limit should fail");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+
+    // removing the last effect must not disturb the others
+    registry.unregister(registry.getEffects()
+                                .get(EffectRegistry.MAX_EFFECTS - 1));
+    assertEquals(Long.MAX_VALUE, registry.getEnabledMask());
+  }
+}
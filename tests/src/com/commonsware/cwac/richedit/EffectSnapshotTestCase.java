@@ -0,0 +1,113 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class EffectSnapshotTestCase extends TestCase {
+  private static final int BOLD=0;
+  private static final int ITALIC=1;
+  private static final int UNDERLINE=2;
+  private static final int TYPEFACE=3;
+  ArrayList<Effect<?>> effects;
+  Spannable str;
+  EffectSnapshot snapshot;
+
+  public void setUp() {
+    effects=new ArrayList<Effect<?>>();
+
+    effects.add(new StyleEffect(Typeface.BOLD));
+    effects.add(new StyleEffect(Typeface.ITALIC));
+    effects.add(new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class));
+    effects.add(new TypefaceEffect());
+    snapshot=new EffectSnapshot(effects);
+
+    str=new SpannableString("0123456789abcdef");
+    str.setSpan(new StyleSpan(Typeface.BOLD), 2, 9,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new UnderlineSpan(), 4, 6,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new TypefaceSpan("monospace"), 8, 12,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+  }
+
+  public void assertState(int start, int end, boolean bold,
+                          boolean underline, String family) {
+    snapshot.scan(str, new Selection(start, end));
+
+    assertEquals(bold, snapshot.exists(BOLD));
+    assertEquals(Boolean.valueOf(bold), snapshot.value(BOLD));
+    assertFalse(snapshot.exists(ITALIC));
+    assertEquals(underline, snapshot.exists(UNDERLINE));
+    assertEquals(family != null, snapshot.exists(TYPEFACE));
+    assertEquals(family, snapshot.value(TYPEFACE));
+  }
+
+  public void testCursor() {
+    assertState(0, 0, false, false, null);
+    assertState(2, 2, false, false, null);
+    assertState(3, 3, true, false, null);
+    assertState(5, 5, true, true, null);
+    assertState(6, 6, true, false, null);
+    assertState(8, 8, true, false, "monospace");
+    assertState(9, 9, false, false, "monospace");
+    assertState(16, 16, false, false, null);
+  }
+
+  public void testSelection() {
+    assertState(0, 2, false, false, null);
+    assertState(0, 3, true, false, null);
+    assertState(6, 2, true, true, null);
+    assertState(9, 12, false, false, "monospace");
+    assertState(12, 16, false, false, null);
+  }
+
+  public void testEffectState() {
+    EffectState state=new EffectState(effects);
+
+    snapshot.scan(str, new Selection(5, 5));
+    state.update(snapshot);
+    assertEquals((1L << BOLD) | (1L << UNDERLINE), state.getFlags());
+    assertTrue(state.hasEffect(effects.get(BOLD)));
+    assertFalse(state.hasEffect(effects.get(TYPEFACE)));
+    assertEquals(Boolean.TRUE, state.getEffectValue(effects.get(BOLD)));
+    assertNull(state.getEffectValue(effects.get(ITALIC)));
+
+    snapshot.scan(str, new Selection(9, 12));
+    state.update(snapshot);
+    assertEquals(1L << TYPEFACE, state.getFlags());
+    assertEquals("monospace", state.getEffectValue(effects.get(TYPEFACE)));
+    assertNull(state.getEffectValue(effects.get(BOLD)));
+    assertEquals(1, state.getEffects(new ArrayList<Effect<?>>()).size());
+  }
+
+  public void testMask() {
+    snapshot.scan(str, new Selection(5, 5), null,
+                  (1L << UNDERLINE) | (1L << TYPEFACE));
+    assertFalse(snapshot.exists(BOLD));
+    assertTrue(snapshot.exists(UNDERLINE));
+
+    snapshot.scan(str, new Selection(8, 8), null, 1L << BOLD);
+    assertTrue(snapshot.exists(BOLD));
+    assertFalse(snapshot.exists(TYPEFACE));
+  }
+}
@@ -0,0 +1,89 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+import com.commonsware.cwac.richedit.app.HighlightEffect;
+import java.util.ArrayList;
+
+/*
+ * Exercises a value effect defined outside of the library's
+ * package, as an app would.
+ */
+public class HighlightEffectTestCase extends EffectTestCaseBase {
+  private static final int YELLOW=0xFFFFFF00;
+  private static final int GREEN=0xFF00FF00;
+  Effect<Integer> effect;
+
+  public void setUp() {
+    effect=new HighlightEffect();
+  }
+
+  BackgroundColorSpan[] getAllSpans(Spannable str) {
+    return(str.getSpans(0, str.length() - 1, BackgroundColorSpan.class));
+  }
+
+  void updateSpannable(Spannable str, int start, int end, boolean add) {
+    effect.applyToSpannable(str, new Selection(start, end),
+                            add ? YELLOW : null);
+  }
+
+  public void testValues() {
+    Spannable str=new SpannableString("0123456789");
+
+    effect.applyToSpannable(str, new Selection(0, 8), YELLOW);
+    effect.applyToSpannable(str, new Selection(4, 6), GREEN);
+
+    assertEquals(Integer.valueOf(YELLOW),
+                 effect.valueInSelection(str, new Selection(0, 4), null));
+    assertEquals(Integer.valueOf(GREEN),
+                 effect.valueInSelection(str, new Selection(4, 6), null));
+    assertEquals(Integer.valueOf(YELLOW),
+                 effect.valueInSelection(str, new Selection(6, 8), null));
+    assertNull(effect.valueInSelection(str, new Selection(8, 10), null));
+  }
+
+  public void testRegisteredAlongsideBuiltIns() {
+    StyleEffect bold=new StyleEffect(Typeface.BOLD);
+    ArrayList<Effect<?>> initial=new ArrayList<Effect<?>>();
+
+    initial.add(bold);
+
+    EffectRegistry registry=new EffectRegistry(initial);
+
+    assertTrue(registry.register(effect));
+
+    SpannableStringBuilder str=new SpannableStringBuilder("0123456789");
+    SpanIndex index=new SpanIndex(registry.getEffects());
+
+    index.attach(str);
+    effect.applyToSpannable(str, new Selection(2, 6), GREEN, index);
+    bold.applyToSpannable(str, new Selection(4, 8), true, index);
+
+    EffectSnapshot snapshot=new EffectSnapshot(registry.getEffects());
+    EffectState state=new EffectState(registry.getEffects());
+
+    snapshot.scan(str, new Selection(3, 5), index);
+    state.update(snapshot);
+
+    assertTrue(state.hasEffect(bold));
+    assertEquals(Integer.valueOf(GREEN), state.getEffectValue(effect));
+    index.detach();
+  }
+}
@@ -0,0 +1,226 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.style.UnderlineSpan;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class HtmlExporterTestCase extends TestCase {
+  private ArrayList<Effect<?>> effects;
+  private StyleEffect bold;
+  private SimpleBooleanEffect<UnderlineSpan> underline;
+  private TypefaceEffect typeface;
+  private LineAlignmentEffect alignment;
+
+  public void setUp() {
+    bold=new StyleEffect(Typeface.BOLD);
+    underline=new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class);
+    typeface=new TypefaceEffect();
+    alignment=new LineAlignmentEffect();
+    effects=new ArrayList<Effect<?>>();
+    effects.add(bold);
+    effects.add(new StyleEffect(Typeface.ITALIC));
+    effects.add(underline);
+    effects.add(alignment);
+    effects.add(typeface);
+    effects.add(new RelativeSizeEffect());
+  }
+
+  public void testFormat() throws IOException {
+    SpannableStringBuilder str=
+        new SpannableStringBuilder("one <two>\n\nthree  four\u00e9");
+
+    bold.applyToSpannable(str, new Selection(0, 3), true);
+    typeface.applyToSpannable(str, new Selection(4, 9), "serif");
+    alignment.applyToSpannable(str, new Selection(11, 22),
+                               Layout.Alignment.ALIGN_CENTER);
+
+    assertEquals("<div><b>one</b> <font face=\"serif\">&lt;two&gt;</font></div>\n"
+                     + "<div><br></div>\n"
+                     + "<div style=\"text-align:center;\">three&nbsp; four&#233;</div>\n",
+                 export(str));
+  }
+
+  public void testIncremental() throws IOException {
+    SpannableStringBuilder str=
+        new SpannableStringBuilder("one\ntwo\nthree\nfour");
+    HtmlExporter exporter=new HtmlExporter(effects);
+
+    exporter.attach(str);
+    exporter.writeTo(new StringWriter());
+    assertEquals(0, exporter.getDirtyCount());
+
+    str.insert(5, "w");
+    assertEquals(1, exporter.getDirtyCount());
+    assertEquals(export(str), write(exporter));
+
+    underline.applyToSpannable(str, new Selection(15, 17), true);
+    assertEquals(1, exporter.getDirtyCount());
+    assertEquals(export(str), write(exporter));
+
+    str.insert(2, "\n\nnew\n");
+    assertEquals(export(str), write(exporter));
+  }
+
+  public void testEditOneParagraph() throws IOException {
+    SpannableStringBuilder str=new SpannableStringBuilder();
+
+    for (int i=0; i < 100; i++) {
+      int start=str.length();
+
+      str.append("paragraph ").append(String.valueOf(i)).append('\n');
+      bold.applyToSpannable(str, new Selection(start, start + 9), true);
+      typeface.applyToSpannable(str, new Selection(start + 5, start + 11),
+                                "serif");
+    }
+
+    HtmlExporter exporter=new HtmlExporter(effects);
+
+    exporter.attach(str);
+    exporter.writeTo(new StringWriter());
+
+    str.insert(3, "x");
+    assertEquals(1, exporter.getDirtyCount());
+    assertEquals(export(str), write(exporter));
+
+    str.delete(12, 14);
+    assertEquals(1, exporter.getDirtyCount());
+    assertEquals(export(str), write(exporter));
+  }
+
+  public void testSpansSetAsideAndPutBack() throws IOException {
+    SpannableStringBuilder str=
+        new SpannableStringBuilder("one\ntwo\nthree\nfour");
+    final HtmlExporter exporter=new HtmlExporter(effects);
+    RunTable table=new RunTable(effects, new RunTable.Listener() {
+      public void onMovingSpans(boolean moving) {
+        exporter.setSuppressed(moving);
+      }
+    });
+
+    bold.applyToSpannable(str, new Selection(0, 3), true);
+    bold.applyToSpannable(str, new Selection(14, 18), true);
+    table.attach(str);
+    exporter.attach(str);
+
+    String html=write(exporter);
+
+    table.retain(0, 4);
+    assertEquals(0, exporter.getDirtyCount());
+    table.materializeAll();
+    assertEquals(0, exporter.getDirtyCount());
+    assertEquals(html, write(exporter));
+  }
+
+  public void testRandomEdits() throws IOException {
+    Random random=new Random(1337);
+    SpannableStringBuilder str=
+        new SpannableStringBuilder("alpha\nbeta\ngamma\ndelta\nepsilon\n");
+    HtmlExporter exporter=new HtmlExporter(effects);
+    String[] inserts={ "x", "yz", "\n", "a\nb", "\n\n" };
+
+    exporter.attach(str);
+
+    for (int i=0; i < 500; i++) {
+      int start=random.nextInt(str.length() + 1);
+      int end=Math.min(str.length(), start + random.nextInt(8));
+
+      switch (random.nextInt(5)) {
+        case 0:
+          str.insert(start, inserts[random.nextInt(inserts.length)]);
+          break;
+        case 1:
+          str.delete(start, end);
+          break;
+        case 2:
+          str.replace(start, end, inserts[random.nextInt(inserts.length)]);
+          break;
+        case 3:
+          if (start < end) {
+            bold.applyToSpannable(str, new Selection(start, end),
+                                  random.nextBoolean());
+          }
+          break;
+        default:
+          if (start < end) {
+            typeface.applyToSpannable(str, new Selection(start, end),
+                                      random.nextBoolean() ? "serif" : null);
+          }
+          break;
+      }
+
+      if (str.length() < 10) {
+        str.append("more\ntext\n");
+      }
+
+      if (random.nextInt(4) == 0) {
+        assertEquals("edit " + i, export(str), write(exporter));
+      }
+    }
+
+    assertEquals(export(str), write(exporter));
+  }
+
+  public void testRoundTrip() throws IOException {
+    SpannableStringBuilder str=
+        new SpannableStringBuilder("plain bold serif\n\n  spaced & <escaped>\ncentered");
+
+    bold.applyToSpannable(str, new Selection(6, 10), true);
+    typeface.applyToSpannable(str, new Selection(11, 16), "serif");
+    alignment.applyToSpannable(str, new Selection(39, 47),
+                               Layout.Alignment.ALIGN_CENTER);
+
+    Editable result=HtmlImporter.importHtml(new StringReader(export(str)));
+
+    assertEquals(str.toString().replace("\n  ", "\n\u00a0 "),
+                 result.toString());
+    assertTrue(bold.existsInSelection(result, new Selection(6, 10), null));
+    assertFalse(bold.existsInSelection(result, new Selection(11, 16), null));
+    assertEquals("serif",
+                 typeface.valueInSelection(result, new Selection(11, 16), null));
+    assertEquals(Layout.Alignment.ALIGN_CENTER,
+                 alignment.valueInSelection(result, new Selection(39, 47),
+                                            null));
+  }
+
+  private String export(SpannableStringBuilder str) throws IOException {
+    HtmlExporter exporter=new HtmlExporter(effects);
+
+    exporter.attach(str);
+
+    String result=write(exporter);
+
+    exporter.detach();
+
+    return(result);
+  }
+
+  private String write(HtmlExporter exporter) throws IOException {
+    StringWriter writer=new StringWriter();
+
+    exporter.writeTo(writer);
+
+    return(writer.toString());
+  }
+}
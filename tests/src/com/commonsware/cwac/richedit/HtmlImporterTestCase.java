@@ -0,0 +1,135 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import java.io.IOException;
+import java.io.StringReader;
+import junit.framework.TestCase;
+
+public class HtmlImporterTestCase extends TestCase {
+  public void testInlineEffects() throws IOException {
+    Editable str=
+        importHtml("<b>bold</b> <i>italic</i> <u>under</u> "
+            + "<font face=\"serif\">serif</font> <sup>up</sup>");
+
+    assertEquals("bold italic under serif up", str.toString());
+    assertValue(new StyleEffect(Typeface.BOLD), str, 0, 4, true);
+    assertValue(new StyleEffect(Typeface.BOLD), str, 5, 11, false);
+    assertValue(new StyleEffect(Typeface.ITALIC), str, 5, 11, true);
+    assertValue(new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class),
+                str, 12, 17, true);
+    assertValue(new TypefaceEffect(), str, 18, 23, "serif");
+    assertEquals(1, str.getSpans(0, str.length(), UnderlineSpan.class).length);
+  }
+
+  public void testBlocks() throws IOException {
+    Editable str=
+        importHtml("<h1>Title</h1>\n<p align=\"center\">one\n  two</p>"
+            + "<p style=\"text-align: right\">three<br>four</p>");
+
+    assertEquals("Title\n\none two\n\nthree\nfour", str.toString());
+    assertValue(new StyleEffect(Typeface.BOLD), str, 0, 5, true);
+    assertEquals(1.5f,
+                 str.getSpans(0, 5, RelativeSizeSpan.class)[0].getSizeChange());
+    assertValue(new LineAlignmentEffect(), str, 7, 14,
+                Layout.Alignment.ALIGN_CENTER);
+    assertValue(new LineAlignmentEffect(), str, 16, 26,
+                Layout.Alignment.ALIGN_OPPOSITE);
+  }
+
+  public void testStyleAttributes() throws IOException {
+    Editable str=
+        importHtml("<span style=\"font-weight: 700; font-family: 'monospace', serif\">"
+            + "code</span>");
+
+    assertEquals("code", str.toString());
+    assertValue(new StyleEffect(Typeface.BOLD), str, 0, 4, true);
+    assertValue(new TypefaceEffect(), str, 0, 4, "monospace");
+  }
+
+  public void testEntitiesAndJunk() throws IOException {
+    Editable str=
+        importHtml("<!DOCTYPE html><html><head><title>x</title>"
+            + "<style>b { color: red }</style></head><body>"
+            + "<!-- <b>comment</b> -->a &lt; b &amp;&amp; c &#65;&#x42; "
+            + "&bogus d < e &eacute;&mdash;&hellip;&Omega;&omega;"
+            + "</body></html>");
+
+    assertEquals("a < b && c AB &bogus d < e \u00e9\u2014\u2026\u03a9\u03c9",
+                 str.toString());
+    assertEquals(0, str.getSpans(0, str.length(), StyleSpan.class).length);
+  }
+
+  public void testDigitAfterLessThanIsText() throws IOException {
+    Editable str=importHtml("I <3 you, <b>really</b> </3 x");
+
+    assertEquals("I <3 you, really </3 x", str.toString());
+    assertValue(new StyleEffect(Typeface.BOLD), str, 10, 16, true);
+  }
+
+  public void testSupplementaryEntities() throws IOException {
+    Editable str=importHtml("smile &#128512; &#x1F600;&#x110000;");
+
+    assertEquals("smile \ud83d\ude00 \ud83d\ude00&#x110000;", str.toString());
+  }
+
+  public void testUnclosedTags() throws IOException {
+    Editable str=importHtml("<p>one<b>two<p>three</i>four");
+
+    assertEquals("onetwo\n\nthreefour", str.toString());
+    assertValue(new StyleEffect(Typeface.BOLD), str, 3, 6, true);
+    assertValue(new StyleEffect(Typeface.BOLD), str, 8, 13, false);
+  }
+
+  public void testLongDocument() throws IOException {
+    StringBuilder html=new StringBuilder();
+
+    // enough entities to straddle the importer's buffer
+    // boundaries
+    for (int i=0; i < 5000; i++) {
+      html.append("<b>x</b>&amp;");
+    }
+
+    Editable str=importHtml(html.toString());
+
+    assertEquals(10000, str.length());
+    assertEquals('&', str.charAt(str.length() - 1));
+    assertEquals(-1, str.toString().indexOf(';'));
+    assertEquals(5000, str.getSpans(0, str.length(), StyleSpan.class).length);
+  }
+
+  private Editable importHtml(String html) throws IOException {
+    return(HtmlImporter.importHtml(new StringReader(html)));
+  }
+
+  private <T> void assertValue(Effect<T> effect, Editable str, int start,
+                               int end, T expected) {
+    Selection selection=new Selection(start, end);
+
+    if (expected instanceof Boolean) {
+      assertEquals(expected,
+                   effect.existsInSelection(str, selection, null));
+    }
+    else {
+      assertEquals(expected, effect.valueInSelection(str, selection, null));
+    }
+  }
+}
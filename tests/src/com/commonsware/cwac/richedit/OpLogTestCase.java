@@ -0,0 +1,229 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class OpLogTestCase extends TestCase {
+  private static final String TEXT="The quick brown fox\njumps over the dog.";
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final TypefaceEffect typeface=new TypefaceEffect();
+  private final RelativeSizeEffect size=new RelativeSizeEffect();
+  private final LineAlignmentEffect alignment=new LineAlignmentEffect();
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private SpannableStringBuilder str;
+  private OpLog log;
+
+  public void setUp() {
+    effects.add(bold);
+    effects.add(typeface);
+    effects.add(size);
+    effects.add(alignment);
+    str=new SpannableStringBuilder(TEXT);
+    log=new OpLog(effects, null);
+    log.attach(str);
+  }
+
+  public void testTypingIsCoalesced() {
+    str.insert(4, "v");
+    str.insert(5, "e");
+    str.insert(6, "rx");
+    str.delete(7, 8);
+    str.insert(7, "y ");
+
+    List<RichEditOp> ops=log.drain();
+
+    assertEquals(1, ops.size());
+    assertEquals(RichEditOp.INSERT, ops.get(0).getType());
+    assertEquals(4, ops.get(0).getStart());
+    assertEquals("very ", ops.get(0).getText());
+
+    str.delete(8, 9);
+    str.delete(7, 8);
+    str.delete(7, 8);
+
+    ops=log.drain();
+    assertEquals(1, ops.size());
+    assertEquals(RichEditOp.DELETE, ops.get(0).getType());
+    assertEquals(7, ops.get(0).getStart());
+    assertEquals(10, ops.get(0).getEnd());
+    assertTrue(log.drain().isEmpty());
+  }
+
+  public void testEffectsAreRanges() {
+    bold.applyToSpannable(str, new Selection(4, 9), true);
+    bold.applyToSpannable(str, new Selection(9, 15), true);
+
+    List<RichEditOp> ops=log.drain();
+
+    assertEquals(1, ops.size());
+    assertEquals(RichEditOp.EFFECT, ops.get(0).getType());
+    assertEquals(0, ops.get(0).getEffectId());
+    assertEquals(4, ops.get(0).getStart());
+    assertEquals(15, ops.get(0).getEnd());
+    assertEquals(Boolean.TRUE, ops.get(0).getValue());
+
+    // suppressed changes are not recorded
+    log.setSuppressed(true);
+    str.insert(0, "A ");
+    log.setSuppressed(false);
+    assertTrue(log.drain().isEmpty());
+  }
+
+  public void testEncoding() {
+    ArrayList<RichEditOp> ops=new ArrayList<RichEditOp>();
+
+    ops.add(RichEditOp.insert(3, "caf\u00e9"));
+    ops.add(RichEditOp.delete(300, 1000));
+    ops.add(RichEditOp.effect(0, 1, 2, true));
+    ops.add(RichEditOp.effect(1, 1, 2, "serif"));
+    ops.add(RichEditOp.effect(2, 1, 2, 1.5f));
+    ops.add(RichEditOp.effect(2, 1, 2, null));
+
+    List<RichEditOp> decoded=RichEditOp.decode(RichEditOp.encode(ops));
+
+    assertEquals(ops.size(), decoded.size());
+
+    for (int i=0; i < ops.size(); i++) {
+      assertEquals(ops.get(i).toString(), decoded.get(i).toString());
+    }
+  }
+
+  public void testNegativeLengthsAreRejected() {
+    byte[] negative={ (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F };
+
+    // an INSERT whose text has a negative length
+    assertRejected(new byte[] { RichEditOp.INSERT, 0, negative[0],
+        negative[1], negative[2], negative[3], negative[4] });
+
+    // a DELETE of a negative length
+    assertRejected(new byte[] { RichEditOp.DELETE, 3, negative[0],
+        negative[1], negative[2], negative[3], negative[4] });
+
+    // an EFFECT starting at a negative position
+    assertRejected(new byte[] { RichEditOp.EFFECT, negative[0],
+        negative[1], negative[2], negative[3], negative[4], 1, 0, 0 });
+  }
+
+  private void assertRejected(byte[] bytes) {
+    try {
+      RichEditOp.decode(ByteBuffer.wrap(bytes));
+      fail("ops with negative values should be rejected");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testAlignmentReplaysAsParagraphSpans() {
+    SpannableStringBuilder replica=new SpannableStringBuilder(TEXT);
+
+    alignment.applyToSpannable(str, new Selection(22, 25),
+                               Layout.Alignment.ALIGN_CENTER);
+
+    List<RichEditOp> ops=RichEditOp.decode(RichEditOp.encode(log.drain()));
+
+    OpLog.apply(replica, effects, ops, null);
+
+    AlignmentSpan[] spans=
+        replica.getSpans(0, replica.length(), AlignmentSpan.class);
+
+    assertEquals(1, spans.length);
+    assertEquals(20, replica.getSpanStart(spans[0]));
+    assertEquals(TEXT.length(), replica.getSpanEnd(spans[0]));
+    assertEquals(Spanned.SPAN_PARAGRAPH, replica.getSpanFlags(spans[0]));
+
+    // inserts at the paragraph boundary treat both spans alike
+    str.insert(20, "new\n");
+    replica.insert(20, "new\n");
+    assertSame(str, replica);
+  }
+
+  public void testReplay() {
+    Random random=new Random(4711);
+    SpannableStringBuilder replica=new SpannableStringBuilder(TEXT);
+
+    for (int round=0; round < 300; round++) {
+      int length=str.length();
+      int start=random.nextInt(length + 1);
+      int end=Math.min(length, start + 1 + random.nextInt(10));
+      Selection selection=new Selection(start, end);
+      int action=random.nextInt(6);
+
+      if (start == end && action >= 2 && action <= 4) {
+        action=0;
+      }
+
+      switch (action) {
+        case 0:
+          str.insert(start, "xy\nz".substring(random.nextInt(4)));
+          break;
+
+        case 1:
+          str.delete(start, end);
+          break;
+
+        case 2:
+          bold.applyToSpannable(str, selection, random.nextBoolean());
+          break;
+
+        case 3:
+          typeface.applyToSpannable(str, selection,
+                                    random.nextBoolean() ? "serif" : null);
+          break;
+
+        case 4:
+          size.applyToSpannable(str, selection,
+                                random.nextBoolean() ? 1.5f : null);
+          break;
+
+        default:
+          str.replace(start, end, "ab");
+      }
+
+      if (random.nextInt(4) == 0) {
+        List<RichEditOp> ops=
+            RichEditOp.decode(RichEditOp.encode(log.drain()));
+
+        OpLog.apply(replica, effects, ops, null);
+        assertSame(str, replica);
+      }
+    }
+  }
+
+  private void assertSame(SpannableStringBuilder expected,
+                          SpannableStringBuilder actual) {
+    assertEquals(expected.toString(), actual.toString());
+
+    for (int i=0; i < expected.length(); i++) {
+      Selection selection=new Selection(i, i + 1);
+
+      for (Effect<?> effect : effects) {
+        assertEquals("char " + i + " of \"" + expected + "\"",
+                     effect.valueInSelection(expected, selection, null),
+                     effect.valueInSelection(actual, selection, null));
+      }
+    }
+  }
+}
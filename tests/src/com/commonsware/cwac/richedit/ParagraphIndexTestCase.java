@@ -0,0 +1,178 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Layout;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class ParagraphIndexTestCase extends TestCase {
+  private final LineAlignmentEffect alignment=new LineAlignmentEffect();
+  private SpannableStringBuilder str;
+  private ParagraphIndex paragraphs;
+
+  public void setUp() {
+    str=new SpannableStringBuilder("one\ntwo\n\nthree\nfour");
+    paragraphs=new ParagraphIndex();
+    paragraphs.attach(str);
+  }
+
+  public void testParagraphs() {
+    assertEquals(4, paragraphs.size());
+    assertEquals(0, paragraphs.paragraphStart(2));
+    assertEquals(4, paragraphs.paragraphEnd(2));
+    assertEquals(4, paragraphs.paragraphStart(4));
+    assertEquals(8, paragraphs.paragraphEnd(7));
+    assertEquals(8, paragraphs.paragraphStart(8));
+    assertEquals(9, paragraphs.paragraphEnd(8));
+    assertEquals(15, paragraphs.paragraphStart(19));
+    assertEquals(19, paragraphs.paragraphEnd(19));
+  }
+
+  public void testRandomEdits() {
+    Random random=new Random(42);
+
+    for (int i=0; i < 500; i++) {
+      int start=random.nextInt(str.length() + 1);
+      int end=Math.min(str.length(), start + random.nextInt(4));
+
+      if (random.nextBoolean()) {
+        str.replace(start, end, random.nextBoolean() ? "\n" : "ab\nc");
+      }
+      else {
+        str.delete(start, end);
+      }
+
+      for (int offset=0; offset <= str.length(); offset++) {
+        assertEquals(expectedStart(offset),
+                     paragraphs.paragraphStart(offset));
+        assertEquals(expectedEnd(offset), paragraphs.paragraphEnd(offset));
+      }
+    }
+  }
+
+  public void testAlignmentSnapsToParagraphs() {
+    alignment.applyToParagraphs(str, new Selection(5, 10),
+                                Layout.Alignment.ALIGN_CENTER, null,
+                                paragraphs);
+    assertAlignments(4, 8, 8, 9, 9, 15);
+
+    // a cursor picks its paragraph
+    alignment.applyToParagraphs(str, new Selection(1, 1),
+                                Layout.Alignment.ALIGN_CENTER, null,
+                                paragraphs);
+    assertAlignments(0, 4, 4, 8, 8, 9, 9, 15);
+
+    alignment.applyToParagraphs(str, new Selection(6, 12), null, null,
+                                paragraphs);
+    assertAlignments(0, 4);
+  }
+
+  public void testUnchangedParagraphsAreLeftAlone() {
+    alignment.applyToParagraphs(str, new Selection(0, 10),
+                                Layout.Alignment.ALIGN_CENTER, null,
+                                paragraphs);
+
+    ChangeCounter counter=new ChangeCounter();
+
+    str.setSpan(counter, 0, str.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    alignment.applyToParagraphs(str, new Selection(2, 19),
+                                Layout.Alignment.ALIGN_CENTER, null,
+                                paragraphs);
+    assertEquals(1, counter.changes);
+    assertAlignments(0, 4, 4, 8, 8, 9, 9, 15, 15, 19);
+  }
+
+  public void testOldSpansAreTrimmed() {
+    str.setSpan(new AlignmentSpan.Standard(Layout.Alignment.ALIGN_OPPOSITE),
+                2, 17, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    alignment.applyToParagraphs(str, new Selection(5, 6),
+                                Layout.Alignment.ALIGN_CENTER, null, null);
+    assertAlignments(2, 4, 4, 8, 8, 17);
+    assertEquals(Layout.Alignment.ALIGN_CENTER,
+                 alignment.valueInSelection(str, new Selection(5, 6), null));
+    assertEquals(Layout.Alignment.ALIGN_OPPOSITE,
+                 alignment.valueInSelection(str, new Selection(10, 11), null));
+  }
+
+  private int expectedStart(int offset) {
+    while (offset > 0 && str.charAt(offset - 1) != '\n') {
+      offset--;
+    }
+
+    return(offset);
+  }
+
+  private int expectedEnd(int offset) {
+    while (offset < str.length() && str.charAt(offset) != '\n') {
+      offset++;
+    }
+
+    return(offset < str.length() ? offset + 1 : offset);
+  }
+
+  private void assertAlignments(int... ranges) {
+    AlignmentSpan.Standard[] spans=
+        str.getSpans(0, str.length(), AlignmentSpan.Standard.class);
+    boolean[] found=new boolean[ranges.length / 2];
+
+    assertEquals(ranges.length / 2, spans.length);
+
+    for (AlignmentSpan.Standard span : spans) {
+      for (int i=0; i < found.length; i++) {
+        if (str.getSpanStart(span) == ranges[i * 2]
+            && str.getSpanEnd(span) == ranges[i * 2 + 1]) {
+          found[i]=true;
+        }
+      }
+    }
+
+    for (boolean f : found) {
+      assertTrue(f);
+    }
+  }
+
+  private static class ChangeCounter implements SpanWatcher {
+    int changes=0;
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+      if (what instanceof AlignmentSpan) {
+        changes++;
+      }
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start,
+                              int end) {
+      if (what instanceof AlignmentSpan) {
+        changes++;
+      }
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart,
+                              int oend, int nstart, int nend) {
+      if (what instanceof AlignmentSpan) {
+        changes++;
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class PasteNormalizerTestCase extends TestCase {
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final StyleEffect italic=new StyleEffect(Typeface.ITALIC);
+  private final TypefaceEffect typeface=new TypefaceEffect();
+  private final RelativeSizeEffect size=new RelativeSizeEffect();
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private SpannableStringBuilder clip;
+
+  public void setUp() {
+    effects.add(bold);
+    effects.add(italic);
+    effects.add(typeface);
+    effects.add(size);
+
+    clip=new SpannableStringBuilder("Pasted from a web page");
+    set(new StyleSpan(Typeface.BOLD_ITALIC), 0, 6);
+    set(new StyleSpan(Typeface.BOLD), 3, 11);
+    set(new StyleSpan(Typeface.BOLD), 4, 8);
+    set(new ForegroundColorSpan(0xFF0000FF), 0, 22);
+    set(new URLSpan("http://commonsware.com"), 14, 17);
+    set(new AbsoluteSizeSpan(32), 18, 22);
+    set(new TypefaceSpan("monospace"), 7, 11);
+  }
+
+  public void testForeignSpansBecomeEffects() {
+    Spannable result=
+        new PasteNormalizer().normalize(clip, effects, 16f, 1f);
+
+    assertEquals(clip.toString(), result.toString());
+    assertEquals(0,
+                 result.getSpans(0, result.length(), ForegroundColorSpan.class).length);
+    assertEquals(0, result.getSpans(0, result.length(), URLSpan.class).length);
+
+    // nested and overlapping bold spans end up as one run
+    assertRun(result, bold, 0, 11);
+    assertRun(result, italic, 0, 6);
+    assertEquals("monospace",
+                 typeface.valueInSelection(result, new Selection(7, 11), null));
+
+    RelativeSizeSpan[] sizes=
+        result.getSpans(0, result.length(), RelativeSizeSpan.class);
+
+    assertEquals(1, sizes.length);
+    assertEquals(2f, sizes[0].getSizeChange());
+    assertEquals(18, result.getSpanStart(sizes[0]));
+  }
+
+  public void testKeptSpans() {
+    Spannable result=
+        new PasteNormalizer().keep(URLSpan.class).normalize(clip, effects,
+                                                            16f, 1f);
+    URLSpan[] links=result.getSpans(0, result.length(), URLSpan.class);
+
+    assertEquals(1, links.length);
+    assertEquals(14, result.getSpanStart(links[0]));
+    assertEquals(17, result.getSpanEnd(links[0]));
+    assertEquals(0,
+                 result.getSpans(0, result.length(), ForegroundColorSpan.class).length);
+  }
+
+  public void testNestedRelativeSizesMultiply() {
+    clip=new SpannableStringBuilder("0123456789");
+    set(new RelativeSizeSpan(2f), 0, 8);
+    set(new RelativeSizeSpan(1.5f), 4, 10);
+
+    Spannable result=
+        new PasteNormalizer().normalize(clip, effects, 16f, 1f);
+
+    assertEquals(2f, size.valueInSelection(result, new Selection(0, 4), null));
+    assertEquals(3f, size.valueInSelection(result, new Selection(4, 8), null));
+    assertEquals(1.5f,
+                 size.valueInSelection(result, new Selection(8, 10), null));
+    assertEquals(3,
+                 result.getSpans(0, result.length(), RelativeSizeSpan.class).length);
+  }
+
+  public void testUnregisteredEffectsAreDropped() {
+    effects.remove(size);
+
+    Spannable result=
+        new PasteNormalizer().normalize(clip, effects, 16f, 1f);
+
+    assertEquals(0,
+                 result.getSpans(0, result.length(), RelativeSizeSpan.class).length);
+  }
+
+  private void set(Object span, int start, int end) {
+    clip.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+  }
+
+  private void assertRun(Spanned str, Effect<?> effect, int start, int end) {
+    SpanBuffer spans=effect.findSpans(str, 0, str.length(), null);
+
+    assertEquals(1, spans.count);
+    assertEquals(start, str.getSpanStart(spans.spans[0]));
+    assertEquals(end, str.getSpanEnd(spans.spans[0]));
+  }
+}
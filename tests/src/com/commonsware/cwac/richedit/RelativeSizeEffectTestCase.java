@@ -0,0 +1,50 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.RelativeSizeSpan;
+
+public class RelativeSizeEffectTestCase extends EffectTestCaseBase {
+  RelativeSizeEffect effect;
+
+  public void setUp() {
+    effect=new RelativeSizeEffect();
+  }
+
+  RelativeSizeSpan[] getAllSpans(Spannable str) {
+    return(str.getSpans(0, str.length() - 1, RelativeSizeSpan.class));
+  }
+
+  void updateSpannable(Spannable str, int start, int end, boolean add) {
+    Float proportion=(add ? 1.5f : null);
+
+    effect.applyToSpannable(str, new Selection(start, end), proportion);
+  }
+
+  public void testOutsidePartsKeepTheirSize() {
+    Spannable str=new SpannableString("0123456789");
+
+    effect.applyToSpannable(str, new Selection(0, 4), 2.0f);
+    effect.applyToSpannable(str, new Selection(6, 10), 0.5f);
+    effect.applyToSpannable(str, new Selection(2, 8), 1.5f);
+
+    assertEquals(2.0f, effect.valueInSelection(str, new Selection(0, 2), null));
+    assertEquals(1.5f, effect.valueInSelection(str, new Selection(2, 8), null));
+    assertEquals(0.5f, effect.valueInSelection(str, new Selection(8, 10), null));
+    assertEquals(3, str.getSpans(0, 10, RelativeSizeSpan.class).length);
+  }
+}
@@ -0,0 +1,128 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class RichEditMetricsTestCase extends TestCase {
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final StyleEffect italic=new StyleEffect(Typeface.ITALIC);
+  private RichEditMetricsRecorder recorder;
+
+  public void setUp() {
+    recorder=new RichEditMetricsRecorder();
+  }
+
+  public void testHistograms() {
+    for (int i=1; i <= 100; i++) {
+      recorder.recordLatency(RichEditMetrics.APPLY_EFFECT, bold, i * 1000);
+    }
+
+    recorder.recordLatency(RichEditMetrics.APPLY_EFFECT, italic, 5);
+    recorder.recordLatency(RichEditMetrics.SELECTION_SCAN, null, 7);
+
+    assertEquals(100, recorder.getCount(RichEditMetrics.APPLY_EFFECT, bold));
+    assertEquals(1, recorder.getCount(RichEditMetrics.APPLY_EFFECT, italic));
+    assertEquals(0, recorder.getCount(RichEditMetrics.CHECK_EFFECT, bold));
+    assertEquals(1,
+                 recorder.getCount(RichEditMetrics.SELECTION_SCAN, null));
+    assertEquals(5050000,
+                 recorder.getTotalNanos(RichEditMetrics.APPLY_EFFECT, bold));
+    assertEquals(100000,
+                 recorder.getMaxNanos(RichEditMetrics.APPLY_EFFECT, bold));
+
+    // percentiles are bucket upper bounds, within 2x
+    long median=
+        recorder.getPercentileNanos(RichEditMetrics.APPLY_EFFECT, bold, 50);
+
+    assertTrue(median >= 50000);
+    assertTrue(median < 100000);
+    assertEquals(100000,
+                 recorder.getPercentileNanos(RichEditMetrics.APPLY_EFFECT,
+                                             bold, 100));
+
+    assertTrue(recorder.dump().contains("selection-scan: count=1 "));
+
+    recorder.reset();
+    assertEquals(0, recorder.getCount(RichEditMetrics.APPLY_EFFECT, bold));
+  }
+
+  public void testCounters() {
+    ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+    SpannableStringBuilder str=new SpannableStringBuilder("0123456789");
+    SpanCounter counter=new SpanCounter(effects, recorder);
+
+    effects.add(bold);
+    counter.attach(str);
+
+    // lookups only count between begin() and end()
+    bold.existsInSelection(str, new Selection(2, 4), null);
+    assertEquals(0, recorder.getCounter(RichEditMetrics.COUNT_GET_SPANS));
+
+    Metrics metrics=new Metrics(recorder);
+    long started=Metrics.begin(metrics);
+
+    bold.applyToSpannable(str, new Selection(2, 6), true);
+    bold.applyToSpannable(str, new Selection(4, 8), true);
+    bold.existsInSelection(str, new Selection(2, 4), null);
+    Metrics.end(metrics, RichEditMetrics.APPLY_EFFECT, bold, started);
+
+    assertEquals(3, recorder.getCounter(RichEditMetrics.COUNT_GET_SPANS));
+    assertEquals(2, recorder.getCounter(RichEditMetrics.COUNT_SPANS_ADDED));
+    assertEquals(1,
+                 recorder.getCounter(RichEditMetrics.COUNT_SPANS_REMOVED));
+    assertEquals(1, recorder.getCount(RichEditMetrics.APPLY_EFFECT, bold));
+
+    bold.existsInSelection(str, new Selection(2, 4), null);
+    assertEquals(3, recorder.getCounter(RichEditMetrics.COUNT_GET_SPANS));
+  }
+
+  public void testEditorsCountSeparately() throws InterruptedException {
+    final SpannableStringBuilder str=
+        new SpannableStringBuilder("0123456789");
+    RichEditMetricsRecorder other=new RichEditMetricsRecorder();
+    Metrics outer=new Metrics(recorder);
+    Metrics inner=new Metrics(other);
+    long outerStarted=Metrics.begin(outer);
+
+    bold.existsInSelection(str, new Selection(2, 4), null);
+
+    // e.g., a listener working with another editor
+    long innerStarted=Metrics.begin(inner);
+
+    bold.existsInSelection(str, new Selection(2, 4), null);
+    Metrics.end(inner, RichEditMetrics.CHECK_EFFECT, bold, innerStarted);
+
+    // other threads do not count against either
+    Thread thread=new Thread() {
+      public void run() {
+        bold.existsInSelection(str, new Selection(2, 4), null);
+      }
+    };
+
+    thread.start();
+    thread.join();
+
+    bold.existsInSelection(str, new Selection(2, 4), null);
+    Metrics.end(outer, RichEditMetrics.CHECK_EFFECT, bold, outerStarted);
+    bold.existsInSelection(str, new Selection(2, 4), null);
+
+    assertEquals(2, recorder.getCounter(RichEditMetrics.COUNT_GET_SPANS));
+    assertEquals(1, other.getCounter(RichEditMetrics.COUNT_GET_SPANS));
+  }
+}
@@ -0,0 +1,244 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.UnderlineSpan;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+public class RichTextCodecTestCase extends TestCase {
+  private static final String TEXT=
+      "plain \u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00 emoji\nsecond line";
+  private SpannableStringBuilder str;
+
+  public void setUp() {
+    str=new SpannableStringBuilder(TEXT);
+  }
+
+  public void testStyleEffect() throws IOException {
+    roundTrip(new StyleEffect(Typeface.BOLD), true);
+    roundTrip(new StyleEffect(Typeface.ITALIC), true);
+  }
+
+  public void testSimpleBooleanEffect() throws IOException {
+    roundTrip(new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class),
+              true);
+    roundTrip(new SimpleBooleanEffect<StrikethroughSpan>(StrikethroughSpan.class),
+              true);
+    roundTrip(new SimpleBooleanEffect<SuperscriptSpan>(SuperscriptSpan.class),
+              true);
+    roundTrip(new SimpleBooleanEffect<SubscriptSpan>(SubscriptSpan.class),
+              true);
+  }
+
+  public void testLineAlignmentEffect() throws IOException {
+    for (Layout.Alignment alignment : Layout.Alignment.values()) {
+      // alignment is applied to all of the first paragraph
+      roundTrip(new LineAlignmentEffect(), alignment, 0);
+    }
+  }
+
+  public void testTypefaceEffect() throws IOException {
+    roundTrip(new TypefaceEffect(), "serif");
+    roundTrip(new TypefaceEffect(), "\u00fcber-sans");
+  }
+
+  public void testRelativeSizeEffect() throws IOException {
+    roundTrip(new RelativeSizeEffect(), 1.5f);
+    roundTrip(new RelativeSizeEffect(), 0.8f);
+  }
+
+  public void testManySpans() throws IOException {
+    TypefaceEffect typeface=new TypefaceEffect();
+    StyleEffect bold=new StyleEffect(Typeface.BOLD);
+
+    for (int i=0; i + 2 < str.length(); i+=3) {
+      typeface.applyToSpannable(str, new Selection(i, i + 2),
+                                i % 2 == 0 ? "serif" : "monospace");
+      bold.applyToSpannable(str, new Selection(i + 1, i + 3), true);
+    }
+
+    Editable result=RichTextCodec.decode(RichTextCodec.encode(str));
+
+    assertEquals(TEXT, result.toString());
+
+    for (int i=0; i + 2 < str.length(); i+=3) {
+      Selection selection=new Selection(i, i + 1);
+
+      assertEquals(typeface.valueInSelection(str, selection, null),
+                   typeface.valueInSelection(result, selection, null));
+      assertEquals(bold.valueInSelection(str, selection, null),
+                   bold.valueInSelection(result, selection, null));
+    }
+  }
+
+  public void testFileChannel() throws IOException {
+    File file=File.createTempFile("codec", ".bin");
+    RandomAccessFile raf=new RandomAccessFile(file, "rw");
+
+    try {
+      new TypefaceEffect().applyToSpannable(str, new Selection(2, 8),
+                                            "serif");
+      raf.writeInt(42);
+      RichTextCodec.write(str, raf.getChannel());
+      raf.seek(4);
+
+      Editable result=RichTextCodec.read(raf.getChannel());
+
+      assertEquals(TEXT, result.toString());
+      assertEquals("serif",
+                   new TypefaceEffect().valueInSelection(result,
+                                                         new Selection(2, 8),
+                                                         null));
+      assertEquals(raf.length(), raf.getChannel().position());
+    }
+    finally {
+      raf.close();
+      file.delete();
+    }
+  }
+
+  public void testFlags() throws IOException {
+    new LineAlignmentEffect().applyToSpannable(str, new Selection(2, 4),
+                                               Layout.Alignment.ALIGN_CENTER);
+    str.setSpan(new UnderlineSpan(), 2, 8, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+
+    Editable result=RichTextCodec.decode(RichTextCodec.encode(str));
+
+    for (Class<?> spanClass : new Class<?>[] { UnderlineSpan.class,
+        AlignmentSpan.class }) {
+      Object original=str.getSpans(0, str.length(), spanClass)[0];
+      Object decoded=result.getSpans(0, result.length(), spanClass)[0];
+
+      assertEquals(str.getSpanFlags(original), result.getSpanFlags(decoded));
+    }
+  }
+
+  public void testVersion1() throws IOException {
+    // "ab", bold across both chars, as written before flags
+    // were saved
+    byte[] content={ 'C', 'W', 'R', 'E', 1, 2, 2, 'a', 'b', 0, 1, 0, 0, 2 };
+    Editable result=RichTextCodec.decode(ByteBuffer.wrap(content));
+
+    assertEquals("ab", result.toString());
+    assertTrue(new StyleEffect(Typeface.BOLD).existsInSelection(result,
+        new Selection(0, 2), null));
+    assertEquals(Spanned.SPAN_EXCLUSIVE_EXCLUSIVE,
+                 result.getSpanFlags(result.getSpans(0, 2, Object.class)[0]));
+  }
+
+  public void testCorruptContent() {
+    ByteBuffer buffer=RichTextCodec.encode(str);
+
+    buffer.limit(buffer.limit() - 3);
+
+    try {
+      RichTextCodec.decode(buffer);
+      fail("truncated content should be rejected");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    try {
+      RichTextCodec.decode(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }));
+      fail("non-codec content should be rejected");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testCorruptLengthsAndCodePoints() {
+    byte[] negative={ (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F };
+
+    // negative text length
+    assertCorrupt(new byte[] { 'C', 'W', 'R', 'E', 2, negative[0],
+        negative[1], negative[2], negative[3], negative[4] });
+
+    // text length bigger than the content
+    assertCorrupt(new byte[] { 'C', 'W', 'R', 'E', 2, (byte)0xFF,
+        (byte)0xFF, (byte)0xFF, 0x7F });
+
+    // a 4-byte UTF-8 sequence for U+110000
+    assertCorrupt(new byte[] { 'C', 'W', 'R', 'E', 2, 2, 4, (byte)0xF4,
+        (byte)0x90, (byte)0x80, (byte)0x80, 0, 0 });
+
+    // negative string count
+    assertCorrupt(new byte[] { 'C', 'W', 'R', 'E', 2, 2, 2, 'a', 'b',
+        negative[0], negative[1], negative[2], negative[3], negative[4] });
+
+    // a span starting before the text
+    assertCorrupt(new byte[] { 'C', 'W', 'R', 'E', 2, 2, 2, 'a', 'b', 0, 1,
+        0x01, negative[0], negative[1], negative[2], negative[3],
+        negative[4], 1 });
+  }
+
+  private void assertCorrupt(byte[] content) {
+    try {
+      RichTextCodec.decode(ByteBuffer.wrap(content));
+      fail("corrupt content should be rejected");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  private <T> void roundTrip(Effect<T> effect, T value) throws IOException {
+    roundTrip(effect, value, 6);
+  }
+
+  private <T> void roundTrip(Effect<T> effect, T value, int spanStart)
+      throws IOException {
+    SpannableStringBuilder original=new SpannableStringBuilder(TEXT);
+    Selection selection=new Selection(6, 22);
+
+    effect.applyToSpannable(original, selection, value);
+
+    ByteBuffer buffer=RichTextCodec.encode(original);
+
+    // encode(Spanned, ByteBuffer) should produce the same bytes
+    ByteBuffer copy=ByteBuffer.allocate(buffer.remaining() + 10);
+
+    RichTextCodec.encode(original, copy);
+    copy.flip();
+    assertEquals(buffer, copy);
+
+    Editable result=RichTextCodec.decode(buffer);
+
+    assertFalse(buffer.hasRemaining());
+    assertEquals(TEXT, result.toString());
+    assertEquals(value, effect.valueInSelection(result, selection, null));
+    assertEquals(1,
+                 result.getSpans(0, result.length(),
+                                 effect.getSpanClass()).length);
+    assertEquals(spanStart, result.getSpanStart(result.getSpans(0, result.length(),
+                                                        effect.getSpanClass())[0]));
+    assertEquals(22, result.getSpanEnd(result.getSpans(0, result.length(),
+                                                       effect.getSpanClass())[0]));
+  }
+}
@@ -0,0 +1,145 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class RunTableTestCase extends TestCase {
+  private static final String TEXT="The quick brown fox\njumps over the dog.";
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private final StyleSpan first=new StyleSpan(Typeface.BOLD);
+  private final StyleSpan second=new StyleSpan(Typeface.BOLD);
+  private final ForegroundColorSpan color=new ForegroundColorSpan(0xFF0000FF);
+  private SpannableStringBuilder str;
+  private RunTable table;
+  private int moving=0;
+
+  public void setUp() {
+    effects.add(new StyleEffect(Typeface.BOLD));
+    str=new SpannableStringBuilder(TEXT);
+    str.setSpan(first, 4, 9, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(second, 26, 30, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+    str.setSpan(color, 26, 30, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    table=new RunTable(effects, new RunTable.Listener() {
+      public void onMovingSpans(boolean moving) {
+        RunTableTestCase.this.moving+=moving ? 1 : -1;
+      }
+    });
+    table.setKeepingSpans(true);
+    table.attach(str);
+  }
+
+  public void testRetainAndMaterialize() {
+    table.retain(0, 10);
+
+    assertEquals(1, table.size());
+    assertEquals(-1, str.getSpanStart(second));
+    assertEquals(26, str.getSpanStart(color));
+    assertEquals(4, str.getSpanStart(first));
+
+    table.retain(20, 39);
+
+    assertEquals(1, table.size());
+    assertEquals(-1, str.getSpanStart(first));
+    assertSpan(second, 26, 30, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+
+    assertEquals(0, table.materialize(10, 20));
+    assertEquals(1, table.materialize(9, 10));
+    assertSpan(first, 4, 9, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    assertEquals(0, table.size());
+    assertEquals(0, moving);
+  }
+
+  public void testEditsMoveRuns() {
+    table.retain(0, 10);
+    str.insert(12, "ly");
+    str.delete(0, 4);
+
+    assertEquals(1, table.materializeAll());
+    assertSpan(first, 0, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    assertSpan(second, 24, 28, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+  }
+
+  public void testTouchingEditsMaterialize() {
+    table.retain(0, 10);
+
+    // typing at the end of an inclusive span extends it
+    str.insert(30, "s");
+
+    assertEquals(0, table.size());
+    assertSpan(second, 26, 31, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+
+    table.retain(20, 39);
+    str.delete(2, 6);
+
+    assertEquals(0, table.size());
+    assertSpan(first, 2, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+  }
+
+  public void testSpansAreRemade() {
+    table.setKeepingSpans(false);
+    table.retain(0, 10);
+    table.retain(20, 39);
+
+    assertEquals(1, table.materialize(9, 10));
+    assertEquals(-1, str.getSpanStart(first));
+
+    StyleSpan[] spans=str.getSpans(0, 10, StyleSpan.class);
+
+    assertEquals(1, spans.length);
+    assertEquals(Typeface.BOLD, spans[0].getStyle());
+    assertSpan(spans[0], 4, 9, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+  }
+
+  public void testSpansAddedLaterAreSetAside() {
+    table.retain(0, 10);
+
+    // far from what was kept, and from what is kept next
+    StyleSpan added=new StyleSpan(Typeface.BOLD);
+
+    str.setSpan(added, 32, 35, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    table.retain(0, 10);
+
+    assertEquals(2, table.size());
+    assertEquals(-1, str.getSpanStart(added));
+
+    // and text pasted far from what was kept
+    SpannableStringBuilder pasted=new SpannableStringBuilder("xy");
+    StyleSpan inserted=new StyleSpan(Typeface.BOLD);
+
+    pasted.setSpan(inserted, 0, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.insert(36, pasted);
+    table.retain(0, 10);
+
+    assertEquals(3, table.size());
+    assertEquals(-1, str.getSpanStart(inserted));
+    assertEquals(3, table.materializeAll());
+    assertSpan(second, 26, 30, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+    assertSpan(added, 32, 35, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    assertSpan(inserted, 36, 38, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+  }
+
+  private void assertSpan(Object span, int start, int end, int flags) {
+    assertEquals(start, str.getSpanStart(span));
+    assertEquals(end, str.getSpanEnd(span));
+    assertEquals(flags, str.getSpanFlags(span) & Spanned.SPAN_POINT_MARK_MASK);
+  }
+}
@@ -0,0 +1,89 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import junit.framework.TestCase;
+
+public class SpanCompactorTestCase extends TestCase {
+  Spannable str;
+
+  public void setUp() {
+    str=new SpannableString("0123456789012345");
+  }
+
+  public void testAbuttingSpans() {
+    StyleEffect effect=new StyleEffect(Typeface.BOLD);
+
+    effect.applyToSpannable(str, new Selection(0, 4), true);
+    effect.applyToSpannable(str, new Selection(4, 8), true);
+    effect.applyToSpannable(str, new Selection(8, 10), true);
+    str.setSpan(new StyleSpan(Typeface.ITALIC), 10, 12,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+    assertEquals(2, SpanCompactor.compact(str, effect));
+
+    StyleSpan[] spans=str.getSpans(0, str.length(), StyleSpan.class);
+
+    assertEquals(2, spans.length);
+    assertEquals(0, str.getSpanStart(spans[0]));
+    assertEquals(10, str.getSpanEnd(spans[0]));
+    assertEquals(Typeface.ITALIC, spans[1].getStyle());
+  }
+
+  public void testOverlappingSpans() {
+    StyleEffect effect=new StyleEffect(Typeface.BOLD);
+
+    str.setSpan(new StyleSpan(Typeface.BOLD), 2, 6,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new StyleSpan(Typeface.BOLD), 3, 4,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new StyleSpan(Typeface.BOLD), 5, 9,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new StyleSpan(Typeface.BOLD), 11, 12,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+    assertEquals(2, SpanCompactor.compact(str, effect));
+
+    StyleSpan[] spans=str.getSpans(0, str.length(), StyleSpan.class);
+
+    assertEquals(2, spans.length);
+    assertEquals(2, str.getSpanStart(spans[0]));
+    assertEquals(9, str.getSpanEnd(spans[0]));
+    assertEquals(11, str.getSpanStart(spans[1]));
+  }
+
+  public void testValuesAndFlags() {
+    TypefaceEffect effect=new TypefaceEffect();
+
+    str.setSpan(new TypefaceSpan("serif"), 0, 4,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new TypefaceSpan("serif"), 4, 6,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new TypefaceSpan("monospace"), 6, 8,
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    str.setSpan(new TypefaceSpan("monospace"), 8, 10,
+                Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+
+    assertEquals(1, SpanCompactor.compact(str, effect));
+    assertEquals(3,
+                 str.getSpans(0, str.length(), TypefaceSpan.class).length);
+    assertEquals(0, SpanCompactor.compact(str, effect));
+  }
+}
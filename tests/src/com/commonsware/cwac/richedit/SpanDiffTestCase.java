@@ -0,0 +1,82 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import junit.framework.TestCase;
+
+public class SpanDiffTestCase extends TestCase {
+  Spannable str;
+
+  public void setUp() {
+    str=new SpannableString("0123456789");
+  }
+
+  public void testDeferredChanges() {
+    StyleEffect bold=new StyleEffect(Typeface.BOLD);
+    TypefaceEffect typeface=new TypefaceEffect();
+    Selection selection=new Selection(2, 6);
+    SpanDiff diff=new SpanDiff(str);
+
+    bold.applyToSpannable(diff, selection, true);
+    typeface.applyToSpannable(diff, selection, "serif");
+
+    assertTrue(diff.hasChanges());
+    assertEquals(0, str.getSpans(0, str.length(), Object.class).length);
+    assertTrue(bold.valueInSelection(diff, selection, null));
+
+    diff.applyTo(str);
+
+    assertTrue(bold.valueInSelection(str, selection, null));
+    assertEquals("serif", typeface.valueInSelection(str, selection, null));
+  }
+
+  public void testSetThenRemove() {
+    StyleEffect bold=new StyleEffect(Typeface.BOLD);
+    Selection selection=new Selection(2, 6);
+    SpanDiff diff=new SpanDiff(str);
+
+    bold.applyToSpannable(diff, selection, true);
+    bold.applyToSpannable(diff, selection, false);
+
+    assertFalse(diff.hasChanges());
+  }
+
+  public void testBaseSpans() {
+    TypefaceSpan serif=new TypefaceSpan("serif");
+
+    str.setSpan(serif, 0, 8, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+    SpanDiff diff=new SpanDiff(str);
+
+    new TypefaceEffect().applyToSpannable(diff, new Selection(4, 8),
+                                          "monospace");
+
+    assertEquals(0, str.getSpanStart(serif));
+    assertEquals(8, str.getSpanEnd(serif));
+    assertEquals(-1, diff.getSpanStart(serif));
+    assertEquals(2, diff.getSpans(0, str.length(), TypefaceSpan.class).length);
+
+    diff.applyTo(str);
+
+    assertEquals(-1, str.getSpanStart(serif));
+    assertEquals(2, str.getSpans(0, str.length(), TypefaceSpan.class).length);
+    assertEquals(0, str.getSpans(0, str.length(), StyleSpan.class).length);
+  }
+}
@@ -0,0 +1,143 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.CharacterStyle;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class SpanIndexTestCase extends TestCase {
+  private static final int[] FLAGS= {
+      Spannable.SPAN_EXCLUSIVE_EXCLUSIVE,
+      Spannable.SPAN_EXCLUSIVE_INCLUSIVE,
+      Spannable.SPAN_INCLUSIVE_EXCLUSIVE,
+      Spannable.SPAN_INCLUSIVE_INCLUSIVE };
+  ArrayList<Effect<?>> effects;
+  SpannableStringBuilder str;
+  SpanIndex index;
+  Random random;
+
+  public void setUp() {
+    effects=new ArrayList<Effect<?>>();
+    effects.add(new StyleEffect(Typeface.BOLD));
+    effects.add(new SimpleBooleanEffect<UnderlineSpan>(UnderlineSpan.class));
+
+    str=new SpannableStringBuilder();
+    random=new Random(1337);
+
+    for (int i=0; i < 2000; i++) {
+      str.append((char)('a' + random.nextInt(26)));
+    }
+
+    for (int i=0; i < 300; i++) {
+      addRandomSpan();
+    }
+
+    index=new SpanIndex(effects);
+    index.attach(str);
+  }
+
+  public void testQueries() {
+    assertMatchesGetSpans();
+  }
+
+  public void testSpanChanges() {
+    for (int i=0; i < 500; i++) {
+      if (random.nextBoolean()) {
+        addRandomSpan();
+      }
+      else {
+        Object[] spans=
+            str.getSpans(0, str.length(), CharacterStyle.class);
+
+        str.removeSpan(spans[random.nextInt(spans.length)]);
+      }
+
+      if (i % 10 == 0) {
+        assertMatchesGetSpans();
+      }
+    }
+
+    assertMatchesGetSpans();
+  }
+
+  public void testTextChanges() {
+    for (int i=0; i < 500; i++) {
+      int start=random.nextInt(str.length());
+      int end=Math.min(str.length(), start + random.nextInt(4));
+
+      switch (random.nextInt(3)) {
+        case 0:
+          str.insert(start, "xyz".substring(random.nextInt(3)));
+          break;
+
+        case 1:
+          str.delete(start, end);
+          break;
+
+        default:
+          str.replace(start, end, "pq");
+          break;
+      }
+
+      assertMatchesGetSpans();
+    }
+  }
+
+  public void testDetach() {
+    index.detach();
+    assertEquals(0, index.size(effects.get(0)));
+    assertEquals(0, str.getSpans(0, str.length(), SpanIndex.class).length);
+  }
+
+  private void addRandomSpan() {
+    int start=random.nextInt(str.length());
+    int end=Math.min(str.length(), start + 1 + random.nextInt(50));
+    Object span=
+        random.nextBoolean() ? new StyleSpan(Typeface.BOLD)
+            : new UnderlineSpan();
+
+    str.setSpan(span, start, end, FLAGS[random.nextInt(FLAGS.length)]);
+  }
+
+  private void assertMatchesGetSpans() {
+    for (Effect<?> effect : effects) {
+      assertEquals(effect.findSpans(str, 0, str.length(), null).count,
+                   index.size(effect));
+
+      for (int i=0; i < 20; i++) {
+        int start=random.nextInt(str.length() + 1);
+        int end=Math.min(str.length(), start + random.nextInt(20));
+        SpanBuffer expected=effect.findSpans(str, start, end, null);
+        SpanBuffer actual=index.query(effect, start, end);
+
+        assertEquals(asSet(expected), asSet(actual));
+      }
+    }
+  }
+
+  private HashSet<Object> asSet(SpanBuffer spans) {
+    return(new HashSet<Object>(Arrays.asList(spans.spans).subList(0,
+                                                                  spans.count)));
+  }
+}
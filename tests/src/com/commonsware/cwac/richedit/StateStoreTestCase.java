@@ -0,0 +1,102 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class StateStoreTestCase extends TestCase {
+  private File dir;
+  private Context ctxt;
+
+  public void setUp() throws IOException {
+    dir=File.createTempFile("state", "");
+    dir.delete();
+    dir.mkdir();
+
+    // keeps the files in our own directory, so this works
+    // without a real Context
+    ctxt=new ContextWrapper(null) {
+      @Override
+      public Context getApplicationContext() {
+        return(this);
+      }
+
+      @Override
+      public File getDir(String name, int mode) {
+        return(dir);
+      }
+    };
+  }
+
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+
+    dir.delete();
+  }
+
+  public void testRoundTrip() throws InterruptedException {
+    SpannableStringBuilder str=
+        new SpannableStringBuilder("Saved state\nsecond line");
+    StyleEffect bold=new StyleEffect(Typeface.BOLD);
+    String key=StateStore.newKey();
+
+    bold.applyToSpannable(str, new Selection(6, 11), true);
+    StateStore.save(ctxt, key, RichTextCodec.encode(str));
+
+    Editable result=restore(key);
+
+    assertEquals(str.toString(), result.toString());
+    assertTrue(bold.existsInSelection(result, new Selection(6, 11), null));
+    assertFalse(bold.existsInSelection(result, new Selection(0, 5), null));
+
+    // the same key is overwritten by later saves
+    str.append(" more");
+    StateStore.save(ctxt, key, RichTextCodec.encode(str));
+    assertEquals(str.toString(), restore(key).toString());
+    assertEquals(1, dir.listFiles().length);
+  }
+
+  public void testMissingState() throws InterruptedException {
+    assertNull(restore(StateStore.newKey()));
+  }
+
+  private Editable restore(String key) throws InterruptedException {
+    final CountDownLatch latch=new CountDownLatch(1);
+    final Editable[] result=new Editable[1];
+
+    StateStore.restore(ctxt, key, new StateStore.Callback() {
+      @Override
+      public void onRestored(Editable content) {
+        result[0]=content;
+        latch.countDown();
+      }
+    });
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+    return(result[0]);
+  }
+}
@@ -0,0 +1,202 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import android.text.style.StyleSpan;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class UndoHistoryTestCase extends TestCase {
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final TypefaceEffect typeface=new TypefaceEffect();
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private SpannableStringBuilder str;
+  private UndoHistory history;
+
+  public void setUp() {
+    effects.add(bold);
+    effects.add(typeface);
+    str=new SpannableStringBuilder("0123456789");
+    history=new UndoHistory(effects);
+    history.attach(str);
+  }
+
+  public void testTypingIsCoalesced() {
+    type(10, "abc");
+    assertEquals("0123456789abc", str.toString());
+
+    // backspacing at the cursor joins the same entry
+    str.delete(12, 13);
+    type(12, "d");
+    assertEquals("0123456789abd", str.toString());
+
+    assertEquals(10, history.undo());
+    assertEquals("0123456789", str.toString());
+    assertFalse(history.canUndo());
+
+    assertEquals(13, history.redo());
+    assertEquals("0123456789abd", str.toString());
+    assertFalse(history.canRedo());
+  }
+
+  public void testNewlineAndJumpsSplitEntries() {
+    type(10, "ab\n");
+    type(13, "cd");
+    type(0, "x");
+
+    history.undo();
+    assertEquals("0123456789ab\ncd", str.toString());
+    history.undo();
+    assertEquals("0123456789ab\n", str.toString());
+    history.undo();
+    assertEquals("0123456789", str.toString());
+  }
+
+  public void testEffects() {
+    applyBold(2, 6);
+    applyBold(4, 8);
+    assertBold(4, 8);
+
+    history.undo();
+    assertBold(2, 6);
+    history.undo();
+    assertNoBold();
+
+    history.redo();
+    history.redo();
+    assertBold(4, 8);
+
+    // a new change discards what could have been redone
+    history.undo();
+    type(0, "x");
+    assertFalse(history.canRedo());
+  }
+
+  public void testDeletionRestoresSpans() {
+    applyBold(2, 6);
+    typeface.applyToSpannable(str, new Selection(3, 9), "serif");
+
+    // removes the typeface span, trims the bold one
+    str.delete(3, 9);
+    assertEquals("0129", str.toString());
+    assertBold(2, 3);
+
+    history.undo();
+    assertEquals("0123456789", str.toString());
+    assertBold(2, 6);
+    assertEquals("serif",
+                 typeface.valueInSelection(str, new Selection(3, 9), null));
+
+    history.undo();
+    assertNoBold();
+  }
+
+  public void testDeletionRestoresSpansViaIndex() {
+    SpanIndex index=new SpanIndex(effects);
+
+    index.attach(str);
+    history.setSpanIndex(index);
+    testDeletionRestoresSpans();
+    index.detach();
+  }
+
+  public void testRemovedSpansKeepTheirFlags() {
+    LineAlignmentEffect alignment=new LineAlignmentEffect();
+
+    effects.add(alignment);
+    str=new SpannableStringBuilder("first\nsecond\n");
+    history.attach(str);
+
+    history.beginChange(false);
+    alignment.applyToSpannable(str, new Selection(0, 0),
+                               Layout.Alignment.ALIGN_CENTER);
+    history.endChange();
+    history.beginChange(false);
+    alignment.applyToSpannable(str, new Selection(0, 0),
+                               Layout.Alignment.ALIGN_OPPOSITE);
+    history.endChange();
+
+    history.undo();
+
+    AlignmentSpan[] spans=str.getSpans(0, str.length(), AlignmentSpan.class);
+
+    assertEquals(1, spans.length);
+    assertEquals(Layout.Alignment.ALIGN_CENTER, spans[0].getAlignment());
+    assertEquals(Spanned.SPAN_PARAGRAPH, str.getSpanFlags(spans[0]));
+  }
+
+  public void testAmendedChangesJoinTheLastEntry() {
+    applyBold(2, 6);
+    applyBold(6, 8);
+
+    history.beginChange(true);
+    SpanCompactor.compact(str, effects);
+    history.endChange();
+    assertEquals(1, str.getSpans(0, str.length(), StyleSpan.class).length);
+
+    history.undo();
+    assertBold(2, 6);
+    history.undo();
+    assertNoBold();
+    assertFalse(history.canUndo());
+  }
+
+  public void testLimitEvictsOldestEntries() {
+    history.setLimit(200);
+
+    for (int i=0; i < 20; i++) {
+      applyBold(i % 10, (i % 10) + 1);
+    }
+
+    int undone=0;
+
+    while (history.canUndo()) {
+      history.undo();
+      undone++;
+    }
+
+    assertTrue(undone > 0);
+    assertTrue(undone < 20);
+  }
+
+  private void type(int position, String text) {
+    for (int i=0; i < text.length(); i++) {
+      str.insert(position + i, text.substring(i, i + 1));
+    }
+  }
+
+  private void applyBold(int start, int end) {
+    history.beginChange(false);
+    bold.applyToSpannable(str, new Selection(start, end), true);
+    history.endChange();
+  }
+
+  private void assertBold(int start, int end) {
+    StyleSpan[] spans=str.getSpans(0, str.length(), StyleSpan.class);
+
+    assertEquals(1, spans.length);
+    assertEquals(start, str.getSpanStart(spans[0]));
+    assertEquals(end, str.getSpanEnd(spans[0]));
+  }
+
+  private void assertNoBold() {
+    assertEquals(0, str.getSpans(0, str.length(), StyleSpan.class).length);
+  }
+}
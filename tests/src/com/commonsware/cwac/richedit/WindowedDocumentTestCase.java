@@ -0,0 +1,284 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import junit.framework.TestCase;
+
+public class WindowedDocumentTestCase extends TestCase {
+  private static final int LINES=200;
+  private final StyleEffect bold=new StyleEffect(Typeface.BOLD);
+  private final ArrayList<Effect<?>> effects=new ArrayList<Effect<?>>();
+  private File file;
+  private SpannableStringBuilder original;
+
+  public void setUp() throws IOException {
+    file=File.createTempFile("windowed", ".cwrw");
+    file.delete();
+    effects.add(bold);
+    original=new SpannableStringBuilder();
+
+    int previous=0;
+
+    for (int i=0; i < LINES; i++) {
+      int start=original.length();
+
+      for (int j=0; j < 100; j++) {
+        original.append("line ").append(String.valueOf(i)).append(' ');
+      }
+
+      original.append('\n');
+
+      // bold straddling the end of the previous line
+      if (i > 0) {
+        bold.applyToSpannable(original, new Selection(previous + 3, start + 5),
+                              true);
+      }
+
+      previous=start;
+    }
+  }
+
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  public void testAppendAndReopen() throws IOException {
+    WindowedDocument doc=WindowedDocument.open(file);
+
+    doc.append(new SpannableStringBuilder(original, 0, 50000));
+    doc.append(new SpannableStringBuilder(original, 50000,
+                                          original.length()));
+    doc.close();
+
+    doc=WindowedDocument.open(file);
+
+    try {
+      assertEquals(original.length(), doc.length());
+      assertTrue(doc.getSegmentCount() > DocumentWindow.SEGMENTS);
+      assertSameContent(original,
+                        doc.read(0, doc.getSegmentCount()));
+    }
+    finally {
+      doc.close();
+    }
+  }
+
+  public void testWindowWriteBack() throws IOException {
+    WindowedDocument doc=WindowedDocument.open(file);
+
+    doc.append(original);
+    doc.flush();
+
+    DocumentWindow window=new DocumentWindow(doc, effects);
+    int offset=original.length() / 2;
+    Editable text=window.load(offset);
+    int start=window.getStart();
+
+    assertTrue(start > 0);
+    assertTrue(start + text.length() < original.length());
+    assertSameContent(original.subSequence(start, start + text.length()),
+                      text);
+
+    // not near an edge in the middle, but near both ends
+    assertFalse(window.isNearEdge(offset - start));
+    assertTrue(window.isNearEdge(10));
+    assertTrue(window.isNearEdge(text.length() - 10));
+
+    text.insert(offset - start, "inserted");
+    bold.applyToSpannable(text, new Selection(offset - start,
+                                              offset - start + 8), true);
+    original.insert(offset, "inserted");
+    bold.applyToSpannable(original, new Selection(offset, offset + 8), true);
+
+    // moving the window writes back the change
+    window.load(0);
+    assertEquals(original.length(), doc.length());
+    assertSameContent(original, doc.read(0, doc.getSegmentCount()));
+
+    // nothing is permanent until flushed
+    WindowedDocument reopened=WindowedDocument.open(file);
+
+    assertEquals(original.length() - 8, reopened.length());
+    reopened.close();
+
+    doc.close();
+    reopened=WindowedDocument.open(file);
+
+    try {
+      assertSameContent(original,
+                        reopened.read(0, reopened.getSegmentCount()));
+    }
+    finally {
+      reopened.close();
+    }
+  }
+
+  public void testBackgroundWriteBack() throws Exception {
+    WindowedDocument doc=WindowedDocument.open(file);
+
+    doc.append(original);
+
+    final DocumentWindow window=new DocumentWindow(doc, effects);
+    Editable text=window.load(original.length() / 2);
+    int start=window.getStart();
+
+    assertNull(window.snapshot());
+    text.insert(100, "first");
+    original.insert(start + 100, "first");
+
+    DocumentWindow.Snapshot snapshot=window.snapshot();
+    int changes=window.getChangeCount();
+
+    // edited while the snapshot is being written back
+    text.insert(10, "second");
+    original.insert(start + 10, "second");
+
+    assertTrue(writeBackInBackground(window, snapshot));
+    window.setWritten(changes);
+    assertNotNull(window.snapshot());
+
+    window.load(0);
+    assertSameContent(original, doc.read(0, doc.getSegmentCount()));
+    doc.close();
+  }
+
+  public void testStaleSnapshotAfterFlush() throws Exception {
+    WindowedDocument doc=WindowedDocument.open(file);
+
+    doc.append(original);
+
+    DocumentWindow window=new DocumentWindow(doc, effects);
+    Editable text=window.load(original.length() / 2);
+    int start=window.getStart();
+
+    text.insert(100, "first");
+    original.insert(start + 100, "first");
+
+    DocumentWindow.Snapshot snapshot=window.snapshot();
+
+    // a flush, while the move is pending, writes back the newer edit
+    text.insert(10, "second");
+    original.insert(start + 10, "second");
+    window.flush();
+
+    assertFalse(writeBackInBackground(window, snapshot));
+    assertNull(window.snapshot());
+    assertSameContent(original, doc.read(0, doc.getSegmentCount()));
+    doc.close();
+  }
+
+  public void testStaleSnapshotAfterMove() throws Exception {
+    WindowedDocument doc=WindowedDocument.open(file);
+
+    doc.append(original);
+
+    DocumentWindow window=new DocumentWindow(doc, effects);
+    Editable text=window.load(original.length() / 2);
+    int start=window.getStart();
+
+    text.insert(100, "first");
+    original.insert(start + 100, "first");
+
+    DocumentWindow.Snapshot snapshot=window.snapshot();
+
+    // moving the window, while the move is pending, shows another slice
+    window.load(0);
+
+    assertFalse(writeBackInBackground(window, snapshot));
+    assertSameContent(original, doc.read(0, doc.getSegmentCount()));
+    doc.close();
+  }
+
+  public void testCompact() throws IOException {
+    WindowedDocument doc=WindowedDocument.open(file);
+
+    doc.append(original);
+
+    DocumentWindow window=new DocumentWindow(doc, effects);
+
+    for (int i=0; i < 5; i++) {
+      Editable text=window.load(i * 20000);
+
+      text.append('x');
+      original.insert(window.getStart() + text.length() - 1, "x");
+    }
+
+    window.writeBack();
+    doc.flush();
+
+    long before=file.length();
+
+    doc.compact();
+    assertTrue(file.length() < before);
+    assertSameContent(original, doc.read(0, doc.getSegmentCount()));
+    doc.close();
+
+    doc=WindowedDocument.open(file);
+
+    try {
+      assertSameContent(original, doc.read(0, doc.getSegmentCount()));
+    }
+    finally {
+      doc.close();
+    }
+  }
+
+  public void testNotADocument() throws IOException {
+    FileOutputStream fos=new FileOutputStream(file);
+
+    fos.write("this is not a windowed document".getBytes("UTF-8"));
+    fos.close();
+
+    try {
+      WindowedDocument.open(file);
+      fail("non-document file should be rejected");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  private boolean writeBackInBackground(final DocumentWindow window,
+                                        final DocumentWindow.Snapshot snapshot)
+    throws Exception {
+    return(DocumentWindow.EXECUTOR.submit(new Callable<Boolean>() {
+      public Boolean call() throws IOException {
+        return(window.writeBack(snapshot));
+      }
+    }).get());
+  }
+
+  private void assertSameContent(CharSequence expected, Editable actual) {
+    SpannableStringBuilder str=new SpannableStringBuilder(expected);
+
+    assertEquals(str.toString(), actual.toString());
+
+    for (int i=0; i < str.length(); i+=97) {
+      Selection selection=new Selection(i, i + 1);
+
+      assertEquals(bold.existsInSelection(str, selection, null),
+                   bold.existsInSelection(actual, selection, null));
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.commonsware.cwac.richedit.app;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import com.commonsware.cwac.richedit.Effect;
+import com.commonsware.cwac.richedit.Selection;
+import com.commonsware.cwac.richedit.SpanBuffer;
+import com.commonsware.cwac.richedit.SpanIndex;
+
+/*
+ * A highlight color, as an app would write it, outside of
+ * the library's package, using only the protected hooks.
+ */
+public class HighlightEffect extends Effect<Integer> {
+  @Override
+  protected Class<?> getSpanClass() {
+    return(BackgroundColorSpan.class);
+  }
+
+  @Override
+  protected boolean isEffectSpan(Object span) {
+    return(span instanceof BackgroundColorSpan);
+  }
+
+  @Override
+  protected Integer getSpanValue(Object span) {
+    return(((BackgroundColorSpan)span).getBackgroundColor());
+  }
+
+  @Override
+  protected Object newSpan(Integer color) {
+    return(new BackgroundColorSpan(color));
+  }
+
+  @Override
+  protected boolean existsInSpans(Spanned str, Selection selection,
+                                  Object[] spans, int count) {
+    return(valueInSpans(str, selection, spans, count) != null);
+  }
+
+  @Override
+  protected Integer valueInSpans(Spanned str, Selection selection,
+                                 Object[] spans, int count) {
+    for (int i=0; i < count; i++) {
+      if (Selection.intersects(str.getSpanStart(spans[i]),
+                               str.getSpanEnd(spans[i]),
+                               selection.getStart(), selection.getEnd())) {
+        return(getSpanValue(spans[i]));
+      }
+    }
+
+    return(null);
+  }
+
+  @Override
+  protected void applyToSpannable(Spannable str, Selection selection,
+                                  Integer color, SpanIndex index) {
+    SpanBuffer found=
+        findSpans(str, selection.getStart(), selection.getEnd(), index);
+    Object[] spans=new Object[found.getCount()];
+
+    for (int i=0; i < spans.length; i++) {
+      spans[i]=found.getSpan(i);
+    }
+
+    for (Object span : spans) {
+      int spanStart=str.getSpanStart(span);
+      int spanEnd=str.getSpanEnd(span);
+
+      str.removeSpan(span);
+
+      if (spanStart < selection.getStart()) {
+        str.setSpan(newSpan(getSpanValue(span)), spanStart,
+                    selection.getStart(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
+
+      if (spanEnd > selection.getEnd()) {
+        str.setSpan(newSpan(getSpanValue(span)), selection.getEnd(),
+                    spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
+    }
+
+    if (color != null && !selection.isEmpty()) {
+      str.setSpan(newSpan(color), selection.getStart(), selection.getEnd(),
+                  Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+  }
+}